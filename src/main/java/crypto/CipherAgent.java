@@ -17,7 +17,12 @@ import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -35,6 +40,7 @@ import security.sm.TopSMProvider;
 
 public final class CipherAgent {
 	private final static Logger log = LoggerFactory.getLogger("TopCipherProxy");
+	private final static ConcurrentMap<List<Object>, Method> METHODS = new ConcurrentHashMap<List<Object>, Method>();
 	private final CipherSpi spi;
 	private final Cipher cipher;
 
@@ -1613,9 +1619,8 @@ public final class CipherAgent {
 	private Object invokeSpi(String methodName, Class<?>[] parameterTypes,
 			Object... args) {
 		try {
-			Method method = this.spi.getClass().getDeclaredMethod(methodName,
+			Method method = findMethod(this.spi.getClass(), methodName,
 					parameterTypes);
-			method.setAccessible(true);
 			return method.invoke(this.spi, args);
 		} catch (SecurityException e) {
 			e.printStackTrace();
@@ -1631,4 +1636,32 @@ public final class CipherAgent {
 		return null;
 	}
 
+	// the lookup costs more than the call, so resolved methods are kept
+	private static Method findMethod(Class<?> clazz, String methodName,
+			Class<?>[] parameterTypes) throws NoSuchMethodException {
+		List<Object> key = Arrays.<Object> asList(clazz, methodName,
+				parameterTypes == null ? Collections.emptyList() : Arrays
+						.asList(parameterTypes));
+		Method method = METHODS.get(key);
+		if (method != null) {
+			return method;
+		}
+		// engine methods not overridden are declared by a superclass
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			try {
+				method = c.getDeclaredMethod(methodName, parameterTypes);
+				break;
+			} catch (NoSuchMethodException e) {
+				// try the superclass
+			}
+		}
+		if (method == null) {
+			throw new NoSuchMethodException(clazz.getName() + "."
+					+ methodName);
+		}
+		method.setAccessible(true);
+		METHODS.putIfAbsent(key, method);
+		return method;
+	}
+
 }
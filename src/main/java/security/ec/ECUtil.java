@@ -2,6 +2,7 @@ package security.ec;
 
 import java.math.BigInteger;
 import java.security.InvalidParameterException;
+import java.security.SecureRandom;
 import java.security.spec.ECField;
 import java.security.spec.ECFieldFp;
 import java.security.spec.ECParameterSpec;
@@ -137,19 +138,109 @@ public class ECUtil {
 	// -------------------- multiply ----------------
 	public static ECPoint multiply(EllipticCurve curve, ECPoint point,
 			BigInteger k) {
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiply(point, k);
+		}
 		return revertFromBC_ECPoint(convertToBC_ECPoint(curve, point).multiply(
 				k));
 	}
 
+	/**
+	 * s * GeneratorPoint + t * point, with one shared doubling chain
+	 * (Shamir's trick)
+	 */
+	public static ECPoint multiplyAndAdd(ECParameterSpec curve, BigInteger s,
+			ECPoint point, BigInteger t) {
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiplyAndAdd(s, point, t);
+		}
+		org.bouncycastle.math.ec.ECPoint r = org.bouncycastle.math.ec.ECAlgorithms
+				.shamirsTrick(getBC_ECGeneratorPoint(curve), s,
+						convertToBC_ECPoint(curve.getCurve(), point), t);
+		return r.isInfinity() ? ECPoint.POINT_INFINITY
+				: revertFromBC_ECPoint(r);
+	}
+
+	/**
+	 * s * GeneratorPoint + t * point, where point is long-lived (a public
+	 * key): its precomputed multiples are kept in {@link SM2KeyTableCache}
+	 */
+	public static ECPoint multiplyAndAddCached(ECParameterSpec curve,
+			BigInteger s, ECPoint point, BigInteger t) {
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiplyAndAddCached(s, point, t);
+		}
+		return multiplyAndAdd(curve, s, point, t);
+	}
+
+	/**
+	 * affine x of s[i] * GeneratorPoint + t[i] * points[i] for every i, null
+	 * where the sum is the point at infinity. Points are treated as
+	 * long-lived like in {@link #multiplyAndAddCached}; for SM2 all results
+	 * share a single field inversion.
+	 */
+	public static BigInteger[] multiplyAndAddCachedX(ECParameterSpec curve,
+			BigInteger[] s, ECPoint[] points, BigInteger[] t) {
+		if (s.length != points.length || t.length != points.length) {
+			throw new IllegalArgumentException("Length mismatch");
+		}
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiplyAndAddCachedX(s, points, t);
+		}
+		BigInteger[] x = new BigInteger[points.length];
+		for (int i = 0; i < points.length; i++) {
+			ECPoint r = multiplyAndAdd(curve, s[i], points[i], t[i]);
+			x[i] = (r == ECPoint.POINT_INFINITY) ? null : r.getAffineX();
+		}
+		return x;
+	}
+
+	/**
+	 * k * point, where point is long-lived (a public key): its precomputed
+	 * multiples are kept in {@link SM2KeyTableCache}
+	 */
+	public static ECPoint multiplyCached(EllipticCurve curve, ECPoint point,
+			BigInteger k) {
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiplyCached(point, k);
+		}
+		return multiply(curve, point, k);
+	}
+
+	// -------------------- add ----------------
+	public static ECPoint add(EllipticCurve curve, ECPoint p, ECPoint q) {
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.add(p, q);
+		}
+		if (p == ECPoint.POINT_INFINITY) {
+			return q;
+		}
+		if (q == ECPoint.POINT_INFINITY) {
+			return p;
+		}
+		org.bouncycastle.math.ec.ECPoint r = convertToBC_ECPoint(curve, p).add(
+				convertToBC_ECPoint(curve, q));
+		return r.isInfinity() ? ECPoint.POINT_INFINITY
+				: revertFromBC_ECPoint(r);
+	}
+
 	/**
 	 * get a random number between zero and the order(n) of the curve
 	 */
 	public static final BigInteger getRandomMultiple(ECParameterSpec curve) {
+		return getRandomMultiple(curve, JCAUtil.getSecureRandom());
+	}
+
+	/**
+	 * get a random multiple in [1, n-1] drawn from <code>random</code>
+	 */
+	public static final BigInteger getRandomMultiple(ECParameterSpec curve,
+			SecureRandom random) {
 		BigInteger d;
 		BigInteger n = curve.getOrder();
 		int nBitLength = n.bitLength();
 		do {
-			d = new BigInteger(nBitLength, JCAUtil.getSecureRandom());
+			d = new BigInteger(nBitLength, random);
 		} while (d.equals(BigInteger.ZERO) || (d.compareTo(n) >= 0));
 		return d;
 	}
@@ -164,6 +255,9 @@ public class ECUtil {
 			throw new InvalidParameterException("Multiple:"
 					+ multiple.toString());
 		}
+		if (SM2P256Multiplier.isSM2(curve)) {
+			return SM2P256Multiplier.multiplyG(multiple);
+		}
 		return ECUtil.revertFromBC_ECPoint(ECUtil.getBC_ECGeneratorPoint(curve)
 				.multiply(multiple));
 	}
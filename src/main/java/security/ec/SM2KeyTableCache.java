@@ -0,0 +1,147 @@
+package security.ec;
+
+import java.security.spec.ECPoint;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of precomputed multiples of long-lived SM2 points, i.e.
+ * public keys. Verification and encryption against a cached key skip the
+ * per-call table build of the variable-base multiplication and use a wider
+ * window than uncached points.
+ *
+ * <p>
+ * The cache is keyed by the public point, which identifies the encoded
+ * SM2PublicKey without re-encoding it on every lookup. Its size is bounded by
+ * an approximate memory limit, taken from the system property
+ * <code>security.ec.sm2KeyCacheMemory</code> (bytes, default 8 MB) and
+ * adjustable with {@link #setMemoryLimit(long)}.
+ */
+public final class SM2KeyTableCache {
+
+	private static final String PROP_MEMORY = "security.ec.sm2KeyCacheMemory";
+
+	// wNAF width of cached tables
+	static final int WNAF = 6;
+
+	// approximate heap footprint of one entry (table, key and map entry)
+	private static final long ENTRY_SIZE = 2048;
+
+	private static volatile long memoryLimit = Long.getLong(PROP_MEMORY,
+			8L * 1024 * 1024);
+
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+
+	// access ordered: iteration starts at the least recently used entry
+	private static final Map<ECPoint, Entry> tables = new LinkedHashMap<ECPoint, Entry>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<ECPoint, Entry> eldest) {
+			if (size() > maxEntries()) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private SM2KeyTableCache() {
+		// no instantiation
+	}
+
+	/**
+	 * Odd multiples (2j + 1) * w in affine coordinates.
+	 */
+	static final class Entry {
+		final int[][] x = new int[1 << (WNAF - 2)][];
+		final int[][] y = new int[1 << (WNAF - 2)][];
+	}
+
+	static Entry get(ECPoint w) {
+		Entry e;
+		synchronized (tables) {
+			e = tables.get(w);
+			if (e != null) {
+				hits++;
+				return e;
+			}
+			misses++;
+		}
+		// build outside the lock, two threads may occasionally build the
+		// same table, which only wastes a few cycles
+		e = new Entry();
+		SM2P256Multiplier.precomputeOdd(w, WNAF, e.x, e.y,
+				new SM2P256Point.Scratch());
+		if (maxEntries() > 0) {
+			synchronized (tables) {
+				tables.put(w, e);
+			}
+		}
+		return e;
+	}
+
+	private static long maxEntries() {
+		return memoryLimit / ENTRY_SIZE;
+	}
+
+	/**
+	 * Set the approximate memory limit in bytes, 0 disables caching.
+	 */
+	public static void setMemoryLimit(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative memory limit: "
+					+ bytes);
+		}
+		memoryLimit = bytes;
+		synchronized (tables) {
+			Iterator<ECPoint> i = tables.keySet().iterator();
+			while (tables.size() > maxEntries() && i.hasNext()) {
+				i.next();
+				i.remove();
+				evictions++;
+			}
+		}
+	}
+
+	public static long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	public static int size() {
+		synchronized (tables) {
+			return tables.size();
+		}
+	}
+
+	public static long getHitCount() {
+		synchronized (tables) {
+			return hits;
+		}
+	}
+
+	public static long getMissCount() {
+		synchronized (tables) {
+			return misses;
+		}
+	}
+
+	public static long getEvictionCount() {
+		synchronized (tables) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * Remove all entries, counters are kept.
+	 */
+	public static void clear() {
+		synchronized (tables) {
+			tables.clear();
+		}
+	}
+}
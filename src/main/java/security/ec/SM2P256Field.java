@@ -0,0 +1,358 @@
+package security.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic in the prime field of the SM2 curve,
+ * p = 2^256 - 2^224 - 2^96 + 2^64 - 1.
+ *
+ * <p>
+ * An element is an <code>int[8]</code> of 32-bit limbs, least significant
+ * limb first, always fully reduced into [0, p). Products are reduced with the
+ * special form of p instead of a division: every limb above 2^256 is folded
+ * back using 2^256 = 2^224 + 2^96 - 2^64 + 1 (mod p).
+ *
+ * <p>
+ * Methods that multiply take a caller supplied <code>int[16]</code> scratch
+ * buffer, so that no object is allocated per field operation.
+ */
+final class SM2P256Field {
+
+	private static final long M = 0xFFFFFFFFL;
+
+	// p, little-endian limbs
+	static final int[] P = { 0xFFFFFFFF, 0xFFFFFFFF, 0x00000000, 0xFFFFFFFF,
+			0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFE };
+
+	static final BigInteger P_BIG = new BigInteger(
+			"FFFFFFFEFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF00000000FFFFFFFFFFFFFFFF",
+			16);
+
+	private SM2P256Field() {
+		// no instantiation
+	}
+
+	static int[] create() {
+		return new int[8];
+	}
+
+	static int[] createExt() {
+		return new int[16];
+	}
+
+	static int[] fromBigInteger(BigInteger x) {
+		if (x.signum() < 0 || x.compareTo(P_BIG) >= 0) {
+			x = x.mod(P_BIG);
+		}
+		int[] z = new int[8];
+		byte[] b = x.toByteArray();
+		for (int i = b.length - 1, bit = 0; i >= 0 && bit < 256; i--, bit += 8) {
+			z[bit >>> 5] |= (b[i] & 0xFF) << (bit & 31);
+		}
+		return z;
+	}
+
+	static BigInteger toBigInteger(int[] x) {
+		byte[] b = new byte[32];
+		for (int i = 0; i < 8; i++) {
+			int n = x[7 - i];
+			b[i << 2] = (byte) (n >>> 24);
+			b[(i << 2) + 1] = (byte) (n >>> 16);
+			b[(i << 2) + 2] = (byte) (n >>> 8);
+			b[(i << 2) + 3] = (byte) n;
+		}
+		return new BigInteger(1, b);
+	}
+
+	static void copy(int[] x, int[] z) {
+		System.arraycopy(x, 0, z, 0, 8);
+	}
+
+	static void setOne(int[] z) {
+		z[0] = 1;
+		for (int i = 1; i < 8; i++) {
+			z[i] = 0;
+		}
+	}
+
+	static boolean isZero(int[] x) {
+		int d = 0;
+		for (int i = 0; i < 8; i++) {
+			d |= x[i];
+		}
+		return d == 0;
+	}
+
+	static boolean equals(int[] x, int[] y) {
+		int d = 0;
+		for (int i = 0; i < 8; i++) {
+			d |= x[i] ^ y[i];
+		}
+		return d == 0;
+	}
+
+	// z = x + y
+	static void add(int[] x, int[] y, int[] z) {
+		long c = 0;
+		for (int i = 0; i < 8; i++) {
+			c += (x[i] & M) + (y[i] & M);
+			z[i] = (int) c;
+			c >>>= 32;
+		}
+		if (c != 0 || geP(z)) {
+			subP(z);
+		}
+	}
+
+	// z = 2x
+	static void twice(int[] x, int[] z) {
+		add(x, x, z);
+	}
+
+	// z = x - y
+	static void sub(int[] x, int[] y, int[] z) {
+		long c = 0;
+		for (int i = 0; i < 8; i++) {
+			c += (x[i] & M) - (y[i] & M);
+			z[i] = (int) c;
+			c >>= 32;
+		}
+		if (c != 0) {
+			addP(z);
+		}
+	}
+
+	// z = -x
+	static void negate(int[] x, int[] z) {
+		if (isZero(x)) {
+			copy(x, z);
+		} else {
+			sub(P, x, z);
+		}
+	}
+
+	// z = x * y, tt is a 16 limbs scratch buffer
+	static void multiply(int[] x, int[] y, int[] z, int[] tt) {
+		long y0 = y[0] & M, y1 = y[1] & M, y2 = y[2] & M, y3 = y[3] & M;
+		long y4 = y[4] & M, y5 = y[5] & M, y6 = y[6] & M, y7 = y[7] & M;
+		long c, xi;
+
+		xi = x[0] & M;
+		c = xi * y0;
+		tt[0] = (int) c;
+		c = (c >>> 32) + xi * y1;
+		tt[1] = (int) c;
+		c = (c >>> 32) + xi * y2;
+		tt[2] = (int) c;
+		c = (c >>> 32) + xi * y3;
+		tt[3] = (int) c;
+		c = (c >>> 32) + xi * y4;
+		tt[4] = (int) c;
+		c = (c >>> 32) + xi * y5;
+		tt[5] = (int) c;
+		c = (c >>> 32) + xi * y6;
+		tt[6] = (int) c;
+		c = (c >>> 32) + xi * y7;
+		tt[7] = (int) c;
+		tt[8] = (int) (c >>> 32);
+
+		for (int i = 1; i < 8; i++) {
+			xi = x[i] & M;
+			c = xi * y0 + (tt[i] & M);
+			tt[i] = (int) c;
+			c = (c >>> 32) + xi * y1 + (tt[i + 1] & M);
+			tt[i + 1] = (int) c;
+			c = (c >>> 32) + xi * y2 + (tt[i + 2] & M);
+			tt[i + 2] = (int) c;
+			c = (c >>> 32) + xi * y3 + (tt[i + 3] & M);
+			tt[i + 3] = (int) c;
+			c = (c >>> 32) + xi * y4 + (tt[i + 4] & M);
+			tt[i + 4] = (int) c;
+			c = (c >>> 32) + xi * y5 + (tt[i + 5] & M);
+			tt[i + 5] = (int) c;
+			c = (c >>> 32) + xi * y6 + (tt[i + 6] & M);
+			tt[i + 6] = (int) c;
+			c = (c >>> 32) + xi * y7 + (tt[i + 7] & M);
+			tt[i + 7] = (int) c;
+			tt[i + 8] = (int) (c >>> 32);
+		}
+		reduce(tt, z);
+	}
+
+	// z = x^2, tt is a 16 limbs scratch buffer
+	static void square(int[] x, int[] z, int[] tt) {
+		multiply(x, x, z, tt);
+	}
+
+	// z = x^-1 = x^(p-2), x must not be zero
+	static void invert(int[] x, int[] z, int[] tt) {
+		/*
+		 * p - 2, from the most significant bit: 31 ones, 1 zero, 128 ones, 32
+		 * zeros, 62 ones, 1 zero, 1 one. xN below is x^(2^N - 1).
+		 */
+		int[] x2 = create();
+		int[] x4 = create();
+		int[] x8 = create();
+		int[] x30 = create();
+		int[] x31 = create();
+		int[] x32 = create();
+		int[] t = create();
+
+		square(x, t, tt);
+		multiply(t, x, x2, tt);
+		squareN(x2, 2, t, tt);
+		multiply(t, x2, x4, tt);
+		squareN(x4, 4, t, tt);
+		multiply(t, x4, x8, tt);
+		squareN(x8, 8, t, tt);
+		multiply(t, x8, t, tt); // x16
+		squareN(t, 8, t, tt);
+		multiply(t, x8, t, tt); // x24
+		squareN(t, 4, t, tt);
+		multiply(t, x4, t, tt); // x28
+		squareN(t, 2, t, tt);
+		multiply(t, x2, x30, tt);
+		square(x30, t, tt);
+		multiply(t, x, x31, tt);
+		square(x31, t, tt);
+		multiply(t, x, x32, tt);
+
+		// 31 ones, 1 zero
+		square(x31, t, tt);
+		// 128 ones
+		for (int i = 0; i < 4; i++) {
+			squareN(t, 32, t, tt);
+			multiply(t, x32, t, tt);
+		}
+		// 32 zeros
+		squareN(t, 32, t, tt);
+		// 62 ones
+		squareN(t, 32, t, tt);
+		multiply(t, x32, t, tt);
+		squareN(t, 30, t, tt);
+		multiply(t, x30, t, tt);
+		// 1 zero, 1 one
+		squareN(t, 2, t, tt);
+		multiply(t, x, z, tt);
+	}
+
+	// z = x^(2^n)
+	static void squareN(int[] x, int n, int[] z, int[] tt) {
+		square(x, z, tt);
+		while (--n > 0) {
+			square(z, z, tt);
+		}
+	}
+
+	/*
+	 * 2^(32i) mod p for i = 8..15, as coefficients of the limbs 0..7:
+	 *
+	 * 8  [1, 0, -1, 1, 0, 0, 0, 1]
+	 * 9  [1, 1, -1, 0, 1, 0, 0, 1]
+	 * 10 [1, 1, 0, 0, 0, 1, 0, 1]
+	 * 11 [1, 1, 0, 1, 0, 0, 1, 1]
+	 * 12 [1, 1, 0, 1, 1, 0, 0, 2]
+	 * 13 [2, 1, -1, 2, 1, 1, 0, 2]
+	 * 14 [2, 2, -1, 1, 2, 1, 1, 2]
+	 * 15 [2, 2, 0, 1, 1, 2, 1, 3]
+	 */
+	static void reduce(int[] tt, int[] z) {
+		long x8 = tt[8] & M, x9 = tt[9] & M, x10 = tt[10] & M, x11 = tt[11] & M;
+		long x12 = tt[12] & M, x13 = tt[13] & M, x14 = tt[14] & M, x15 = tt[15] & M;
+
+		long c = (tt[0] & M) + x8 + x9 + x10 + x11 + x12
+				+ ((x13 + x14 + x15) << 1);
+		z[0] = (int) c;
+		c >>= 32;
+		c += (tt[1] & M) + x9 + x10 + x11 + x12 + x13 + ((x14 + x15) << 1);
+		z[1] = (int) c;
+		c >>= 32;
+		c += (tt[2] & M) - x8 - x9 - x13 - x14;
+		z[2] = (int) c;
+		c >>= 32;
+		c += (tt[3] & M) + x8 + x11 + x12 + (x13 << 1) + x14 + x15;
+		z[3] = (int) c;
+		c >>= 32;
+		c += (tt[4] & M) + x9 + x12 + x13 + (x14 << 1) + x15;
+		z[4] = (int) c;
+		c >>= 32;
+		c += (tt[5] & M) + x10 + x13 + x14 + (x15 << 1);
+		z[5] = (int) c;
+		c >>= 32;
+		c += (tt[6] & M) + x11 + x14 + x15;
+		z[6] = (int) c;
+		c >>= 32;
+		c += (tt[7] & M) + x8 + x9 + x10 + x11 + ((x12 + x13 + x14) << 1)
+				+ x15 * 3;
+		z[7] = (int) c;
+		c >>= 32;
+
+		reduce32(c, z);
+	}
+
+	// fold a (signed, small) carry of 2^256 units back into z, then bring z
+	// into [0, p)
+	private static void reduce32(long carry, int[] z) {
+		while (carry != 0) {
+			long c = (z[0] & M) + carry;
+			z[0] = (int) c;
+			c >>= 32;
+			c += (z[1] & M);
+			z[1] = (int) c;
+			c >>= 32;
+			c += (z[2] & M) - carry;
+			z[2] = (int) c;
+			c >>= 32;
+			c += (z[3] & M) + carry;
+			z[3] = (int) c;
+			c >>= 32;
+			c += (z[4] & M);
+			z[4] = (int) c;
+			c >>= 32;
+			c += (z[5] & M);
+			z[5] = (int) c;
+			c >>= 32;
+			c += (z[6] & M);
+			z[6] = (int) c;
+			c >>= 32;
+			c += (z[7] & M) + carry;
+			z[7] = (int) c;
+			carry = c >> 32;
+		}
+		if (geP(z)) {
+			subP(z);
+		}
+	}
+
+	private static boolean geP(int[] x) {
+		for (int i = 7; i >= 0; i--) {
+			int a = x[i] ^ Integer.MIN_VALUE;
+			int b = P[i] ^ Integer.MIN_VALUE;
+			if (a < b) {
+				return false;
+			}
+			if (a > b) {
+				return true;
+			}
+		}
+		return true;
+	}
+
+	private static void subP(int[] z) {
+		long c = 0;
+		for (int i = 0; i < 8; i++) {
+			c += (z[i] & M) - (P[i] & M);
+			z[i] = (int) c;
+			c >>= 32;
+		}
+	}
+
+	private static void addP(int[] z) {
+		long c = 0;
+		for (int i = 0; i < 8; i++) {
+			c += (z[i] & M) + (P[i] & M);
+			z[i] = (int) c;
+			c >>>= 32;
+		}
+	}
+}
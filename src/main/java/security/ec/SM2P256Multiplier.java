@@ -0,0 +1,411 @@
+package security.ec;
+
+import java.math.BigInteger;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+
+/**
+ * Scalar multiplication on the SM2 curve with the native field arithmetic of
+ * {@link SM2P256Field} and the Jacobian points of {@link SM2P256Point}.
+ *
+ * <p>
+ * The generator uses a fixed-base table of <code>j * 2^(6i) * G</code> in
+ * affine coordinates, built once per process. Other points use a 4-bit window
+ * over a table of 15 multiples that is computed per call.
+ *
+ * <p>
+ * <code>s * G + t * P</code>, the core of signature verification, is computed
+ * with Straus' (Shamir's) trick: both multiples are recoded to width-w NAF and
+ * share one doubling chain, adding odd multiples of G (from a static table)
+ * and of P as their digits come up.
+ */
+final class SM2P256Multiplier {
+
+	// window width of the generator table
+	private static final int G_WINDOW = 6;
+	// window width of the variable base table
+	private static final int WINDOW = 4;
+	// wNAF width of G in joint multiplications
+	private static final int G_WNAF = 7;
+	// wNAF width of P in joint multiplications
+	static final int P_WNAF = 5;
+
+	private static final ECParameterSpec sm2Curve = NamedCurve
+			.getECParameterSpec("SM2");
+
+	private SM2P256Multiplier() {
+		// no instantiation
+	}
+
+	/**
+	 * Is <code>curve</code> the SM2 curve?
+	 */
+	static boolean isSM2(EllipticCurve curve) {
+		return curve == sm2Curve.getCurve() || sm2Curve.getCurve().equals(curve);
+	}
+
+	/**
+	 * Are <code>params</code> the SM2 domain parameters?
+	 */
+	static boolean isSM2(ECParameterSpec params) {
+		return params == sm2Curve
+				|| (isSM2(params.getCurve())
+						&& sm2Curve.getGenerator().equals(params.getGenerator())
+						&& sm2Curve.getOrder().equals(params.getOrder()));
+	}
+
+	/**
+	 * k * G
+	 */
+	static ECPoint multiplyG(BigInteger k) {
+		SM2P256Point.Scratch s = new SM2P256Point.Scratch();
+		SM2P256Point r = new SM2P256Point();
+		multiplyG(scalar(k), r, s);
+		return r.toECPoint(s);
+	}
+
+	/**
+	 * k * p
+	 */
+	static ECPoint multiply(ECPoint p, BigInteger k) {
+		SM2P256Point.Scratch s = new SM2P256Point.Scratch();
+		SM2P256Point r = new SM2P256Point();
+		if (p != ECPoint.POINT_INFINITY) {
+			int[][] tx = new int[(1 << WINDOW) - 1][];
+			int[][] ty = new int[(1 << WINDOW) - 1][];
+			precompute(p, WINDOW, tx, ty, s);
+			multiply(tx, ty, scalar(k), r, s);
+		}
+		return r.toECPoint(s);
+	}
+
+	/**
+	 * p + q
+	 */
+	static ECPoint add(ECPoint p, ECPoint q) {
+		SM2P256Point.Scratch s = new SM2P256Point.Scratch();
+		SM2P256Point r = SM2P256Point.fromECPoint(p);
+		r.addPoint(SM2P256Point.fromECPoint(q), s);
+		return r.toECPoint(s);
+	}
+
+	/**
+	 * s * G + t * p
+	 */
+	static ECPoint multiplyAndAdd(BigInteger s, ECPoint p, BigInteger t) {
+		SM2P256Point.Scratch sc = new SM2P256Point.Scratch();
+		SM2P256Point r = new SM2P256Point();
+		if (p == ECPoint.POINT_INFINITY) {
+			multiplyG(scalar(s), r, sc);
+		} else {
+			int[][] tx = new int[1 << (P_WNAF - 2)][];
+			int[][] ty = new int[1 << (P_WNAF - 2)][];
+			precomputeOdd(p, P_WNAF, tx, ty, sc);
+			multiplyAndAdd(scalar(s), tx, ty, P_WNAF, scalar(t), r, sc);
+		}
+		return r.toECPoint(sc);
+	}
+
+	/**
+	 * s * G + t * p, with the precomputed multiples of p taken from
+	 * {@link SM2KeyTableCache}
+	 */
+	static ECPoint multiplyAndAddCached(BigInteger s, ECPoint p, BigInteger t) {
+		if (p == ECPoint.POINT_INFINITY) {
+			return multiplyG(s);
+		}
+		SM2P256Point.Scratch sc = new SM2P256Point.Scratch();
+		SM2P256Point r = new SM2P256Point();
+		SM2KeyTableCache.Entry e = SM2KeyTableCache.get(p);
+		multiplyAndAdd(scalar(s), e.x, e.y, SM2KeyTableCache.WNAF, scalar(t),
+				r, sc);
+		return r.toECPoint(sc);
+	}
+
+	/**
+	 * Affine x of s[i] * G + t[i] * p[i] for every i, or null where the sum
+	 * is infinity. The precomputed multiples of the points are taken from
+	 * {@link SM2KeyTableCache}, and all results share one field inversion.
+	 */
+	static BigInteger[] multiplyAndAddCachedX(BigInteger[] s, ECPoint[] p,
+			BigInteger[] t) {
+		SM2P256Point.Scratch sc = new SM2P256Point.Scratch();
+		SM2P256Point[] sums = new SM2P256Point[s.length];
+		int finite = 0;
+		for (int i = 0; i < s.length; i++) {
+			SM2P256Point r = new SM2P256Point();
+			if (p[i] == ECPoint.POINT_INFINITY) {
+				multiplyG(scalar(s[i]), r, sc);
+			} else {
+				SM2KeyTableCache.Entry e = SM2KeyTableCache.get(p[i]);
+				multiplyAndAdd(scalar(s[i]), e.x, e.y, SM2KeyTableCache.WNAF,
+						scalar(t[i]), r, sc);
+			}
+			if (!r.isInfinity()) {
+				sums[i] = r;
+				finite++;
+			}
+		}
+
+		BigInteger[] x = new BigInteger[s.length];
+		if (finite == 0) {
+			return x;
+		}
+		SM2P256Point[] points = new SM2P256Point[finite];
+		for (int i = 0, j = 0; i < sums.length; i++) {
+			if (sums[i] != null) {
+				points[j++] = sums[i];
+			}
+		}
+		int[][] ax = new int[finite][];
+		int[][] ay = new int[finite][];
+		SM2P256Point.normalizeAll(points, ax, ay, sc);
+		for (int i = 0, j = 0; i < sums.length; i++) {
+			if (sums[i] != null) {
+				x[i] = SM2P256Field.toBigInteger(ax[j++]);
+			}
+		}
+		return x;
+	}
+
+	/**
+	 * k * p, with the precomputed multiples of p taken from
+	 * {@link SM2KeyTableCache}
+	 */
+	static ECPoint multiplyCached(ECPoint p, BigInteger k) {
+		SM2P256Point.Scratch sc = new SM2P256Point.Scratch();
+		SM2P256Point r = new SM2P256Point();
+		if (p != ECPoint.POINT_INFINITY) {
+			SM2KeyTableCache.Entry e = SM2KeyTableCache.get(p);
+			multiplyWnaf(e.x, e.y, SM2KeyTableCache.WNAF, scalar(k), r, sc);
+		}
+		return r.toECPoint(sc);
+	}
+
+	// r = k * P, where (tx[j], ty[j]) = (2j + 1) * P
+	static void multiplyWnaf(int[][] tx, int[][] ty, int w, int[] k,
+			SM2P256Point r, SM2P256Point.Scratch sc) {
+		byte[] naf = wnaf(k, w);
+		int[] negY = SM2P256Field.create();
+
+		r.setInfinity();
+		for (int i = naf.length - 1; i >= 0; i--) {
+			r.twicePoint(sc);
+			int d = naf[i];
+			if (d > 0) {
+				r.addAffine(tx[d >> 1], ty[d >> 1], sc);
+			} else if (d < 0) {
+				SM2P256Field.negate(ty[-d >> 1], negY);
+				r.addAffine(tx[-d >> 1], negY, sc);
+			}
+		}
+	}
+
+	// r = s * G + t * P, where (tx[j], ty[j]) = (2j + 1) * P for a width w
+	static void multiplyAndAdd(int[] s, int[][] tx, int[][] ty, int w,
+			int[] t, SM2P256Point r, SM2P256Point.Scratch sc) {
+		byte[] nafG = wnaf(s, G_WNAF);
+		byte[] nafP = wnaf(t, w);
+		int[][] gx = GOddTable.x;
+		int[][] gy = GOddTable.y;
+		int[] negY = SM2P256Field.create();
+
+		r.setInfinity();
+		for (int i = nafG.length - 1; i >= 0; i--) {
+			r.twicePoint(sc);
+			int d = nafG[i];
+			if (d > 0) {
+				r.addAffine(gx[d >> 1], gy[d >> 1], sc);
+			} else if (d < 0) {
+				SM2P256Field.negate(gy[-d >> 1], negY);
+				r.addAffine(gx[-d >> 1], negY, sc);
+			}
+			d = nafP[i];
+			if (d > 0) {
+				r.addAffine(tx[d >> 1], ty[d >> 1], sc);
+			} else if (d < 0) {
+				SM2P256Field.negate(ty[-d >> 1], negY);
+				r.addAffine(tx[-d >> 1], negY, sc);
+			}
+		}
+	}
+
+	// r = k * G, with k given as little-endian limbs
+	static void multiplyG(int[] k, SM2P256Point r, SM2P256Point.Scratch s) {
+		int[][][] tx = GTable.x;
+		int[][][] ty = GTable.y;
+		r.setInfinity();
+		for (int i = 0, bit = 0; i < tx.length; i++, bit += G_WINDOW) {
+			int w = window(k, bit, G_WINDOW);
+			if (w != 0) {
+				r.addAffine(tx[i][w - 1], ty[i][w - 1], s);
+			}
+		}
+	}
+
+	// r = k * P, where (tx[j], ty[j]) = (j + 1) * P
+	static void multiply(int[][] tx, int[][] ty, int[] k, SM2P256Point r,
+			SM2P256Point.Scratch s) {
+		r.setInfinity();
+		for (int bit = 256 - WINDOW; bit >= 0; bit -= WINDOW) {
+			for (int j = 0; j < WINDOW; j++) {
+				r.twicePoint(s);
+			}
+			int w = window(k, bit, WINDOW);
+			if (w != 0) {
+				r.addAffine(tx[w - 1], ty[w - 1], s);
+			}
+		}
+	}
+
+	/*
+	 * (tx[j], ty[j]) = (j + 1) * p, j = 0..2^w-2, in affine coordinates
+	 */
+	static void precompute(ECPoint p, int w, int[][] tx, int[][] ty,
+			SM2P256Point.Scratch s) {
+		int[] px = SM2P256Field.fromBigInteger(p.getAffineX());
+		int[] py = SM2P256Field.fromBigInteger(p.getAffineY());
+		SM2P256Point[] points = new SM2P256Point[(1 << w) - 1];
+		points[0] = new SM2P256Point(px, py);
+		for (int j = 1; j < points.length; j++) {
+			points[j] = new SM2P256Point();
+			points[j].set(points[j - 1]);
+			points[j].addAffine(px, py, s);
+		}
+		SM2P256Point.normalizeAll(points, tx, ty, s);
+	}
+
+	/*
+	 * (tx[j], ty[j]) = (2j + 1) * p, j = 0..2^(w-2)-1, in affine coordinates
+	 */
+	static void precomputeOdd(ECPoint p, int w, int[][] tx, int[][] ty,
+			SM2P256Point.Scratch s) {
+		int[] px = SM2P256Field.fromBigInteger(p.getAffineX());
+		int[] py = SM2P256Field.fromBigInteger(p.getAffineY());
+		precomputeOdd(new SM2P256Point(px, py), w, tx, ty, s);
+	}
+
+	private static void precomputeOdd(SM2P256Point p, int w, int[][] tx,
+			int[][] ty, SM2P256Point.Scratch s) {
+		SM2P256Point twiceP = new SM2P256Point();
+		twiceP.set(p);
+		twiceP.twicePoint(s);
+		SM2P256Point[] points = new SM2P256Point[1 << (w - 2)];
+		points[0] = p;
+		for (int j = 1; j < points.length; j++) {
+			points[j] = new SM2P256Point();
+			points[j].set(points[j - 1]);
+			points[j].addPoint(twiceP, s);
+		}
+		SM2P256Point.normalizeAll(points, tx, ty, s);
+	}
+
+	/*
+	 * Width-w non-adjacent form of k, least significant digit first. Every
+	 * non-zero digit is odd and below 2^(w-1) in absolute value.
+	 */
+	static byte[] wnaf(int[] k, int w) {
+		byte[] naf = new byte[257];
+		int half = 1 << (w - 1);
+		int carry = 0;
+		int pos = 0;
+		while (pos < naf.length) {
+			int b = pos < 256 ? (k[pos >>> 5] >>> (pos & 31)) & 1 : 0;
+			if (b == carry) {
+				pos++;
+				continue;
+			}
+			int word = (pos < 256 ? window(k, pos, w) : 0) + carry;
+			if ((word & half) != 0) {
+				naf[pos] = (byte) (word - (half << 1));
+				carry = 1;
+			} else {
+				naf[pos] = (byte) word;
+				carry = 0;
+			}
+			pos += w;
+		}
+		return naf;
+	}
+
+	/*
+	 * 0 <= k < 2^256 as little-endian limbs; out of range multiples are
+	 * reduced modulo the order
+	 */
+	static int[] scalar(BigInteger k) {
+		if (k.signum() < 0 || k.bitLength() > 256) {
+			k = k.mod(sm2Curve.getOrder());
+		}
+		int[] z = new int[8];
+		byte[] b = k.toByteArray();
+		for (int i = b.length - 1, bit = 0; i >= 0 && bit < 256; i--, bit += 8) {
+			z[bit >>> 5] |= (b[i] & 0xFF) << (bit & 31);
+		}
+		return z;
+	}
+
+	// w bits of k starting at bit
+	static int window(int[] k, int bit, int w) {
+		int limb = bit >>> 5;
+		int shift = bit & 31;
+		int v = k[limb] >>> shift;
+		if (shift + w > 32 && limb < 7) {
+			v |= k[limb + 1] << (32 - shift);
+		}
+		return v & ((1 << w) - 1);
+	}
+
+	/*
+	 * Odd multiples of the generator for joint multiplications, built on
+	 * first use.
+	 */
+	private static final class GOddTable {
+		static final int[][] x = new int[1 << (G_WNAF - 2)][];
+		static final int[][] y = new int[1 << (G_WNAF - 2)][];
+
+		static {
+			precomputeOdd(sm2Curve.getGenerator(), G_WNAF, x, y,
+					new SM2P256Point.Scratch());
+		}
+	}
+
+	/*
+	 * Generator table, built on first use.
+	 */
+	private static final class GTable {
+		static final int[][][] x;
+		static final int[][][] y;
+
+		static {
+			int rows = (256 + G_WINDOW - 1) / G_WINDOW;
+			int cols = (1 << G_WINDOW) - 1;
+			SM2P256Point.Scratch s = new SM2P256Point.Scratch();
+			SM2P256Point[] points = new SM2P256Point[rows * cols];
+			SM2P256Point base = SM2P256Point.fromECPoint(sm2Curve
+					.getGenerator());
+			for (int i = 0; i < rows; i++) {
+				SM2P256Point cur = new SM2P256Point();
+				cur.set(base);
+				for (int j = 0; j < cols; j++) {
+					SM2P256Point p = new SM2P256Point();
+					p.set(cur);
+					points[i * cols + j] = p;
+					cur.addPoint(base, s);
+				}
+				// 2^G_WINDOW * base
+				base = cur;
+			}
+			int[][] ax = new int[points.length][];
+			int[][] ay = new int[points.length][];
+			SM2P256Point.normalizeAll(points, ax, ay, s);
+
+			x = new int[rows][cols][];
+			y = new int[rows][cols][];
+			for (int i = 0; i < rows; i++) {
+				System.arraycopy(ax, i * cols, x[i], 0, cols);
+				System.arraycopy(ay, i * cols, y[i], 0, cols);
+			}
+		}
+	}
+}
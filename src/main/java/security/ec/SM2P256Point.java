@@ -0,0 +1,278 @@
+package security.ec;
+
+import java.security.spec.ECPoint;
+
+import static security.ec.SM2P256Field.*;
+
+/**
+ * A point of the SM2 curve in Jacobian coordinates (X, Y, Z), standing for the
+ * affine point (X/Z^2, Y/Z^3). Z = 0 is the point at infinity.
+ *
+ * <p>
+ * Points are mutable and updated in place. All temporaries come from a
+ * {@link Scratch} owned by the caller, so a whole scalar multiplication only
+ * needs a single field inversion (in {@link #toECPoint}) and no allocation
+ * per point operation. The curve coefficient a = -3 is used by the doubling
+ * formula.
+ */
+final class SM2P256Point {
+
+	final int[] x = create();
+	final int[] y = create();
+	final int[] z = create();
+
+	SM2P256Point() {
+		// infinity
+	}
+
+	SM2P256Point(int[] ax, int[] ay) {
+		setAffine(ax, ay);
+	}
+
+	static SM2P256Point fromECPoint(ECPoint p) {
+		SM2P256Point r = new SM2P256Point();
+		if (p != ECPoint.POINT_INFINITY) {
+			r.setAffine(fromBigInteger(p.getAffineX()),
+					fromBigInteger(p.getAffineY()));
+		}
+		return r;
+	}
+
+	boolean isInfinity() {
+		return isZero(z);
+	}
+
+	void setInfinity() {
+		setOne(x);
+		setOne(y);
+		for (int i = 0; i < 8; i++) {
+			z[i] = 0;
+		}
+	}
+
+	void set(SM2P256Point p) {
+		copy(p.x, x);
+		copy(p.y, y);
+		copy(p.z, z);
+	}
+
+	void setAffine(int[] ax, int[] ay) {
+		copy(ax, x);
+		copy(ay, y);
+		setOne(z);
+	}
+
+	/**
+	 * Convert to affine coordinates, costs one field inversion.
+	 */
+	ECPoint toECPoint(Scratch s) {
+		if (isInfinity()) {
+			return ECPoint.POINT_INFINITY;
+		}
+		int[] zInv = s.t1, zInv2 = s.t2, ax = s.t3, ay = s.t4;
+		invert(z, zInv, s.tt);
+		square(zInv, zInv2, s.tt);
+		multiply(x, zInv2, ax, s.tt);
+		multiply(zInv, zInv2, zInv2, s.tt);
+		multiply(y, zInv2, ay, s.tt);
+		return new ECPoint(toBigInteger(ax), toBigInteger(ay));
+	}
+
+	/**
+	 * Affine x coordinate only, costs one field inversion.
+	 */
+	int[] affineX(Scratch s, int[] ax) {
+		int[] zInv = s.t1;
+		invert(z, zInv, s.tt);
+		square(zInv, zInv, s.tt);
+		multiply(x, zInv, ax, s.tt);
+		return ax;
+	}
+
+	/**
+	 * this = 2 * this (dbl-2001-b, a = -3)
+	 */
+	void twicePoint(Scratch s) {
+		if (isInfinity()) {
+			return;
+		}
+		int[] tt = s.tt;
+		int[] delta = s.t1, gamma = s.t2, beta = s.t3, alpha = s.t4, t = s.t5;
+
+		square(z, delta, tt);
+		square(y, gamma, tt);
+		multiply(x, gamma, beta, tt);
+
+		// alpha = 3 * (x - delta) * (x + delta)
+		sub(x, delta, t);
+		add(x, delta, alpha);
+		multiply(t, alpha, alpha, tt);
+		twice(alpha, t);
+		add(t, alpha, alpha);
+
+		// z = (y + z)^2 - gamma - delta
+		add(y, z, t);
+		square(t, t, tt);
+		sub(t, gamma, t);
+		sub(t, delta, z);
+
+		// x = alpha^2 - 8 * beta
+		twice(beta, beta);
+		twice(beta, beta); // 4 * beta
+		square(alpha, x, tt);
+		twice(beta, t);
+		sub(x, t, x);
+
+		// y = alpha * (4 * beta - x) - 8 * gamma^2
+		sub(beta, x, t);
+		multiply(alpha, t, t, tt);
+		square(gamma, gamma, tt);
+		twice(gamma, gamma);
+		twice(gamma, gamma);
+		twice(gamma, gamma);
+		sub(t, gamma, y);
+	}
+
+	/**
+	 * this = this + (ax, ay), the second point given in affine coordinates.
+	 */
+	void addAffine(int[] ax, int[] ay, Scratch s) {
+		if (isInfinity()) {
+			setAffine(ax, ay);
+			return;
+		}
+		int[] tt = s.tt;
+		int[] z1z1 = s.t1, u2 = s.t2, s2 = s.t3, h = s.t4, r = s.t5;
+
+		square(z, z1z1, tt);
+		multiply(ax, z1z1, u2, tt);
+		multiply(z, z1z1, s2, tt);
+		multiply(ay, s2, s2, tt);
+		sub(u2, x, h);
+		sub(s2, y, r);
+		if (isZero(h)) {
+			if (isZero(r)) {
+				twicePoint(s);
+			} else {
+				setInfinity();
+			}
+			return;
+		}
+		finishAdd(x, y, h, r, s);
+		multiply(z, h, z, tt);
+	}
+
+	/**
+	 * this = this + q
+	 */
+	void addPoint(SM2P256Point q, Scratch s) {
+		if (q.isInfinity()) {
+			return;
+		}
+		if (isInfinity()) {
+			set(q);
+			return;
+		}
+		int[] tt = s.tt;
+		int[] z1z1 = s.t1, u2 = s.t2, s2 = s.t3, h = s.t4, r = s.t5;
+		int[] z2z2 = s.t6, t = s.t7;
+
+		square(z, z1z1, tt);
+		square(q.z, z2z2, tt);
+		// u1 -> x, s1 -> y
+		multiply(x, z2z2, x, tt);
+		multiply(q.z, z2z2, t, tt);
+		multiply(y, t, y, tt);
+		multiply(q.x, z1z1, u2, tt);
+		multiply(z, z1z1, s2, tt);
+		multiply(q.y, s2, s2, tt);
+		sub(u2, x, h);
+		sub(s2, y, r);
+		if (isZero(h)) {
+			if (isZero(r)) {
+				// this == q; x, y were scaled by z2^2, z2^3
+				multiply(z, q.z, z, tt);
+				twicePoint(s);
+			} else {
+				setInfinity();
+			}
+			return;
+		}
+		finishAdd(x, y, h, r, s);
+		multiply(z, q.z, z, tt);
+		multiply(z, h, z, tt);
+	}
+
+	/*
+	 * x3 = r^2 - h^3 - 2 * u1 * h^2, y3 = r * (u1 * h^2 - x3) - s1 * h^3
+	 * with (u1, s1) passed in (x, y) and overwritten by (x3, y3).
+	 */
+	private static void finishAdd(int[] x, int[] y, int[] h, int[] r,
+			Scratch s) {
+		int[] tt = s.tt;
+		int[] hh = s.t6, hhh = s.t7, v = s.t8;
+
+		square(h, hh, tt);
+		multiply(h, hh, hhh, tt);
+		multiply(x, hh, v, tt);
+
+		square(r, x, tt);
+		sub(x, hhh, x);
+		sub(x, v, x);
+		sub(x, v, x);
+
+		sub(v, x, v);
+		multiply(r, v, v, tt);
+		multiply(y, hhh, y, tt);
+		sub(v, y, y);
+	}
+
+	/**
+	 * Convert Jacobian points to affine coordinates with a single field
+	 * inversion (Montgomery's trick). No point may be infinity.
+	 */
+	static void normalizeAll(SM2P256Point[] points, int[][] ax, int[][] ay,
+			Scratch s) {
+		int n = points.length;
+		int[][] acc = new int[n][];
+		int[] t = create();
+		acc[0] = points[0].z.clone();
+		for (int i = 1; i < n; i++) {
+			acc[i] = create();
+			multiply(acc[i - 1], points[i].z, acc[i], s.tt);
+		}
+		int[] inv = create();
+		invert(acc[n - 1], inv, s.tt);
+		for (int i = n - 1; i >= 0; i--) {
+			int[] zInv = create();
+			if (i > 0) {
+				multiply(inv, acc[i - 1], zInv, s.tt);
+				multiply(inv, points[i].z, inv, s.tt);
+			} else {
+				copy(inv, zInv);
+			}
+			square(zInv, t, s.tt);
+			ax[i] = create();
+			multiply(points[i].x, t, ax[i], s.tt);
+			multiply(t, zInv, t, s.tt);
+			ay[i] = create();
+			multiply(points[i].y, t, ay[i], s.tt);
+		}
+	}
+
+	/**
+	 * Temporaries for the point formulas. Not thread safe, one per
+	 * computation.
+	 */
+	static final class Scratch {
+		final int[] tt = createExt();
+		final int[] t1 = create();
+		final int[] t2 = create();
+		final int[] t3 = create();
+		final int[] t4 = create();
+		final int[] t5 = create();
+		final int[] t6 = create();
+		final int[] t7 = create();
+		final int[] t8 = create();
+	}
+}
@@ -0,0 +1,194 @@
+package security.sm;
+
+import java.security.InvalidKeyException;
+
+/**
+ * This class represents ciphers in cipher block chaining (CBC) mode.
+ *
+ * <p>This mode is implemented independently of a particular cipher.
+ * Ciphers to which this mode should apply (e.g., SMS4) must be
+ * <i>plugged-in</i> using the constructor.
+ *
+ * <p>NOTE: This class does not deal with buffering or padding.
+ */
+class CipherBlockChaining extends FeedbackCipher {
+
+    /*
+     * random bytes that are initialized with iv
+     */
+    protected byte[] r;
+
+    /*
+     * output buffer
+     */
+    private byte[] k;
+
+    /*
+     * the next r while decrypting, so that plain may overwrite cipher
+     */
+    private byte[] rNext;
+
+    /*
+     * cipher text and its decryption for a group of blocks
+     */
+    private byte[] cGroup;
+    private byte[] kGroup;
+
+    // variables for save/restore calls
+    private byte[] rSave = null;
+
+    CipherBlockChaining(SymmetricCipher embeddedCipher) {
+        super(embeddedCipher);
+        k = new byte[blockSize];
+        r = new byte[blockSize];
+        rNext = new byte[blockSize];
+        cGroup = new byte[PARALLEL_BLOCKS * blockSize];
+        kGroup = new byte[PARALLEL_BLOCKS * blockSize];
+    }
+
+    /**
+     * Gets the name of this feedback mode.
+     *
+     * @return the string <code>CBC</code>
+     */
+    String getFeedback() {
+        return "CBC";
+    }
+
+    /**
+     * Initializes the cipher in the specified mode with the given key
+     * and iv.
+     *
+     * @param decrypting flag indicating encryption or decryption
+     * @param algorithm the algorithm name
+     * @param key the key
+     * @param iv the iv
+     *
+     * @exception InvalidKeyException if the given key is inappropriate for
+     * initializing this cipher
+     */
+    void init(boolean decrypting, String algorithm, byte[] key, byte[] iv)
+            throws InvalidKeyException {
+        if ((key == null) || (iv == null) || (iv.length != blockSize)) {
+            throw new InvalidKeyException("Internal error");
+        }
+        this.iv = iv;
+        reset();
+        embeddedCipher.init(decrypting, algorithm, key);
+    }
+
+    /**
+     * Resets the iv to its original value.
+     * This is used when doFinal is called in the Cipher class, so that the
+     * cipher can be reused (with its original iv).
+     */
+    void reset() {
+        System.arraycopy(iv, 0, r, 0, blockSize);
+    }
+
+    /**
+     * Save the current content of this cipher.
+     */
+    void save() {
+        if (rSave == null) {
+            rSave = new byte[blockSize];
+        }
+        System.arraycopy(r, 0, rSave, 0, blockSize);
+    }
+
+    /**
+     * Restores the content of this cipher to the previous saved one.
+     */
+    void restore() {
+        System.arraycopy(rSave, 0, r, 0, blockSize);
+    }
+
+    /**
+     * Performs encryption operation.
+     *
+     * <p>The input plain text <code>plain</code>, starting at
+     * <code>plainOffset</code> and ending at
+     * <code>(plainOffset + plainLen - 1)</code>, is encrypted.
+     * The result is stored in <code>cipher</code>, starting at
+     * <code>cipherOffset</code>.
+     *
+     * <p>It is the application's responsibility to make sure that
+     * <code>plainLen</code> is a multiple of the embedded cipher's block size,
+     * as any excess bytes are ignored.
+     *
+     * @param plain the buffer with the input data to be encrypted
+     * @param plainOffset the offset in <code>plain</code>
+     * @param plainLen the length of the input data
+     * @param cipher the buffer for the result
+     * @param cipherOffset the offset in <code>cipher</code>
+     * @return the length of the encrypted data
+     */
+    int encrypt(byte[] plain, int plainOffset, int plainLen,
+                byte[] cipher, int cipherOffset) {
+        int endIndex = plainOffset + plainLen - plainLen % blockSize;
+        for (; plainOffset < endIndex;
+             plainOffset += blockSize, cipherOffset += blockSize) {
+            for (int i = 0; i < blockSize; i++) {
+                k[i] = (byte)(plain[i + plainOffset] ^ r[i]);
+            }
+            embeddedCipher.encryptBlock(k, 0, cipher, cipherOffset);
+            System.arraycopy(cipher, cipherOffset, r, 0, blockSize);
+        }
+        return plainLen;
+    }
+
+    /**
+     * Performs decryption operation.
+     *
+     * <p>The input cipher text <code>cipher</code>, starting at
+     * <code>cipherOffset</code> and ending at
+     * <code>(cipherOffset + cipherLen - 1)</code>, is decrypted.
+     * The result is stored in <code>plain</code>, starting at
+     * <code>plainOffset</code>. <code>plain</code> may be the same buffer
+     * as <code>cipher</code> at the same offset.
+     *
+     * <p>It is the application's responsibility to make sure that
+     * <code>cipherLen</code> is a multiple of the embedded cipher's block
+     * size, as any excess bytes are ignored.
+     *
+     * @param cipher the buffer with the input data to be decrypted
+     * @param cipherOffset the offset in <code>cipherOffset</code>
+     * @param cipherLen the length of the input data
+     * @param plain the buffer for the result
+     * @param plainOffset the offset in <code>plain</code>
+     * @return the length of the decrypted data
+     */
+    int decrypt(byte[] cipher, int cipherOffset, int cipherLen,
+                byte[] plain, int plainOffset) {
+        int endIndex = cipherOffset + cipherLen - cipherLen % blockSize;
+        // the blocks decrypt independently, so whole groups are handed to
+        // the embedded cipher; the cipher text is kept for the xor
+        int group = cGroup.length;
+        for (; endIndex - cipherOffset >= group;
+             cipherOffset += group, plainOffset += group) {
+            System.arraycopy(cipher, cipherOffset, cGroup, 0, group);
+            embeddedCipher.decryptBlocks(cGroup, 0, PARALLEL_BLOCKS,
+                                         kGroup, 0);
+            for (int i = 0; i < blockSize; i++) {
+                plain[i + plainOffset] = (byte)(kGroup[i] ^ r[i]);
+            }
+            for (int i = blockSize; i < group; i++) {
+                plain[i + plainOffset] =
+                    (byte)(kGroup[i] ^ cGroup[i - blockSize]);
+            }
+            System.arraycopy(cGroup, group - blockSize, r, 0, blockSize);
+        }
+        for (; cipherOffset < endIndex;
+             cipherOffset += blockSize, plainOffset += blockSize) {
+            System.arraycopy(cipher, cipherOffset, rNext, 0, blockSize);
+            embeddedCipher.decryptBlock(cipher, cipherOffset, k, 0);
+            for (int i = 0; i < blockSize; i++) {
+                plain[i + plainOffset] = (byte)(k[i] ^ r[i]);
+            }
+            byte[] t = r;
+            r = rNext;
+            rNext = t;
+        }
+        return cipherLen;
+    }
+}
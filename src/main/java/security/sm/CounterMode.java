@@ -0,0 +1,207 @@
+package security.sm;
+
+import java.security.InvalidKeyException;
+
+/**
+ * This class represents ciphers in counter (CTR) mode.
+ *
+ * <p>This mode is implemented independently of a particular cipher.
+ * Ciphers to which this mode should apply (e.g., SMS4) must be
+ * <i>plugged-in</i> using the constructor.
+ *
+ * <p>NOTE: This class does not deal with buffering or padding.
+ */
+final class CounterMode extends FeedbackCipher {
+
+    // current counter value
+    final byte[] counter;
+
+    // encrypted bytes of the previous counter value
+    private final byte[] encryptedCounter;
+
+    // number of bytes in encryptedCounter already used up
+    private int used;
+
+    // counter blocks and their encryption for a group of blocks
+    private final byte[] counters;
+    private final byte[] keyStreams;
+
+    // parallel engine for large requests, only available for SMS4
+    private final SMS4ParallelCTR parallel;
+
+    // variables for save/restore calls
+    private byte[] counterSave = null;
+    private byte[] encryptedCounterSave = null;
+    private int usedSave = 0;
+
+    CounterMode(SymmetricCipher embeddedCipher) {
+        super(embeddedCipher);
+        counter = new byte[blockSize];
+        encryptedCounter = new byte[blockSize];
+        counters = new byte[PARALLEL_BLOCKS * blockSize];
+        keyStreams = new byte[PARALLEL_BLOCKS * blockSize];
+        if (embeddedCipher instanceof SMS4Crypt) {
+            parallel = new SMS4ParallelCTR((SMS4Crypt) embeddedCipher);
+        } else {
+            parallel = null;
+        }
+    }
+
+    /**
+     * Gets the name of the feedback mechanism
+     *
+     * @return the name of the feedback mechanism
+     */
+    String getFeedback() {
+        return "CTR";
+    }
+
+    /**
+     * Resets the iv to its original value.
+     * This is used when doFinal is called in the Cipher class, so that the
+     * cipher can be reused (with its original iv).
+     */
+    void reset() {
+        System.arraycopy(iv, 0, counter, 0, blockSize);
+        used = blockSize;
+    }
+
+    /**
+     * Save the current content of this cipher.
+     */
+    void save() {
+        if (counterSave == null) {
+            counterSave = new byte[blockSize];
+            encryptedCounterSave = new byte[blockSize];
+        }
+        System.arraycopy(counter, 0, counterSave, 0, blockSize);
+        System.arraycopy(encryptedCounter, 0, encryptedCounterSave, 0,
+            blockSize);
+        usedSave = used;
+    }
+
+    /**
+     * Restores the content of this cipher to the previous saved one.
+     */
+    void restore() {
+        System.arraycopy(counterSave, 0, counter, 0, blockSize);
+        System.arraycopy(encryptedCounterSave, 0, encryptedCounter, 0,
+            blockSize);
+        used = usedSave;
+    }
+
+    /**
+     * Initializes the cipher in the specified mode with the given key
+     * and iv.
+     *
+     * @param decrypting flag indicating encryption or decryption
+     * @param algorithm the algorithm name
+     * @param key the key
+     * @param iv the iv
+     *
+     * @exception InvalidKeyException if the given key is inappropriate for
+     * initializing this cipher
+     */
+    void init(boolean decrypting, String algorithm, byte[] key, byte[] iv)
+            throws InvalidKeyException {
+        if ((key == null) || (iv == null) || (iv.length != blockSize)) {
+            throw new InvalidKeyException("Internal error");
+        }
+        this.iv = iv;
+        reset();
+        // always encrypt mode for embedded cipher
+        embeddedCipher.init(false, algorithm, key);
+    }
+
+    /**
+     * Performs encryption operation.
+     *
+     * <p>The input plain text <code>plain</code>, starting at
+     * <code>plainOffset</code> and ending at
+     * <code>(plainOffset + len - 1)</code>, is encrypted.
+     * The result is stored in <code>cipher</code>, starting at
+     * <code>cipherOffset</code>.
+     *
+     * @param in the buffer with the input data to be encrypted
+     * @param inOff the offset in <code>plain</code>
+     * @param len the length of the input data
+     * @param out the buffer for the result
+     * @param outOff the offset in <code>cipher</code>
+     * @return the length of the encrypted data
+     */
+    int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        return crypt(in, inOff, len, out, outOff);
+    }
+
+    // CTR encrypt and decrypt are identical
+    int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        return crypt(in, inOff, len, out, outOff);
+    }
+
+    /**
+     * Increment the counter value.
+     */
+    private static void increment(byte[] b) {
+        int n = b.length - 1;
+        while ((n >= 0) && (++b[n] == 0)) {
+            n--;
+        }
+    }
+
+    /**
+     * Do the actual encryption/decryption operation.
+     * Essentially we XOR the input plaintext/ciphertext stream with a
+     * keystream generated by encrypting the counter values. Counter values
+     * are encrypted on demand. Large requests hand the whole blocks to the
+     * parallel engine, unless in and out overlap at different offsets.
+     */
+    private int crypt(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        int result = len;
+        if ((parallel != null) && (len >= SMS4ParallelCTR.getThreshold())
+                && ((in != out) || (inOff == outOff))) {
+            // use up the keystream left over from the previous call
+            while ((used < blockSize) && (len > 0)) {
+                out[outOff++] = (byte)(in[inOff++] ^ encryptedCounter[used++]);
+                len--;
+            }
+            int n = len - (len % blockSize);
+            if (n > 0) {
+                parallel.crypt(counter, in, inOff, n, out, outOff);
+                SMS4ParallelCTR.addCounter(counter, n / blockSize);
+                inOff += n;
+                outOff += n;
+                len -= n;
+            }
+        }
+        int group = counters.length;
+        if (len >= group) {
+            while (used < blockSize) {
+                out[outOff++] = (byte)(in[inOff++] ^ encryptedCounter[used++]);
+                len--;
+            }
+            // groups of counter blocks encrypted together
+            for (; len >= group; len -= group) {
+                for (int j = 0; j < group; j += blockSize) {
+                    System.arraycopy(counter, 0, counters, j, blockSize);
+                    increment(counter);
+                }
+                embeddedCipher.encryptBlocks(counters, 0, PARALLEL_BLOCKS,
+                                             keyStreams, 0);
+                for (int i = 0; i < group; i++) {
+                    out[outOff + i] = (byte)(in[inOff + i] ^ keyStreams[i]);
+                }
+                inOff += group;
+                outOff += group;
+            }
+        }
+        while (len-- > 0) {
+            if (used >= blockSize) {
+                embeddedCipher.encryptBlock(counter, 0, encryptedCounter, 0);
+                increment(counter);
+                used = 0;
+            }
+            out[outOff++] = (byte)(in[inOff++] ^ encryptedCounter[used++]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package security.sm;
+
+/**
+ * The GHASH function of GCM (NIST SP 800-38D).
+ *
+ * <p>Multiplication by the hash subkey H uses Shoup's 8-bit method: a
+ * per-key table holds b * H for every byte value b, and a fixed table
+ * reduces the byte shifted out of the 128 bit value. A block then costs
+ * sixteen lookups and shifts instead of 128 conditional shifts.
+ *
+ * <p>Blocks are kept as two longs, <code>hi</code> holding bytes 0 to 7
+ * and <code>lo</code> bytes 8 to 15 in big-endian order.
+ */
+final class GHASH {
+
+    // R8[b] = (b at the bit positions 120..127) * x^8 mod P, top 16 bits
+    private static final long[] R8 = new long[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            long r = 0;
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    r ^= 0xE100L >>> j;
+                }
+            }
+            R8[b] = r << 48;
+        }
+    }
+
+    // M[b] = b * H, b as the first byte of a block
+    private final long[] mHi = new long[256];
+    private final long[] mLo = new long[256];
+
+    // the running hash value
+    private long stateHi;
+    private long stateLo;
+
+    GHASH(byte[] subkeyH) {
+        long hi = getLong(subkeyH, 0);
+        long lo = getLong(subkeyH, 8);
+        // M[0x80] = H, M[0x40] = H * x, ..., M[0x01] = H * x^7
+        for (int b = 0x80; b > 0; b >>>= 1) {
+            mHi[b] = hi;
+            mLo[b] = lo;
+            long carry = lo & 1;
+            lo = (lo >>> 1) | (hi << 63);
+            hi = (hi >>> 1) ^ (-carry & 0xE100000000000000L);
+        }
+        for (int i = 2; i < 256; i <<= 1) {
+            for (int j = 1; j < i; j++) {
+                mHi[i + j] = mHi[i] ^ mHi[j];
+                mLo[i + j] = mLo[i] ^ mLo[j];
+            }
+        }
+    }
+
+    static long getLong(byte[] b, int off) {
+        return (b[off] & 0xFFL) << 56 | (b[off + 1] & 0xFFL) << 48
+                | (b[off + 2] & 0xFFL) << 40 | (b[off + 3] & 0xFFL) << 32
+                | (b[off + 4] & 0xFFL) << 24 | (b[off + 5] & 0xFFL) << 16
+                | (b[off + 6] & 0xFFL) << 8 | (b[off + 7] & 0xFFL);
+    }
+
+    static void putLong(long n, byte[] b, int off) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) n;
+            n >>>= 8;
+        }
+    }
+
+    void reset() {
+        stateHi = 0;
+        stateLo = 0;
+    }
+
+    long getStateHi() {
+        return stateHi;
+    }
+
+    long getStateLo() {
+        return stateLo;
+    }
+
+    void setState(long hi, long lo) {
+        stateHi = hi;
+        stateLo = lo;
+    }
+
+    /**
+     * Absorb the complete blocks of <code>len</code> bytes, any excess
+     * bytes are ignored.
+     */
+    void update(byte[] in, int inOff, int len) {
+        for (int end = inOff + len - 15; inOff < end; inOff += 16) {
+            update(getLong(in, inOff), getLong(in, inOff + 8));
+        }
+    }
+
+    /**
+     * Absorb one block given as two longs.
+     */
+    void update(long hi, long lo) {
+        hi ^= stateHi;
+        lo ^= stateLo;
+
+        // Horner's rule from the last byte to the first
+        int b = (int) lo & 0xFF;
+        long zHi = mHi[b];
+        long zLo = mLo[b];
+        for (int s = 8; s < 64; s += 8) {
+            int rem = (int) zLo & 0xFF;
+            zLo = (zLo >>> 8) | (zHi << 56);
+            zHi = (zHi >>> 8) ^ R8[rem];
+            b = (int) (lo >>> s) & 0xFF;
+            zHi ^= mHi[b];
+            zLo ^= mLo[b];
+        }
+        for (int s = 0; s < 64; s += 8) {
+            int rem = (int) zLo & 0xFF;
+            zLo = (zLo >>> 8) | (zHi << 56);
+            zHi = (zHi >>> 8) ^ R8[rem];
+            b = (int) (hi >>> s) & 0xFF;
+            zHi ^= mHi[b];
+            zLo ^= mLo[b];
+        }
+        stateHi = zHi;
+        stateLo = zLo;
+    }
+
+    void digest(byte[] out, int outOff) {
+        putLong(stateHi, out, outOff);
+        putLong(stateLo, out, outOff + 8);
+    }
+}
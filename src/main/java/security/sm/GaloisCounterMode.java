@@ -0,0 +1,429 @@
+package security.sm;
+
+import java.security.InvalidKeyException;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * This class represents ciphers in Galois/Counter (GCM) mode.
+ *
+ * <p>This mode currently should only be used w/ SMS4 cipher.
+ * Although no checking is done, caller should only pass SMS4
+ * Cipher to the constructor.
+ *
+ * <p>NOTE: Unlike other modes, when used for decryption, this class
+ * will buffer all processed outputs internally and won't return them
+ * until the tag has been successfully verified.
+ *
+ * @see GHASH
+ */
+final class GaloisCounterMode extends FeedbackCipher {
+
+    static final int DEFAULT_TAG_LEN = SMS4Constants.SMS4_BLOCK_SIZE;
+    static final int DEFAULT_IV_LEN = 12; // in bytes
+
+    // the hash subkey dependent GHASH tables, rebuilt on every init
+    private GHASH ghash = null;
+
+    // the pre-counter block J0 and the current counter block
+    private final byte[] j0;
+    private final byte[] counter;
+
+    // scratch blocks for the key stream and for padded partial blocks
+    private final byte[] keyStream;
+    private final byte[] block;
+
+    // counter blocks and their encryption for a group of blocks
+    private final byte[] counters;
+    private final byte[] keyStreams;
+
+    private int tagLenBytes = DEFAULT_TAG_LEN;
+
+    // AAD not yet hashed because it does not fill a block
+    private final byte[] aadBuffer;
+    private int aadBuffered = 0;
+    private long sizeOfAAD = 0;
+    private boolean aadDone = false;
+
+    // number of text bytes processed so far
+    private long processed = 0;
+
+    // ciphertext and tag collected while decrypting
+    private byte[] ibuffer = new byte[0];
+    private int ibuffered = 0;
+
+    // variables for save/restore calls
+    private byte[] counterSave = null;
+    private long ghashHiSave = 0;
+    private long ghashLoSave = 0;
+    private long processedSave = 0;
+    private int ibufferedSave = 0;
+
+    GaloisCounterMode(SymmetricCipher embeddedCipher) {
+        super(embeddedCipher);
+        j0 = new byte[blockSize];
+        counter = new byte[blockSize];
+        keyStream = new byte[blockSize];
+        block = new byte[blockSize];
+        counters = new byte[PARALLEL_BLOCKS * blockSize];
+        keyStreams = new byte[PARALLEL_BLOCKS * blockSize];
+        aadBuffer = new byte[blockSize];
+    }
+
+    /**
+     * Gets the name of the feedback mechanism
+     *
+     * @return the name of the feedback mechanism
+     */
+    String getFeedback() {
+        return "GCM";
+    }
+
+    int getTagLen() {
+        return tagLenBytes;
+    }
+
+    /**
+     * Number of ciphertext bytes held back while decrypting.
+     */
+    int getBufferedLength() {
+        return ibuffered;
+    }
+
+    /**
+     * Resets the cipher object to its original state.
+     * This is used when doFinal is called in the Cipher class, so that the
+     * cipher can be reused (with its original key and iv).
+     */
+    void reset() {
+        System.arraycopy(j0, 0, counter, 0, blockSize);
+        increment32(counter);
+        ghash.reset();
+        aadBuffered = 0;
+        sizeOfAAD = 0;
+        aadDone = false;
+        processed = 0;
+        ibuffered = 0;
+    }
+
+    /**
+     * Save the current content of this cipher.
+     */
+    void save() {
+        if (counterSave == null) {
+            counterSave = new byte[blockSize];
+        }
+        System.arraycopy(counter, 0, counterSave, 0, blockSize);
+        ghashHiSave = ghash.getStateHi();
+        ghashLoSave = ghash.getStateLo();
+        processedSave = processed;
+        ibufferedSave = ibuffered;
+    }
+
+    /**
+     * Restores the content of this cipher to the previous saved one.
+     */
+    void restore() {
+        System.arraycopy(counterSave, 0, counter, 0, blockSize);
+        ghash.setState(ghashHiSave, ghashLoSave);
+        processed = processedSave;
+        ibuffered = ibufferedSave;
+    }
+
+    void init(boolean decrypting, String algorithm, byte[] key, byte[] iv)
+            throws InvalidKeyException {
+        init(decrypting, algorithm, key, iv, DEFAULT_TAG_LEN);
+    }
+
+    /**
+     * Initializes the cipher in the specified mode with the given key
+     * and iv.
+     *
+     * @param decrypting flag indicating encryption or decryption
+     * @param algorithm the algorithm name
+     * @param key the key
+     * @param iv the iv
+     * @param tagLenBytes the length of tag in bytes
+     *
+     * @exception InvalidKeyException if the given key is inappropriate for
+     * initializing this cipher
+     */
+    void init(boolean decrypting, String algorithm, byte[] key, byte[] iv,
+              int tagLenBytes) throws InvalidKeyException {
+        if ((key == null) || (iv == null) || (iv.length == 0)) {
+            throw new InvalidKeyException("Internal error");
+        }
+        // always encrypt mode for embedded cipher
+        embeddedCipher.init(false, algorithm, key);
+
+        byte[] subkeyH = new byte[blockSize];
+        embeddedCipher.encryptBlock(subkeyH, 0, subkeyH, 0);
+        ghash = new GHASH(subkeyH);
+
+        this.iv = iv;
+        this.tagLenBytes = tagLenBytes;
+
+        if (iv.length == DEFAULT_IV_LEN) {
+            System.arraycopy(iv, 0, j0, 0, iv.length);
+            j0[12] = 0;
+            j0[13] = 0;
+            j0[14] = 0;
+            j0[15] = 1;
+        } else {
+            // J0 = GHASH(IV || 0^(s+64) || [len(IV)]64)
+            ghash.reset();
+            int whole = iv.length - (iv.length % blockSize);
+            ghash.update(iv, 0, whole);
+            if (whole < iv.length) {
+                padBlock(iv, whole, iv.length - whole);
+                ghash.update(block, 0, blockSize);
+            }
+            ghash.update(0, ((long) iv.length) << 3);
+            ghash.digest(j0, 0);
+        }
+        reset();
+    }
+
+    /**
+     * Continues a multi-part update of the Additional Authentication
+     * Data (AAD), using a subset of the provided buffer. All AAD must be
+     * supplied before beginning operations on the ciphertext (via the
+     * encrypt/decrypt methods).
+     *
+     * @param src the buffer containing the AAD
+     * @param offset the offset in src where the AAD input starts
+     * @param len the number of AAD bytes
+     *
+     * @throws IllegalStateException if this cipher is in a wrong state
+     * (e.g., has not been initialized) or does not accept AAD, and one of
+     * the encrypt/decrypt methods has been called.
+     */
+    void updateAAD(byte[] src, int offset, int len) {
+        if (aadDone) {
+            throw new IllegalStateException
+                ("Update has been called; no more AAD data");
+        }
+        sizeOfAAD += len;
+        if (aadBuffered > 0) {
+            int n = Math.min(blockSize - aadBuffered, len);
+            System.arraycopy(src, offset, aadBuffer, aadBuffered, n);
+            aadBuffered += n;
+            offset += n;
+            len -= n;
+            if (aadBuffered < blockSize) {
+                return;
+            }
+            ghash.update(aadBuffer, 0, blockSize);
+            aadBuffered = 0;
+        }
+        int whole = len - (len % blockSize);
+        ghash.update(src, offset, whole);
+        if (whole < len) {
+            aadBuffered = len - whole;
+            System.arraycopy(src, offset + whole, aadBuffer, 0, aadBuffered);
+        }
+    }
+
+    // hash the last partial AAD block, no more AAD after this
+    private void processAAD() {
+        if (!aadDone) {
+            if (aadBuffered > 0) {
+                padBlock(aadBuffer, 0, aadBuffered);
+                ghash.update(block, 0, blockSize);
+                aadBuffered = 0;
+            }
+            aadDone = true;
+        }
+    }
+
+    /**
+     * Performs encryption operation.
+     *
+     * <p>The input plain text <code>in</code>, starting at
+     * <code>inOfs</code> and ending at <code>(inOfs + len - 1)</code>,
+     * is encrypted. The result is stored in <code>out</code>, starting at
+     * <code>outOfs</code>.
+     *
+     * <p>It is the application's responsibility to make sure that
+     * <code>len</code> is a multiple of the embedded cipher's block size,
+     * as any excess bytes are ignored.
+     *
+     * @param in the buffer with the input data to be encrypted
+     * @param inOfs the offset in <code>in</code>
+     * @param len the length of the input data
+     * @param out the buffer for the result
+     * @param outOfs the offset in <code>out</code>
+     * @return the number of bytes placed into the <code>out</code> buffer
+     */
+    int encrypt(byte[] in, int inOfs, int len, byte[] out, int outOfs) {
+        processAAD();
+        int whole = len - (len % blockSize);
+        gctr(in, inOfs, whole, out, outOfs);
+        ghash.update(out, outOfs, whole);
+        processed += whole;
+        return whole;
+    }
+
+    /**
+     * Performs encryption operation for the last time.
+     *
+     * <p>The tag is appended to the cipher text, so <code>out</code> must
+     * have room for <code>len + getTagLen()</code> bytes.
+     *
+     * @param in the input buffer with the data to be encrypted
+     * @param inOfs the offset in <code>in</code>
+     * @param len the length of the input data
+     * @param out the buffer for the encryption result
+     * @param outOfs the offset in <code>out</code>
+     * @return the number of bytes placed into the <code>out</code> buffer
+     */
+    int encryptFinal(byte[] in, int inOfs, int len, byte[] out, int outOfs) {
+        int whole = encrypt(in, inOfs, len, out, outOfs);
+        int tail = len - whole;
+        if (tail > 0) {
+            gctr(in, inOfs + whole, tail, out, outOfs + whole);
+            padBlock(out, outOfs + whole, tail);
+            ghash.update(block, 0, blockSize);
+            processed += tail;
+        }
+        computeTag();
+        System.arraycopy(block, 0, out, outOfs + len, tagLenBytes);
+        return len + tagLenBytes;
+    }
+
+    /**
+     * Performs decryption operation.
+     *
+     * <p>The input cipher text is only buffered, nothing is released
+     * before the tag has been verified by <code>decryptFinal</code>.
+     *
+     * @param in the buffer with the input data to be decrypted
+     * @param inOfs the offset in <code>in</code>
+     * @param len the length of the input data
+     * @param out the buffer for the result
+     * @param outOfs the offset in <code>out</code>
+     * @return 0
+     */
+    int decrypt(byte[] in, int inOfs, int len, byte[] out, int outOfs) {
+        processAAD();
+        if (len > 0) {
+            append(in, inOfs, len);
+        }
+        return 0;
+    }
+
+    /**
+     * Performs decryption operation for the last time.
+     *
+     * <p>The last <code>getTagLen()</code> bytes of the buffered input and
+     * <code>in</code> are the tag. The plain text is only written after the
+     * tag has been verified.
+     *
+     * @param in the input buffer with the data to be decrypted
+     * @param inOfs the offset in <code>in</code>
+     * @param len the length of the input data
+     * @param out the buffer for the decryption result
+     * @param outOfs the offset in <code>out</code>
+     * @return the number of bytes placed into the <code>out</code> buffer
+     * @exception AEADBadTagException if the tag does not match
+     */
+    int decryptFinal(byte[] in, int inOfs, int len, byte[] out, int outOfs)
+            throws AEADBadTagException {
+        processAAD();
+        if (len > 0) {
+            append(in, inOfs, len);
+        }
+        if (ibuffered < tagLenBytes) {
+            throw new AEADBadTagException("Input too short - need tag");
+        }
+        int ctLen = ibuffered - tagLenBytes;
+        int whole = ctLen - (ctLen % blockSize);
+        ghash.update(ibuffer, 0, whole);
+        if (whole < ctLen) {
+            padBlock(ibuffer, whole, ctLen - whole);
+            ghash.update(block, 0, blockSize);
+        }
+        processed += ctLen;
+        computeTag();
+
+        // check the tag in constant time
+        int mismatch = 0;
+        for (int i = 0; i < tagLenBytes; i++) {
+            mismatch |= block[i] ^ ibuffer[ctLen + i];
+        }
+        if (mismatch != 0) {
+            throw new AEADBadTagException("Tag mismatch!");
+        }
+        gctr(ibuffer, 0, ctLen, out, outOfs);
+        ibuffered = 0;
+        return ctLen;
+    }
+
+    // block = E(J0) ^ GHASH(... || [len(A)]64 || [len(C)]64)
+    private void computeTag() {
+        ghash.update(sizeOfAAD << 3, processed << 3);
+        ghash.digest(block, 0);
+        embeddedCipher.encryptBlock(j0, 0, keyStream, 0);
+        for (int i = 0; i < blockSize; i++) {
+            block[i] ^= keyStream[i];
+        }
+    }
+
+    // counter mode encryption of any length, the last block may be partial
+    private void gctr(byte[] in, int inOfs, int len, byte[] out, int outOfs) {
+        // groups of counter blocks encrypted together
+        int group = counters.length;
+        for (; len >= group; len -= group) {
+            for (int j = 0; j < group; j += blockSize) {
+                System.arraycopy(counter, 0, counters, j, blockSize);
+                increment32(counter);
+            }
+            embeddedCipher.encryptBlocks(counters, 0, PARALLEL_BLOCKS,
+                                         keyStreams, 0);
+            for (int i = 0; i < group; i++) {
+                out[outOfs + i] = (byte) (in[inOfs + i] ^ keyStreams[i]);
+            }
+            inOfs += group;
+            outOfs += group;
+        }
+        while (len > 0) {
+            embeddedCipher.encryptBlock(counter, 0, keyStream, 0);
+            increment32(counter);
+            int n = Math.min(len, blockSize);
+            for (int i = 0; i < n; i++) {
+                out[outOfs + i] = (byte) (in[inOfs + i] ^ keyStream[i]);
+            }
+            inOfs += n;
+            outOfs += n;
+            len -= n;
+        }
+    }
+
+    // block = in[inOfs .. inOfs + len - 1] || 0...
+    private void padBlock(byte[] in, int inOfs, int len) {
+        System.arraycopy(in, inOfs, block, 0, len);
+        for (int i = len; i < blockSize; i++) {
+            block[i] = 0;
+        }
+    }
+
+    private void append(byte[] in, int inOfs, int len) {
+        if (ibuffered + len > ibuffer.length) {
+            byte[] tmp = new byte[Math.max(ibuffered + len,
+                    ibuffer.length << 1)];
+            System.arraycopy(ibuffer, 0, tmp, 0, ibuffered);
+            ibuffer = tmp;
+        }
+        System.arraycopy(in, inOfs, ibuffer, ibuffered, len);
+        ibuffered += len;
+    }
+
+    // inc32: increment the rightmost 32 bits of the block
+    private static void increment32(byte[] value) {
+        for (int i = value.length - 1; i >= value.length - 4; i--) {
+            if (++value[i] != 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package security.sm;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.MacSpi;
+
+/**
+ * HMAC (RFC 2104) over SM3, registered as the <code>Mac</code>
+ * <code>HmacSM3</code>.
+ *
+ * <p>
+ * The SM3 states after the ipad and the opad block are computed once per key
+ * and every message starts from them, so a message costs the compressions of
+ * its own blocks plus one for the outer hash. Initializing again with the key
+ * already in use keeps them. Updates do not allocate.
+ */
+public final class HmacSM3 extends MacSpi implements Cloneable {
+
+	static final int MAC_LENGTH = 32;
+
+	private static final int BLOCK = 64;
+
+	// the key the pad states belong to, null before the first init
+	private byte[] key;
+	SM3State ipadState;
+	SM3State opadState;
+
+	private SM3MessageDigest inner = new SM3MessageDigest();
+	private SM3MessageDigest outer = new SM3MessageDigest();
+	private byte[] innerHash = new byte[MAC_LENGTH];
+
+	// staging for direct byte buffers
+	private byte[] bbBuf;
+
+	protected int engineGetMacLength() {
+		return MAC_LENGTH;
+	}
+
+	protected void engineInit(Key key, AlgorithmParameterSpec params)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		if (params != null) {
+			throw new InvalidAlgorithmParameterException(
+					"HmacSM3 does not take parameters");
+		}
+		byte[] keyBytes = SymmetricCipher.getKeyBytes(key);
+		if (this.key != null && MessageDigest.isEqual(this.key, keyBytes)) {
+			Arrays.fill(keyBytes, (byte) 0);
+			engineReset();
+			return;
+		}
+		init(keyBytes);
+		if (this.key != null) {
+			Arrays.fill(this.key, (byte) 0);
+		}
+		this.key = keyBytes;
+	}
+
+	/**
+	 * Derive the pad states of <code>keyBytes</code> and reset.
+	 */
+	void init(byte[] keyBytes) {
+		byte[] k = keyBytes;
+		if (k.length > BLOCK) {
+			inner.reset();
+			inner.update(k, 0, k.length);
+			k = inner.digest();
+		}
+		byte[] pad = new byte[BLOCK];
+		for (int i = 0; i < BLOCK; i++) {
+			pad[i] = (byte) ((i < k.length ? k[i] : 0) ^ 0x36);
+		}
+		inner.reset();
+		inner.update(pad, 0, BLOCK);
+		ipadState = inner.getState();
+		for (int i = 0; i < BLOCK; i++) {
+			pad[i] ^= 0x36 ^ 0x5c;
+		}
+		outer.reset();
+		outer.update(pad, 0, BLOCK);
+		opadState = outer.getState();
+		Arrays.fill(pad, (byte) 0);
+		if (k != keyBytes) {
+			Arrays.fill(k, (byte) 0);
+		}
+		engineReset();
+	}
+
+	protected void engineUpdate(byte input) {
+		inner.update(input);
+	}
+
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		inner.update(input, offset, len);
+	}
+
+	protected void engineUpdate(ByteBuffer input) {
+		if (input.hasArray()) {
+			int pos = input.position();
+			engineUpdate(input.array(), input.arrayOffset() + pos,
+					input.remaining());
+			input.position(input.limit());
+			return;
+		}
+		if (bbBuf == null) {
+			bbBuf = new byte[4 * BLOCK];
+		}
+		while (input.hasRemaining()) {
+			int n = Math.min(input.remaining(), bbBuf.length);
+			input.get(bbBuf, 0, n);
+			inner.update(bbBuf, 0, n);
+		}
+	}
+
+	protected byte[] engineDoFinal() {
+		byte[] mac = new byte[MAC_LENGTH];
+		doFinal(mac, 0);
+		return mac;
+	}
+
+	/**
+	 * Write the MAC to <code>out</code> and reset.
+	 */
+	void doFinal(byte[] out, int outOff) {
+		inner.doFinal(innerHash, 0);
+		outer.setState(opadState);
+		outer.update(innerHash, 0, MAC_LENGTH);
+		outer.doFinal(out, outOff);
+		inner.setState(ipadState);
+	}
+
+	protected void engineReset() {
+		if (ipadState != null) {
+			inner.setState(ipadState);
+		}
+	}
+
+	public Object clone() throws CloneNotSupportedException {
+		HmacSM3 h = (HmacSM3) super.clone();
+		if (key != null) {
+			h.key = key.clone();
+		}
+		h.inner = (SM3MessageDigest) inner.clone();
+		h.outer = (SM3MessageDigest) outer.clone();
+		h.innerHash = new byte[MAC_LENGTH];
+		h.bbBuf = null;
+		return h;
+	}
+}
@@ -0,0 +1,159 @@
+package security.sm;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactorySpi;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 (RFC 8018) with HMAC-SM3, registered as the
+ * <code>SecretKeyFactory</code> <code>PBKDF2WithHmacSM3</code>.
+ *
+ * <p>
+ * The password is encoded as UTF-8 and the key length of the
+ * {@link PBEKeySpec} is in bits. Every iteration hashes one 32 byte U, which
+ * together with its padding fits one block, on top of the ipad and opad
+ * states derived once from the password: two compressions per iteration
+ * instead of four.
+ *
+ * <pre>
+ * SecretKeyFactory f = SecretKeyFactory.getInstance(&quot;PBKDF2WithHmacSM3&quot;, &quot;TopSM&quot;);
+ * byte[] key = f.generateSecret(new PBEKeySpec(password, salt, 100000, 128))
+ * 		.getEncoded();
+ * </pre>
+ */
+public final class PBKDF2HmacSM3KeyFactory extends SecretKeyFactorySpi {
+
+	static final String ALGORITHM = "PBKDF2WithHmacSM3";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	protected SecretKey engineGenerateSecret(KeySpec keySpec)
+			throws InvalidKeySpecException {
+		if (!(keySpec instanceof PBEKeySpec)) {
+			throw new InvalidKeySpecException("Only PBEKeySpec is supported");
+		}
+		PBEKeySpec spec = (PBEKeySpec) keySpec;
+		byte[] salt = spec.getSalt();
+		if (salt == null) {
+			throw new InvalidKeySpecException("Salt not found");
+		}
+		if (spec.getIterationCount() <= 0) {
+			throw new InvalidKeySpecException("Iteration count must be positive");
+		}
+		int keyLength = spec.getKeyLength();
+		if (keyLength <= 0 || (keyLength & 7) != 0) {
+			throw new InvalidKeySpecException(
+					"Key length must be a positive multiple of 8 bits");
+		}
+		char[] password = spec.getPassword();
+		byte[] passwordBytes = encode(password);
+		byte[] dk = derive(passwordBytes, salt, spec.getIterationCount(),
+				keyLength >>> 3);
+		try {
+			return new SecretKeySpec(dk, ALGORITHM);
+		} finally {
+			Arrays.fill(password, '\0');
+			Arrays.fill(passwordBytes, (byte) 0);
+			Arrays.fill(dk, (byte) 0);
+		}
+	}
+
+	protected KeySpec engineGetKeySpec(SecretKey key, Class<?> keySpec)
+			throws InvalidKeySpecException {
+		if (keySpec != null && keySpec.isAssignableFrom(SecretKeySpec.class)
+				&& "RAW".equalsIgnoreCase(key.getFormat())) {
+			return new SecretKeySpec(key.getEncoded(), key.getAlgorithm());
+		}
+		throw new InvalidKeySpecException("Unsupported key spec: " + keySpec);
+	}
+
+	protected SecretKey engineTranslateKey(SecretKey key)
+			throws InvalidKeyException {
+		if (key == null || !ALGORITHM.equalsIgnoreCase(key.getAlgorithm())
+				|| !"RAW".equalsIgnoreCase(key.getFormat())) {
+			throw new InvalidKeyException("Cannot translate key");
+		}
+		return new SecretKeySpec(key.getEncoded(), ALGORITHM);
+	}
+
+	private static byte[] encode(char[] password) {
+		ByteBuffer bb = UTF_8.encode(CharBuffer.wrap(password));
+		byte[] b = new byte[bb.remaining()];
+		bb.get(b);
+		if (bb.hasArray()) {
+			Arrays.fill(bb.array(), (byte) 0);
+		}
+		return b;
+	}
+
+	/**
+	 * PBKDF2-HMAC-SM3 of <code>password</code>, <code>dkLen</code> bytes.
+	 */
+	static byte[] derive(byte[] password, byte[] salt, int iterations,
+			int dkLen) {
+		HmacSM3 prf = new HmacSM3();
+		prf.init(password);
+		int[] ipad = prf.ipadState.v;
+		int[] opad = prf.opadState.v;
+
+		// one block: U, the 0x80 pad byte and the length of pad block + U
+		int[] w = new int[68];
+		w[8] = 0x80000000;
+		w[15] = (64 + HmacSM3.MAC_LENGTH) << 3;
+		int[] u = new int[8];
+		int[] t = new int[8];
+		byte[] block = new byte[HmacSM3.MAC_LENGTH];
+		byte[] dk = new byte[dkLen];
+
+		for (int i = 1, off = 0; off < dkLen; i++, off += HmacSM3.MAC_LENGTH) {
+			// U_1 = PRF(P, S || INT(i))
+			prf.engineUpdate(salt, 0, salt.length);
+			prf.engineUpdate((byte) (i >>> 24));
+			prf.engineUpdate((byte) (i >>> 16));
+			prf.engineUpdate((byte) (i >>> 8));
+			prf.engineUpdate((byte) i);
+			prf.doFinal(block, 0);
+			for (int j = 0; j < 8; j++) {
+				u[j] = block[4 * j] << 24 | (block[4 * j + 1] & 0xff) << 16
+						| (block[4 * j + 2] & 0xff) << 8
+						| (block[4 * j + 3] & 0xff);
+			}
+			System.arraycopy(u, 0, t, 0, 8);
+
+			// U_c = PRF(P, U_c-1), inner and outer hash one compression each
+			for (int c = 1; c < iterations; c++) {
+				System.arraycopy(u, 0, w, 0, 8);
+				System.arraycopy(ipad, 0, u, 0, 8);
+				SM3MessageDigest.expand(w);
+				SM3MessageDigest.compress(u, w);
+				System.arraycopy(u, 0, w, 0, 8);
+				System.arraycopy(opad, 0, u, 0, 8);
+				SM3MessageDigest.expand(w);
+				SM3MessageDigest.compress(u, w);
+				for (int j = 0; j < 8; j++) {
+					t[j] ^= u[j];
+				}
+			}
+
+			for (int j = 0; j < 8; j++) {
+				SM3MessageDigest.intToBigEndian(t[j], block, 4 * j);
+			}
+			System.arraycopy(block, 0, dk, off,
+					Math.min(HmacSM3.MAC_LENGTH, dkLen - off));
+		}
+		Arrays.fill(block, (byte) 0);
+		Arrays.fill(u, 0);
+		Arrays.fill(t, 0);
+		Arrays.fill(w, 0);
+		return dk;
+	}
+}
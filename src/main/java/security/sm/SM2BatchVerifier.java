@@ -0,0 +1,188 @@
+package security.sm;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import security.ec.ECUtil;
+
+/**
+ * Verifies a batch of SM3withSM2 signatures at once.
+ *
+ * <p>
+ * Each signature still needs its own s * G + t * P, but the multiplications
+ * reuse the cached tables of the public keys and all points are converted to
+ * affine coordinates with a single field inversion. The result tells exactly
+ * which entries failed, there is no need to bisect a failing batch.
+ *
+ * <pre>
+ * SM2BatchVerifier v = new SM2BatchVerifier();
+ * v.add(message, signature, publicKey, userID);
+ * ...
+ * if (!v.verify()) {
+ *     int[] bad = v.getInvalidIndices();
+ * }
+ * </pre>
+ *
+ * Not thread safe.
+ */
+public class SM2BatchVerifier {
+
+	private static final ECParameterSpec sm2Curve = SM2Core.sm2Curve;
+
+	private final MessageDigest md;
+
+	private final List<BigInteger> es = new ArrayList<BigInteger>();
+	private final List<BigInteger> rs = new ArrayList<BigInteger>();
+	private final List<BigInteger> ss = new ArrayList<BigInteger>();
+	private final List<ECPoint> points = new ArrayList<ECPoint>();
+
+	private boolean[] results;
+
+	public SM2BatchVerifier() {
+		try {
+			this.md = MessageDigest.getInstance("SM3");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ProviderException(e);
+		}
+	}
+
+	/**
+	 * Add a signature of <code>message</code>, hashed like SM3withSM2 without
+	 * a user id.
+	 */
+	public void add(byte[] message, byte[] signature, PublicKey publicKey)
+			throws InvalidKeyException, SignatureException {
+		add(message, signature, publicKey, null);
+	}
+
+	/**
+	 * Add a signature of <code>message</code>. If <code>userID</code> is not
+	 * null the digest is SM3(Z || message) like with the
+	 * {@link SM2Signature#P_USER_ID} parameter.
+	 */
+	public void add(byte[] message, byte[] signature, PublicKey publicKey,
+			SM2UserID userID) throws InvalidKeyException, SignatureException {
+		ECPublicKey key = (ECPublicKey) SM2KeyFactory.toSM2Key(publicKey);
+		BigInteger[] sig = SM2Signature.decodeSignature(signature);
+
+		MessageDigest d = md;
+		if (userID != null) {
+			d = SM2ZCache.getDigest(userID, key);
+		}
+		d.update(message);
+
+		es.add(new BigInteger(1, d.digest()));
+		rs.add(sig[0]);
+		ss.add(sig[1]);
+		points.add(key.getW());
+		results = null;
+	}
+
+	public int size() {
+		return points.size();
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		es.clear();
+		rs.clear();
+		ss.clear();
+		points.clear();
+		results = null;
+	}
+
+	/**
+	 * Return true if every signature added so far is valid.
+	 */
+	public boolean verify() {
+		boolean[] ok = verifyAll();
+		for (int i = 0; i < ok.length; i++) {
+			if (!ok[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the positions, in order of addition, of the invalid signatures.
+	 */
+	public int[] getInvalidIndices() {
+		boolean[] ok = verifyAll();
+		int count = 0;
+		for (int i = 0; i < ok.length; i++) {
+			if (!ok[i]) {
+				count++;
+			}
+		}
+		int[] bad = new int[count];
+		for (int i = 0, j = 0; i < ok.length; i++) {
+			if (!ok[i]) {
+				bad[j++] = i;
+			}
+		}
+		return bad;
+	}
+
+	/**
+	 * Verify every entry, element i of the result is the outcome of the i-th
+	 * signature.
+	 */
+	public boolean[] verifyAll() {
+		if (results != null) {
+			return results.clone();
+		}
+		BigInteger n = sm2Curve.getOrder();
+		int size = points.size();
+		boolean[] ok = new boolean[size];
+
+		// entries out of range are rejected without a multiplication
+		int[] index = new int[size];
+		int count = 0;
+		BigInteger[] t = new BigInteger[size];
+		for (int i = 0; i < size; i++) {
+			BigInteger r = rs.get(i);
+			BigInteger s = ss.get(i);
+			if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0
+					|| s.compareTo(n) >= 0)
+				continue;
+			BigInteger ti = r.add(s).mod(n);
+			if (ti.equals(BigInteger.ZERO))
+				continue;
+			t[count] = ti;
+			index[count++] = i;
+		}
+
+		BigInteger[] s = new BigInteger[count];
+		ECPoint[] p = new ECPoint[count];
+		for (int j = 0; j < count; j++) {
+			s[j] = ss.get(index[j]);
+			p[j] = points.get(index[j]);
+		}
+		BigInteger[] x = ECUtil.multiplyAndAddCachedX(sm2Curve, s, p,
+				Arrays.copyOf(t, count));
+
+		for (int j = 0; j < count; j++) {
+			int i = index[j];
+			if (x[j] != null) {
+				BigInteger R = es.get(i).add(x[j]).mod(n);
+				ok[i] = rs.get(i).equals(R);
+			}
+		}
+		results = ok;
+		return ok.clone();
+	}
+}
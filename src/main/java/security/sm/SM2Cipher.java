@@ -2,6 +2,7 @@ package security.sm;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -11,6 +12,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.ProviderException;
 import java.security.SecureRandom;
 import java.security.interfaces.ECKey;
+import java.security.spec.ECPoint;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidParameterSpecException;
 import java.util.Arrays;
@@ -26,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import security.ConstructKeys;
+import security.ec.ECParameters;
 import security.ec.NamedCurve;
 
 public class SM2Cipher extends CipherSpi {
@@ -39,6 +42,16 @@ public class SM2Cipher extends CipherSpi {
 	// constant for raw RSA
 	private final static String PAD_NONE = "NoPadding";
 
+	// streaming layouts of the raw encoding 04 || x1 || y1, C2 and C3
+	private final static String MODE_C1C2C3 = "C1C2C3";
+	private final static String MODE_C1C3C2 = "C1C3C2";
+
+	private final static int C1_LEN = 65;
+	private final static int C3_LEN = 32;
+
+	// bytes moved per step from a direct ByteBuffer to the heap
+	private final static int BB_CHUNK = 32 * 1024;
+
 	// active padding type, one of PAD_* above. Set by setPadding()
 	private String paddingType;
 
@@ -55,6 +68,22 @@ public class SM2Cipher extends CipherSpi {
 	// buffer for the data
 	private ByteArrayOutputStream buffer;
 
+	// streaming layout, one of MODE_* above, null for the DER encoding
+	private String mode;
+	// the streaming state, see _resetStream()
+	private SM2Core core;
+	private boolean verifyBeforeRelease;
+	// encryption: C1 not written yet; decryption: C1 (and C3) being read
+	private byte[] header;
+	private int headerLen;
+	// decryption in C1C2C3: the last C3_LEN bytes seen so far
+	private byte[] tail;
+	private int tailLen;
+	private boolean invalidC1;
+
+	// staging array for direct ByteBuffers, allocated on first use
+	private byte[] bbIn;
+
 	public SM2Cipher() {
 		// TopSMProvider.ensureIntegrity(getClass());
 		paddingType = "NOPADDING";
@@ -69,25 +98,41 @@ public class SM2Cipher extends CipherSpi {
 	@Override
 	protected byte[] engineDoFinal(byte[] in, int inOfs, int inLen)
 			throws IllegalBlockSizeException, BadPaddingException {
-		_update(in, inOfs, inLen);
-		return _doFinal();
+		return _doFinal(in, inOfs, inLen);
 	}
 
 	@Override
 	protected int engineDoFinal(byte[] in, int inOfs, int inLen, byte[] out,
 			int outOfs) throws ShortBufferException, IllegalBlockSizeException,
 			BadPaddingException {
+		_checkOutputSize(inLen, out, outOfs);
+		byte[] result = _doFinal(in, inOfs, inLen);
+		System.arraycopy(result, 0, out, outOfs, result.length);
+		return result.length;
+	}
 
-		_update(in, inOfs, inLen);
-		int outputSize = buffer.size();
-		if (outputSize > out.length - outOfs) {
+	@Override
+	protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+			throws ShortBufferException, IllegalBlockSizeException,
+			BadPaddingException {
+		int inLen = input.remaining();
+		// checked before any input is taken, so a short output can be retried
+		int outputSize = engineGetOutputSize(inLen);
+		if (outputSize > output.remaining()) {
 			throw new ShortBufferException("Need " + outputSize
 					+ " bytes for output");
 		}
-		byte[] result = _doFinal();
-		int n = result.length;
-		System.arraycopy(result, 0, out, outOfs, n);
-		return n;
+		if (input.hasArray()) {
+			byte[] result = _doFinal(input.array(), input.arrayOffset()
+					+ input.position(), inLen);
+			input.position(input.limit());
+			return _put(result, output);
+		}
+		int n = 0;
+		while (input.hasRemaining()) {
+			n += _put(_stage(input), output);
+		}
+		return n + _put(_doFinal(B0, 0, 0), output);
 	}
 
 	// return 0 as block size, we are not a block cipher
@@ -105,7 +150,15 @@ public class SM2Cipher extends CipherSpi {
 	// return the output size
 	@Override
 	protected int engineGetOutputSize(int inputLen) {
-		return inputLen;
+		if (mode == null) {
+			int len = buffer.size() + inputLen;
+			return (publicKey != null) ? _derOutputSize(len) : len;
+		}
+		int pending = buffer.size();
+		if (publicKey != null) {
+			return pending + (header != null ? C1_LEN : 0) + inputLen + C3_LEN;
+		}
+		return pending + tailLen + inputLen;
 	}
 
 	@Override
@@ -157,9 +210,14 @@ public class SM2Cipher extends CipherSpi {
 
 	@Override
 	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
-		// if (mode.equalsIgnoreCase("ECB") == false) {
-		// throw new NoSuchAlgorithmException("Unsupported mode " + mode);
-		// }
+		// any other mode keeps the DER encoding
+		if (mode.equalsIgnoreCase(MODE_C1C2C3)) {
+			this.mode = MODE_C1C2C3;
+		} else if (mode.equalsIgnoreCase(MODE_C1C3C2)) {
+			this.mode = MODE_C1C3C2;
+		} else {
+			this.mode = null;
+		}
 	}
 
 	@Override
@@ -175,6 +233,9 @@ public class SM2Cipher extends CipherSpi {
 
 	@Override
 	protected byte[] engineUpdate(byte[] in, int inOfs, int inLen) {
+		if (mode != null) {
+			return _streamUpdate(in, inOfs, inLen);
+		}
 		_update(in, inOfs, inLen);
 		return B0;
 	}
@@ -182,19 +243,68 @@ public class SM2Cipher extends CipherSpi {
 	@Override
 	protected int engineUpdate(byte[] in, int inOfs, int inLen, byte[] out,
 			int outOfs) throws ShortBufferException {
+		if (mode != null) {
+			int outputSize = _updateOutputSize(inLen);
+			if (outputSize > out.length - outOfs) {
+				throw new ShortBufferException("Need " + outputSize
+						+ " bytes for output");
+			}
+			byte[] result = _streamUpdate(in, inOfs, inLen);
+			System.arraycopy(result, 0, out, outOfs, result.length);
+			return result.length;
+		}
 		_update(in, inOfs, inLen);
 		return 0;
 	}
 
+	/*
+	 * Heap input is read from its backing array, direct input is staged
+	 * through a fixed array a chunk at a time.
+	 */
+	@Override
+	protected int engineUpdate(ByteBuffer input, ByteBuffer output)
+			throws ShortBufferException {
+		int inLen = input.remaining();
+		if (mode != null && _updateOutputSize(inLen) > output.remaining()) {
+			throw new ShortBufferException("Need " + _updateOutputSize(inLen)
+					+ " bytes for output");
+		}
+		if (input.hasArray()) {
+			byte[] result = engineUpdate(input.array(), input.arrayOffset()
+					+ input.position(), inLen);
+			input.position(input.limit());
+			return _put(result, output);
+		}
+		int n = 0;
+		while (input.hasRemaining()) {
+			n += _put(_stage(input), output);
+		}
+		return n;
+	}
+
+	// update with the next chunk of a direct buffer
+	private byte[] _stage(ByteBuffer input) {
+		if (bbIn == null) {
+			bbIn = new byte[BB_CHUNK];
+		}
+		int len = Math.min(input.remaining(), BB_CHUNK);
+		input.get(bbIn, 0, len);
+		return engineUpdate(bbIn, 0, len);
+	}
+
+	private static int _put(byte[] result, ByteBuffer output) {
+		output.put(result);
+		return result.length;
+	}
+
 	protected byte[] engineWrap(Key key) throws InvalidKeyException,
 			IllegalBlockSizeException {
 		byte[] encoded = key.getEncoded();
 		if ((encoded == null) || (encoded.length == 0)) {
 			throw new InvalidKeyException("Could not obtain encoded key");
 		}
-		_update(encoded, 0, encoded.length);
 		try {
-			return _doFinal();
+			return _doFinal(encoded, 0, encoded.length);
 		} catch (BadPaddingException e) {
 			// should not occur
 			throw new InvalidKeyException("Wrapping failed", e);
@@ -203,9 +313,8 @@ public class SM2Cipher extends CipherSpi {
 
 	protected Key engineUnwrap(byte[] wrappedKey, String algorithm, int type)
 			throws InvalidKeyException, NoSuchAlgorithmException {
-		_update(wrappedKey, 0, wrappedKey.length);
 		try {
-			byte[] encoded = _doFinal();
+			byte[] encoded = _doFinal(wrappedKey, 0, wrappedKey.length);
 			return ConstructKeys.constructKey(encoded, algorithm, type);
 		} catch (BadPaddingException e) {
 			// should not occur
@@ -244,11 +353,26 @@ public class SM2Cipher extends CipherSpi {
 		if (paddingType.equalsIgnoreCase(PAD_NONE) || true)
 			padding = SM2Padding.getInstance(SM2Padding.PAD_NONE, random);
 		buffer = new ByteArrayOutputStream();
+		this.verifyBeforeRelease = (params instanceof SM2StreamParameterSpec)
+				&& ((SM2StreamParameterSpec) params).isVerifyBeforeRelease();
+		_resetStream();
 	}
 
 	// internal update method
 	private void _update(byte[] in, int inOfs, int inLen) {
-		buffer.write(in, inOfs, inLen);
+		// in is null for doFinal() without input
+		if (inLen > 0) {
+			buffer.write(in, inOfs, inLen);
+		}
+	}
+
+	private byte[] _doFinal(byte[] in, int inOfs, int inLen)
+			throws BadPaddingException, IllegalBlockSizeException {
+		if (mode != null) {
+			return _streamDoFinal(in, inOfs, inLen);
+		}
+		_update(in, inOfs, inLen);
+		return _doFinal();
 	}
 
 	// internal doFinal() method. Here we perform the actual SM2 operation
@@ -268,6 +392,7 @@ public class SM2Cipher extends CipherSpi {
 				return padding.unpad(data);
 			}
 		} finally {
+			buffer.reset();
 			_resetDigest();
 		}
 	}
@@ -294,6 +419,211 @@ public class SM2Cipher extends CipherSpi {
 		}
 	}
 
+	// prepare the streaming state for the next message
+	private void _resetStream() {
+		if (mode == null) {
+			return;
+		}
+		buffer.reset();
+		tailLen = 0;
+		headerLen = 0;
+		invalidC1 = false;
+		if (publicKey != null) {
+			// a fresh k for every message
+			core = new SM2Core(publicKey);
+			header = ECParameters.encodePoint(core.c1Point(),
+					SM2Core.sm2Curve.getCurve());
+			tail = null;
+		} else {
+			core = null;
+			header = new byte[mode == MODE_C1C3C2 ? C1_LEN + C3_LEN : C1_LEN];
+			tail = new byte[C3_LEN];
+		}
+	}
+
+	private void _checkOutputSize(int inLen, byte[] out, int outOfs)
+			throws ShortBufferException {
+		int outputSize = engineGetOutputSize(inLen);
+		if (outputSize > out.length - outOfs) {
+			throw new ShortBufferException("Need " + outputSize
+					+ " bytes for output");
+		}
+	}
+
+	/*
+	 * Largest DER encoding of a message of dataLen bytes: SEQUENCE of two
+	 * INTEGERs of at most 33 bytes, C3 and C2 as OCTET STRINGs.
+	 */
+	private static int _derOutputSize(int dataLen) {
+		int content = 2 * (2 + 33) + (2 + C3_LEN) + _derHeaderLen(dataLen)
+				+ dataLen;
+		return _derHeaderLen(content) + content;
+	}
+
+	// tag and length octets in front of len content bytes
+	private static int _derHeaderLen(int len) {
+		int n = 2;
+		if (len >= 0x80) {
+			for (; len > 0; len >>>= 8) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	// exact number of bytes the next streaming update of inLen bytes returns
+	private int _updateOutputSize(int inLen) {
+		if (publicKey != null) {
+			if (mode == MODE_C1C3C2) {
+				return 0;
+			}
+			return (header != null ? header.length : 0) + inLen;
+		}
+		if (headerLen < header.length) {
+			inLen -= header.length - headerLen;
+			if (inLen < 0) {
+				return 0;
+			}
+		}
+		if (invalidC1 || verifyBeforeRelease) {
+			return 0;
+		}
+		if (mode == MODE_C1C3C2) {
+			return inLen;
+		}
+		return Math.max(tailLen + inLen - C3_LEN, 0);
+	}
+
+	/*
+	 * Streaming update. Encryption writes C1 before the first C2 bytes
+	 * (C1C2C3) or keeps C2 until doFinal (C1C3C2, C3 goes first). Decryption
+	 * reads C1 (and C3) first and, in C1C2C3, always holds back the last
+	 * C3_LEN bytes since they may be C3.
+	 */
+	private byte[] _streamUpdate(byte[] in, int inOfs, int inLen) {
+		if (in == null) {
+			// doFinal() without input
+			in = B0;
+			inOfs = 0;
+			inLen = 0;
+		}
+		if (publicKey != null) {
+			if (mode == MODE_C1C3C2) {
+				byte[] c2 = new byte[inLen];
+				core.c3Update(in, inOfs, inLen);
+				core.xorKeyStream(in, inOfs, inLen, c2, 0);
+				buffer.write(c2, 0, inLen);
+				return B0;
+			}
+			int h = (header != null) ? header.length : 0;
+			byte[] out = new byte[h + inLen];
+			if (header != null) {
+				System.arraycopy(header, 0, out, 0, h);
+				header = null;
+			}
+			core.c3Update(in, inOfs, inLen);
+			core.xorKeyStream(in, inOfs, inLen, out, h);
+			return out;
+		}
+
+		if (headerLen < header.length) {
+			int n = Math.min(header.length - headerLen, inLen);
+			System.arraycopy(in, inOfs, header, headerLen, n);
+			headerLen += n;
+			inOfs += n;
+			inLen -= n;
+			if (headerLen < header.length) {
+				return B0;
+			}
+			try {
+				ECPoint c1 = ECParameters.decodePoint(
+						Arrays.copyOf(header, C1_LEN),
+						SM2Core.sm2Curve.getCurve());
+				core = new SM2Core(c1, privateKey);
+			} catch (IOException e) {
+				// reported by doFinal
+				invalidC1 = true;
+			}
+		}
+		if (invalidC1) {
+			return B0;
+		}
+		if (mode == MODE_C1C3C2) {
+			return _release(in, inOfs, inLen);
+		}
+
+		int n = tailLen + inLen - C3_LEN;
+		if (n <= 0) {
+			System.arraycopy(in, inOfs, tail, tailLen, inLen);
+			tailLen += inLen;
+			return B0;
+		}
+		byte[] c2 = new byte[n];
+		int fromTail = Math.min(n, tailLen);
+		int fromIn = n - fromTail;
+		System.arraycopy(tail, 0, c2, 0, fromTail);
+		System.arraycopy(in, inOfs, c2, fromTail, fromIn);
+		int keep = tailLen - fromTail;
+		System.arraycopy(tail, fromTail, tail, 0, keep);
+		System.arraycopy(in, inOfs + fromIn, tail, keep, inLen - fromIn);
+		tailLen = C3_LEN;
+		return _release(c2, 0, n);
+	}
+
+	// decrypt C2 bytes, hold them back if they may only leave after the C3
+	// check
+	private byte[] _release(byte[] c2, int ofs, int len) {
+		byte[] plain = new byte[len];
+		core.xorKeyStream(c2, ofs, len, plain, 0);
+		core.c3Update(plain, 0, len);
+		if (verifyBeforeRelease) {
+			buffer.write(plain, 0, len);
+			return B0;
+		}
+		return plain;
+	}
+
+	private byte[] _streamDoFinal(byte[] in, int inOfs, int inLen)
+			throws BadPaddingException {
+		try {
+			byte[] last = _streamUpdate(in, inOfs, inLen);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (publicKey != null) {
+				byte[] c3 = core.c3Final();
+				if (mode == MODE_C1C3C2) {
+					out.write(header, 0, header.length);
+					out.write(c3, 0, c3.length);
+					buffer.writeTo(out);
+				} else {
+					out.write(last, 0, last.length);
+					out.write(c3, 0, c3.length);
+				}
+				return out.toByteArray();
+			}
+
+			if (headerLen < header.length
+					|| (mode == MODE_C1C2C3 && tailLen < C3_LEN)) {
+				throw new BadPaddingException("Invalid data, too short.");
+			}
+			if (invalidC1) {
+				throw new BadPaddingException("Invalid data, bad C1 point.");
+			}
+			byte[] expected = (mode == MODE_C1C3C2) ? Arrays.copyOfRange(
+					header, C1_LEN, C1_LEN + C3_LEN) : tail;
+			if (!MessageDigest.isEqual(core.c3Final(), expected)) {
+				throw new BadPaddingException("Invalid data, verify hash fail.");
+			}
+			buffer.writeTo(out);
+			out.write(last, 0, last.length);
+			return out.toByteArray();
+		} catch (IOException e) {
+			// can not be happened, ByteArrayOutputStream
+			throw new ProviderException(e);
+		} finally {
+			_resetStream();
+		}
+	}
+
 	private void _resetDigest() {
 		if (!(this.digestReset)) {
 			this.c3Gen.reset();
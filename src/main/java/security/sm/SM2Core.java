@@ -1,8 +1,6 @@
 package security.sm;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
 import security.ec.ECUtil;
@@ -12,26 +10,48 @@ import static pkiutil.DataUtil.*;
 public final class SM2Core {
 	protected final static ECParameterSpec sm2Curve = NamedCurve.getECParameterSpec("SM2");
 
+	// bytes of a field element
+	private static final int FIELD_LEN = 32;
+
 	private ECPoint c1Point;
 	private ECPoint encKeyBasePoint;
 	private byte[] p2X;
 	private byte[] p2Y;
 
+	// SM3 state after x2 || y2, every KDF block starts from a copy of it
+	private final SM3MessageDigest kdfBase = new SM3MessageDigest();
+	private final SM3MessageDigest kdf = new SM3MessageDigest();
+	private final SM3MessageDigest c3 = new SM3MessageDigest();
+	private final byte[] counter = new byte[4];
+	private final byte[] mask = new byte[32];
+	private int maskOff;
+	private int ct;
+
 	protected SM2Core(SM2PublicKey publicKey) {
 		BigInteger k = ECUtil.getRandomMultiple(sm2Curve);
 		this.c1Point = ECUtil.getECPoint(sm2Curve,k);
-		this.encKeyBasePoint = ECUtil.multiply(sm2Curve.getCurve(),
+		this.encKeyBasePoint = ECUtil.multiplyCached(sm2Curve.getCurve(),
 				publicKey.getW(), k);
-		p2X = trimZeroes(encKeyBasePoint.getAffineX().toByteArray());
-		p2Y = trimZeroes(encKeyBasePoint.getAffineY().toByteArray());
+		p2X = toFieldBytes(encKeyBasePoint.getAffineX());
+		p2Y = toFieldBytes(encKeyBasePoint.getAffineY());
+		initKdf();
 	}
 
 	protected SM2Core(ECPoint c1Point, SM2PrivateKey privateKey) {
 		this.c1Point = c1Point;
 		this.encKeyBasePoint = ECUtil.multiply(sm2Curve.getCurve(), c1Point,
 				privateKey.getS());
-		p2X = trimZeroes(encKeyBasePoint.getAffineX().toByteArray());
-		p2Y = trimZeroes(encKeyBasePoint.getAffineY().toByteArray());
+		p2X = toFieldBytes(encKeyBasePoint.getAffineX());
+		p2Y = toFieldBytes(encKeyBasePoint.getAffineY());
+		initKdf();
+	}
+
+	// x2 and y2 enter the KDF and C3 as 32 byte strings, leading zeroes kept
+	private static byte[] toFieldBytes(BigInteger v) {
+		byte[] b = trimZeroes(v.toByteArray());
+		byte[] out = new byte[FIELD_LEN];
+		System.arraycopy(b, 0, out, FIELD_LEN - b.length, b.length);
+		return out;
 	}
 
 	protected ECPoint c1Point() {
@@ -42,51 +62,79 @@ public final class SM2Core {
 		return this.encKeyBasePoint;
 	}
 
-	protected byte[] c3Hash(byte[] data) {
-		MessageDigest sm3c3 = null;
-		try {
-			sm3c3 = MessageDigest.getInstance("SM3");
-		} catch (NoSuchAlgorithmException e) {
-			// can not be happened,but...
-			e.printStackTrace();
-		}
-		sm3c3.update(p2X);
-		sm3c3.update(data);
-		sm3c3.update(p2Y);
-		return sm3c3.digest();
+	private void initKdf() {
+		kdfBase.update(p2X, 0, p2X.length);
+		kdfBase.update(p2Y, 0, p2Y.length);
+		resetKdf();
+		resetC3();
 	}
 
-	protected byte[] c2Data(byte[] origin) {
-		byte[] _data = origin.clone();
-		int ct = 1;
-		byte[] maskKey = _nextkey(ct++);
-		for (int i = 0, keyOff = 0; i < _data.length; i++, keyOff++) {
-			if (keyOff == maskKey.length) {
-				maskKey = _nextkey(ct++);
-				keyOff = 0;
+	/**
+	 * Restart the key stream at counter 1.
+	 */
+	protected void resetKdf() {
+		this.ct = 1;
+		this.maskOff = mask.length;
+	}
+
+	/**
+	 * out = in ^ the next len bytes of the key stream, in and out may be the
+	 * same buffer.
+	 */
+	protected void xorKeyStream(byte[] in, int inOff, int len, byte[] out,
+			int outOff) {
+		for (int i = 0; i < len; i++) {
+			if (maskOff == mask.length) {
+				nextMask();
 			}
-			_data[i] ^= maskKey[keyOff];
+			out[outOff + i] = (byte) (in[inOff + i] ^ mask[maskOff++]);
 		}
-		return _data;
 	}
 
-	private byte[] _nextkey(int ct) {
-		MessageDigest maskKeyGen = null;
-		try {
-			maskKeyGen = MessageDigest.getInstance("SM3");
-		} catch (NoSuchAlgorithmException e) {
-			// can not be happened,but...
-			e.printStackTrace();
-		}
-		byte[] key;
-		maskKeyGen.update(p2X);
-		maskKeyGen.update(p2Y);
-		maskKeyGen.update((byte) (ct >> 24 & 0x00ff));
-		maskKeyGen.update((byte) (ct >> 16 & 0x00ff));
-		maskKeyGen.update((byte) (ct >> 8 & 0x00ff));
-		maskKeyGen.update((byte) (ct & 0x00ff));
-		key = maskKeyGen.digest();
-		return key;
+	// mask = SM3(x2 || y2 || ct), continued from the prepared x2 || y2 state
+	private void nextMask() {
+		kdf.copyState(kdfBase);
+		counter[0] = (byte) (ct >>> 24);
+		counter[1] = (byte) (ct >>> 16);
+		counter[2] = (byte) (ct >>> 8);
+		counter[3] = (byte) ct;
+		ct++;
+		kdf.update(counter, 0, counter.length);
+		kdf.doFinal(mask, 0);
+		maskOff = 0;
+	}
+
+	/**
+	 * Restart the running C3 hash, SM3(x2 || M || y2).
+	 */
+	protected void resetC3() {
+		c3.reset();
+		c3.update(p2X, 0, p2X.length);
+	}
+
+	protected void c3Update(byte[] data, int off, int len) {
+		c3.update(data, off, len);
+	}
+
+	protected byte[] c3Final() {
+		byte[] hash = new byte[32];
+		c3.update(p2Y, 0, p2Y.length);
+		c3.doFinal(hash, 0);
+		resetC3();
+		return hash;
+	}
+
+	protected byte[] c3Hash(byte[] data) {
+		resetC3();
+		c3Update(data, 0, data.length);
+		return c3Final();
+	}
+
+	protected byte[] c2Data(byte[] origin) {
+		byte[] data = new byte[origin.length];
+		resetKdf();
+		xorKeyStream(origin, 0, origin.length, data, 0);
+		return data;
 	}
 
 }
@@ -1,15 +1,11 @@
 package security.sm;
 
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 
-import security.ec.NamedCurve;
-
 
 public class SM2GenParameterSpec extends ECGenParameterSpec {
 
@@ -57,46 +53,48 @@ public class SM2GenParameterSpec extends ECGenParameterSpec {
 		return this.userID != null && this.publicKey != null;
 	}
 
+	/**
+	 * Return Z, cached per user id and public key by {@link SM2ZCache}.
+	 */
 	public byte[] generateZ() {
 		if (this.userID == null)
 			throw new NullPointerException("userID can not be null.");
 		if (this.publicKey == null)
 			throw new NullPointerException("publicKey can not be null.");
 
-		ECParameterSpec sm2curve = NamedCurve.getECParameterSpec("SM2");
-
-		String digestAlgName = "SM3";
-		MessageDigest zMD;
-		try {
-			zMD = MessageDigest.getInstance(digestAlgName);
-			zMD.reset();
-
-			// userId length
-			int len = userID.getUserID().length * 8;
-			zMD.update((byte) (len >> 8 & 0x00ff));
-			zMD.update((byte) (len & 0x00ff));
-
-			// userId
-			zMD.update(userID.getUserID());
-
-			// a,b
-			zMD.update(sm2curve.getCurve().getA().toByteArray());
-			zMD.update(sm2curve.getCurve().getB().toByteArray());
-
-			// gx,gy
-			zMD.update(sm2curve.getGenerator().getAffineX().toByteArray());
-			zMD.update(sm2curve.getGenerator().getAffineY().toByteArray());
-
-			// x,y
-			zMD.update(this.publicKey.getW().getAffineX().toByteArray());
-			zMD.update(this.publicKey.getW().getAffineY().toByteArray());
-
-			// Z
-			return zMD.digest();
-		} catch (NoSuchAlgorithmException e) {
-			// can not be happened, but...
-			e.printStackTrace();
-		}
-		return null;
+		return SM2ZCache.getZ(this.userID, this.publicKey);
+	}
+
+	static byte[] computeZ(SM2UserID userID, ECPublicKey publicKey) {
+		ECParameterSpec sm2curve = SM2Core.sm2Curve;
+
+		SM3MessageDigest zMD = new SM3MessageDigest();
+
+		// userId length
+		int len = userID.getUserID().length * 8;
+		zMD.update((byte) (len >> 8 & 0x00ff));
+		zMD.update((byte) (len & 0x00ff));
+
+		// userId
+		update(zMD, userID.getUserID());
+
+		// a,b
+		update(zMD, sm2curve.getCurve().getA().toByteArray());
+		update(zMD, sm2curve.getCurve().getB().toByteArray());
+
+		// gx,gy
+		update(zMD, sm2curve.getGenerator().getAffineX().toByteArray());
+		update(zMD, sm2curve.getGenerator().getAffineY().toByteArray());
+
+		// x,y
+		update(zMD, publicKey.getW().getAffineX().toByteArray());
+		update(zMD, publicKey.getW().getAffineY().toByteArray());
+
+		// Z
+		return zMD.digest();
+	}
+
+	private static void update(SM3MessageDigest md, byte[] b) {
+		md.update(b, 0, b.length);
 	}
 }
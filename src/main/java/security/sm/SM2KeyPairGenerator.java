@@ -45,7 +45,7 @@ public class SM2KeyPairGenerator extends KeyPairGeneratorSpi {
 		ECPoint w; // BouncyCastal is named 'Q'
 
 		// generate s (EC d)
-		s = ECUtil.getRandomMultiple(sm2Curve);
+		s = ECUtil.getRandomMultiple(sm2Curve, random);
 		// generate w (EC Q)
 		w = ECUtil.getECPoint(sm2Curve,s);
 
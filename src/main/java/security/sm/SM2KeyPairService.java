@@ -0,0 +1,221 @@
+package security.sm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import security.jca.JCAUtil;
+
+/**
+ * Bulk SM2 key pair generation on a {@link ForkJoinPool}.
+ *
+ * <p>
+ * A batch is split into ranges of indices that are generated in parallel.
+ * Every worker thread owns its {@link SM2KeyPairGenerator} and its own
+ * SecureRandom, seeded once from {@link JCAUtil#getSecureRandom()}, so the
+ * threads do not contend on a shared random source. Generated pairs are passed
+ * to a {@link Sink} as soon as they exist, nothing is kept by the service.
+ * There is no key store sink: a {@link java.security.KeyStore} only takes a
+ * private key together with its certificate chain, which this service does
+ * not issue.
+ *
+ * <pre>
+ * SM2KeyPairService service = new SM2KeyPairService();
+ * service.generate(100000, new SM2KeyPairService.PKCS8FileSink(dir));
+ * System.out.println(service.getKeysPerSecond() + " keys/s");
+ * service.shutdown();
+ * </pre>
+ */
+public class SM2KeyPairService {
+
+	// indices generated by one task without further splitting
+	private static final int THRESHOLD = 64;
+
+	/**
+	 * Receives generated key pairs, called concurrently from the worker
+	 * threads.
+	 */
+	public interface Sink {
+		void accept(int index, KeyPair keyPair) throws Exception;
+	}
+
+	private final ForkJoinPool pool;
+
+	private final ThreadLocal<SM2KeyPairGenerator> generators = new ThreadLocal<SM2KeyPairGenerator>() {
+		protected SM2KeyPairGenerator initialValue() {
+			SM2KeyPairGenerator g = new SM2KeyPairGenerator();
+			g.initialize(256, newRandom());
+			return g;
+		}
+	};
+
+	private final AtomicLong generated = new AtomicLong();
+	private volatile double keysPerSecond;
+
+	public SM2KeyPairService() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public SM2KeyPairService(int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Generate <code>count</code> key pairs with the indices 0 ..
+	 * <code>count - 1</code> and pass each one to <code>sink</code>. Returns
+	 * when all pairs have been accepted; the first exception of the sink stops
+	 * the batch and is thrown.
+	 */
+	public void generate(int count, Sink sink) throws Exception {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative count: " + count);
+		}
+		long start = System.nanoTime();
+		try {
+			pool.invoke(new Task(0, count, sink));
+		} catch (SinkException e) {
+			throw (Exception) e.getCause();
+		}
+		long elapsed = System.nanoTime() - start;
+		keysPerSecond = (elapsed > 0) ? count * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * Throughput of the last completed batch.
+	 */
+	public double getKeysPerSecond() {
+		return keysPerSecond;
+	}
+
+	/**
+	 * Number of key pairs generated by this service.
+	 */
+	public long getGeneratedCount() {
+		return generated.get();
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static SecureRandom newRandom() {
+		SecureRandom r;
+		try {
+			r = SecureRandom.getInstance("SHA1PRNG");
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom();
+		}
+		byte[] seed = new byte[32];
+		JCAUtil.getSecureRandom().nextBytes(seed);
+		r.setSeed(seed);
+		return r;
+	}
+
+	private final class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final Sink sink;
+
+		Task(int from, int to, Sink sink) {
+			this.from = from;
+			this.to = to;
+			this.sink = sink;
+		}
+
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(from, mid, sink), new Task(mid, to, sink));
+				return;
+			}
+			SM2KeyPairGenerator g = generators.get();
+			for (int i = from; i < to; i++) {
+				KeyPair kp = g.generateKeyPair();
+				generated.incrementAndGet();
+				try {
+					sink.accept(i, kp);
+				} catch (Exception e) {
+					throw new SinkException(e);
+				}
+			}
+		}
+	}
+
+	// carries a checked exception of the sink out of the pool
+	private static final class SinkException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		SinkException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Writes every private key as a PKCS#8 file <code>&lt;index&gt;.pk8</code>
+	 * into a directory. The keys are not encrypted, so the files are created
+	 * readable and writable by the owner only; an existing file of the same
+	 * name is replaced.
+	 */
+	public static class PKCS8FileSink implements Sink {
+
+		private static final boolean POSIX = FileSystems.getDefault()
+				.supportedFileAttributeViews().contains("posix");
+
+		private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY = PosixFilePermissions
+				.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+		private final File dir;
+
+		public PKCS8FileSink(File dir) throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can not create directory " + dir);
+			}
+			this.dir = dir;
+		}
+
+		public void accept(int index, KeyPair keyPair) throws IOException {
+			Path file = new File(dir, index + ".pk8").toPath();
+			// a new file, so that it gets the owner only permissions
+			Files.deleteIfExists(file);
+			if (POSIX) {
+				Files.createFile(file, OWNER_ONLY);
+			} else {
+				Files.createFile(file);
+				File f = file.toFile();
+				f.setReadable(false, false);
+				f.setWritable(false, false);
+				f.setReadable(true, true);
+				f.setWritable(true, true);
+			}
+			OutputStream out = Files.newOutputStream(file,
+					StandardOpenOption.WRITE);
+			try {
+				out.write(keyPair.getPrivate().getEncoded());
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
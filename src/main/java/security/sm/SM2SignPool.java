@@ -0,0 +1,209 @@
+package security.sm;
+
+import java.math.BigInteger;
+import java.security.spec.ECParameterSpec;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import security.ec.ECUtil;
+
+/**
+ * Optional pool of precomputed signing pairs (k, x1), x1 being the affine x
+ * coordinate of k * G. With the pool running, {@link SM2Signature} takes the
+ * expensive fixed-base multiplication off the request thread and a signature
+ * costs a few modular multiplications.
+ *
+ * <p>
+ * Background daemon threads keep the pool filled up to its capacity and park
+ * while it is full. Every pair is handed out exactly once. When the pool runs
+ * dry the signer computes a fresh pair inline and the starvation counter is
+ * increased.
+ *
+ * <p>
+ * The pool is disabled by default. It is started with {@link #start(int, int)}
+ * or at class initialization when the system property
+ * <code>security.sm.sm2SignPoolSize</code> is set to a positive capacity.
+ * Pending pairs are secret material, {@link #stop()} discards them.
+ */
+public final class SM2SignPool {
+
+	private static final String PROP_SIZE = "security.sm.sm2SignPoolSize";
+
+	private static final ECParameterSpec sm2Curve = SM2Core.sm2Curve;
+
+	private static final Queue<BigInteger[]> pairs = new ConcurrentLinkedQueue<BigInteger[]>();
+	private static final AtomicInteger depth = new AtomicInteger();
+
+	private static final AtomicLong refills = new AtomicLong();
+	private static final AtomicLong takes = new AtomicLong();
+	private static final AtomicLong starvations = new AtomicLong();
+
+	private static volatile int capacity;
+	private static volatile Thread[] workers;
+
+	static {
+		int size = Integer.getInteger(PROP_SIZE, 0);
+		if (size > 0) {
+			start(size, 1);
+		}
+	}
+
+	private SM2SignPool() {
+		// no instantiation
+	}
+
+	/**
+	 * Start filling the pool with <code>threads</code> background threads, a
+	 * running pool is stopped first.
+	 */
+	public static synchronized void start(int capacity, int threads) {
+		if (capacity <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity
+					+ " or threads " + threads);
+		}
+		stop();
+		SM2SignPool.capacity = capacity;
+		Thread[] w = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			w[i] = new Thread(new Filler(), "SM2SignPool-" + i);
+			w[i].setDaemon(true);
+			w[i].setPriority(Thread.MIN_PRIORITY);
+		}
+		workers = w;
+		for (Thread t : w) {
+			t.start();
+		}
+	}
+
+	/**
+	 * Stop the background threads and discard all pending pairs.
+	 */
+	public static synchronized void stop() {
+		Thread[] w = workers;
+		workers = null;
+		capacity = 0;
+		if (w != null) {
+			for (Thread t : w) {
+				t.interrupt();
+				LockSupport.unpark(t);
+			}
+		}
+		while (pairs.poll() != null) {
+			depth.decrementAndGet();
+		}
+	}
+
+	public static boolean isRunning() {
+		return workers != null;
+	}
+
+	/**
+	 * Take a fresh pair {k, x1}, or null if the pool is stopped or empty.
+	 */
+	static BigInteger[] take() {
+		Thread[] w = workers;
+		if (w == null) {
+			return null;
+		}
+		BigInteger[] p = pairs.poll();
+		if (p == null) {
+			starvations.incrementAndGet();
+		} else {
+			takes.incrementAndGet();
+			depth.decrementAndGet();
+		}
+		// wake the fillers once the pool is half empty
+		if (depth.get() <= capacity / 2) {
+			for (Thread t : w) {
+				LockSupport.unpark(t);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Compute a pair {k, x1} on the calling thread.
+	 */
+	static BigInteger[] generate() {
+		BigInteger k = ECUtil.getRandomMultiple(sm2Curve);
+		return new BigInteger[] { k,
+				ECUtil.getECPoint(sm2Curve, k).getAffineX() };
+	}
+
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of pairs ready to be taken.
+	 */
+	public static int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * Number of pairs produced by the background threads.
+	 */
+	public static long getRefillCount() {
+		return refills.get();
+	}
+
+	/**
+	 * Number of pairs handed out to signers.
+	 */
+	public static long getTakeCount() {
+		return takes.get();
+	}
+
+	/**
+	 * Number of signatures that found the running pool empty.
+	 */
+	public static long getStarvationCount() {
+		return starvations.get();
+	}
+
+	private static final class Filler implements Runnable {
+
+		public void run() {
+			Thread self = Thread.currentThread();
+			while (!self.isInterrupted()) {
+				Thread[] w = workers;
+				if (w == null || !contains(w, self)) {
+					return;
+				}
+				if (depth.get() >= capacity) {
+					LockSupport.park(this);
+					continue;
+				}
+				BigInteger[] p = generate();
+				if (workers != w) {
+					// stopped while computing
+					return;
+				}
+				pairs.offer(p);
+				depth.incrementAndGet();
+				if (workers != w) {
+					// stopped while offering, stop() may have drained the
+					// queue before the pair was in it
+					if (pairs.remove(p)) {
+						depth.decrementAndGet();
+					}
+					return;
+				}
+				refills.incrementAndGet();
+			}
+		}
+
+		private static boolean contains(Thread[] w, Thread t) {
+			for (Thread x : w) {
+				if (x == t) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
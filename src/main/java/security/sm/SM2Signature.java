@@ -40,9 +40,10 @@ import security.x509.AlgorithmId;
 public class SM2Signature extends SignatureSpi implements Cloneable {
 
 	private static final ECParameterSpec sm2Curve = SM2Core.sm2Curve;
-	private final MessageDigest md;
+	private MessageDigest md;
 	private boolean digestReset;
 	private ECPrivateKey privateKey; // s d
+	private BigInteger dInverse; // (1 + d)^-1 mod n
 	private ECPublicKey publicKey; // w Q
 	private SM2GenParameterSpec spec;
 
@@ -101,6 +102,7 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 			throws InvalidKeyException {
 		ECPublicKey _t = (ECPublicKey) SM2KeyFactory.toSM2Key(publicKey);
 		this.privateKey = null;
+		this.dInverse = null;
 		this.publicKey = _t;
 		initCommon(this.publicKey, null);
 	}
@@ -110,6 +112,8 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 			throws InvalidKeyException {
 		SM2PrivateKey _t = (SM2PrivateKey) SM2KeyFactory.toSM2Key(privateKey);
 		this.privateKey = _t;
+		this.dInverse = _t.getS().add(BigInteger.ONE)
+				.modInverse(sm2Curve.getOrder());
 		this.publicKey = null;
 		initCommon(this.privateKey, null);
 	}
@@ -137,24 +141,25 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 		BigInteger s = null;
 
 		try {
+			BigInteger e = new BigInteger(1, digest);
 			BigInteger k = null;
 			do {
 				do {
-					BigInteger e = new BigInteger(1, digest);
-					ECPoint kp = null;
-
-					k = ECUtil.getRandomMultiple(sm2Curve);
-					kp = ECUtil.getECPoint(sm2Curve, k);
+					// (k, x1 of kG), precomputed if SM2SignPool is running
+					BigInteger[] kx = SM2SignPool.take();
+					if (kx == null) {
+						kx = SM2SignPool.generate();
+					}
+					k = kx[0];
 
 					// r
-					r = e.add(kp.getAffineX());
+					r = e.add(kx[1]);
 					r = r.mod(sm2Curve.getOrder());
 				} while (r.equals(BigInteger.ZERO)
 						|| r.add(k).equals(sm2Curve.getOrder()));
 
 				// (1 + dA)~-1
-				BigInteger dA_1 = privateKey.getS().add(BigInteger.ONE);
-				dA_1 = dA_1.modInverse(sm2Curve.getOrder());
+				BigInteger dA_1 = this.dInverse;
 				s = r.multiply(privateKey.getS());
 				s = k.subtract(s).mod(sm2Curve.getOrder());
 				s = dA_1.multiply(s).mod(sm2Curve.getOrder());
@@ -175,12 +180,42 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 	protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
 		boolean result = false;
 		byte[] md = this.md.digest();
+		BigInteger[] rs = decodeSignature(sigBytes);
+		BigInteger r = rs[0];
+		BigInteger s = rs[1];
+
+		// r, s in [1, n-1]
+		BigInteger n = sm2Curve.getOrder();
+		if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0
+				|| s.compareTo(n) >= 0)
+			return false;
+
+		BigInteger e = new BigInteger(1, md);
+		BigInteger t = r.add(s).mod(n);
+
+		if (t.equals(BigInteger.ZERO))
+			return false;
+		ECPoint point = ECUtil.multiplyAndAddCached(sm2Curve, s,
+				this.publicKey.getW(), t);
+		if (point == ECPoint.POINT_INFINITY)
+			return false;
+		BigInteger R = e.add(point.getAffineX()).mod(n);
+		result = r.equals(R);
+		return result;
+	}
+
+	/**
+	 * Parse a DER encoded or raw (r || s, 64 bytes) signature into {r, s}.
+	 */
+	static BigInteger[] decodeSignature(byte[] sigBytes)
+			throws SignatureException {
 		BigInteger r = null;
 		BigInteger s = null;
 		try {
+			// engineSign trims the sign byte, so read the integers unsigned
 			DerInputStream dis = new DerInputStream(sigBytes);
-			r = new BigInteger(1, dis.getBigInteger().toByteArray());
-			s = new BigInteger(1, dis.getBigInteger().toByteArray());
+			r = dis.getPositiveBigInteger();
+			s = dis.getPositiveBigInteger();
 		} catch (Exception e) {
 			if (sigBytes.length == 64) {
 				byte[] temp1 = new byte[32];
@@ -195,20 +230,7 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 			throw new SignatureException("Parsing signature failed! "
 					+ new String(Hex.encodeHex(sigBytes, false)));
 		}
-
-		BigInteger e = new BigInteger(1, md);
-		BigInteger t = r.add(s).mod(sm2Curve.getOrder());
-
-		if (t.equals(BigInteger.ZERO))
-			return false;
-		org.bouncycastle.math.ec.ECPoint point = ECUtil.getBC_ECGeneratorPoint(
-				sm2Curve).multiply(s);
-		point = point.add(ECUtil.convertToBC_ECPoint(sm2Curve.getCurve(),
-				this.publicKey.getW()).multiply(t));
-		BigInteger R = e.add(point.getX().toBigInteger()).mod(
-				sm2Curve.getOrder());
-		result = r.equals(R);
-		return result;
+		return new BigInteger[] { r, s };
 	}
 
 	@Override
@@ -269,8 +291,9 @@ public class SM2Signature extends SignatureSpi implements Cloneable {
 		// Nothing is updated when digestRest is true.
 		if (this.digestReset == true && this.spec != null
 				&& this.spec.readyForGenerateZ()) {
-			byte[] Z = this.spec.generateZ();
-			this.md.update(Z);
+			// continue from the cached state that has absorbed Z
+			this.md = SM2ZCache.getDigest(this.spec.getUserID(),
+					this.spec.getPublicKey());
 			this.spec = null;
 			this.digestReset = false;
 		}
@@ -0,0 +1,27 @@
+package security.sm;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Options of the streaming SM2 cipher modes <code>C1C2C3</code> and
+ * <code>C1C3C2</code>.
+ *
+ * <p>
+ * By default a streaming decryption returns plaintext from every
+ * <code>update</code>, before C3 has been checked by <code>doFinal</code>.
+ * With <code>verifyBeforeRelease</code> the plaintext is held back and only
+ * returned by a successful <code>doFinal</code>, at the cost of keeping it in
+ * memory.
+ */
+public class SM2StreamParameterSpec implements AlgorithmParameterSpec {
+
+	private final boolean verifyBeforeRelease;
+
+	public SM2StreamParameterSpec(boolean verifyBeforeRelease) {
+		this.verifyBeforeRelease = verifyBeforeRelease;
+	}
+
+	public boolean isVerifyBeforeRelease() {
+		return verifyBeforeRelease;
+	}
+}
@@ -0,0 +1,178 @@
+package security.sm;
+
+import java.security.MessageDigest;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import security.ec.ECParameters;
+
+/**
+ * Bounded LRU cache of SM2 Z values, Z = SM3(ENTL || ID || a || b || xG || yG
+ * || xA || yA), keyed by the user id and the encoded public point.
+ *
+ * <p>
+ * Besides Z every entry keeps the {@link SM3State} after absorbing Z, so a
+ * signer for a known (id, key) starts from that state instead of hashing Z
+ * again. The number of entries is taken from the system property
+ * <code>security.sm.sm2ZCacheSize</code> (default 1024) and adjustable with
+ * {@link #setMaxSize(int)}, 0 disables caching.
+ */
+public final class SM2ZCache {
+
+	private static final String PROP_SIZE = "security.sm.sm2ZCacheSize";
+
+	private static volatile int maxEntries = Math.max(0,
+			Integer.getInteger(PROP_SIZE, 1024));
+
+	private static long hits;
+	private static long misses;
+
+	// access ordered: iteration starts at the least recently used entry
+	private static final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	private SM2ZCache() {
+		// no instantiation
+	}
+
+	/**
+	 * Return Z of <code>userID</code> and <code>publicKey</code>.
+	 */
+	public static byte[] getZ(SM2UserID userID, ECPublicKey publicKey) {
+		return get(userID, publicKey).z.clone();
+	}
+
+	/**
+	 * Return a fresh SM3 digest that has already been updated with Z of
+	 * <code>userID</code> and <code>publicKey</code>.
+	 */
+	public static MessageDigest getDigest(SM2UserID userID,
+			ECPublicKey publicKey) {
+		return get(userID, publicKey).state.newDigest();
+	}
+
+	/**
+	 * Return the SM3 state after Z of <code>userID</code> and
+	 * <code>publicKey</code>.
+	 */
+	public static SM3State getState(SM2UserID userID, ECPublicKey publicKey) {
+		return get(userID, publicKey).state;
+	}
+
+	private static Entry get(SM2UserID userID, ECPublicKey publicKey) {
+		Key k = new Key(userID.getUserID(), ECParameters.encodePoint(
+				publicKey.getW(), SM2Core.sm2Curve.getCurve()));
+		Entry e;
+		synchronized (entries) {
+			e = entries.get(k);
+			if (e != null) {
+				hits++;
+				return e;
+			}
+			misses++;
+		}
+		// compute outside the lock
+		e = new Entry(SM2GenParameterSpec.computeZ(userID, publicKey));
+		if (maxEntries > 0) {
+			synchronized (entries) {
+				entries.put(k, e);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Set the number of entries kept, 0 disables caching.
+	 */
+	public static void setMaxSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative size: " + size);
+		}
+		maxEntries = size;
+		synchronized (entries) {
+			Iterator<Key> i = entries.keySet().iterator();
+			while (entries.size() > size && i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+	}
+
+	public static int getMaxSize() {
+		return maxEntries;
+	}
+
+	public static int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public static long getHitCount() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	public static long getMissCount() {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Remove all entries, counters are kept.
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private static final class Key {
+		private final byte[] id;
+		private final byte[] point;
+		private final int hash;
+
+		Key(byte[] id, byte[] point) {
+			this.id = id.clone();
+			this.point = point;
+			this.hash = Arrays.hashCode(id) * 31 + Arrays.hashCode(point);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Arrays.equals(id, other.id)
+					&& Arrays.equals(point, other.point);
+		}
+	}
+
+	private static final class Entry {
+		final byte[] z;
+		final SM3State state;
+
+		Entry(byte[] z) {
+			this.z = z;
+			SM3MessageDigest sm3 = new SM3MessageDigest();
+			sm3.update(z, 0, z.length);
+			this.state = sm3.getState();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package security.sm;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidParameterException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF (RFC 5869) with HMAC-SM3.
+ *
+ * <p>
+ * Also registered as the <code>KeyGenerator</code> <code>HKDF-SM3</code>,
+ * which must be initialized with an {@link SM3HKDFParameterSpec}:
+ *
+ * <pre>
+ * KeyGenerator g = KeyGenerator.getInstance(&quot;HKDF-SM3&quot;, &quot;TopSM&quot;);
+ * g.init(new SM3HKDFParameterSpec(sharedSecret, salt, info, 16, &quot;SMS4&quot;));
+ * SecretKey key = g.generateKey();
+ * </pre>
+ */
+public final class SM3HKDF {
+
+	/**
+	 * The longest output of {@link #expand}, 255 blocks.
+	 */
+	public static final int MAX_LENGTH = 255 * HmacSM3.MAC_LENGTH;
+
+	private SM3HKDF() {
+	}
+
+	/**
+	 * The pseudorandom key HMAC-SM3(salt, ikm). A <code>null</code> or empty
+	 * salt is 32 zero bytes.
+	 */
+	public static byte[] extract(byte[] salt, byte[] ikm) {
+		HmacSM3 h = new HmacSM3();
+		h.init(salt == null || salt.length == 0 ? new byte[HmacSM3.MAC_LENGTH]
+				: salt);
+		h.engineUpdate(ikm, 0, ikm.length);
+		return h.engineDoFinal();
+	}
+
+	/**
+	 * <code>length</code> bytes of output keying material from the
+	 * pseudorandom key <code>prk</code> and the optional <code>info</code>.
+	 */
+	public static byte[] expand(byte[] prk, byte[] info, int length) {
+		if (length < 0 || length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Invalid length: " + length);
+		}
+		HmacSM3 h = new HmacSM3();
+		h.init(prk);
+		byte[] okm = new byte[length];
+		byte[] t = new byte[HmacSM3.MAC_LENGTH];
+		for (int i = 1, off = 0; off < length; i++, off += t.length) {
+			// T(i) = HMAC(PRK, T(i-1) | info | i), T(0) empty
+			if (i > 1) {
+				h.engineUpdate(t, 0, t.length);
+			}
+			if (info != null) {
+				h.engineUpdate(info, 0, info.length);
+			}
+			h.engineUpdate((byte) i);
+			h.doFinal(t, 0);
+			System.arraycopy(t, 0, okm, off, Math.min(t.length, length - off));
+		}
+		Arrays.fill(t, (byte) 0);
+		return okm;
+	}
+
+	/**
+	 * {@link #extract} followed by {@link #expand}.
+	 */
+	public static byte[] derive(byte[] salt, byte[] ikm, byte[] info,
+			int length) {
+		byte[] prk = extract(salt, ikm);
+		try {
+			return expand(prk, info, length);
+		} finally {
+			Arrays.fill(prk, (byte) 0);
+		}
+	}
+
+	/**
+	 * The <code>HKDF-SM3</code> key generator.
+	 */
+	public static final class Generator extends KeyGeneratorSpi {
+
+		private SM3HKDFParameterSpec spec;
+
+		protected void engineInit(SecureRandom random) {
+			throw new InvalidParameterException(
+					"HKDF-SM3 requires an SM3HKDFParameterSpec");
+		}
+
+		protected void engineInit(AlgorithmParameterSpec params,
+				SecureRandom random) throws InvalidAlgorithmParameterException {
+			if (!(params instanceof SM3HKDFParameterSpec)) {
+				throw new InvalidAlgorithmParameterException(
+						"HKDF-SM3 requires an SM3HKDFParameterSpec");
+			}
+			spec = (SM3HKDFParameterSpec) params;
+		}
+
+		protected void engineInit(int keysize, SecureRandom random) {
+			throw new InvalidParameterException(
+					"HKDF-SM3 requires an SM3HKDFParameterSpec");
+		}
+
+		protected SecretKey engineGenerateKey() {
+			if (spec == null) {
+				throw new IllegalStateException(
+						"HKDF-SM3 KeyGenerator not initialized");
+			}
+			byte[] ikm = spec.getIKM();
+			byte[] okm = derive(spec.getSalt(), ikm, spec.getInfo(),
+					spec.getLength());
+			try {
+				return new SecretKeySpec(okm, spec.getKeyAlgorithm());
+			} finally {
+				Arrays.fill(ikm, (byte) 0);
+				Arrays.fill(okm, (byte) 0);
+			}
+		}
+	}
+}
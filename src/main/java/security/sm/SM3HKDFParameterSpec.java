@@ -0,0 +1,64 @@
+package security.sm;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Input of the <code>HKDF-SM3</code> {@link javax.crypto.KeyGenerator}: the
+ * input keying material, the optional salt and info, the length of the output
+ * key in bytes and its algorithm name.
+ */
+public class SM3HKDFParameterSpec implements AlgorithmParameterSpec {
+
+	private final byte[] ikm;
+	private final byte[] salt;
+	private final byte[] info;
+	private final int length;
+	private final String keyAlgorithm;
+
+	/**
+	 * @param ikm
+	 *            the input keying material
+	 * @param salt
+	 *            the salt, <code>null</code> for none
+	 * @param info
+	 *            the context, <code>null</code> for none
+	 * @param length
+	 *            output length in bytes, at most 255 * 32
+	 * @param keyAlgorithm
+	 *            algorithm name of the generated key
+	 */
+	public SM3HKDFParameterSpec(byte[] ikm, byte[] salt, byte[] info,
+			int length, String keyAlgorithm) {
+		if (ikm == null || keyAlgorithm == null) {
+			throw new NullPointerException();
+		}
+		if (length <= 0 || length > SM3HKDF.MAX_LENGTH) {
+			throw new IllegalArgumentException("Invalid length: " + length);
+		}
+		this.ikm = ikm.clone();
+		this.salt = salt == null ? null : salt.clone();
+		this.info = info == null ? null : info.clone();
+		this.length = length;
+		this.keyAlgorithm = keyAlgorithm;
+	}
+
+	public byte[] getIKM() {
+		return ikm.clone();
+	}
+
+	public byte[] getSalt() {
+		return salt == null ? null : salt.clone();
+	}
+
+	public byte[] getInfo() {
+		return info == null ? null : info.clone();
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+}
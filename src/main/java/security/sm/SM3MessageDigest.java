@@ -16,11 +16,16 @@ public class SM3MessageDigest extends MessageDigestSpi implements Cloneable {
 	 * Standard constructor
 	 */
 	public SM3MessageDigest() {
-		xBuf = new byte[4];
-		xBufOff = 0;
 		reset();
 	}
 
+	/**
+	 * A digest continuing from <code>state</code>.
+	 */
+	public SM3MessageDigest(SM3State state) {
+		setState(state);
+	}
+
 	@Override
 	protected void engineUpdate(byte input) {
 		update(input);
@@ -45,24 +50,75 @@ public class SM3MessageDigest extends MessageDigestSpi implements Cloneable {
 		reset();
 	}
 
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		SM3MessageDigest d = (SM3MessageDigest) super.clone();
+		d.xBuf = xBuf.clone();
+		d.v = v.clone();
+		d.w = new int[68];
+		return d;
+	}
+
+	/**
+	 * Snapshot of the input hashed so far, see {@link SM3State}.
+	 */
+	public SM3State getState() {
+		return new SM3State(v, xBuf, xBufOff, byteCount);
+	}
+
+	/**
+	 * Continue from <code>state</code>, discarding the current input.
+	 */
+	public void setState(SM3State state) {
+		System.arraycopy(state.v, 0, v, 0, v.length);
+		System.arraycopy(state.buf, 0, xBuf, 0, state.buf.length);
+		xBufOff = state.buf.length;
+		byteCount = state.byteCount;
+	}
+
+	/**
+	 * Finish the digest and reset.
+	 */
+	public byte[] digest() {
+		byte[] digest = new byte[DIGEST_LENGTH];
+		doFinal(digest, 0);
+		return digest;
+	}
+
+	/**
+	 * Set the state of this digest to the one of <code>d</code>, without
+	 * allocating.
+	 */
+	void copyState(SM3MessageDigest d) {
+		System.arraycopy(d.xBuf, 0, xBuf, 0, d.xBufOff);
+		xBufOff = d.xBufOff;
+		byteCount = d.byteCount;
+		System.arraycopy(d.v, 0, v, 0, v.length);
+	}
+
 	private static final int DIGEST_LENGTH = 32;
 
-	private static final int v0[] = { 0x7380166f, 0x4914b2b9, 0x172442d7,
+	static final int v0[] = { 0x7380166f, 0x4914b2b9, 0x172442d7,
 			0xda8a0600, 0xa96f30bc, 0x163138aa, 0xe38dee4d, 0xb0fb0e4e };
 
-	private int[] v = new int[8];
-	private int[] v_ = new int[8];
+	private static final int T_00_15 = 0x79cc4519;
+	private static final int T_16_63 = 0x7a879d8a;
 
-	private static final int[] X0 = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-			0, 0 };
+	// T_j <<< j for every round
+	static final int[] T = new int[64];
+
+	static {
+		for (int j = 0; j < 64; j++) {
+			T[j] = Integer.rotateLeft(j < 16 ? T_00_15 : T_16_63, j);
+		}
+	}
 
-	private int[] X = new int[68];
-	private int xOff;
+	private int[] v = new int[8];
 
-	private int T_00_15 = 0x79cc4519;
-	private int T_16_63 = 0x7a879d8a;
+	// expanded message W[0..67], reused for every block
+	private int[] w = new int[68];
 
-	protected void reset() {
+	public void reset() {
 		byteCount = 0;
 
 		xBufOff = 0;
@@ -71,94 +127,145 @@ public class SM3MessageDigest extends MessageDigestSpi implements Cloneable {
 		}
 
 		System.arraycopy(v0, 0, v, 0, v0.length);
-
-		xOff = 0;
-		System.arraycopy(X0, 0, X, 0, X0.length);
 	}
 
-	protected void processBlock() {
-		int i;
-
-		int ww[] = X;
-		int ww_[] = new int[64];
-
-		for (i = 16; i < 68; i++) {
-			ww[i] = P1(ww[i - 16] ^ ww[i - 9] ^ (ROTATE(ww[i - 3], 15)))
-					^ (ROTATE(ww[i - 13], 7)) ^ ww[i - 6];
-		}
+	/**
+	 * Compress the 64 byte block at <code>inOff</code> into the chaining
+	 * value.
+	 *
+	 * <p>
+	 * Rounds are unrolled by four with the register roles rotated instead of
+	 * the values moved, W'[j] = W[j] ^ W[j + 4] is formed as it is used. The
+	 * message is expanded up front: a sixteen word window expanded inside the
+	 * rounds measured slower.
+	 */
+	protected void processBlock(byte[] in, int inOff) {
+		expand(w, in, inOff);
+		compress(v, w);
+	}
 
-		for (i = 0; i < 64; i++) {
-			ww_[i] = ww[i] ^ ww[i + 4];
+	/**
+	 * Load the block at <code>inOff</code> into W[0..15] and expand it to
+	 * W[0..67].
+	 */
+	static void expand(int[] w, byte[] in, int inOff) {
+		for (int i = 0; i < 16; i++, inOff += 4) {
+			w[i] = in[inOff] << 24 | (in[inOff + 1] & 0xff) << 16
+					| (in[inOff + 2] & 0xff) << 8 | (in[inOff + 3] & 0xff);
 		}
+		expand(w);
+	}
 
-		int vv[] = v;
-		int vv_[] = v_;
-
-		System.arraycopy(vv, 0, vv_, 0, v0.length);
-
-		int SS1, SS2, TT1, TT2, aaa;
-		for (i = 0; i < 16; i++) {
-			aaa = ROTATE(vv_[0], 12);
-			SS1 = aaa + vv_[4] + ROTATE(T_00_15, i);
-			SS1 = ROTATE(SS1, 7);
-			SS2 = SS1 ^ aaa;
-
-			TT1 = FF_00_15(vv_[0], vv_[1], vv_[2]) + vv_[3] + SS2 + ww_[i];
-			TT2 = GG_00_15(vv_[4], vv_[5], vv_[6]) + vv_[7] + SS1 + ww[i];
-			vv_[3] = vv_[2];
-			vv_[2] = ROTATE(vv_[1], 9);
-			vv_[1] = vv_[0];
-			vv_[0] = TT1;
-			vv_[7] = vv_[6];
-			vv_[6] = ROTATE(vv_[5], 19);
-			vv_[5] = vv_[4];
-			vv_[4] = P0(TT2);
-		}
-		for (i = 16; i < 64; i++) {
-			aaa = ROTATE(vv_[0], 12);
-			SS1 = aaa + vv_[4] + ROTATE(T_16_63, i);
-			SS1 = ROTATE(SS1, 7);
-			SS2 = SS1 ^ aaa;
-
-			TT1 = FF_16_63(vv_[0], vv_[1], vv_[2]) + vv_[3] + SS2 + ww_[i];
-			TT2 = GG_16_63(vv_[4], vv_[5], vv_[6]) + vv_[7] + SS1 + ww[i];
-			vv_[3] = vv_[2];
-			vv_[2] = ROTATE(vv_[1], 9);
-			vv_[1] = vv_[0];
-			vv_[0] = TT1;
-			vv_[7] = vv_[6];
-			vv_[6] = ROTATE(vv_[5], 19);
-			vv_[5] = vv_[4];
-			vv_[4] = P0(TT2);
-		}
-		for (i = 0; i < 8; i++) {
-			vv[i] ^= vv_[i];
+	/**
+	 * Expand W[0..15] to W[0..67].
+	 */
+	static void expand(int[] w) {
+		for (int k = 16; k < 68; k++) {
+			int x = w[k - 16] ^ w[k - 9] ^ Integer.rotateLeft(w[k - 3], 15);
+			w[k] = x ^ Integer.rotateLeft(x, 15) ^ Integer.rotateLeft(x, 23)
+					^ Integer.rotateLeft(w[k - 13], 7) ^ w[k - 6];
 		}
-
-		// Reset
-		xOff = 0;
-		System.arraycopy(X0, 0, X, 0, X0.length);
 	}
 
-	protected void processWord(byte[] in, int inOff) {
-		int n = in[inOff] << 24;
-		n |= (in[++inOff] & 0xff) << 16;
-		n |= (in[++inOff] & 0xff) << 8;
-		n |= (in[++inOff] & 0xff);
-		X[xOff] = n;
-
-		if (++xOff == 16) {
-			processBlock();
+	/**
+	 * Run the 64 rounds over the expanded message <code>w</code> and fold
+	 * the result into the chaining value <code>v</code>.
+	 */
+	static void compress(int[] v, int[] w) {
+		int a = v[0], b = v[1], c = v[2], d = v[3];
+		int e = v[4], f = v[5], g = v[6], h = v[7];
+		int a12, ss1, tt2, wj;
+
+		for (int j = 0; j < 16; j += 4) {
+			// round j
+			wj = w[j];
+			a12 = Integer.rotateLeft(a, 12);
+			ss1 = Integer.rotateLeft(a12 + e + T[j], 7);
+			d += (a ^ b ^ c) + (ss1 ^ a12) + (wj ^ w[j + 4]);
+			tt2 = (e ^ f ^ g) + h + ss1 + wj;
+			b = Integer.rotateLeft(b, 9);
+			f = Integer.rotateLeft(f, 19);
+			h = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 1
+			wj = w[j + 1];
+			a12 = Integer.rotateLeft(d, 12);
+			ss1 = Integer.rotateLeft(a12 + h + T[j + 1], 7);
+			c += (d ^ a ^ b) + (ss1 ^ a12) + (wj ^ w[j + 5]);
+			tt2 = (h ^ e ^ f) + g + ss1 + wj;
+			a = Integer.rotateLeft(a, 9);
+			e = Integer.rotateLeft(e, 19);
+			g = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 2
+			wj = w[j + 2];
+			a12 = Integer.rotateLeft(c, 12);
+			ss1 = Integer.rotateLeft(a12 + g + T[j + 2], 7);
+			b += (c ^ d ^ a) + (ss1 ^ a12) + (wj ^ w[j + 6]);
+			tt2 = (g ^ h ^ e) + f + ss1 + wj;
+			d = Integer.rotateLeft(d, 9);
+			h = Integer.rotateLeft(h, 19);
+			f = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 3
+			wj = w[j + 3];
+			a12 = Integer.rotateLeft(b, 12);
+			ss1 = Integer.rotateLeft(a12 + f + T[j + 3], 7);
+			a += (b ^ c ^ d) + (ss1 ^ a12) + (wj ^ w[j + 7]);
+			tt2 = (f ^ g ^ h) + e + ss1 + wj;
+			c = Integer.rotateLeft(c, 9);
+			g = Integer.rotateLeft(g, 19);
+			e = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
 		}
-	}
 
-	protected void processLength(long bitLength) {
-		if (xOff > 14) {
-			processBlock();
+		for (int j = 16; j < 64; j += 4) {
+			// round j
+			wj = w[j];
+			a12 = Integer.rotateLeft(a, 12);
+			ss1 = Integer.rotateLeft(a12 + e + T[j], 7);
+			d += ((a & b) | ((a | b) & c)) + (ss1 ^ a12)
+					+ (wj ^ w[j + 4]);
+			tt2 = (g ^ (e & (f ^ g))) + h + ss1 + wj;
+			b = Integer.rotateLeft(b, 9);
+			f = Integer.rotateLeft(f, 19);
+			h = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 1
+			wj = w[j + 1];
+			a12 = Integer.rotateLeft(d, 12);
+			ss1 = Integer.rotateLeft(a12 + h + T[j + 1], 7);
+			c += ((d & a) | ((d | a) & b)) + (ss1 ^ a12)
+					+ (wj ^ w[j + 5]);
+			tt2 = (f ^ (h & (e ^ f))) + g + ss1 + wj;
+			a = Integer.rotateLeft(a, 9);
+			e = Integer.rotateLeft(e, 19);
+			g = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 2
+			wj = w[j + 2];
+			a12 = Integer.rotateLeft(c, 12);
+			ss1 = Integer.rotateLeft(a12 + g + T[j + 2], 7);
+			b += ((c & d) | ((c | d) & a)) + (ss1 ^ a12)
+					+ (wj ^ w[j + 6]);
+			tt2 = (e ^ (g & (h ^ e))) + f + ss1 + wj;
+			d = Integer.rotateLeft(d, 9);
+			h = Integer.rotateLeft(h, 19);
+			f = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			// round j + 3
+			wj = w[j + 3];
+			a12 = Integer.rotateLeft(b, 12);
+			ss1 = Integer.rotateLeft(a12 + f + T[j + 3], 7);
+			a += ((b & c) | ((b | c) & d)) + (ss1 ^ a12)
+					+ (wj ^ w[j + 7]);
+			tt2 = (h ^ (f & (g ^ h))) + e + ss1 + wj;
+			c = Integer.rotateLeft(c, 9);
+			g = Integer.rotateLeft(g, 19);
+			e = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
 		}
 
-		X[14] = (int) (bitLength >>> 32);
-		X[15] = (int) (bitLength & 0xffffffff);
+		v[0] ^= a;
+		v[1] ^= b;
+		v[2] ^= c;
+		v[3] ^= d;
+		v[4] ^= e;
+		v[5] ^= f;
+		v[6] ^= g;
+		v[7] ^= h;
 	}
 
 	protected static void intToBigEndian(int n, byte[] bs, int off) {
@@ -168,7 +275,7 @@ public class SM3MessageDigest extends MessageDigestSpi implements Cloneable {
 		bs[++off] = (byte) (n);
 	}
 
-	protected int doFinal(byte[] out, int outOff) {
+	public int doFinal(byte[] out, int outOff) {
 		finish();
 
 		for (int i = 0; i < 8; i++) {
@@ -188,99 +295,80 @@ public class SM3MessageDigest extends MessageDigestSpi implements Cloneable {
 		return DIGEST_LENGTH;
 	}
 
-	private int ROTATE(int x, int n) {
-		return (x << n) | (x >>> (32 - n));
-	}
-
-	private int P0(int X) {
-		return ((X) ^ ROTATE((X), 9) ^ ROTATE((X), 17));
-	}
-
-	private int P1(int X) {
-		return ((X) ^ ROTATE((X), 15) ^ ROTATE((X), 23));
-	}
-
-	private int FF_00_15(int X, int Y, int Z) {
-		return (X ^ Y ^ Z);
-	}
-
-	private int FF_16_63(int X, int Y, int Z) {
-		return ((X & Y) | (X & Z) | (Y & Z));
-	}
-
-	private int GG_00_15(int X, int Y, int Z) {
-		return (X ^ Y ^ Z);
-	}
-
-	private int GG_16_63(int X, int Y, int Z) {
-		return ((X & Y) | (~X & Z));
-	}
-
 	private static final int BYTE_LENGTH = 64;
-	private byte[] xBuf;
+	private byte[] xBuf = new byte[BYTE_LENGTH];
 	private int xBufOff;
 
 	private long byteCount;
 
-	protected void update(byte in) {
+	public void update(byte in) {
 		xBuf[xBufOff++] = in;
 
-		if (xBufOff == xBuf.length) {
-			processWord(xBuf, 0);
+		if (xBufOff == BYTE_LENGTH) {
+			processBlock(xBuf, 0);
 			xBufOff = 0;
 		}
 
 		byteCount++;
 	}
 
-	protected void update(byte[] in, int inOff, int len) {
+	public void update(byte[] in, int inOff, int len) {
+		byteCount += len;
+
 		//
-		// fill the current word
+		// fill the current block
 		//
-		while ((xBufOff != 0) && (len > 0)) {
-			update(in[inOff]);
-
-			inOff++;
-			len--;
+		if (xBufOff != 0) {
+			int n = Math.min(BYTE_LENGTH - xBufOff, len);
+			System.arraycopy(in, inOff, xBuf, xBufOff, n);
+			xBufOff += n;
+			inOff += n;
+			len -= n;
+			if (xBufOff < BYTE_LENGTH) {
+				return;
+			}
+			processBlock(xBuf, 0);
+			xBufOff = 0;
 		}
 
 		//
-		// process whole words.
+		// process whole blocks straight from the input
 		//
-		while (len > xBuf.length) {
-			processWord(in, inOff);
+		while (len >= BYTE_LENGTH) {
+			processBlock(in, inOff);
 
-			inOff += xBuf.length;
-			len -= xBuf.length;
-			byteCount += xBuf.length;
+			inOff += BYTE_LENGTH;
+			len -= BYTE_LENGTH;
 		}
 
 		//
 		// load in the remainder.
 		//
-		while (len > 0) {
-			update(in[inOff]);
-
-			inOff++;
-			len--;
-		}
+		System.arraycopy(in, inOff, xBuf, 0, len);
+		xBufOff = len;
 	}
 
 	protected void finish() {
 		long bitLength = (byteCount << 3);
 
 		//
-		// add the pad bytes.
+		// add the pad bytes and the length.
 		//
-		update((byte) 128);
-
-		while (xBufOff != 0) {
-			update((byte) 0);
+		xBuf[xBufOff++] = (byte) 128;
+		if (xBufOff > BYTE_LENGTH - 8) {
+			while (xBufOff < BYTE_LENGTH) {
+				xBuf[xBufOff++] = 0;
+			}
+			processBlock(xBuf, 0);
+			xBufOff = 0;
 		}
+		while (xBufOff < BYTE_LENGTH - 8) {
+			xBuf[xBufOff++] = 0;
+		}
+		intToBigEndian((int) (bitLength >>> 32), xBuf, BYTE_LENGTH - 8);
+		intToBigEndian((int) bitLength, xBuf, BYTE_LENGTH - 4);
 
-		processLength(bitLength);
-
-		processBlock();
+		processBlock(xBuf, 0);
 	}
 
 	protected int engineGetDigestLength() {
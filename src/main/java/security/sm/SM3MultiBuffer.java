@@ -0,0 +1,242 @@
+package security.sm;
+
+import java.util.Arrays;
+
+/**
+ * SM3 over many independent messages at once.
+ *
+ * <p>
+ * Messages are hashed two at a time, the compression functions of both lanes
+ * interleaved round by round so that the two independent dependency chains
+ * overlap. Messages are paired by length, so the lanes of a pair run about the
+ * same number of blocks; the blocks one message has left over are compressed
+ * in a single lane. Padding is built in place in a per lane tail buffer and no
+ * {@link java.security.MessageDigest} is set up or reset per message.
+ *
+ * <p>
+ * An instance holds scratch state only and is not thread safe; use one per
+ * thread.
+ *
+ * <pre>
+ * SM3MultiBuffer mb = new SM3MultiBuffer();
+ * byte[][] digests = mb.digest(records);
+ * </pre>
+ */
+public final class SM3MultiBuffer {
+
+	public static final int DIGEST_LENGTH = 32;
+
+	private static final int BLOCK = 64;
+
+	private static final int[] T = SM3MessageDigest.T;
+
+	private final int[] va = new int[8];
+	private final int[] vb = new int[8];
+	private final int[] wa = new int[68];
+	private final int[] wb = new int[68];
+
+	// the padded last one or two blocks of each lane
+	private final byte[] tailA = new byte[2 * BLOCK];
+	private final byte[] tailB = new byte[2 * BLOCK];
+
+	/**
+	 * Return the digests of <code>messages</code>, in the same order.
+	 */
+	public byte[][] digest(byte[][] messages) {
+		byte[] all = new byte[messages.length * DIGEST_LENGTH];
+		digest(messages, all, 0);
+		byte[][] digests = new byte[messages.length][];
+		for (int i = 0; i < messages.length; i++) {
+			digests[i] = Arrays.copyOfRange(all, i * DIGEST_LENGTH, (i + 1)
+					* DIGEST_LENGTH);
+		}
+		return digests;
+	}
+
+	/**
+	 * Write the digest of <code>messages[i]</code> to
+	 * <code>out[outOff + 32 * i]</code>.
+	 */
+	public void digest(byte[][] messages, byte[] out, int outOff) {
+		int n = messages.length;
+		if (outOff < 0 || out.length - outOff < n * DIGEST_LENGTH) {
+			throw new IndexOutOfBoundsException("Output buffer too short");
+		}
+		// block count in the high half, index in the low half
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = (long) blocks(messages[i].length) << 32 | i;
+		}
+		Arrays.sort(order);
+
+		int k = 0;
+		for (; k + 1 < n; k += 2) {
+			int a = (int) order[k];
+			int b = (int) order[k + 1];
+			digest2(messages[a], messages[b]);
+			output(va, out, outOff + a * DIGEST_LENGTH);
+			output(vb, out, outOff + b * DIGEST_LENGTH);
+		}
+		if (k < n) {
+			int a = (int) order[k];
+			digest1(messages[a]);
+			output(va, out, outOff + a * DIGEST_LENGTH);
+		}
+	}
+
+	// blocks of a padded message of len bytes
+	private static int blocks(int len) {
+		return (len + 8) / BLOCK + 1;
+	}
+
+	// the padding of msg and its last partial block
+	private static void padTail(byte[] msg, byte[] tail) {
+		int full = msg.length / BLOCK * BLOCK;
+		int rem = msg.length - full;
+		int end = blocks(msg.length) * BLOCK - full;
+		System.arraycopy(msg, full, tail, 0, rem);
+		tail[rem] = (byte) 0x80;
+		Arrays.fill(tail, rem + 1, end - 8, (byte) 0);
+		long bitLength = (long) msg.length << 3;
+		SM3MessageDigest.intToBigEndian((int) (bitLength >>> 32), tail, end - 8);
+		SM3MessageDigest.intToBigEndian((int) bitLength, tail, end - 4);
+	}
+
+	private void digest1(byte[] a) {
+		System.arraycopy(SM3MessageDigest.v0, 0, va, 0, 8);
+		padTail(a, tailA);
+		int full = a.length / BLOCK;
+		int n = blocks(a.length);
+		for (int i = 0; i < n; i++) {
+			load(wa, a, tailA, full, i);
+			SM3MessageDigest.compress(va, wa);
+		}
+	}
+
+	private void digest2(byte[] a, byte[] b) {
+		System.arraycopy(SM3MessageDigest.v0, 0, va, 0, 8);
+		System.arraycopy(SM3MessageDigest.v0, 0, vb, 0, 8);
+		padTail(a, tailA);
+		padTail(b, tailB);
+		int fullA = a.length / BLOCK;
+		int fullB = b.length / BLOCK;
+		int nA = blocks(a.length);
+		int nB = blocks(b.length);
+		int both = Math.min(nA, nB);
+		int i = 0;
+		for (; i < both; i++) {
+			load(wa, a, tailA, fullA, i);
+			load(wb, b, tailB, fullB, i);
+			compress2(va, wa, vb, wb);
+		}
+		for (int j = i; j < nA; j++) {
+			load(wa, a, tailA, fullA, j);
+			SM3MessageDigest.compress(va, wa);
+		}
+		for (int j = i; j < nB; j++) {
+			load(wb, b, tailB, fullB, j);
+			SM3MessageDigest.compress(vb, wb);
+		}
+	}
+
+	// expand block i, taken from the message or from its padded tail
+	private static void load(int[] w, byte[] msg, byte[] tail, int full, int i) {
+		if (i < full) {
+			SM3MessageDigest.expand(w, msg, i * BLOCK);
+		} else {
+			SM3MessageDigest.expand(w, tail, (i - full) * BLOCK);
+		}
+	}
+
+	private static void output(int[] v, byte[] out, int off) {
+		for (int i = 0; i < 8; i++) {
+			SM3MessageDigest.intToBigEndian(v[i], out, off + i * 4);
+		}
+	}
+
+	/**
+	 * {@link SM3MessageDigest#compress(int[], int[])} for two lanes, the
+	 * upper case registers belonging to the second.
+	 */
+	private static void compress2(int[] v, int[] w, int[] u, int[] x) {
+		int a = v[0], b = v[1], c = v[2], d = v[3];
+		int e = v[4], f = v[5], g = v[6], h = v[7];
+		int A = u[0], B = u[1], C = u[2], D = u[3];
+		int E = u[4], F = u[5], G = u[6], H = u[7];
+		int a12, ss1, tt1, tt2, A12, SS1, TT1, TT2, t;
+
+		for (int j = 0; j < 16; j++) {
+			t = T[j];
+			a12 = Integer.rotateLeft(a, 12);
+			A12 = Integer.rotateLeft(A, 12);
+			ss1 = Integer.rotateLeft(a12 + e + t, 7);
+			SS1 = Integer.rotateLeft(A12 + E + t, 7);
+			tt1 = (a ^ b ^ c) + d + (ss1 ^ a12) + (w[j] ^ w[j + 4]);
+			TT1 = (A ^ B ^ C) + D + (SS1 ^ A12) + (x[j] ^ x[j + 4]);
+			tt2 = (e ^ f ^ g) + h + ss1 + w[j];
+			TT2 = (E ^ F ^ G) + H + SS1 + x[j];
+			d = c;
+			D = C;
+			c = Integer.rotateLeft(b, 9);
+			C = Integer.rotateLeft(B, 9);
+			b = a;
+			B = A;
+			a = tt1;
+			A = TT1;
+			h = g;
+			H = G;
+			g = Integer.rotateLeft(f, 19);
+			G = Integer.rotateLeft(F, 19);
+			f = e;
+			F = E;
+			e = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			E = TT2 ^ Integer.rotateLeft(TT2, 9) ^ Integer.rotateLeft(TT2, 17);
+		}
+		for (int j = 16; j < 64; j++) {
+			t = T[j];
+			a12 = Integer.rotateLeft(a, 12);
+			A12 = Integer.rotateLeft(A, 12);
+			ss1 = Integer.rotateLeft(a12 + e + t, 7);
+			SS1 = Integer.rotateLeft(A12 + E + t, 7);
+			tt1 = ((a & b) | ((a | b) & c)) + d + (ss1 ^ a12)
+					+ (w[j] ^ w[j + 4]);
+			TT1 = ((A & B) | ((A | B) & C)) + D + (SS1 ^ A12)
+					+ (x[j] ^ x[j + 4]);
+			tt2 = (g ^ (e & (f ^ g))) + h + ss1 + w[j];
+			TT2 = (G ^ (E & (F ^ G))) + H + SS1 + x[j];
+			d = c;
+			D = C;
+			c = Integer.rotateLeft(b, 9);
+			C = Integer.rotateLeft(B, 9);
+			b = a;
+			B = A;
+			a = tt1;
+			A = TT1;
+			h = g;
+			H = G;
+			g = Integer.rotateLeft(f, 19);
+			G = Integer.rotateLeft(F, 19);
+			f = e;
+			F = E;
+			e = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+			E = TT2 ^ Integer.rotateLeft(TT2, 9) ^ Integer.rotateLeft(TT2, 17);
+		}
+
+		v[0] ^= a;
+		v[1] ^= b;
+		v[2] ^= c;
+		v[3] ^= d;
+		v[4] ^= e;
+		v[5] ^= f;
+		v[6] ^= g;
+		v[7] ^= h;
+		u[0] ^= A;
+		u[1] ^= B;
+		u[2] ^= C;
+		u[3] ^= D;
+		u[4] ^= E;
+		u[5] ^= F;
+		u[6] ^= G;
+		u[7] ^= H;
+	}
+}
@@ -0,0 +1,173 @@
+package security.sm;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of an SM3 computation part way through a message: the
+ * chaining value, the bytes after the last whole block and the number of
+ * bytes hashed.
+ *
+ * <p>
+ * A state taken with {@link SM3MessageDigest#getState()} can be stored with
+ * {@link #getEncoded()} or Java serialization and later continued with
+ * {@link SM3MessageDigest#SM3MessageDigest(SM3State)} or {@link #newDigest()},
+ * without the bytes hashed so far. Many digests sharing a prefix, such as
+ * the SM2 Z value, can all start from one state.
+ *
+ * <pre>
+ * SM3MessageDigest sm3 = new SM3MessageDigest();
+ * sm3.update(firstPart, 0, firstPart.length);
+ * store(sm3.getState().getEncoded());
+ * ...
+ * sm3 = new SM3MessageDigest(SM3State.fromEncoded(load()));
+ * sm3.update(rest, 0, rest.length);
+ * byte[] digest = sm3.digest();
+ * </pre>
+ */
+public final class SM3State implements Serializable {
+
+	private static final long serialVersionUID = 2360312738413652737L;
+
+	private static final int VERSION = 1;
+
+	private static final int BLOCK = 64;
+
+	/**
+	 * The state before any input.
+	 */
+	public static final SM3State INITIAL = new SM3State(SM3MessageDigest.v0,
+			new byte[0], 0, 0);
+
+	final int[] v;
+	// the input after the last whole block, byteCount % 64 bytes
+	final byte[] buf;
+	final long byteCount;
+
+	SM3State(int[] v, byte[] xBuf, int xBufOff, long byteCount) {
+		this.v = v.clone();
+		this.buf = Arrays.copyOf(xBuf, xBufOff);
+		this.byteCount = byteCount;
+	}
+
+	/**
+	 * Number of bytes hashed to reach this state.
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * A new digest continuing from this state. Its <code>reset</code> returns
+	 * it to the empty message, not to this state.
+	 */
+	public MessageDigest newDigest() {
+		return new Resumed(new SM3MessageDigest(this));
+	}
+
+	/**
+	 * The state as a version byte, the eight chaining words and the byte
+	 * count in big-endian order, followed by the buffered bytes.
+	 */
+	public byte[] getEncoded() {
+		byte[] out = new byte[1 + 32 + 8 + buf.length];
+		out[0] = VERSION;
+		for (int i = 0; i < 8; i++) {
+			SM3MessageDigest.intToBigEndian(v[i], out, 1 + 4 * i);
+		}
+		SM3MessageDigest.intToBigEndian((int) (byteCount >>> 32), out, 33);
+		SM3MessageDigest.intToBigEndian((int) byteCount, out, 37);
+		System.arraycopy(buf, 0, out, 41, buf.length);
+		return out;
+	}
+
+	/**
+	 * Decode a state written by {@link #getEncoded()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>encoded</code> is not a valid state
+	 */
+	public static SM3State fromEncoded(byte[] encoded) {
+		if (encoded.length < 41 || encoded[0] != VERSION) {
+			throw new IllegalArgumentException("Not an encoded SM3 state");
+		}
+		int[] v = new int[8];
+		for (int i = 0; i < 8; i++) {
+			v[i] = getInt(encoded, 1 + 4 * i);
+		}
+		long byteCount = (long) getInt(encoded, 33) << 32
+				| (getInt(encoded, 37) & 0xffffffffL);
+		byte[] buf = Arrays.copyOfRange(encoded, 41, encoded.length);
+		String error = check(v, buf, byteCount);
+		if (error != null) {
+			throw new IllegalArgumentException(error);
+		}
+		return new SM3State(v, buf, buf.length, byteCount);
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return b[off] << 24 | (b[off + 1] & 0xff) << 16
+				| (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	private static String check(int[] v, byte[] buf, long byteCount) {
+		if (v == null || v.length != 8 || buf == null) {
+			return "Incomplete SM3 state";
+		}
+		// the length in bits must fit the 64 bit length field
+		if (byteCount < 0 || byteCount >>> 61 != 0
+				|| byteCount % BLOCK != buf.length) {
+			return "Inconsistent SM3 state";
+		}
+		return null;
+	}
+
+	// validate and copy, so that no array is shared with the stream
+	private Object readResolve() throws ObjectStreamException {
+		String error = check(v, buf, byteCount);
+		if (error != null) {
+			throw new InvalidObjectException(error);
+		}
+		return new SM3State(v, buf, buf.length, byteCount);
+	}
+
+	private static final class Resumed extends MessageDigest implements
+			Cloneable {
+
+		private SM3MessageDigest sm3;
+
+		Resumed(SM3MessageDigest sm3) {
+			super("SM3");
+			this.sm3 = sm3;
+		}
+
+		protected int engineGetDigestLength() {
+			return 32;
+		}
+
+		protected void engineUpdate(byte input) {
+			sm3.update(input);
+		}
+
+		protected void engineUpdate(byte[] input, int offset, int len) {
+			sm3.update(input, offset, len);
+		}
+
+		protected byte[] engineDigest() {
+			return sm3.digest();
+		}
+
+		protected void engineReset() {
+			sm3.reset();
+		}
+
+		public Object clone() throws CloneNotSupportedException {
+			Resumed r = (Resumed) super.clone();
+			r.sm3 = (SM3MessageDigest) sm3.clone();
+			return r;
+		}
+	}
+}
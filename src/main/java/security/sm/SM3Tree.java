@@ -0,0 +1,456 @@
+package security.sm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Merkle tree of SM3 hashes over fixed size leaves, the tree behind the
+ * <code>SM3-TREE</code> digest.
+ *
+ * <p>
+ * The data is cut into leaves of <code>leafSize</code> bytes, the last one
+ * possibly shorter, and every leaf is hashed as SM3(0x00 || leaf). Nodes are
+ * SM3(0x01 || left || right); a node without a right sibling moves up a level
+ * unchanged. The root is the digest, so it depends on the leaf size as well
+ * as on the data. Empty data is a single empty leaf.
+ *
+ * <p>
+ * Leaves are hashed in parallel on a {@link ForkJoinPool}, files through
+ * {@link FileChannel#map}. The tree keeps every level, so a changed leaf can
+ * be checked with {@link #verifyLeaf} and folded in with {@link #updateLeaf}
+ * at the cost of one path to the root, and {@link #diff} finds the leaves in
+ * which two trees differ. The default leaf size is 1 MB, the leaf size of
+ * the <code>SM3-TREE</code> digest; other sizes give other roots.
+ *
+ * <pre>
+ * SM3Tree tree = SM3Tree.hashFile(new File(&quot;archive.tar&quot;));
+ * byte[] root = tree.getRoot();
+ * ...
+ * if (!tree.verifyLeaf(file, 42)) { ... }
+ * </pre>
+ */
+public final class SM3Tree {
+
+	public static final int DEFAULT_LEAF_SIZE = 1 << 20;
+
+	public static final int HASH_LENGTH = 32;
+
+	private static final byte LEAF = 0x00;
+	private static final byte NODE = 0x01;
+
+	// bytes copied out of a mapped leaf at a time
+	private static final int READ_CHUNK = 64 * 1024;
+
+	private final int leafSize;
+	private final long length;
+
+	// levels[0] holds the leaf hashes, the last level the root
+	private final byte[][] levels;
+
+	private final SM3MessageDigest md = new SM3MessageDigest();
+
+	SM3Tree(int leafSize, long length, byte[] leafHashes) {
+		checkLeafSize(leafSize);
+		if (leafHashes.length == 0 || leafHashes.length % HASH_LENGTH != 0
+				|| leafHashes.length / HASH_LENGTH != leafCount(length, leafSize)) {
+			throw new IllegalArgumentException(
+					"Leaf hashes do not match the length");
+		}
+		this.leafSize = leafSize;
+		this.length = length;
+
+		int height = 1;
+		for (int n = leafHashes.length / HASH_LENGTH; n > 1; n = (n + 1) / 2) {
+			height++;
+		}
+		levels = new byte[height][];
+		levels[0] = leafHashes;
+		for (int l = 1; l < height; l++) {
+			int n = levels[l - 1].length / HASH_LENGTH;
+			levels[l] = new byte[(n + 1) / 2 * HASH_LENGTH];
+			for (int i = 0; i < levels[l].length / HASH_LENGTH; i++) {
+				hashNode(l, i);
+			}
+		}
+	}
+
+	/**
+	 * Rebuild a tree from its leaf hashes, as returned by
+	 * {@link #getLeafHashes()}.
+	 */
+	public static SM3Tree fromLeafHashes(int leafSize, long length,
+			byte[] leafHashes) {
+		return new SM3Tree(leafSize, length, leafHashes.clone());
+	}
+
+	public static SM3Tree hash(byte[] data, int off, int len) {
+		return hash(data, off, len, DEFAULT_LEAF_SIZE, null);
+	}
+
+	/**
+	 * @param pool
+	 *            the pool hashing the leaves, or null for the common pool
+	 */
+	public static SM3Tree hash(byte[] data, int off, int len, int leafSize,
+			ForkJoinPool pool) {
+		checkLeafSize(leafSize);
+		if (off < 0 || len < 0 || off + len > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		byte[] leaves = new byte[leafCount(len, leafSize) * HASH_LENGTH];
+		hashLeaves(data, off, len, leafSize, leaves, 0, pool);
+		return new SM3Tree(leafSize, len, leaves);
+	}
+
+	public static SM3Tree hashFile(File file) throws IOException {
+		return hashFile(file, DEFAULT_LEAF_SIZE, null);
+	}
+
+	/**
+	 * Hash a file through memory mapped leaves.
+	 *
+	 * @param pool
+	 *            the pool hashing the leaves, or null for the common pool
+	 */
+	public static SM3Tree hashFile(File file, int leafSize, ForkJoinPool pool)
+			throws IOException {
+		checkLeafSize(leafSize);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			int count = leafCount(length, leafSize);
+			byte[] leaves = new byte[count * HASH_LENGTH];
+			try {
+				pool(pool).invoke(
+						new FileTask(channel, length, leafSize, leaves, 0, count));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return new SM3Tree(leafSize, length, leaves);
+		} finally {
+			in.close();
+		}
+	}
+
+	public byte[] getRoot() {
+		return getNode(levels.length - 1, 0);
+	}
+
+	public int getLeafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * Number of bytes hashed.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getLeafCount() {
+		return levels[0].length / HASH_LENGTH;
+	}
+
+	/**
+	 * Number of levels, 1 for a single leaf.
+	 */
+	public int getHeight() {
+		return levels.length;
+	}
+
+	/**
+	 * The hash of node <code>index</code> at <code>level</code>, level 0
+	 * being the leaves.
+	 */
+	public byte[] getNode(int level, int index) {
+		return Arrays.copyOfRange(levels[level], index * HASH_LENGTH,
+				(index + 1) * HASH_LENGTH);
+	}
+
+	/**
+	 * All leaf hashes, concatenated.
+	 */
+	public byte[] getLeafHashes() {
+		return levels[0].clone();
+	}
+
+	/**
+	 * Whether <code>len</code> bytes at <code>off</code> are leaf
+	 * <code>index</code>.
+	 */
+	public boolean verifyLeaf(int index, byte[] data, int off, int len) {
+		checkLeaf(index, len);
+		byte[] h = new byte[HASH_LENGTH];
+		synchronized (md) {
+			hashLeaf(md, data, off, len, h, 0);
+		}
+		return MessageDigest.isEqual(h, getNode(0, index));
+	}
+
+	/**
+	 * Whether leaf <code>index</code> of <code>file</code> still matches
+	 * this tree.
+	 */
+	public boolean verifyLeaf(File file, int index) throws IOException {
+		byte[] leaf = readLeaf(file, index);
+		return leaf != null && verifyLeaf(index, leaf, 0, leaf.length);
+	}
+
+	/**
+	 * Replace leaf <code>index</code> with <code>len</code> bytes of
+	 * <code>data</code>, of the same length as before, and rehash its path.
+	 * Returns the new root.
+	 */
+	public byte[] updateLeaf(int index, byte[] data, int off, int len) {
+		checkLeaf(index, len);
+		synchronized (md) {
+			hashLeaf(md, data, off, len, levels[0], index * HASH_LENGTH);
+			for (int l = 1; l < levels.length; l++) {
+				index >>>= 1;
+				hashNode(l, index);
+			}
+		}
+		return getRoot();
+	}
+
+	/**
+	 * Reread leaf <code>index</code> from <code>file</code> and rehash its
+	 * path. Returns the new root.
+	 */
+	public byte[] updateLeaf(File file, int index) throws IOException {
+		byte[] leaf = readLeaf(file, index);
+		if (leaf == null) {
+			throw new IOException("File is shorter than the tree");
+		}
+		return updateLeaf(index, leaf, 0, leaf.length);
+	}
+
+	/**
+	 * The leaves in which this tree and <code>other</code> differ, in
+	 * ascending order. Only subtrees with different hashes are descended.
+	 */
+	public int[] diff(SM3Tree other) {
+		if (other.leafSize != leafSize || other.length != length) {
+			throw new IllegalArgumentException(
+					"Trees differ in leaf size or length");
+		}
+		int[] found = new int[getLeafCount()];
+		int n = diff(other, levels.length - 1, 0, found, 0);
+		return Arrays.copyOf(found, n);
+	}
+
+	private int diff(SM3Tree other, int level, int index, int[] found, int n) {
+		if (index * HASH_LENGTH >= levels[level].length
+				|| equalNodes(other, level, index)) {
+			return n;
+		}
+		if (level == 0) {
+			found[n++] = index;
+			return n;
+		}
+		n = diff(other, level - 1, 2 * index, found, n);
+		return diff(other, level - 1, 2 * index + 1, found, n);
+	}
+
+	private boolean equalNodes(SM3Tree other, int level, int index) {
+		int off = index * HASH_LENGTH;
+		int d = 0;
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			d |= levels[level][off + i] ^ other.levels[level][off + i];
+		}
+		return d == 0;
+	}
+
+	// node index at level from its children, or the child moved up alone
+	private void hashNode(int level, int index) {
+		byte[] below = levels[level - 1];
+		int left = 2 * index * HASH_LENGTH;
+		if (left + HASH_LENGTH < below.length) {
+			md.update(NODE);
+			md.update(below, left, 2 * HASH_LENGTH);
+			md.doFinal(levels[level], index * HASH_LENGTH);
+		} else {
+			System.arraycopy(below, left, levels[level], index * HASH_LENGTH,
+					HASH_LENGTH);
+		}
+	}
+
+	private void checkLeaf(int index, int len) {
+		if (index < 0 || index >= getLeafCount()) {
+			throw new IndexOutOfBoundsException("Leaf " + index);
+		}
+		if (len != leafLength(length, leafSize, index)) {
+			throw new IllegalArgumentException("Leaf " + index + " is "
+					+ leafLength(length, leafSize, index) + " bytes, not "
+					+ len);
+		}
+	}
+
+	// leaf index of file, or null when the file ends before it
+	private byte[] readLeaf(File file, int index) throws IOException {
+		if (index < 0 || index >= getLeafCount()) {
+			throw new IndexOutOfBoundsException("Leaf " + index);
+		}
+		byte[] leaf = new byte[leafLength(length, leafSize, index)];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer bb = ByteBuffer.wrap(leaf);
+			long pos = (long) index * leafSize;
+			int n;
+			while (bb.hasRemaining() && (n = channel.read(bb, pos)) >= 0) {
+				pos += n;
+			}
+			return bb.hasRemaining() ? null : leaf;
+		} finally {
+			in.close();
+		}
+	}
+
+	static void checkLeafSize(int leafSize) {
+		if (leafSize < 1) {
+			throw new IllegalArgumentException("Invalid leaf size: "
+					+ leafSize);
+		}
+	}
+
+	static int leafCount(long length, int leafSize) {
+		long n = Math.max(1, (length + leafSize - 1) / leafSize);
+		if (n > Integer.MAX_VALUE / HASH_LENGTH) {
+			throw new IllegalArgumentException("Too many leaves: " + n);
+		}
+		return (int) n;
+	}
+
+	private static int leafLength(long length, int leafSize, int index) {
+		return (int) Math.min(leafSize, length - (long) index * leafSize);
+	}
+
+	private static ForkJoinPool pool(ForkJoinPool pool) {
+		return (pool != null) ? pool : ForkJoinPool.commonPool();
+	}
+
+	static void hashLeaf(SM3MessageDigest md, byte[] in, int off, int len,
+			byte[] out, int outOff) {
+		md.update(LEAF);
+		md.update(in, off, len);
+		md.doFinal(out, outOff);
+	}
+
+	/**
+	 * Hash the leaves of <code>len</code> bytes at <code>off</code> into
+	 * <code>out</code>, in parallel.
+	 */
+	static void hashLeaves(byte[] in, int off, int len, int leafSize,
+			byte[] out, int outOff, ForkJoinPool pool) {
+		int count = leafCount(len, leafSize);
+		if (count == 1) {
+			hashLeaf(new SM3MessageDigest(), in, off, len, out, outOff);
+			return;
+		}
+		pool(pool).invoke(
+				new ArrayTask(in, off, len, leafSize, out, outOff, 0, count));
+	}
+
+	private static final class ArrayTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] in;
+		private final int off;
+		private final int len;
+		private final int leafSize;
+		private final byte[] out;
+		private final int outOff;
+		// leaf range of this task
+		private final int from;
+		private final int to;
+
+		ArrayTask(byte[] in, int off, int len, int leafSize, byte[] out,
+				int outOff, int from, int to) {
+			this.in = in;
+			this.off = off;
+			this.len = len;
+			this.leafSize = leafSize;
+			this.out = out;
+			this.outOff = outOff;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ArrayTask(in, off, len, leafSize, out, outOff,
+						from, mid), new ArrayTask(in, off, len, leafSize, out,
+						outOff, mid, to));
+				return;
+			}
+			hashLeaf(new SM3MessageDigest(), in, off + from * leafSize,
+					leafLength(len, leafSize, from), out, outOff + from
+							* HASH_LENGTH);
+		}
+	}
+
+	private static final class FileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long length;
+		private final int leafSize;
+		private final byte[] out;
+		// leaf range of this task
+		private final int from;
+		private final int to;
+
+		FileTask(FileChannel channel, long length, int leafSize, byte[] out,
+				int from, int to) {
+			this.channel = channel;
+			this.length = length;
+			this.leafSize = leafSize;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FileTask(channel, length, leafSize, out, from,
+						mid), new FileTask(channel, length, leafSize, out, mid,
+						to));
+				return;
+			}
+			int len = leafLength(length, leafSize, from);
+			SM3MessageDigest md = new SM3MessageDigest();
+			md.update(LEAF);
+			if (len > 0) {
+				MappedByteBuffer mb;
+				try {
+					mb = channel.map(FileChannel.MapMode.READ_ONLY, (long) from
+							* leafSize, len);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				byte[] chunk = new byte[Math.min(len, READ_CHUNK)];
+				while (mb.hasRemaining()) {
+					int n = Math.min(mb.remaining(), chunk.length);
+					mb.get(chunk, 0, n);
+					md.update(chunk, 0, n);
+				}
+			}
+			md.doFinal(out, from * HASH_LENGTH);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package security.sm;
+
+import java.security.MessageDigestSpi;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The <code>SM3-TREE</code> message digest: the root of an {@link SM3Tree}
+ * with the default leaf size.
+ *
+ * <p>
+ * Input is collected into a batch of leaves, two per worker of the common
+ * {@link ForkJoinPool} and at most {@value #MAX_BATCH}, and every full batch
+ * is hashed in parallel. The buffer starts at {@value #INITIAL_BUFFER} bytes
+ * and doubles up to the batch size, so short messages stay small. The leaf
+ * size is always {@link SM3Tree#DEFAULT_LEAF_SIZE}. Use
+ * {@link SM3Tree#hashFile} for files, which maps the file instead of copying
+ * it and keeps the tree.
+ */
+public class SM3TreeDigest extends MessageDigestSpi implements Cloneable {
+
+	private static final int HASH_LENGTH = SM3Tree.HASH_LENGTH;
+
+	private static final int LEAF_SIZE = SM3Tree.DEFAULT_LEAF_SIZE;
+
+	private static final int MAX_BATCH = 8;
+
+	private static final int INITIAL_BUFFER = 64 * 1024;
+
+	// input waiting to be hashed, allocated on first use and hashed once
+	// it has grown to batchSize bytes
+	private final int batchSize = Math.min(
+			2 * ForkJoinPool.getCommonPoolParallelism(), MAX_BATCH)
+			* LEAF_SIZE;
+	private byte[] buf;
+	private int bufLen;
+
+	private byte[] leaves = new byte[16 * HASH_LENGTH];
+	private int leafCount;
+	private long length;
+
+	@Override
+	protected int engineGetDigestLength() {
+		return HASH_LENGTH;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		if (buf == null || bufLen == buf.length) {
+			flush();
+		}
+		buf[bufLen++] = input;
+		length++;
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		length += len;
+		while (len > 0) {
+			if (buf == null || bufLen == buf.length) {
+				flush();
+			}
+			int n = Math.min(len, buf.length - bufLen);
+			System.arraycopy(input, offset, buf, bufLen, n);
+			bufLen += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		// the buffer is only hashed when more input arrives, so a partial
+		// last leaf is always still in it
+		if (bufLen > 0 || leafCount == 0) {
+			hashBuffer();
+		}
+		byte[] root = new SM3Tree(LEAF_SIZE, length, Arrays.copyOf(leaves,
+				leafCount * HASH_LENGTH)).getRoot();
+		engineReset();
+		return root;
+	}
+
+	@Override
+	protected void engineReset() {
+		bufLen = 0;
+		leafCount = 0;
+		length = 0;
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		SM3TreeDigest d = (SM3TreeDigest) super.clone();
+		if (buf != null) {
+			d.buf = buf.clone();
+		}
+		d.leaves = leaves.clone();
+		return d;
+	}
+
+	// make room in the full buffer: allocate it, grow it, or hash it
+	private void flush() {
+		if (buf == null) {
+			buf = new byte[Math.min(INITIAL_BUFFER, batchSize)];
+		} else if (buf.length < batchSize) {
+			buf = Arrays.copyOf(buf, Math.min(2 * buf.length, batchSize));
+		} else {
+			hashBuffer();
+		}
+	}
+
+	private void hashBuffer() {
+		int n = SM3Tree.leafCount(bufLen, LEAF_SIZE);
+		if ((leafCount + n) * HASH_LENGTH > leaves.length) {
+			leaves = Arrays.copyOf(leaves, Math.max(2 * leaves.length,
+					(leafCount + n) * HASH_LENGTH));
+		}
+		SM3Tree.hashLeaves(buf != null ? buf : new byte[0], 0, bufLen,
+				LEAF_SIZE, leaves, leafCount * HASH_LENGTH, null);
+		leafCount += n;
+		bufLen = 0;
+	}
+}
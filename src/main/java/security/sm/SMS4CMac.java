@@ -0,0 +1,163 @@
+package security.sm;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.MacSpi;
+
+/**
+ * SMS4-CMAC (NIST SP 800-38B), registered as the <code>Mac</code>
+ * <code>SMS4-CMAC</code>.
+ *
+ * <p>
+ * The subkeys K1 and K2 are derived once per key: initializing again with the
+ * key already in use only resets the chaining value, so one instance can
+ * authenticate a stream of packets at the cost of the block encryptions
+ * alone. Updates do not allocate.
+ *
+ * <pre>
+ * Mac mac = Mac.getInstance(&quot;SMS4-CMAC&quot;, &quot;TopSM&quot;);
+ * mac.init(new SecretKeySpec(key, &quot;SMS4&quot;));
+ * byte[] tag = mac.doFinal(packet);
+ * </pre>
+ */
+public final class SMS4CMac extends MacSpi {
+
+	private static final int BLOCK_SIZE = SMS4Constants.SMS4_BLOCK_SIZE;
+
+	private final SMS4Crypt engine = new SMS4Crypt();
+
+	// the key the subkeys belong to, null before the first init
+	private byte[] key;
+	private final byte[] k1 = new byte[BLOCK_SIZE];
+	private final byte[] k2 = new byte[BLOCK_SIZE];
+
+	// chaining value and the last, possibly partial, block
+	private final byte[] state = new byte[BLOCK_SIZE];
+	private final byte[] buf = new byte[BLOCK_SIZE];
+	private int bufOff;
+
+	// staging for direct byte buffers
+	private byte[] bbBuf;
+
+	protected int engineGetMacLength() {
+		return BLOCK_SIZE;
+	}
+
+	protected void engineInit(Key key, AlgorithmParameterSpec params)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		if (params != null) {
+			throw new InvalidAlgorithmParameterException(
+					"SMS4-CMAC does not take parameters");
+		}
+		byte[] keyBytes = SymmetricCipher.getKeyBytes(key);
+		if (this.key != null && MessageDigest.isEqual(this.key, keyBytes)) {
+			Arrays.fill(keyBytes, (byte) 0);
+		} else {
+			engine.init(false, "SMS4", keyBytes);
+			// L = E_K(0^128), K1 = L * x, K2 = K1 * x
+			Arrays.fill(k1, (byte) 0);
+			engine.encryptBlock(k1, 0, k1, 0);
+			dbl(k1, k1);
+			dbl(k1, k2);
+			if (this.key != null) {
+				Arrays.fill(this.key, (byte) 0);
+			}
+			this.key = keyBytes;
+		}
+		engineReset();
+	}
+
+	protected void engineUpdate(byte input) {
+		if (bufOff == BLOCK_SIZE) {
+			processBlock(buf, 0);
+			bufOff = 0;
+		}
+		buf[bufOff++] = input;
+	}
+
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		if (len <= 0) {
+			return;
+		}
+		int gap = BLOCK_SIZE - bufOff;
+		if (len > gap) {
+			System.arraycopy(input, offset, buf, bufOff, gap);
+			processBlock(buf, 0);
+			bufOff = 0;
+			offset += gap;
+			len -= gap;
+			// whole blocks straight from the input, the last one is held
+			// back for the subkey
+			while (len > BLOCK_SIZE) {
+				processBlock(input, offset);
+				offset += BLOCK_SIZE;
+				len -= BLOCK_SIZE;
+			}
+		}
+		System.arraycopy(input, offset, buf, bufOff, len);
+		bufOff += len;
+	}
+
+	protected void engineUpdate(ByteBuffer input) {
+		if (input.hasArray()) {
+			int pos = input.position();
+			engineUpdate(input.array(), input.arrayOffset() + pos,
+					input.remaining());
+			input.position(input.limit());
+			return;
+		}
+		if (bbBuf == null) {
+			bbBuf = new byte[16 * BLOCK_SIZE];
+		}
+		while (input.hasRemaining()) {
+			int n = Math.min(input.remaining(), bbBuf.length);
+			input.get(bbBuf, 0, n);
+			engineUpdate(bbBuf, 0, n);
+		}
+	}
+
+	protected byte[] engineDoFinal() {
+		byte[] subkey = k1;
+		if (bufOff < BLOCK_SIZE) {
+			// 10* padding
+			buf[bufOff] = (byte) 0x80;
+			Arrays.fill(buf, bufOff + 1, BLOCK_SIZE, (byte) 0);
+			subkey = k2;
+		}
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			state[i] ^= buf[i] ^ subkey[i];
+		}
+		byte[] mac = new byte[BLOCK_SIZE];
+		engine.encryptBlock(state, 0, mac, 0);
+		engineReset();
+		return mac;
+	}
+
+	protected void engineReset() {
+		Arrays.fill(state, (byte) 0);
+		Arrays.fill(buf, (byte) 0);
+		bufOff = 0;
+	}
+
+	private void processBlock(byte[] in, int off) {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			state[i] ^= in[off + i];
+		}
+		engine.encryptBlock(state, 0, state, 0);
+	}
+
+	// out = in * x in GF(2^128), big-endian, without a branch on the key
+	private static void dbl(byte[] in, byte[] out) {
+		int msb = (in[0] & 0xFF) >>> 7;
+		for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+			out[i] = (byte) ((in[i] << 1) | ((in[i + 1] & 0xFF) >>> 7));
+		}
+		out[BLOCK_SIZE - 1] = (byte) ((in[BLOCK_SIZE - 1] << 1) ^ (-msb & 0x87));
+	}
+}
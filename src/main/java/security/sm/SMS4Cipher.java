@@ -1,26 +1,48 @@
 package security.sm;
 
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.SecureRandom;
+import java.security.Security;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
+import java.util.Locale;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherSpi;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 
 import security.ConstructKeys;
+import security.jca.JCAUtil;
 
 public class SMS4Cipher extends CipherSpi {
 
+	// cipher modes
+	private static final int ECB_MODE = 0;
+	private static final int CBC_MODE = 1;
+	private static final int CFB_MODE = 2;
+	private static final int OFB_MODE = 3;
+	private static final int CTR_MODE = 4;
+	private static final int GCM_MODE = 5;
+
+	private static final byte[] B0 = new byte[0];
+
+	// bytes moved per step between a direct ByteBuffer and the heap
+	private static final int BB_CHUNK = 32 * 1024;
+
 	/*
 	 * internal buffer
 	 */
@@ -63,18 +85,47 @@ public class SMS4Cipher extends CipherSpi {
 	private Padding padding = null;
 
 	/*
-	 * internal cipher engine
+	 * internal cipher engine, wrapped by the feedback mode in use
 	 */
 	private SymmetricCipher sms4Cipher;
 
+	/*
+	 * the feedback mode (ECB by default)
+	 */
+	private FeedbackCipher cipher = null;
+
+	/*
+	 * the cipher mode
+	 */
+	private int cipherMode = ECB_MODE;
+
+	/*
+	 * GCM encryption has finished and needs a new key or iv before it can
+	 * be used again
+	 */
+	private boolean requireReinit = false;
+
+	/*
+	 * key and iv of the last GCM encryption, to reject their reuse
+	 */
+	private byte[] lastEncKey = null;
+	private byte[] lastEncIv = null;
+
 	/*
 	 * are we encrypting or decrypting?
 	 */
 	private boolean decrypting = false;
 
+	/*
+	 * staging arrays for direct ByteBuffers, allocated on first use
+	 */
+	private byte[] bbIn = null;
+	private byte[] bbOut = null;
+
 	public SMS4Cipher() {
 		sms4Cipher = new SMS4Crypt();
-		
+		cipher = new ElectronicCodeBook(sms4Cipher);
+
 		blockSize = sms4Cipher.getBlockSize();
         unitBytes = blockSize;
         diffBlocksize = blockSize;
@@ -102,6 +153,36 @@ public class SMS4Cipher extends CipherSpi {
 		return doFinal(input, inputOffset, inputLen, output, outputOffset);
 	}
 
+	@Override
+	protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+			throws ShortBufferException, IllegalBlockSizeException,
+			BadPaddingException {
+		int inputLen = input.remaining();
+		int outLen = getOutputSize(inputLen);
+		if (output.remaining() < outLen) {
+			throw new ShortBufferException("Need " + outLen
+					+ " bytes for output");
+		}
+		if (input.hasArray() && output.hasArray()) {
+			int n = doFinal(input.array(), input.arrayOffset()
+					+ input.position(), inputLen, output.array(),
+					output.arrayOffset() + output.position());
+			input.position(input.limit());
+			output.position(output.position() + n);
+			return n;
+		}
+		int n = engineUpdate(input, output);
+		if (output.hasArray()) {
+			int k = doFinal(B0, 0, 0, output.array(), output.arrayOffset()
+					+ output.position());
+			output.position(output.position() + k);
+			return n + k;
+		}
+		byte[] last = doFinal(B0, 0, 0);
+		output.put(last);
+		return n + last.length;
+	}
+
 	@Override
 	protected int engineGetBlockSize() {
 		return blockSize;
@@ -109,7 +190,8 @@ public class SMS4Cipher extends CipherSpi {
 
 	@Override
 	protected byte[] engineGetIV() {
-		return null;
+		byte[] iv = cipher.getIV();
+		return (iv == null) ? null : iv.clone();
 	}
 
 	@Override
@@ -119,7 +201,44 @@ public class SMS4Cipher extends CipherSpi {
 
 	@Override
 	protected AlgorithmParameters engineGetParameters() {
-		return null;
+		if (cipherMode == ECB_MODE) {
+			return null;
+		}
+		byte[] iv = cipher.getIV();
+		if (iv == null) {
+			return null;
+		}
+		AlgorithmParameters params = null;
+		if (cipherMode == GCM_MODE) {
+			try {
+				params = AlgorithmParameters.getInstance("GCM");
+				params.init(new GCMParameterSpec(
+						((GaloisCounterMode) cipher).getTagLen() * 8, iv));
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new RuntimeException(
+						"Cannot find GCM AlgorithmParameters implementation");
+			} catch (InvalidParameterSpecException ipse) {
+				// should never happen
+				throw new RuntimeException("GCMParameterSpec not supported");
+			}
+			return params;
+		}
+		try {
+			Provider provider = Security.getProvider(TopSMProvider.NAME);
+			if (provider == null) {
+				provider = new TopSMProvider();
+			}
+			params = AlgorithmParameters.getInstance("SMS4", provider);
+			params.init(new IvParameterSpec(iv));
+		} catch (NoSuchAlgorithmException nsae) {
+			// should never happen
+			throw new RuntimeException("Cannot find SMS4 AlgorithmParameters "
+					+ "implementation in " + TopSMProvider.NAME + " provider");
+		} catch (InvalidParameterSpecException ipse) {
+			// should never happen
+			throw new RuntimeException("IvParameterSpec not supported");
+		}
+		return params;
 	}
 
 	@Override
@@ -136,33 +255,88 @@ public class SMS4Cipher extends CipherSpi {
 	protected void engineInit(int opmode, Key key,
 			AlgorithmParameterSpec params, SecureRandom random)
 			throws InvalidKeyException, InvalidAlgorithmParameterException {
-		init(opmode, key);
+		init(opmode, key, params, random);
 	}
 
 	@Override
 	protected void engineInit(int opmode, Key key, AlgorithmParameters params,
 			SecureRandom random) throws InvalidKeyException,
 			InvalidAlgorithmParameterException {
-		IvParameterSpec ivSpec = null;
+		AlgorithmParameterSpec spec = null;
 		if (params != null) {
 			try {
-				ivSpec = (IvParameterSpec) params
-						.getParameterSpec(IvParameterSpec.class);
+				if (cipherMode == GCM_MODE) {
+					spec = params.getParameterSpec(GCMParameterSpec.class);
+				} else {
+					spec = params.getParameterSpec(IvParameterSpec.class);
+				}
 			} catch (InvalidParameterSpecException ipse) {
 				throw new InvalidAlgorithmParameterException("Wrong parameter "
-						+ "type: IV " + "expected");
+						+ "type: " + (cipherMode == GCM_MODE ? "GCM" : "IV")
+						+ " expected");
 			}
 		}
-		this.engineInit(opmode, key, ivSpec, random);
+		this.engineInit(opmode, key, spec, random);
 	}
 
 	@Override
 	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
-		if (mode.equalsIgnoreCase("ECB") == false) {
-			throw new NoSuchAlgorithmException("Unsupported mode " + mode);
+		if (mode == null) {
+			throw new NoSuchAlgorithmException("null mode");
+		}
+
+		String modeUpperCase = mode.toUpperCase(Locale.ENGLISH);
+
+		if (modeUpperCase.equals("ECB")) {
+			return;
+		}
+		if (modeUpperCase.equals("CBC")) {
+			cipherMode = CBC_MODE;
+			cipher = new CipherBlockChaining(sms4Cipher);
+		} else if (modeUpperCase.equals("GCM")) {
+			cipherMode = GCM_MODE;
+			cipher = new GaloisCounterMode(sms4Cipher);
+			padding = null;
+		} else if (modeUpperCase.equals("CTR")) {
+			cipherMode = CTR_MODE;
+			cipher = new CounterMode(sms4Cipher);
+			unitBytes = 1;
+			padding = null;
+		} else if (modeUpperCase.startsWith("CFB")) {
+			cipherMode = CFB_MODE;
+			unitBytes = getNumOfUnit(mode, "CFB".length(), blockSize);
+			cipher = new CipherFeedback(sms4Cipher, unitBytes);
+		} else if (modeUpperCase.startsWith("OFB")) {
+			cipherMode = OFB_MODE;
+			unitBytes = getNumOfUnit(mode, "OFB".length(), blockSize);
+			cipher = new OutputFeedback(sms4Cipher, unitBytes);
+		} else {
+			throw new NoSuchAlgorithmException("Cipher mode: " + mode
+					+ " not found");
 		}
 	}
 
+	private static int getNumOfUnit(String mode, int offset, int blockSize)
+			throws NoSuchAlgorithmException {
+		int result = blockSize; // use blockSize as default value
+		if (mode.length() > offset) {
+			int numInt;
+			try {
+				Integer num = Integer.valueOf(mode.substring(offset));
+				numInt = num.intValue();
+				result = numInt >> 3;
+			} catch (NumberFormatException e) {
+				throw new NoSuchAlgorithmException("Algorithm mode: " + mode
+						+ " not implemented");
+			}
+			if ((numInt % 8 != 0) || (result > blockSize)) {
+				throw new NoSuchAlgorithmException("Invalid algorithm mode: "
+						+ mode);
+			}
+		}
+		return result;
+	}
+
 	@Override
 	protected void engineSetPadding(String paddingName)
 			throws NoSuchPaddingException {
@@ -171,7 +345,14 @@ public class SMS4Cipher extends CipherSpi {
 		}
 		if (paddingName.equalsIgnoreCase("NoPadding")) {
 			padding = null;
-		} else if (!paddingName.equalsIgnoreCase("PKCS5Padding")) {
+		} else if (paddingName.equalsIgnoreCase("PKCS5Padding")) {
+			if ((cipherMode == CTR_MODE) || (cipherMode == GCM_MODE)) {
+				throw new NoSuchPaddingException(
+						(cipherMode == CTR_MODE ? "CTR" : "GCM")
+								+ " mode must be used with NoPadding");
+			}
+			padding = new PKCS5Padding(blockSize);
+		} else {
 			throw new NoSuchPaddingException("Padding: " + paddingName
 					+ " not implemented");
 		}
@@ -188,6 +369,80 @@ public class SMS4Cipher extends CipherSpi {
 		return update(input, inputOffset, inputLen, output, outputOffset);
 	}
 
+	/*
+	 * Heap buffers are processed in place of their backing arrays, direct
+	 * buffers are staged through two fixed arrays a chunk at a time.
+	 */
+	@Override
+	protected int engineUpdate(ByteBuffer input, ByteBuffer output)
+			throws ShortBufferException {
+		int inputLen = input.remaining();
+		int outLen = updateLength(inputLen);
+		if (output.remaining() < outLen) {
+			throw new ShortBufferException("Need " + outLen
+					+ " bytes for output");
+		}
+		if (input.hasArray() && output.hasArray()) {
+			int n = update(input.array(), input.arrayOffset()
+					+ input.position(), inputLen, output.array(),
+					output.arrayOffset() + output.position());
+			input.position(input.limit());
+			output.position(output.position() + n);
+			return n;
+		}
+		if (bbIn == null) {
+			bbIn = new byte[BB_CHUNK];
+			bbOut = new byte[BB_CHUNK + buffer.length];
+		}
+		int total = 0;
+		while (input.hasRemaining()) {
+			int len = Math.min(input.remaining(), BB_CHUNK);
+			byte[] in;
+			int inOff;
+			if (input.hasArray()) {
+				in = input.array();
+				inOff = input.arrayOffset() + input.position();
+				input.position(input.position() + len);
+			} else {
+				in = bbIn;
+				inOff = 0;
+				input.get(bbIn, 0, len);
+			}
+			int n;
+			if (output.hasArray()) {
+				n = update(in, inOff, len, output.array(), output.arrayOffset()
+						+ output.position());
+				output.position(output.position() + n);
+			} else {
+				n = update(in, inOff, len, bbOut, 0);
+				output.put(bbOut, 0, n);
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	protected void engineUpdateAAD(byte[] src, int offset, int len) {
+		updateAAD(src, offset, len);
+	}
+
+	@Override
+	protected void engineUpdateAAD(ByteBuffer src) {
+		if (src == null || !src.hasRemaining()) {
+			return;
+		}
+		int len = src.remaining();
+		if (src.hasArray()) {
+			updateAAD(src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.limit());
+		} else {
+			byte[] aad = new byte[len];
+			src.get(aad);
+			updateAAD(aad, 0, len);
+		}
+	}
+
 	protected int engineGetKeySize(Key key) throws InvalidKeyException {
 		byte[] encoded = key.getEncoded();
 		if (!SMS4Crypt.isKeySizeValid(encoded.length)) {
@@ -240,13 +495,80 @@ public class SMS4Cipher extends CipherSpi {
 	 *                if the given algorithm parameters are inappropriate for
 	 *                this cipher
 	 */
-	void init(int opmode, Key key) throws InvalidKeyException {
+	void init(int opmode, Key key, AlgorithmParameterSpec params,
+			SecureRandom random) throws InvalidKeyException,
+			InvalidAlgorithmParameterException {
 
 		decrypting = (opmode == Cipher.DECRYPT_MODE)
 				|| (opmode == Cipher.UNWRAP_MODE);
 
 		byte[] keyBytes = SymmetricCipher.getKeyBytes(key);
 
+		byte[] ivBytes = null;
+		int tagLen = GaloisCounterMode.DEFAULT_TAG_LEN;
+		if (params != null) {
+			if (cipherMode == GCM_MODE) {
+				if (!(params instanceof GCMParameterSpec)) {
+					throw new InvalidAlgorithmParameterException(
+							"Wrong parameter type: GCM expected");
+				}
+				tagLen = ((GCMParameterSpec) params).getTLen();
+				if ((tagLen < 96) || (tagLen > 128) || ((tagLen & 7) != 0)) {
+					throw new InvalidAlgorithmParameterException(
+							"Unsupported TLen value: must be one of "
+									+ "{128, 120, 112, 104, 96}");
+				}
+				tagLen >>= 3;
+				ivBytes = ((GCMParameterSpec) params).getIV();
+				if (ivBytes.length == 0) {
+					throw new InvalidAlgorithmParameterException(
+							"IV is empty");
+				}
+			} else {
+				if (!(params instanceof IvParameterSpec)) {
+					throw new InvalidAlgorithmParameterException(
+							"Wrong parameter type: IV expected");
+				}
+				ivBytes = ((IvParameterSpec) params).getIV();
+				if ((ivBytes == null) || (ivBytes.length != blockSize)) {
+					throw new InvalidAlgorithmParameterException(
+							"Wrong IV length: must be " + blockSize
+									+ " bytes long");
+				}
+			}
+		}
+		if (cipherMode == ECB_MODE) {
+			if (ivBytes != null) {
+				throw new InvalidAlgorithmParameterException(
+						"ECB mode cannot use IV");
+			}
+		} else if (ivBytes == null) {
+			if (decrypting) {
+				throw new InvalidAlgorithmParameterException(
+						"Parameters missing");
+			}
+			if (random == null) {
+				random = JCAUtil.getSecureRandom();
+			}
+			ivBytes = new byte[(cipherMode == GCM_MODE)
+					? GaloisCounterMode.DEFAULT_IV_LEN : blockSize];
+			random.nextBytes(ivBytes);
+		} else {
+			ivBytes = ivBytes.clone();
+		}
+
+		if ((cipherMode == GCM_MODE) && !decrypting && (keyBytes != null)) {
+			// never encrypt twice with the same key and iv
+			if (MessageDigest.isEqual(keyBytes, lastEncKey)
+					&& MessageDigest.isEqual(ivBytes, lastEncIv)) {
+				throw new InvalidAlgorithmParameterException(
+						"Cannot reuse iv for GCM encryption");
+			}
+			lastEncKey = keyBytes;
+			lastEncIv = ivBytes;
+		}
+		requireReinit = false;
+
 		buffered = 0;
 		diffBlocksize = blockSize;
 
@@ -256,7 +578,37 @@ public class SMS4Cipher extends CipherSpi {
 			throw new InvalidKeyException("Internal error");
 		}
 
-		sms4Cipher.init(decrypting, algorithm, keyBytes);
+		if (cipherMode == GCM_MODE) {
+			((GaloisCounterMode) cipher).init(decrypting, algorithm, keyBytes,
+					ivBytes, tagLen);
+		} else {
+			cipher.init(decrypting, algorithm, keyBytes, ivBytes);
+		}
+	}
+
+	/**
+	 * Continues a multi-part update of the Additional Authentication Data
+	 * (AAD), using a subset of the provided buffer. All AAD must be supplied
+	 * before any data is encrypted or decrypted.
+	 * 
+	 * @exception IllegalStateException
+	 *                if the cipher is not in GCM mode, has to be
+	 *                re-initialized, or data has already been processed
+	 */
+	void updateAAD(byte[] src, int offset, int len) {
+		checkReinit();
+		if (cipherMode != GCM_MODE) {
+			throw new IllegalStateException(
+					"AAD is only supported in GCM mode");
+		}
+		((GaloisCounterMode) cipher).updateAAD(src, offset, len);
+	}
+
+	private void checkReinit() {
+		if (requireReinit) {
+			throw new IllegalStateException(
+					"Must use either different key or iv for GCM encryption");
+		}
 	}
 
 	/**
@@ -327,14 +679,13 @@ public class SMS4Cipher extends CipherSpi {
 	 */
 	int update(byte[] input, int inputOffset, int inputLen, byte[] output,
 			int outputOffset) throws ShortBufferException {
-		// figure out how much can be sent to crypto function
-		int len = buffered + inputLen - minBytes;
-		if (padding != null && decrypting) {
-			// do not include the padding bytes when decrypting
-			len -= blockSize;
+		checkReinit();
+		if ((cipherMode == GCM_MODE) && decrypting) {
+			// nothing is released before the tag has been verified
+			cipher.decrypt(input, inputOffset, inputLen, output, outputOffset);
+			return 0;
 		}
-		// do not count the trailing bytes which do not make up a unit
-		len = (len > 0 ? (len - (len % unitBytes)) : 0);
+		int len = updateLength(inputLen);
 
 		// check output buffer capacity
 		if ((output == null) || ((output.length - outputOffset) < len)) {
@@ -342,28 +693,66 @@ public class SMS4Cipher extends CipherSpi {
 					+ "(at least) " + len + " bytes long");
 		}
 		if (len != 0) {
-			// there is some work to do
-			byte[] in = new byte[len];
-
-			int inputConsumed = len - buffered;
-			int bufferedConsumed = buffered;
-			if (inputConsumed < 0) {
-				inputConsumed = 0;
-				bufferedConsumed = len;
-			}
-
-			if (buffered != 0) {
-				System.arraycopy(buffer, 0, in, 0, bufferedConsumed);
-			}
-			if (inputConsumed > 0) {
-				System.arraycopy(input, inputOffset, in, bufferedConsumed,
-						inputConsumed);
+			// if the output would run ahead of input that has not been
+			// read yet, copy the input out of the way first
+			if ((input == output) && (outputOffset > inputOffset - buffered)
+					&& (outputOffset < inputOffset + inputLen)) {
+				input = Arrays.copyOfRange(input, inputOffset, inputOffset
+						+ inputLen);
+				inputOffset = 0;
 			}
-
-			if (decrypting) {
-				decrypt(in, 0, len, output, outputOffset);
+			if (len <= buffered) {
+				// all to-be-processed data are from 'buffer'
+				if (decrypting) {
+					cipher.decrypt(buffer, 0, len, output, outputOffset);
+				} else {
+					cipher.encrypt(buffer, 0, len, output, outputOffset);
+				}
+				buffered -= len;
+				if (buffered != 0) {
+					System.arraycopy(buffer, len, buffer, 0, buffered);
+				}
 			} else {
-				encrypt(in, 0, len, output, outputOffset);
+				int inputConsumed = len - buffered;
+				int outLen = 0;
+				if (buffered > 0) {
+					// top up 'buffer' to a whole number of units and
+					// process it
+					int bufferCapacity = buffer.length - buffered;
+					if (bufferCapacity != 0) {
+						int temp = Math.min(bufferCapacity, inputConsumed);
+						if (unitBytes != blockSize) {
+							temp -= ((buffered + temp) % unitBytes);
+						}
+						System.arraycopy(input, inputOffset, buffer, buffered,
+								temp);
+						inputOffset += temp;
+						inputConsumed -= temp;
+						inputLen -= temp;
+						buffered += temp;
+					}
+					if (decrypting) {
+						cipher.decrypt(buffer, 0, buffered, output,
+								outputOffset);
+					} else {
+						cipher.encrypt(buffer, 0, buffered, output,
+								outputOffset);
+					}
+					outLen = buffered;
+					buffered = 0;
+				}
+				if (inputConsumed > 0) {
+					// process the rest directly from 'input'
+					if (decrypting) {
+						cipher.decrypt(input, inputOffset, inputConsumed,
+								output, outputOffset + outLen);
+					} else {
+						cipher.encrypt(input, inputOffset, inputConsumed,
+								output, outputOffset + outLen);
+					}
+					inputOffset += inputConsumed;
+					inputLen -= inputConsumed;
+				}
 			}
 
 			// Let's keep track of how many bytes are needed to make
@@ -376,14 +765,6 @@ public class SMS4Cipher extends CipherSpi {
 					diffBlocksize = blockSize
 							- ((len - diffBlocksize) % blockSize);
 			}
-
-			inputLen -= inputConsumed;
-			inputOffset += inputConsumed;
-			outputOffset += len;
-			buffered -= bufferedConsumed;
-			if (buffered > 0) {
-				System.arraycopy(buffer, bufferedConsumed, buffer, 0, buffered);
-			}
 		}
 		// left over again
 		if (inputLen > 0) {
@@ -393,6 +774,23 @@ public class SMS4Cipher extends CipherSpi {
 		return len;
 	}
 
+	/*
+	 * the number of bytes an update of inputLen bytes releases
+	 */
+	private int updateLength(int inputLen) {
+		if ((cipherMode == GCM_MODE) && decrypting) {
+			return 0;
+		}
+		// figure out how much can be sent to crypto function
+		int len = buffered + inputLen - minBytes;
+		if (padding != null && decrypting) {
+			// do not include the padding bytes when decrypting
+			len -= blockSize;
+		}
+		// do not count the trailing bytes which do not make up a unit
+		return (len > 0 ? (len - (len % unitBytes)) : 0);
+	}
+
 	/**
 	 * Encrypts or decrypts data in a single-part operation, or finishes a
 	 * multiple-part operation. The data is encrypted or decrypted, depending on
@@ -492,6 +890,12 @@ public class SMS4Cipher extends CipherSpi {
 			int outputOffset) throws IllegalBlockSizeException,
 			ShortBufferException, BadPaddingException {
 
+		checkReinit();
+		if (cipherMode == GCM_MODE) {
+			return doFinalGCM(input, inputOffset, inputLen, output,
+					outputOffset);
+		}
+
 		// calculate the total input length
 		int totalLen = buffered + inputLen;
 		int paddedLen = totalLen;
@@ -552,6 +956,12 @@ public class SMS4Cipher extends CipherSpi {
 			if (!decrypting && padding != null) {
 				padding.padWithLen(finalBuf, totalLen, paddingLen);
 			}
+		} else if ((input == output) && (outputOffset - inputOffset < inputLen)
+				&& (inputOffset - outputOffset < buffered)) {
+			// an output ahead of the input would overwrite unread input
+			finalBuf = Arrays.copyOfRange(input, inputOffset, inputOffset
+					+ inputLen);
+			finalOffset = 0;
 		}
 
 		if (decrypting) {
@@ -594,15 +1004,74 @@ public class SMS4Cipher extends CipherSpi {
 
 		buffered = 0;
 		diffBlocksize = blockSize;
+		if (cipherMode != ECB_MODE) {
+			cipher.reset();
+		}
 		return totalLen;
 	}
 
+	/*
+	 * GCM needs no padding and no unit alignment: the tag is appended when
+	 * encrypting, and checked before anything is released when decrypting.
+	 */
+	private int doFinalGCM(byte[] input, int inputOffset, int inputLen,
+			byte[] output, int outputOffset) throws ShortBufferException,
+			AEADBadTagException {
+		GaloisCounterMode gcm = (GaloisCounterMode) cipher;
+		int outLen = getOutputSize(inputLen);
+		if ((output == null) || ((output.length - outputOffset) < outLen)) {
+			throw new ShortBufferException("Output buffer too short: "
+					+ (output == null ? 0 : output.length - outputOffset)
+					+ " bytes given, " + outLen + " bytes needed");
+		}
+		try {
+			if (decrypting) {
+				return gcm.decryptFinal(input, inputOffset, inputLen, output,
+						outputOffset);
+			}
+			if ((input == output) && (outputOffset > inputOffset - buffered)
+					&& (outputOffset < inputOffset + inputLen)) {
+				input = Arrays.copyOfRange(input, inputOffset, inputOffset
+						+ inputLen);
+				inputOffset = 0;
+			}
+			if (buffered != 0) {
+				// complete the block left over from update()
+				int n = Math.min(blockSize - buffered, inputLen);
+				if (n > 0) {
+					System.arraycopy(input, inputOffset, buffer, buffered, n);
+					buffered += n;
+					inputOffset += n;
+					inputLen -= n;
+				}
+				if (inputLen == 0) {
+					outLen = gcm.encryptFinal(buffer, 0, buffered, output,
+							outputOffset);
+				} else {
+					outLen = gcm.encrypt(buffer, 0, blockSize, output,
+							outputOffset);
+					outLen += gcm.encryptFinal(input, inputOffset, inputLen,
+							output, outputOffset + outLen);
+				}
+			} else {
+				outLen = gcm.encryptFinal(input, inputOffset, inputLen, output,
+						outputOffset);
+			}
+			requireReinit = true;
+			return outLen;
+		} finally {
+			buffered = 0;
+			gcm.reset();
+		}
+	}
+
 	private int finalNoPadding(byte[] in, int inOff, byte[] out, int outOff,
-			int len) throws IllegalBlockSizeException {
+			int len) throws IllegalBlockSizeException, AEADBadTagException {
 		if (in == null || len == 0)
 			return 0;
 
-		if ((len % unitBytes) != 0) {
+		if ((cipherMode != CFB_MODE) && (cipherMode != OFB_MODE)
+				&& (cipherMode != CTR_MODE) && ((len % unitBytes) != 0)) {
 			if (padding != null) {
 				throw new IllegalBlockSizeException(
 						"Input length (with padding) not multiple of "
@@ -614,9 +1083,9 @@ public class SMS4Cipher extends CipherSpi {
 		}
 
 		if (decrypting) {
-			decrypt(in, inOff, len, out, outOff);
+			cipher.decryptFinal(in, inOff, len, out, outOff);
 		} else {
-			encrypt(in, inOff, len, out, outOff);
+			cipher.encryptFinal(in, inOff, len, out, outOff);
 		}
 
 		return len;
@@ -706,6 +1175,15 @@ public class SMS4Cipher extends CipherSpi {
 	int getOutputSize(int inputLen) {
 		int totalLen = buffered + inputLen;
 
+		if (cipherMode == GCM_MODE) {
+			GaloisCounterMode gcm = (GaloisCounterMode) cipher;
+			if (decrypting) {
+				return Math.max(0, gcm.getBufferedLength() + totalLen
+						- gcm.getTagLen());
+			}
+			return totalLen + gcm.getTagLen();
+		}
+
 		if (padding == null)
 			return totalLen;
 
@@ -722,93 +1200,17 @@ public class SMS4Cipher extends CipherSpi {
 		}
 	}
 
-	/**
-	 * Performs encryption operation.
-	 * 
-	 * <p>
-	 * The input plain text <code>plain</code>, starting at
-	 * <code>plainOffset</code> and ending at
-	 * <code>(plainOffset + len - 1)</code>, is encrypted. The result is stored
-	 * in <code>cipher</code>, starting at <code>cipherOffset</code>.
-	 * 
-	 * <p>
-	 * It is the application's responsibility to make sure that
-	 * <code>plainLen</code> is a multiple of the embedded cipher's block size,
-	 * as any excess bytes are ignored.
-	 * 
-	 * <p>
-	 * It is also the application's responsibility to make sure that
-	 * <code>init</code> has been called before this method is called. (This
-	 * check is omitted here, to avoid double checking.)
-	 * 
-	 * @param in
-	 *            the buffer with the input data to be encrypted
-	 * @param inOffset
-	 *            the offset in <code>plain</code>
-	 * @param len
-	 *            the length of the input data
-	 * @param out
-	 *            the buffer for the result
-	 * @param outOff
-	 *            the offset in <code>cipher</code>
-	 */
-	void encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) {
-		while (len >= blockSize) {
-			sms4Cipher.encryptBlock(in, inOff, out, outOff);
-			len -= blockSize;
-			inOff += blockSize;
-			outOff += blockSize;
-		}
-	}
-
-	/**
-	 * Performs decryption operation.
-	 * 
-	 * <p>
-	 * The input cipher text <code>cipher</code>, starting at
-	 * <code>cipherOffset</code> and ending at
-	 * <code>(cipherOffset + len - 1)</code>, is decrypted. The result is stored
-	 * in <code>plain</code>, starting at <code>plainOffset</code>.
-	 * 
-	 * <p>
-	 * It is the application's responsibility to make sure that
-	 * <code>cipherLen</code> is a multiple of the embedded cipher's block size,
-	 * as any excess bytes are ignored.
-	 * 
-	 * <p>
-	 * It is also the application's responsibility to make sure that
-	 * <code>init</code> has been called before this method is called. (This
-	 * check is omitted here, to avoid double checking.)
-	 * 
-	 * @param in
-	 *            the buffer with the input data to be decrypted
-	 * @param inOff
-	 *            the offset in <code>cipherOffset</code>
-	 * @param len
-	 *            the length of the input data
-	 * @param out
-	 *            the buffer for the result
-	 * @param outOff
-	 *            the offset in <code>plain</code>
-	 */
-	void decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) {
-		while (len >= blockSize) {
-			sms4Cipher.decryptBlock(in, inOff, out, outOff);
-			len -= blockSize;
-			inOff += blockSize;
-			outOff += blockSize;
-		}
-	}
-
 	/**
 	 * Save the current content of this cipher.
 	 */
 	void save() {
+		cipher.save();
 	}
 
 	/**
 	 * Restores the content of this cipher to the previous saved one.
 	 */
 	void restore() {
+		cipher.restore();
 	}
 }
@@ -1,78 +1,60 @@
 package security.sm;
 
 import static java.lang.Integer.rotateLeft;
+import static java.lang.Integer.rotateRight;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.InvalidKeyException;
 
+/**
+ * SMS4 (SM4) block cipher engine.
+ *
+ * <p>
+ * The round function T(x) = L(tau(x)) is computed with four 256-entry tables
+ * combining the S-box and the linear transformation L, one per input byte, so
+ * a round costs four lookups and no allocation. The 32 rounds are unrolled
+ * and the round keys for decryption are kept in reverse order.
+ *
+ * <p>
+ * Runs of independent blocks are processed four at a time with their rounds
+ * interleaved, so the four dependency chains overlap in the CPU instead of
+ * waiting on each other's table lookups.
+ */
 public class SMS4Crypt extends SymmetricCipher implements SMS4Constants {
-	private static final byte[][] SBOX = {
-			{ (byte) 0xd6, (byte) 0x90, (byte) 0xe9, (byte) 0xfe, (byte) 0xcc,
-					(byte) 0xe1, (byte) 0x3d, (byte) 0xb7, (byte) 0x16,
-					(byte) 0xb6, (byte) 0x14, (byte) 0xc2, (byte) 0x28,
-					(byte) 0xfb, (byte) 0x2c, (byte) 0x05 },
-			{ (byte) 0x2b, (byte) 0x67, (byte) 0x9a, (byte) 0x76, (byte) 0x2a,
-					(byte) 0xbe, (byte) 0x04, (byte) 0xc3, (byte) 0xaa,
-					(byte) 0x44, (byte) 0x13, (byte) 0x26, (byte) 0x49,
-					(byte) 0x86, (byte) 0x06, (byte) 0x99 },
-			{ (byte) 0x9c, (byte) 0x42, (byte) 0x50, (byte) 0xf4, (byte) 0x91,
-					(byte) 0xef, (byte) 0x98, (byte) 0x7a, (byte) 0x33,
-					(byte) 0x54, (byte) 0x0b, (byte) 0x43, (byte) 0xed,
-					(byte) 0xcf, (byte) 0xac, (byte) 0x62 },
-			{ (byte) 0xe4, (byte) 0xb3, (byte) 0x1c, (byte) 0xa9, (byte) 0xc9,
-					(byte) 0x08, (byte) 0xe8, (byte) 0x95, (byte) 0x80,
-					(byte) 0xdf, (byte) 0x94, (byte) 0xfa, (byte) 0x75,
-					(byte) 0x8f, (byte) 0x3f, (byte) 0xa6 },
-			{ (byte) 0x47, (byte) 0x07, (byte) 0xa7, (byte) 0xfc, (byte) 0xf3,
-					(byte) 0x73, (byte) 0x17, (byte) 0xba, (byte) 0x83,
-					(byte) 0x59, (byte) 0x3c, (byte) 0x19, (byte) 0xe6,
-					(byte) 0x85, (byte) 0x4f, (byte) 0xa8 },
-			{ (byte) 0x68, (byte) 0x6b, (byte) 0x81, (byte) 0xb2, (byte) 0x71,
-					(byte) 0x64, (byte) 0xda, (byte) 0x8b, (byte) 0xf8,
-					(byte) 0xeb, (byte) 0x0f, (byte) 0x4b, (byte) 0x70,
-					(byte) 0x56, (byte) 0x9d, (byte) 0x35 },
-			{ (byte) 0x1e, (byte) 0x24, (byte) 0x0e, (byte) 0x5e, (byte) 0x63,
-					(byte) 0x58, (byte) 0xd1, (byte) 0xa2, (byte) 0x25,
-					(byte) 0x22, (byte) 0x7c, (byte) 0x3b, (byte) 0x01,
-					(byte) 0x21, (byte) 0x78, (byte) 0x87 },
-			{ (byte) 0xd4, (byte) 0x00, (byte) 0x46, (byte) 0x57, (byte) 0x9f,
-					(byte) 0xd3, (byte) 0x27, (byte) 0x52, (byte) 0x4c,
-					(byte) 0x36, (byte) 0x02, (byte) 0xe7, (byte) 0xa0,
-					(byte) 0xc4, (byte) 0xc8, (byte) 0x9e },
-			{ (byte) 0xea, (byte) 0xbf, (byte) 0x8a, (byte) 0xd2, (byte) 0x40,
-					(byte) 0xc7, (byte) 0x38, (byte) 0xb5, (byte) 0xa3,
-					(byte) 0xf7, (byte) 0xf2, (byte) 0xce, (byte) 0xf9,
-					(byte) 0x61, (byte) 0x15, (byte) 0xa1 },
-			{ (byte) 0xe0, (byte) 0xae, (byte) 0x5d, (byte) 0xa4, (byte) 0x9b,
-					(byte) 0x34, (byte) 0x1a, (byte) 0x55, (byte) 0xad,
-					(byte) 0x93, (byte) 0x32, (byte) 0x30, (byte) 0xf5,
-					(byte) 0x8c, (byte) 0xb1, (byte) 0xe3 },
-			{ (byte) 0x1d, (byte) 0xf6, (byte) 0xe2, (byte) 0x2e, (byte) 0x82,
-					(byte) 0x66, (byte) 0xca, (byte) 0x60, (byte) 0xc0,
-					(byte) 0x29, (byte) 0x23, (byte) 0xab, (byte) 0x0d,
-					(byte) 0x53, (byte) 0x4e, (byte) 0x6f },
-			{ (byte) 0xd5, (byte) 0xdb, (byte) 0x37, (byte) 0x45, (byte) 0xde,
-					(byte) 0xfd, (byte) 0x8e, (byte) 0x2f, (byte) 0x03,
-					(byte) 0xff, (byte) 0x6a, (byte) 0x72, (byte) 0x6d,
-					(byte) 0x6c, (byte) 0x5b, (byte) 0x51 },
-			{ (byte) 0x8d, (byte) 0x1b, (byte) 0xaf, (byte) 0x92, (byte) 0xbb,
-					(byte) 0xdd, (byte) 0xbc, (byte) 0x7f, (byte) 0x11,
-					(byte) 0xd9, (byte) 0x5c, (byte) 0x41, (byte) 0x1f,
-					(byte) 0x10, (byte) 0x5a, (byte) 0xd8 },
-			{ (byte) 0x0a, (byte) 0xc1, (byte) 0x31, (byte) 0x88, (byte) 0xa5,
-					(byte) 0xcd, (byte) 0x7b, (byte) 0xbd, (byte) 0x2d,
-					(byte) 0x74, (byte) 0xd0, (byte) 0x12, (byte) 0xb8,
-					(byte) 0xe5, (byte) 0xb4, (byte) 0xb0 },
-			{ (byte) 0x89, (byte) 0x69, (byte) 0x97, (byte) 0x4a, (byte) 0x0c,
-					(byte) 0x96, (byte) 0x77, (byte) 0x7e, (byte) 0x65,
-					(byte) 0xb9, (byte) 0xf1, (byte) 0x09, (byte) 0xc5,
-					(byte) 0x6e, (byte) 0xc6, (byte) 0x84 },
-			{ (byte) 0x18, (byte) 0xf0, (byte) 0x7d, (byte) 0xec, (byte) 0x3a,
-					(byte) 0xdc, (byte) 0x4d, (byte) 0x20, (byte) 0x79,
-					(byte) 0xee, (byte) 0x5f, (byte) 0x3e, (byte) 0xd7,
-					(byte) 0xcb, (byte) 0x39, (byte) 0x48 }, };
+	private static final int[] SBOX = {
+			0xd6, 0x90, 0xe9, 0xfe, 0xcc, 0xe1, 0x3d, 0xb7,
+			0x16, 0xb6, 0x14, 0xc2, 0x28, 0xfb, 0x2c, 0x05,
+			0x2b, 0x67, 0x9a, 0x76, 0x2a, 0xbe, 0x04, 0xc3,
+			0xaa, 0x44, 0x13, 0x26, 0x49, 0x86, 0x06, 0x99,
+			0x9c, 0x42, 0x50, 0xf4, 0x91, 0xef, 0x98, 0x7a,
+			0x33, 0x54, 0x0b, 0x43, 0xed, 0xcf, 0xac, 0x62,
+			0xe4, 0xb3, 0x1c, 0xa9, 0xc9, 0x08, 0xe8, 0x95,
+			0x80, 0xdf, 0x94, 0xfa, 0x75, 0x8f, 0x3f, 0xa6,
+			0x47, 0x07, 0xa7, 0xfc, 0xf3, 0x73, 0x17, 0xba,
+			0x83, 0x59, 0x3c, 0x19, 0xe6, 0x85, 0x4f, 0xa8,
+			0x68, 0x6b, 0x81, 0xb2, 0x71, 0x64, 0xda, 0x8b,
+			0xf8, 0xeb, 0x0f, 0x4b, 0x70, 0x56, 0x9d, 0x35,
+			0x1e, 0x24, 0x0e, 0x5e, 0x63, 0x58, 0xd1, 0xa2,
+			0x25, 0x22, 0x7c, 0x3b, 0x01, 0x21, 0x78, 0x87,
+			0xd4, 0x00, 0x46, 0x57, 0x9f, 0xd3, 0x27, 0x52,
+			0x4c, 0x36, 0x02, 0xe7, 0xa0, 0xc4, 0xc8, 0x9e,
+			0xea, 0xbf, 0x8a, 0xd2, 0x40, 0xc7, 0x38, 0xb5,
+			0xa3, 0xf7, 0xf2, 0xce, 0xf9, 0x61, 0x15, 0xa1,
+			0xe0, 0xae, 0x5d, 0xa4, 0x9b, 0x34, 0x1a, 0x55,
+			0xad, 0x93, 0x32, 0x30, 0xf5, 0x8c, 0xb1, 0xe3,
+			0x1d, 0xf6, 0xe2, 0x2e, 0x82, 0x66, 0xca, 0x60,
+			0xc0, 0x29, 0x23, 0xab, 0x0d, 0x53, 0x4e, 0x6f,
+			0xd5, 0xdb, 0x37, 0x45, 0xde, 0xfd, 0x8e, 0x2f,
+			0x03, 0xff, 0x6a, 0x72, 0x6d, 0x6c, 0x5b, 0x51,
+			0x8d, 0x1b, 0xaf, 0x92, 0xbb, 0xdd, 0xbc, 0x7f,
+			0x11, 0xd9, 0x5c, 0x41, 0x1f, 0x10, 0x5a, 0xd8,
+			0x0a, 0xc1, 0x31, 0x88, 0xa5, 0xcd, 0x7b, 0xbd,
+			0x2d, 0x74, 0xd0, 0x12, 0xb8, 0xe5, 0xb4, 0xb0,
+			0x89, 0x69, 0x97, 0x4a, 0x0c, 0x96, 0x77, 0x7e,
+			0x65, 0xb9, 0xf1, 0x09, 0xc5, 0x6e, 0xc6, 0x84,
+			0x18, 0xf0, 0x7d, 0xec, 0x3a, 0xdc, 0x4d, 0x20,
+			0x79, 0xee, 0x5f, 0x3e, 0xd7, 0xcb, 0x39, 0x48
+	};
 
 	// CK[i]=(ck[i,0],ck[i,1],ck[i,2],ck[i,3]) 32bit(8*4)
 	// ck[i,j]=(4i+j)*7(mod 256)
@@ -88,168 +70,225 @@ public class SMS4Crypt extends SymmetricCipher implements SMS4Constants {
 
 	private static final int ROUND = 32;
 
-	public boolean v = false;
-
-	private int[] rk;
-
-	private byte Sbox(byte src) {
-		int row, column;
-		row = src >> 4 & 0x0F;
-		column = src & 0x0F;
-		return SBOX[row][column];
+	// T0[a] = L(S(a) << 24), Tn = T0 rotated right by 8n bits
+	private static final int[] T0 = new int[256];
+	private static final int[] T1 = new int[256];
+	private static final int[] T2 = new int[256];
+	private static final int[] T3 = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int t = L(SBOX[i] << 24);
+			T0[i] = t;
+			T1[i] = rotateRight(t, 8);
+			T2[i] = rotateRight(t, 16);
+			T3[i] = rotateRight(t, 24);
+		}
 	}
 
-	private void F(int[] x, int[] rk, int i) throws IOException {
-		x[(i + 0) % 4] ^= T(x[(i + 1) % 4] ^ x[(i + 2) % 4] ^ x[(i + 3) % 4]
-				^ rk[i]);
-	}
+	// round keys in encryption and in decryption order
+	final int[] rk = new int[ROUND];
+	private final int[] rkDec = new int[ROUND];
 
-	private int T(int src) {
-		return L(Tau(src));
+	private static int T(int a) {
+		return T0[a >>> 24] ^ T1[(a >>> 16) & 0xFF] ^ T2[(a >>> 8) & 0xFF]
+				^ T3[a & 0xFF];
 	}
 
-	private int T_(int src) {
-		return L_(Tau(src));
+	// T' of the key expansion
+	private static int T_(int a) {
+		return L_(tau(a));
 	}
 
-	private int Tau(int A) {
-		byte[] a = convertToBytes(A);
-		byte[] b = new byte[4];
-		for (int i = 0; i < b.length; i++) {
-			b[i] = Sbox(a[i]);
-		}
-		return convertToInt(b);
+	private static int tau(int a) {
+		return SBOX[a >>> 24] << 24 | SBOX[(a >>> 16) & 0xFF] << 16
+				| SBOX[(a >>> 8) & 0xFF] << 8 | SBOX[a & 0xFF];
 	}
 
-	private int L(int B) {
+	private static int L(int B) {
 		return B ^ rotateLeft(B, 2) ^ rotateLeft(B, 10) ^ rotateLeft(B, 18)
 				^ rotateLeft(B, 24);
 	}
 
-	private int L_(int B) {
+	private static int L_(int B) {
 		return B ^ rotateLeft(B, 13) ^ rotateLeft(B, 23);
 	}
 
-	// reverse X
-	private byte[] R(int[] x) {
-		return convertToBytes(reverse(x));
+	private static int getInt(byte[] b, int off) {
+		return b[off] << 24 | (b[off + 1] & 0xFF) << 16
+				| (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
 	}
 
-	private int[] R_(byte[] encBlock) throws IOException {
-		return reverse(convertToIntArray(encBlock));
+	private static void putInt(int n, byte[] b, int off) {
+		b[off] = (byte) (n >>> 24);
+		b[off + 1] = (byte) (n >>> 16);
+		b[off + 2] = (byte) (n >>> 8);
+		b[off + 3] = (byte) n;
 	}
 
-	private int[] reverse(int[] in) {
-		int[] out = in.clone();
-		int leftOffset = 0;
-		int rightOffset = out.length - 1;
-		int temp;
-		while (leftOffset < rightOffset) {
-			temp = out[leftOffset];
-			out[leftOffset] = out[rightOffset];
-			out[rightOffset] = temp;
-			leftOffset++;
-			rightOffset--;
-		}
-		return out;
+	// 32 rounds with the round keys rk, output in reverse order (R)
+	static void crypt(int[] rk, byte[] in, int inOff, byte[] out,
+			int outOff) {
+		int x0 = getInt(in, inOff);
+		int x1 = getInt(in, inOff + 4);
+		int x2 = getInt(in, inOff + 8);
+		int x3 = getInt(in, inOff + 12);
+
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[0]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[1]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[2]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[3]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[4]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[5]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[6]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[7]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[8]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[9]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[10]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[11]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[12]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[13]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[14]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[15]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[16]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[17]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[18]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[19]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[20]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[21]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[22]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[23]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[24]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[25]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[26]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[27]);
+		x0 ^= T(x1 ^ x2 ^ x3 ^ rk[28]);
+		x1 ^= T(x2 ^ x3 ^ x0 ^ rk[29]);
+		x2 ^= T(x3 ^ x0 ^ x1 ^ rk[30]);
+		x3 ^= T(x0 ^ x1 ^ x2 ^ rk[31]);
+
+		putInt(x3, out, outOff);
+		putInt(x2, out, outOff + 4);
+		putInt(x1, out, outOff + 8);
+		putInt(x0, out, outOff + 12);
 	}
 
-	private byte[] convertToBytes(int[] in) {
-		byte[] out = new byte[in.length << 2];
-		for (int i = 0; i < in.length; i++) {
-			System.arraycopy(convertToBytes(in[i]), 0, out, (0 + i << 2), 4);
+	// four blocks at once, round r of every block before round r + 1
+	static void crypt4(int[] rk, byte[] in, int inOff, byte[] out,
+			int outOff) {
+		int a0 = getInt(in, inOff);
+		int a1 = getInt(in, inOff + 4);
+		int a2 = getInt(in, inOff + 8);
+		int a3 = getInt(in, inOff + 12);
+		int b0 = getInt(in, inOff + 16);
+		int b1 = getInt(in, inOff + 20);
+		int b2 = getInt(in, inOff + 24);
+		int b3 = getInt(in, inOff + 28);
+		int c0 = getInt(in, inOff + 32);
+		int c1 = getInt(in, inOff + 36);
+		int c2 = getInt(in, inOff + 40);
+		int c3 = getInt(in, inOff + 44);
+		int d0 = getInt(in, inOff + 48);
+		int d1 = getInt(in, inOff + 52);
+		int d2 = getInt(in, inOff + 56);
+		int d3 = getInt(in, inOff + 60);
+
+		for (int i = 0; i < ROUND; i += 4) {
+			int k = rk[i];
+			a0 ^= T(a1 ^ a2 ^ a3 ^ k);
+			b0 ^= T(b1 ^ b2 ^ b3 ^ k);
+			c0 ^= T(c1 ^ c2 ^ c3 ^ k);
+			d0 ^= T(d1 ^ d2 ^ d3 ^ k);
+			k = rk[i + 1];
+			a1 ^= T(a2 ^ a3 ^ a0 ^ k);
+			b1 ^= T(b2 ^ b3 ^ b0 ^ k);
+			c1 ^= T(c2 ^ c3 ^ c0 ^ k);
+			d1 ^= T(d2 ^ d3 ^ d0 ^ k);
+			k = rk[i + 2];
+			a2 ^= T(a3 ^ a0 ^ a1 ^ k);
+			b2 ^= T(b3 ^ b0 ^ b1 ^ k);
+			c2 ^= T(c3 ^ c0 ^ c1 ^ k);
+			d2 ^= T(d3 ^ d0 ^ d1 ^ k);
+			k = rk[i + 3];
+			a3 ^= T(a0 ^ a1 ^ a2 ^ k);
+			b3 ^= T(b0 ^ b1 ^ b2 ^ k);
+			c3 ^= T(c0 ^ c1 ^ c2 ^ k);
+			d3 ^= T(d0 ^ d1 ^ d2 ^ k);
 		}
-		return out;
+
+		putInt(a3, out, outOff);
+		putInt(a2, out, outOff + 4);
+		putInt(a1, out, outOff + 8);
+		putInt(a0, out, outOff + 12);
+		putInt(b3, out, outOff + 16);
+		putInt(b2, out, outOff + 20);
+		putInt(b1, out, outOff + 24);
+		putInt(b0, out, outOff + 28);
+		putInt(c3, out, outOff + 32);
+		putInt(c2, out, outOff + 36);
+		putInt(c1, out, outOff + 40);
+		putInt(c0, out, outOff + 44);
+		putInt(d3, out, outOff + 48);
+		putInt(d2, out, outOff + 52);
+		putInt(d1, out, outOff + 56);
+		putInt(d0, out, outOff + 60);
 	}
 
-	private int[] convertToIntArray(byte[] in) throws IOException {
-		assert in.length % 4 == 0;
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(in);
-		int[] out = new int[in.length >> 2];
-		for (int i = 0; i < out.length; i++) {
-			out[i] = readInt(inputStream);
+	// nBlocks independent blocks, four at a time while there are enough
+	static void cryptBlocks(int[] rk, byte[] in, int inOff, int nBlocks,
+			byte[] out, int outOff) {
+		for (; nBlocks >= 4; nBlocks -= 4) {
+			crypt4(rk, in, inOff, out, outOff);
+			inOff += 4 * SMS4_BLOCK_SIZE;
+			outOff += 4 * SMS4_BLOCK_SIZE;
+		}
+		for (; nBlocks > 0; nBlocks--) {
+			crypt(rk, in, inOff, out, outOff);
+			inOff += SMS4_BLOCK_SIZE;
+			outOff += SMS4_BLOCK_SIZE;
 		}
-		return out;
 	}
 
 	// block 128bit
 	// cipher block 32bit*4
 	public byte[] encryptBlock(byte[] originBlock) throws IOException {
-		int[] x = convertToIntArray(originBlock);
-		for (int i = 0; i < ROUND; i++) {
-			try {
-				F(x, rk, i);
-				if (v) {
-					System.out.println("rk[" + i + "]="
-							+ Integer.toHexString(rk[i]) + "    X[" + i + "]="
-							+ Integer.toHexString(x[i % 4]));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
+		if (originBlock.length != SMS4_BLOCK_SIZE) {
+			throw new IOException("Block must be " + SMS4_BLOCK_SIZE
+					+ " bytes");
 		}
-		byte[] encData = R(x);
+		byte[] encData = new byte[SMS4_BLOCK_SIZE];
+		crypt(rk, originBlock, 0, encData, 0);
 		return encData;
 	}
 
 	public byte[] decryptBlock(byte[] encData) throws IOException {
-		int[] x = R_(encData);
-		for (int i = 0; i < ROUND; i++) {
-			int index = ROUND - i - 1;
-			try {
-				F(x, rk, index);
-				if (v) {
-					System.out.println("rk[" + index + "]="
-							+ Integer.toHexString(rk[index]) + "    X[" + index
-							+ "]=" + Integer.toHexString(x[index % 4]));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		if (encData.length != SMS4_BLOCK_SIZE) {
+			throw new IOException("Block must be " + SMS4_BLOCK_SIZE
+					+ " bytes");
 		}
-		byte[] decData = convertToBytes(x);
+		byte[] decData = new byte[SMS4_BLOCK_SIZE];
+		crypt(rkDec, encData, 0, decData, 0);
 		return decData;
 	}
 
-	protected int[] genRk(byte[] mk) throws IOException {
-		ByteArrayInputStream mkInStream = new ByteArrayInputStream(mk);
-		int[] k = new int[4];
-		int[] rk = new int[ROUND];
-		for (int i = 0; i < 4; i++) {
-			int mkElement;
-			mkElement = readInt(mkInStream);
-			k[i] = mkElement ^ FK[i];
-		}
-		for (int i = 0; i < ROUND; i++) {
-			rk[i] = k[(i + 0) % 4] ^= T_(k[(i + 1) % 4] ^ k[(i + 2) % 4]
-					^ k[(i + 3) % 4] ^ CK[i]);
-		}
-		return rk;
-	}
-
-	private int readInt(InputStream inputStream) throws IOException {
-		byte[] n = new byte[4];
-		if (inputStream.read(n) != 4) {
-			throw new IOException("no integer in inputStream");
-		}
-		return convertToInt(n);
-	}
-
-	private int convertToInt(byte[] b) {
-		int n = 0;
-		for (int i = 0; i < 4; i++) {
-			n = n | ((b[i] & 0xFF) << 8 * (3 - i));
-		}
-		return n;
+	protected int[] genRk(byte[] mk) {
+		return expandKey(mk);
 	}
 
-	private byte[] convertToBytes(int n) {
-		byte[] b = new byte[4];
-		for (int i = 0; i < b.length; i++) {
-			b[i] = (byte) (n >> 8 * (3 - i) & 0xFF);
+	// the 32 round keys of mk in encryption order
+	static int[] expandKey(byte[] mk) {
+		int[] rk = new int[ROUND];
+		int k0 = getInt(mk, 0) ^ FK[0];
+		int k1 = getInt(mk, 4) ^ FK[1];
+		int k2 = getInt(mk, 8) ^ FK[2];
+		int k3 = getInt(mk, 12) ^ FK[3];
+		for (int i = 0; i < ROUND; i += 4) {
+			rk[i] = k0 ^= T_(k1 ^ k2 ^ k3 ^ CK[i]);
+			rk[i + 1] = k1 ^= T_(k2 ^ k3 ^ k0 ^ CK[i + 1]);
+			rk[i + 2] = k2 ^= T_(k3 ^ k0 ^ k1 ^ CK[i + 2]);
+			rk[i + 3] = k3 ^= T_(k0 ^ k1 ^ k2 ^ CK[i + 3]);
 		}
-		return b;
+		return rk;
 	}
 
 	// check if the specified length (in bytes) is a valid keysize for SMS4
@@ -279,40 +318,40 @@ public class SMS4Crypt extends SymmetricCipher implements SMS4Constants {
 					+ key.length + " bytes");
 		}
 
-		// generate session round key.
-		try {
-			this.rk = genRk(key);
-		} catch (IOException e) {
-			throw new InvalidKeyException(e);
-		}
+		// session round keys, expanded once per key by the cache
+		SMS4KeyCache.getRoundKeys(key, rk, rkDec);
 	}
 
+	/**
+	 * Encrypt one block, <code>plain</code> and <code>cipher</code> may be
+	 * the same buffer at the same offset.
+	 */
 	@Override
 	void encryptBlock(byte[] plain, int plainOffset, byte[] cipher,
 			int cipherOffset) {
-		byte[] oriData = new byte[SMS4_BLOCK_SIZE];
-		byte[] encData = null;
-		System.arraycopy(plain, plainOffset, oriData, 0, oriData.length);
-		try {
-			encData = encryptBlock(oriData);
-			System.arraycopy(encData, 0, cipher, cipherOffset, encData.length);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		crypt(rk, plain, plainOffset, cipher, cipherOffset);
 	}
 
+	/**
+	 * Decrypt one block, <code>cipher</code> and <code>plain</code> may be
+	 * the same buffer at the same offset.
+	 */
 	@Override
 	void decryptBlock(byte[] cipher, int cipherOffset, byte[] plain,
 			int plainOffset) {
-		byte[] encData = new byte[SMS4_BLOCK_SIZE];
-		byte[] decData = null;
-		System.arraycopy(cipher, cipherOffset, encData, 0, encData.length);
-		try {
-			decData = decryptBlock(encData);
-			System.arraycopy(decData, 0, plain, plainOffset, decData.length);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		crypt(rkDec, cipher, cipherOffset, plain, plainOffset);
+	}
+
+	@Override
+	void encryptBlocks(byte[] in, int inOff, int nBlocks, byte[] out,
+			int outOff) {
+		cryptBlocks(rk, in, inOff, nBlocks, out, outOff);
+	}
+
+	@Override
+	void decryptBlocks(byte[] in, int inOff, int nBlocks, byte[] out,
+			int outOff) {
+		cryptBlocks(rkDec, in, inOff, nBlocks, out, outOff);
 	}
 
 }
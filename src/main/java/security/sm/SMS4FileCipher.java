@@ -0,0 +1,277 @@
+package security.sm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Encrypts or decrypts a file with an initialized SMS4 {@link Cipher} in
+ * constant memory, without reading the file into a <code>byte[]</code>.
+ *
+ * <p>
+ * Three stages run concurrently: a reader maps the next chunk of the input
+ * with {@link FileChannel#map} and loads it, the calling thread runs the
+ * cipher from the mapped chunk into a direct buffer, and a writer drains the
+ * other direct buffer to the output file. Two chunks are in flight at any
+ * time, so memory use does not depend on the file size. The chunk size
+ * defaults to 8 MB and can be set with the system property
+ * <code>security.sm.sms4FileChunkSize</code>.
+ *
+ * <p>
+ * Any mode and padding works. A GCM decryption still holds the whole
+ * ciphertext in the cipher until the tag has been checked, so it is not
+ * constant in memory.
+ *
+ * <pre>
+ * Cipher c = Cipher.getInstance(&quot;SMS4/CTR/NoPadding&quot;, &quot;TopSM&quot;);
+ * c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+ * SMS4FileCipher fc = new SMS4FileCipher(c);
+ * fc.setProgressListener(listener);
+ * fc.cryptFile(new File(&quot;backup.tar&quot;), new File(&quot;backup.tar.enc&quot;));
+ * </pre>
+ */
+public class SMS4FileCipher {
+
+	private static final String PROP_CHUNK_SIZE = "security.sm.sms4FileChunkSize";
+
+	private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger(
+			PROP_CHUNK_SIZE, 8 << 20);
+
+	// marks the end of a queue
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	/**
+	 * Receives the progress of {@link SMS4FileCipher#cryptFile}, called on
+	 * the thread running it after every chunk.
+	 */
+	public interface ProgressListener {
+		void progress(long bytesDone, long bytesTotal);
+	}
+
+	private final Cipher cipher;
+	private final int chunkSize;
+	private ProgressListener listener;
+
+	private volatile double bytesPerSecond;
+
+	public SMS4FileCipher(Cipher cipher) {
+		this(cipher, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param cipher
+	 *            an initialized cipher, finished by every
+	 *            {@link #cryptFile(File, File)}
+	 * @param chunkSize
+	 *            bytes mapped and processed per step
+	 */
+	public SMS4FileCipher(Cipher cipher, int chunkSize) {
+		if (chunkSize < SMS4Constants.SMS4_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid chunk size: "
+					+ chunkSize);
+		}
+		this.cipher = cipher;
+		this.chunkSize = chunkSize;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Throughput of the last {@link #cryptFile(File, File)}, in input bytes
+	 * per second.
+	 */
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Run the whole of <code>in</code> through the cipher, including
+	 * <code>doFinal</code>, and write the result to <code>out</code>. Returns
+	 * the number of bytes written.
+	 */
+	public long cryptFile(File in, File out) throws IOException,
+			GeneralSecurityException {
+		long start = System.nanoTime();
+		ExecutorService stages = Executors.newFixedThreadPool(2,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SMS4FileCipher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		FileInputStream fis = new FileInputStream(in);
+		try {
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				final FileChannel src = fis.getChannel();
+				final FileChannel dst = fos.getChannel();
+				final long total = src.size();
+
+				final BlockingQueue<ByteBuffer> mapped = new ArrayBlockingQueue<ByteBuffer>(
+						2);
+				final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(
+						2);
+				final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(
+						2);
+				final int outSize = Math.max(cipher.getOutputSize(chunkSize),
+						chunkSize);
+				free.add(ByteBuffer.allocateDirect(outSize));
+				free.add(ByteBuffer.allocateDirect(outSize));
+
+				Future<Void> reader = stages.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (long pos = 0; pos < total; pos += chunkSize) {
+							MappedByteBuffer mb = src.map(
+									FileChannel.MapMode.READ_ONLY, pos,
+									Math.min(chunkSize, total - pos));
+							mb.load();
+							mapped.put(mb);
+						}
+						mapped.put(EOF);
+						return null;
+					}
+				});
+				Future<Long> writer = stages.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						long written = 0;
+						ByteBuffer bb;
+						while ((bb = full.take()) != EOF) {
+							while (bb.hasRemaining()) {
+								written += dst.write(bb);
+							}
+							// buffers grown for a large output are dropped
+							if (bb.capacity() == outSize) {
+								bb.clear();
+								free.put(bb);
+							}
+						}
+						return written;
+					}
+				});
+
+				long done = 0;
+				ByteBuffer chunk;
+				while ((chunk = take(mapped, reader)) != EOF) {
+					int len = chunk.remaining();
+					put(full, crypt(chunk, take(free, writer), free, false),
+							writer);
+					done += len;
+					if (listener != null) {
+						listener.progress(done, total);
+					}
+				}
+				put(full, crypt(EOF, take(free, writer), free, true), writer);
+				put(full, EOF, writer);
+
+				long written = get(writer);
+				get(reader);
+				bytesPerSecond = total / ((System.nanoTime() - start) / 1e9);
+				return written;
+			} finally {
+				fos.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			stages.shutdownNow();
+			fis.close();
+		}
+	}
+
+	// run the cipher into ob, or into a larger buffer when ob is too short,
+	// and return the buffer ready to be written
+	private ByteBuffer crypt(ByteBuffer in, ByteBuffer ob,
+			BlockingQueue<ByteBuffer> free, boolean last)
+			throws GeneralSecurityException {
+		try {
+			crypt(in, ob, last);
+		} catch (ShortBufferException e) {
+			free.add(ob);
+			ob = ByteBuffer.allocateDirect(cipher.getOutputSize(in.remaining()));
+			crypt(in, ob, last);
+		}
+		ob.flip();
+		return ob;
+	}
+
+	private void crypt(ByteBuffer in, ByteBuffer ob, boolean last)
+			throws GeneralSecurityException {
+		if (last) {
+			cipher.doFinal(in, ob);
+		} else {
+			cipher.update(in, ob);
+		}
+	}
+
+	private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer bb,
+			Future<?> stage) throws IOException, InterruptedException {
+		while (!queue.offer(bb, 100, TimeUnit.MILLISECONDS)) {
+			if (stage.isDone()) {
+				get(stage);
+				throw new IOException("Pipeline stage ended early");
+			}
+		}
+	}
+
+	// take from a queue, failing early when the stage filling it failed
+	private static ByteBuffer take(BlockingQueue<ByteBuffer> queue,
+			Future<?> stage) throws IOException, InterruptedException {
+		for (;;) {
+			ByteBuffer bb = queue.poll(100, TimeUnit.MILLISECONDS);
+			if (bb != null) {
+				return bb;
+			}
+			if (stage.isDone()) {
+				get(stage);
+				// the stage ended normally, so anything left is queued
+				bb = queue.poll();
+				if (bb != null) {
+					return bb;
+				}
+				throw new IOException("Pipeline stage ended early");
+			}
+		}
+	}
+
+	private static <T> T get(Future<T> stage) throws IOException,
+			InterruptedException {
+		try {
+			return stage.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package security.sm;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.MacSpi;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * SMS4-GMAC, GCM over additional data only (NIST SP 800-38D), registered as
+ * the <code>Mac</code> <code>SMS4-GMAC</code>.
+ *
+ * <p>
+ * Every message needs a fresh IV, given as a {@link GCMParameterSpec} or as an
+ * {@link IvParameterSpec} for a 128 bit tag. The hash subkey H and its GHASH
+ * tables are derived once per key: initializing again with the key already in
+ * use and a new IV costs one block encryption. Updates do not allocate.
+ *
+ * <pre>
+ * Mac mac = Mac.getInstance(&quot;SMS4-GMAC&quot;, &quot;TopSM&quot;);
+ * mac.init(key, new GCMParameterSpec(128, iv));
+ * byte[] tag = mac.doFinal(packet);
+ * </pre>
+ */
+public final class SMS4GMac extends MacSpi {
+
+	private static final int BLOCK_SIZE = SMS4Constants.SMS4_BLOCK_SIZE;
+
+	private static final int DEFAULT_IV_LEN = 12;
+
+	private final SMS4Crypt engine = new SMS4Crypt();
+
+	// the key the GHASH tables belong to, null before the first init
+	private byte[] key;
+	private GHASH ghash;
+
+	// E_K(J0), xored into the hash
+	private final byte[] tagMask = new byte[BLOCK_SIZE];
+	private int tagLen;
+
+	private final byte[] buf = new byte[BLOCK_SIZE];
+	private int bufOff;
+	private long processed;
+
+	// staging for direct byte buffers
+	private byte[] bbBuf;
+
+	protected int engineGetMacLength() {
+		return tagLen;
+	}
+
+	protected void engineInit(Key key, AlgorithmParameterSpec params)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] iv;
+		int tagBits;
+		if (params instanceof GCMParameterSpec) {
+			iv = ((GCMParameterSpec) params).getIV();
+			tagBits = ((GCMParameterSpec) params).getTLen();
+			if ((tagBits < 96) || (tagBits > 128) || ((tagBits & 7) != 0)) {
+				throw new InvalidAlgorithmParameterException(
+						"Unsupported TLen value: must be one of "
+								+ "{128, 120, 112, 104, 96}");
+			}
+		} else if (params instanceof IvParameterSpec) {
+			iv = ((IvParameterSpec) params).getIV();
+			tagBits = 128;
+		} else {
+			throw new InvalidAlgorithmParameterException(
+					"SMS4-GMAC requires a GCMParameterSpec or an IvParameterSpec");
+		}
+		if (iv.length == 0) {
+			throw new InvalidAlgorithmParameterException("IV is empty");
+		}
+
+		byte[] keyBytes = SymmetricCipher.getKeyBytes(key);
+		if (this.key != null && MessageDigest.isEqual(this.key, keyBytes)) {
+			Arrays.fill(keyBytes, (byte) 0);
+		} else {
+			engine.init(false, "SMS4", keyBytes);
+			byte[] subkeyH = new byte[BLOCK_SIZE];
+			engine.encryptBlock(subkeyH, 0, subkeyH, 0);
+			ghash = new GHASH(subkeyH);
+			Arrays.fill(subkeyH, (byte) 0);
+			if (this.key != null) {
+				Arrays.fill(this.key, (byte) 0);
+			}
+			this.key = keyBytes;
+		}
+		tagLen = tagBits >>> 3;
+
+		byte[] j0 = tagMask;
+		if (iv.length == DEFAULT_IV_LEN) {
+			System.arraycopy(iv, 0, j0, 0, iv.length);
+			j0[12] = 0;
+			j0[13] = 0;
+			j0[14] = 0;
+			j0[15] = 1;
+		} else {
+			// J0 = GHASH(IV || 0^(s+64) || [len(IV)]64)
+			ghash.reset();
+			int whole = iv.length - (iv.length % BLOCK_SIZE);
+			ghash.update(iv, 0, whole);
+			if (whole < iv.length) {
+				Arrays.fill(buf, (byte) 0);
+				System.arraycopy(iv, whole, buf, 0, iv.length - whole);
+				ghash.update(buf, 0, BLOCK_SIZE);
+			}
+			ghash.update(0, ((long) iv.length) << 3);
+			ghash.digest(j0, 0);
+		}
+		engine.encryptBlock(j0, 0, tagMask, 0);
+		engineReset();
+	}
+
+	protected void engineUpdate(byte input) {
+		buf[bufOff++] = input;
+		processed++;
+		if (bufOff == BLOCK_SIZE) {
+			ghash.update(buf, 0, BLOCK_SIZE);
+			bufOff = 0;
+		}
+	}
+
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		if (len <= 0) {
+			return;
+		}
+		processed += len;
+		if (bufOff > 0) {
+			int n = Math.min(BLOCK_SIZE - bufOff, len);
+			System.arraycopy(input, offset, buf, bufOff, n);
+			bufOff += n;
+			offset += n;
+			len -= n;
+			if (bufOff < BLOCK_SIZE) {
+				return;
+			}
+			ghash.update(buf, 0, BLOCK_SIZE);
+			bufOff = 0;
+		}
+		int whole = len - (len % BLOCK_SIZE);
+		ghash.update(input, offset, whole);
+		System.arraycopy(input, offset + whole, buf, 0, len - whole);
+		bufOff = len - whole;
+	}
+
+	protected void engineUpdate(ByteBuffer input) {
+		if (input.hasArray()) {
+			int pos = input.position();
+			engineUpdate(input.array(), input.arrayOffset() + pos,
+					input.remaining());
+			input.position(input.limit());
+			return;
+		}
+		if (bbBuf == null) {
+			bbBuf = new byte[16 * BLOCK_SIZE];
+		}
+		while (input.hasRemaining()) {
+			int n = Math.min(input.remaining(), bbBuf.length);
+			input.get(bbBuf, 0, n);
+			engineUpdate(bbBuf, 0, n);
+		}
+	}
+
+	protected byte[] engineDoFinal() {
+		if (bufOff > 0) {
+			Arrays.fill(buf, bufOff, BLOCK_SIZE, (byte) 0);
+			ghash.update(buf, 0, BLOCK_SIZE);
+		}
+		// [len(A)]64 || [len(C)]64, there is no ciphertext
+		ghash.update(processed << 3, 0);
+		ghash.digest(buf, 0);
+		byte[] mac = new byte[tagLen];
+		for (int i = 0; i < tagLen; i++) {
+			mac[i] = (byte) (buf[i] ^ tagMask[i]);
+		}
+		engineReset();
+		return mac;
+	}
+
+	protected void engineReset() {
+		if (ghash != null) {
+			ghash.reset();
+		}
+		Arrays.fill(buf, (byte) 0);
+		bufOff = 0;
+		processed = 0;
+	}
+}
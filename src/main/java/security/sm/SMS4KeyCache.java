@@ -0,0 +1,285 @@
+package security.sm;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional bounded cache of expanded SMS4 round keys, in encryption and in
+ * decryption order, so that re-initializing a cipher with a recently used key
+ * skips the key expansion.
+ *
+ * <p>
+ * The cache is off unless the system property
+ * <code>security.sm.sms4KeyCacheSize</code> or {@link #setMaxSize(int)} gives
+ * it a size. While on, it keeps the raw key and the round keys of up to that
+ * many session keys in memory, which is the price of saving one key schedule
+ * per init; {@link #setMaxSize(int) setMaxSize(0)} turns it off and zeroes
+ * them.
+ *
+ * <p>
+ * Entries are spread over {@value #STRIPES} independently locked LRU
+ * stripes, so threads initializing ciphers with different keys rarely wait
+ * on each other. They are found by a fingerprint of the key mixed with a
+ * random per process seed and confirmed by comparing the key itself in
+ * constant time. Evicted and cleared entries have their key and round keys
+ * overwritten with zeros.
+ */
+public final class SMS4KeyCache {
+
+	private static final String PROP_SIZE = "security.sm.sms4KeyCacheSize";
+
+	private static final int STRIPES = 16;
+
+	private static final int ROUND = 32;
+
+	// keeps fingerprints from being predictable across processes
+	private static final long SEED = new SecureRandom().nextLong();
+
+	// entries per stripe, 0 when the cache is off
+	private static volatile int stripeSize = stripeSize(Integer.getInteger(
+			PROP_SIZE, 0));
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder inits = new LongAdder();
+	private static final LongAdder initNanos = new LongAdder();
+
+	private static final Stripe[] stripes = new Stripe[STRIPES];
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private SMS4KeyCache() {
+		// no instantiation
+	}
+
+	/**
+	 * Fill <code>rk</code> and <code>rkDec</code> with the round keys of
+	 * <code>key</code> in encryption and in decryption order.
+	 */
+	static void getRoundKeys(byte[] key, int[] rk, int[] rkDec) {
+		if (stripeSize == 0) {
+			int[] k = SMS4Crypt.expandKey(key);
+			for (int i = 0; i < ROUND; i++) {
+				rk[i] = k[i];
+				rkDec[i] = k[ROUND - 1 - i];
+			}
+			Arrays.fill(k, 0);
+			misses.increment();
+			return;
+		}
+		long start = System.nanoTime();
+		// the probe shares the caller's array, only stored keys are copies
+		Key probe = new Key(key);
+		Stripe s = stripes[probe.hash & (STRIPES - 1)];
+		synchronized (s) {
+			Entry e = s.get(probe);
+			if (e != null) {
+				System.arraycopy(e.rk, 0, rk, 0, ROUND);
+				System.arraycopy(e.rkDec, 0, rkDec, 0, ROUND);
+				hits.increment();
+				record(start);
+				return;
+			}
+		}
+		misses.increment();
+		// expand outside the lock
+		Entry e = expand(key, rk, rkDec);
+		synchronized (s) {
+			if (stripeSize == 0) {
+				// turned off meanwhile
+				e.destroy();
+			} else {
+				Key k = new Key(key.clone(), probe.hash);
+				Entry old = s.put(k, e);
+				if (old != null) {
+					// another thread expanded the same key first, the map
+					// keeps its Key
+					old.destroy();
+					k.destroy();
+				}
+			}
+		}
+		record(start);
+	}
+
+	private static Entry expand(byte[] key, int[] rk, int[] rkDec) {
+		Entry e = new Entry(SMS4Crypt.expandKey(key));
+		System.arraycopy(e.rk, 0, rk, 0, ROUND);
+		System.arraycopy(e.rkDec, 0, rkDec, 0, ROUND);
+		return e;
+	}
+
+	private static void record(long start) {
+		inits.increment();
+		initNanos.add(System.nanoTime() - start);
+	}
+
+	private static int stripeSize(int maxEntries) {
+		return maxEntries <= 0 ? 0 : (maxEntries + STRIPES - 1) / STRIPES;
+	}
+
+	/**
+	 * Number of keys kept, rounded up to a multiple of {@value #STRIPES}; 0
+	 * turns the cache off and clears it.
+	 */
+	public static void setMaxSize(int maxEntries) {
+		stripeSize = stripeSize(maxEntries);
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				s.trim();
+			}
+		}
+	}
+
+	public static int getMaxSize() {
+		return stripeSize * STRIPES;
+	}
+
+	public static int size() {
+		int n = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				n += s.size();
+			}
+		}
+		return n;
+	}
+
+	public static long getHitCount() {
+		return hits.sum();
+	}
+
+	public static long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Share of key lookups answered from the cache, 0 before the first one.
+	 */
+	public static double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Average time in nanoseconds to set up the round keys of a cipher while
+	 * the cache is on, hits and misses together.
+	 */
+	public static double getAverageInitNanos() {
+		long n = inits.sum();
+		return n == 0 ? 0 : (double) initNanos.sum() / n;
+	}
+
+	/**
+	 * Remove and zero all entries, counters are kept.
+	 */
+	public static void clear() {
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				for (Iterator<Map.Entry<Key, Entry>> it = s.entrySet()
+						.iterator(); it.hasNext();) {
+					Map.Entry<Key, Entry> me = it.next();
+					me.getKey().destroy();
+					me.getValue().destroy();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	// access ordered: iteration starts at the least recently used entry
+	private static final class Stripe extends LinkedHashMap<Key, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		Stripe() {
+			super(16, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			if (size() > stripeSize) {
+				eldest.getKey().destroy();
+				eldest.getValue().destroy();
+				return true;
+			}
+			return false;
+		}
+
+		// drop the least recently used entries over the current size
+		void trim() {
+			Iterator<Map.Entry<Key, Entry>> it = entrySet().iterator();
+			while (size() > stripeSize && it.hasNext()) {
+				Map.Entry<Key, Entry> me = it.next();
+				me.getKey().destroy();
+				me.getValue().destroy();
+				it.remove();
+			}
+		}
+	}
+
+	private static final class Key {
+		private final byte[] key;
+		private final int hash;
+
+		Key(byte[] key) {
+			this(key, fingerprint(key));
+		}
+
+		Key(byte[] key, int hash) {
+			this.key = key;
+			this.hash = hash;
+		}
+
+		// 64 bit multiply-xorshift mix of the key bytes and the seed
+		private static int fingerprint(byte[] key) {
+			long h = SEED;
+			for (int i = 0; i < key.length; i++) {
+				h = (h ^ (key[i] & 0xFF)) * 0x9E3779B97F4A7C15L;
+				h ^= h >>> 29;
+			}
+			return (int) (h ^ (h >>> 32));
+		}
+
+		void destroy() {
+			Arrays.fill(key, (byte) 0);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			return MessageDigest.isEqual(key, ((Key) obj).key);
+		}
+	}
+
+	private static final class Entry {
+		final int[] rk;
+		final int[] rkDec;
+
+		Entry(int[] rk) {
+			this.rk = rk;
+			this.rkDec = new int[ROUND];
+			for (int i = 0; i < ROUND; i++) {
+				rkDec[i] = rk[ROUND - 1 - i];
+			}
+		}
+
+		void destroy() {
+			Arrays.fill(rk, 0);
+			Arrays.fill(rkDec, 0);
+		}
+	}
+}
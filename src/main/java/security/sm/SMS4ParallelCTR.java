@@ -0,0 +1,281 @@
+package security.sm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SMS4 in counter mode on a {@link ForkJoinPool}.
+ *
+ * <p>
+ * The keystream block i is the encryption of IV + i, so a buffer can be cut
+ * into counter aligned chunks that are processed independently on all worker
+ * threads. {@link SMS4Cipher} in CTR mode switches to this engine for updates
+ * of at least {@link #getThreshold()} bytes; it can also be used directly on
+ * byte arrays and files.
+ *
+ * <pre>
+ * SMS4ParallelCTR ctr = new SMS4ParallelCTR(key, new ForkJoinPool(32));
+ * ctr.cryptFile(new File(&quot;backup.tar&quot;), new File(&quot;backup.tar.enc&quot;), iv);
+ * System.out.println(ctr.getBytesPerSecond() / 1e6 + &quot; MB/s&quot;);
+ * </pre>
+ */
+public class SMS4ParallelCTR {
+
+	private static final String PROP_THRESHOLD = "security.sm.sms4ParallelThreshold";
+
+	private static final int BLOCK_SIZE = SMS4Constants.SMS4_BLOCK_SIZE;
+
+	// updates of at least this many bytes run in parallel in SMS4Cipher
+	private static volatile int threshold = Math.max(
+			Integer.getInteger(PROP_THRESHOLD, 1 << 20), BLOCK_SIZE);
+
+	// blocks processed by one task without further splitting (64 KB)
+	private static final int CHUNK_BLOCKS = 4096;
+
+	// bytes read from a file per parallel pass
+	private static final int FILE_BUFFER_SIZE = 16 << 20;
+
+	private final int[] rk;
+
+	// null for the common pool
+	private final ForkJoinPool pool;
+
+	private volatile double bytesPerSecond;
+
+	public SMS4ParallelCTR(byte[] key) throws InvalidKeyException {
+		this(key, null);
+	}
+
+	public SMS4ParallelCTR(byte[] key, ForkJoinPool pool)
+			throws InvalidKeyException {
+		SMS4Crypt engine = new SMS4Crypt();
+		engine.init(false, "SMS4", key);
+		this.rk = engine.rk;
+		this.pool = pool;
+	}
+
+	// shares the round keys of an initialized engine
+	SMS4ParallelCTR(SMS4Crypt engine) {
+		this.rk = engine.rk;
+		this.pool = null;
+	}
+
+	/**
+	 * Minimum update size in bytes for which {@link SMS4Cipher} uses the
+	 * parallel engine, set with the system property
+	 * <code>security.sm.sms4ParallelThreshold</code> or
+	 * {@link #setThreshold(int)}. It is at least one block.
+	 */
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public static void setThreshold(int bytes) {
+		threshold = Math.max(bytes, BLOCK_SIZE);
+	}
+
+	/**
+	 * Encrypt or decrypt <code>len</code> bytes with the keystream starting at
+	 * counter block <code>iv + blockOffset</code>. The last block may be
+	 * partial. <code>in</code> and <code>out</code> may be the same buffer at
+	 * the same offset.
+	 */
+	public void crypt(byte[] iv, long blockOffset, byte[] in, int inOff,
+			int len, byte[] out, int outOff) {
+		if (iv.length != BLOCK_SIZE) {
+			throw new IllegalArgumentException("IV must be " + BLOCK_SIZE
+					+ " bytes long");
+		}
+		if (blockOffset < 0) {
+			throw new IllegalArgumentException("Negative block offset: "
+					+ blockOffset);
+		}
+		long start = System.nanoTime();
+		byte[] counter = iv.clone();
+		addCounter(counter, blockOffset);
+		crypt(counter, in, inOff, len, out, outOff);
+		long elapsed = System.nanoTime() - start;
+		bytesPerSecond = (elapsed > 0) ? len * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * Encrypt or decrypt the file <code>in</code> into <code>out</code>,
+	 * starting with the counter block <code>iv</code>. Returns the number of
+	 * bytes written.
+	 */
+	public long cryptFile(File in, File out, byte[] iv) throws IOException {
+		if (iv.length != BLOCK_SIZE) {
+			throw new IllegalArgumentException("IV must be " + BLOCK_SIZE
+					+ " bytes long");
+		}
+		long start = System.nanoTime();
+		byte[] counter = iv.clone();
+		byte[] buf = new byte[FILE_BUFFER_SIZE];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		long total = 0;
+		FileInputStream fis = new FileInputStream(in);
+		try {
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				FileChannel src = fis.getChannel();
+				FileChannel dst = fos.getChannel();
+				int n;
+				while ((n = fill(src, bb)) > 0) {
+					crypt(counter, buf, 0, n, buf, 0);
+					bb.flip();
+					while (bb.hasRemaining()) {
+						dst.write(bb);
+					}
+					// a full buffer is a whole number of blocks
+					addCounter(counter, n / BLOCK_SIZE);
+					total += n;
+				}
+			} finally {
+				fos.close();
+			}
+		} finally {
+			fis.close();
+		}
+		long elapsed = System.nanoTime() - start;
+		bytesPerSecond = (elapsed > 0) ? total * 1e9 / elapsed : 0;
+		return total;
+	}
+
+	/**
+	 * Throughput of the last completed {@link #crypt} or {@link #cryptFile}
+	 * call.
+	 */
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public int getParallelism() {
+		return pool().getParallelism();
+	}
+
+	private ForkJoinPool pool() {
+		return (pool != null) ? pool : ForkJoinPool.commonPool();
+	}
+
+	// reads until the buffer is full or the channel is at its end
+	private static int fill(FileChannel ch, ByteBuffer bb) throws IOException {
+		bb.clear();
+		while (bb.hasRemaining()) {
+			if (ch.read(bb) < 0) {
+				break;
+			}
+		}
+		return bb.position();
+	}
+
+	/*
+	 * Process len bytes with the keystream starting at counter, counter is not
+	 * modified.
+	 */
+	void crypt(byte[] counter, byte[] in, int inOff, int len, byte[] out,
+			int outOff) {
+		long blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if (blocks <= CHUNK_BLOCKS) {
+			cryptChunk(rk, counter.clone(), in, inOff, len, out, outOff);
+		} else {
+			pool().invoke(new Task(counter, in, inOff, len, out, outOff, 0,
+					blocks));
+		}
+	}
+
+	/**
+	 * Add n to the 128 bit big-endian counter.
+	 */
+	static void addCounter(byte[] counter, long n) {
+		int carry = 0;
+		for (int i = counter.length - 1; i >= 0; i--) {
+			int sum = (counter[i] & 0xFF) + (int) (n & 0xFF) + carry;
+			counter[i] = (byte) sum;
+			carry = sum >>> 8;
+			n >>>= 8;
+			if (n == 0 && carry == 0) {
+				break;
+			}
+		}
+	}
+
+	// ctr is advanced past the processed blocks
+	private static void cryptChunk(int[] rk, byte[] ctr, byte[] in,
+			int inOff, int len, byte[] out, int outOff) {
+		// four counter blocks at a time for the interleaved engine
+		byte[] ctrs = new byte[4 * BLOCK_SIZE];
+		byte[] ks = new byte[4 * BLOCK_SIZE];
+		for (; len >= ks.length; len -= ks.length) {
+			for (int j = 0; j < ks.length; j += BLOCK_SIZE) {
+				System.arraycopy(ctr, 0, ctrs, j, BLOCK_SIZE);
+				addCounter(ctr, 1);
+			}
+			SMS4Crypt.crypt4(rk, ctrs, 0, ks, 0);
+			for (int i = 0; i < ks.length; i++) {
+				out[outOff + i] = (byte) (in[inOff + i] ^ ks[i]);
+			}
+			inOff += ks.length;
+			outOff += ks.length;
+		}
+		while (len > 0) {
+			SMS4Crypt.crypt(rk, ctr, 0, ks, 0);
+			addCounter(ctr, 1);
+			int n = Math.min(len, BLOCK_SIZE);
+			for (int i = 0; i < n; i++) {
+				out[outOff + i] = (byte) (in[inOff + i] ^ ks[i]);
+			}
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+	}
+
+	private final class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] counter;
+		private final byte[] in;
+		private final int inOff;
+		private final int len;
+		private final byte[] out;
+		private final int outOff;
+		// block range of this task
+		private final long from;
+		private final long to;
+
+		Task(byte[] counter, byte[] in, int inOff, int len, byte[] out,
+				int outOff, long from, long to) {
+			this.counter = counter;
+			this.in = in;
+			this.inOff = inOff;
+			this.len = len;
+			this.out = out;
+			this.outOff = outOff;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > CHUNK_BLOCKS) {
+				long mid = (from + to) >>> 1;
+				invokeAll(new Task(counter, in, inOff, len, out, outOff, from,
+						mid), new Task(counter, in, inOff, len, out, outOff,
+						mid, to));
+				return;
+			}
+			int off = (int) (from * BLOCK_SIZE);
+			int n = (int) Math.min(len - off, (to - from) * BLOCK_SIZE);
+			byte[] ctr = counter.clone();
+			addCounter(ctr, from);
+			cryptChunk(rk, ctr, in, inOff + off, n, out, outOff + off);
+		}
+	}
+}
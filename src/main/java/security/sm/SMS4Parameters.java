@@ -0,0 +1,89 @@
+package security.sm;
+
+import java.io.IOException;
+import java.security.AlgorithmParametersSpi;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+import javax.crypto.spec.IvParameterSpec;
+
+import security.util.DerOutputStream;
+import security.util.DerValue;
+
+/**
+ * This class implements the parameter (IV) used with the SMS4 algorithm in
+ * feedback-mode. The IV is DER-encoded as an OCTET STRING.
+ *
+ * <pre>
+ *    SMS4Parameters ::= OCTET STRING (SIZE(16))
+ * </pre>
+ */
+public final class SMS4Parameters extends AlgorithmParametersSpi {
+
+	// the iv
+	private byte[] iv;
+
+	public SMS4Parameters() {
+		// empty
+	}
+
+	protected void engineInit(AlgorithmParameterSpec paramSpec)
+			throws InvalidParameterSpecException {
+		if (!(paramSpec instanceof IvParameterSpec)) {
+			throw new InvalidParameterSpecException(
+					"Inappropriate parameter specification");
+		}
+		byte[] tmpIv = ((IvParameterSpec) paramSpec).getIV();
+		if (tmpIv.length != SMS4Constants.SMS4_BLOCK_SIZE) {
+			throw new InvalidParameterSpecException("IV not "
+					+ SMS4Constants.SMS4_BLOCK_SIZE + " bytes long");
+		}
+		iv = tmpIv.clone();
+	}
+
+	protected void engineInit(byte[] encoded) throws IOException {
+		DerValue der = new DerValue(encoded);
+		byte[] tmpIv = der.getOctetString();
+		if (der.data.available() != 0) {
+			throw new IOException("IV parsing error: extra data");
+		}
+		if (tmpIv.length != SMS4Constants.SMS4_BLOCK_SIZE) {
+			throw new IOException("IV not " + SMS4Constants.SMS4_BLOCK_SIZE
+					+ " bytes long");
+		}
+		iv = tmpIv;
+	}
+
+	protected void engineInit(byte[] encoded, String decodingMethod)
+			throws IOException {
+		engineInit(encoded);
+	}
+
+	protected <T extends AlgorithmParameterSpec> T engineGetParameterSpec(
+			Class<T> paramSpec) throws InvalidParameterSpecException {
+		if (IvParameterSpec.class.isAssignableFrom(paramSpec)) {
+			return paramSpec.cast(new IvParameterSpec(iv));
+		} else {
+			throw new InvalidParameterSpecException(
+					"Inappropriate parameter specification");
+		}
+	}
+
+	protected byte[] engineGetEncoded() throws IOException {
+		DerOutputStream out = new DerOutputStream();
+		out.putOctetString(iv);
+		return out.toByteArray();
+	}
+
+	protected byte[] engineGetEncoded(String encodingMethod) throws IOException {
+		return engineGetEncoded();
+	}
+
+	protected String engineToString() {
+		StringBuilder sb = new StringBuilder("\n    iv:\n[");
+		for (int i = 0; i < iv.length; i++) {
+			sb.append(String.format("%02x", iv[i] & 0xff));
+		}
+		return sb.append("]\n").toString();
+	}
+}
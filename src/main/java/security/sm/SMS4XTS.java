@@ -0,0 +1,168 @@
+package security.sm;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * SMS4 in XTS mode (IEEE P1619) for sector addressed storage.
+ *
+ * <p>
+ * The 32 byte key is split into the data key K1 and the tweak key K2. Block j
+ * of sector s is encrypted as E_K1(P ^ T) ^ T with T = E_K2(s) * alpha^j, the
+ * sector number taken as a 128 bit little-endian integer. Every sector can so
+ * be encrypted or decrypted on its own. A sector that is not a multiple of 16
+ * bytes uses ciphertext stealing for its last two blocks.
+ *
+ * <p>
+ * An instance holds no per call state and may be shared between threads.
+ *
+ * @see SMS4XTSFile
+ */
+public class SMS4XTS {
+
+	private static final int BLOCK_SIZE = SMS4Constants.SMS4_BLOCK_SIZE;
+
+	private final SMS4Crypt dataCipher = new SMS4Crypt();
+	private final SMS4Crypt tweakCipher = new SMS4Crypt();
+
+	public SMS4XTS(byte[] key) throws InvalidKeyException {
+		if (key == null || key.length != 2 * BLOCK_SIZE) {
+			throw new InvalidKeyException("XTS key must be " + 2 * BLOCK_SIZE
+					+ " bytes long");
+		}
+		byte[] k1 = Arrays.copyOfRange(key, 0, BLOCK_SIZE);
+		byte[] k2 = Arrays.copyOfRange(key, BLOCK_SIZE, 2 * BLOCK_SIZE);
+		if (MessageDigest.isEqual(k1, k2)) {
+			throw new InvalidKeyException("XTS key halves must differ");
+		}
+		dataCipher.init(false, "SMS4", k1);
+		tweakCipher.init(false, "SMS4", k2);
+		Arrays.fill(k1, (byte) 0);
+		Arrays.fill(k2, (byte) 0);
+	}
+
+	/**
+	 * Encrypt the <code>len</code> bytes of one sector, at least one block.
+	 * <code>in</code> and <code>out</code> may be the same buffer at the same
+	 * offset.
+	 */
+	public void encryptSector(long sector, byte[] in, int inOff, int len,
+			byte[] out, int outOff) {
+		crypt(false, sector, in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Decrypt the <code>len</code> bytes of one sector, at least one block.
+	 */
+	public void decryptSector(long sector, byte[] in, int inOff, int len,
+			byte[] out, int outOff) {
+		crypt(true, sector, in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Encrypt consecutive sectors of <code>sectorSize</code> bytes starting
+	 * with <code>firstSector</code>; <code>len</code> must be a multiple of
+	 * the sector size.
+	 */
+	public void encryptSectors(long firstSector, int sectorSize, byte[] in,
+			int inOff, int len, byte[] out, int outOff) {
+		checkSectors(sectorSize, len);
+		for (int off = 0; off < len; off += sectorSize) {
+			crypt(false, firstSector++, in, inOff + off, sectorSize, out,
+					outOff + off);
+		}
+	}
+
+	/**
+	 * Decrypt consecutive sectors, see
+	 * {@link #encryptSectors(long, int, byte[], int, int, byte[], int)}.
+	 */
+	public void decryptSectors(long firstSector, int sectorSize, byte[] in,
+			int inOff, int len, byte[] out, int outOff) {
+		checkSectors(sectorSize, len);
+		for (int off = 0; off < len; off += sectorSize) {
+			crypt(true, firstSector++, in, inOff + off, sectorSize, out,
+					outOff + off);
+		}
+	}
+
+	private static void checkSectors(int sectorSize, int len) {
+		if (sectorSize < BLOCK_SIZE || len % sectorSize != 0) {
+			throw new IllegalArgumentException("Length " + len
+					+ " is not a multiple of the sector size " + sectorSize);
+		}
+	}
+
+	private void crypt(boolean decrypting, long sector, byte[] in, int inOff,
+			int len, byte[] out, int outOff) {
+		if (len < BLOCK_SIZE) {
+			throw new IllegalArgumentException("Sector must be at least "
+					+ BLOCK_SIZE + " bytes long");
+		}
+		byte[] t = new byte[BLOCK_SIZE];
+		for (int i = 0; i < 8; i++) {
+			t[i] = (byte) (sector >>> (8 * i));
+		}
+		tweakCipher.encryptBlock(t, 0, t, 0);
+
+		byte[] x = new byte[BLOCK_SIZE];
+		int tail = len % BLOCK_SIZE;
+		// with stealing the last full block is handled below
+		int blocks = len / BLOCK_SIZE - (tail != 0 ? 1 : 0);
+		for (int j = 0; j < blocks; j++) {
+			cryptBlock(decrypting, t, in, inOff, x, out, outOff);
+			mulAlpha(t);
+			inOff += BLOCK_SIZE;
+			outOff += BLOCK_SIZE;
+		}
+		if (tail == 0) {
+			return;
+		}
+
+		// ciphertext stealing over the last full block m and the partial
+		// block m+1; decryption consumes the tweaks in reverse order
+		byte[] t2 = t.clone();
+		mulAlpha(t2);
+		byte[] first = decrypting ? t2 : t;
+		byte[] second = decrypting ? t : t2;
+
+		byte[] cc = new byte[BLOCK_SIZE];
+		cryptBlock(decrypting, first, in, inOff, x, cc, 0);
+		byte[] pp = new byte[BLOCK_SIZE];
+		System.arraycopy(in, inOff + BLOCK_SIZE, pp, 0, tail);
+		System.arraycopy(cc, tail, pp, tail, BLOCK_SIZE - tail);
+		// the partial output block takes the head of cc
+		System.arraycopy(cc, 0, out, outOff + BLOCK_SIZE, tail);
+		cryptBlock(decrypting, second, pp, 0, x, out, outOff);
+	}
+
+	// out = E(in ^ t) ^ t, or D(in ^ t) ^ t
+	private void cryptBlock(boolean decrypting, byte[] t, byte[] in,
+			int inOff, byte[] x, byte[] out, int outOff) {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			x[i] = (byte) (in[inOff + i] ^ t[i]);
+		}
+		if (decrypting) {
+			dataCipher.decryptBlock(x, 0, x, 0);
+		} else {
+			dataCipher.encryptBlock(x, 0, x, 0);
+		}
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			out[outOff + i] = (byte) (x[i] ^ t[i]);
+		}
+	}
+
+	// t = t * alpha in GF(2^128), little-endian byte order
+	private static void mulAlpha(byte[] t) {
+		int carry = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			int b = t[i] & 0xFF;
+			t[i] = (byte) ((b << 1) | carry);
+			carry = b >>> 7;
+		}
+		if (carry != 0) {
+			t[0] ^= (byte) 0x87;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package security.sm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A random access file encrypted sector by sector with {@link SMS4XTS}.
+ *
+ * <p>
+ * Reads and writes take an absolute position like <code>pread</code> and
+ * <code>pwrite</code> and only touch the sectors they cover; a write that
+ * covers part of a sector reads, decrypts and re-encrypts that sector. Reads
+ * and writes of many sectors are decrypted and encrypted in parallel on a
+ * {@link ForkJoinPool}. The file length is always a whole number of sectors,
+ * writing past the end fills the gap and the rest of the last sector with
+ * encrypted zeros.
+ *
+ * <pre>
+ * SMS4XTSFile f = new SMS4XTSFile(new File(&quot;volume.img&quot;), &quot;rw&quot;, key);
+ * f.write(123456789L, data, 0, data.length);
+ * f.read(123456789L, buf, 0, buf.length);
+ * f.close();
+ * </pre>
+ */
+public class SMS4XTSFile implements Closeable {
+
+	public static final int DEFAULT_SECTOR_SIZE = 4096;
+
+	// sectors handled by one task without further splitting
+	private static final int PARALLEL_SECTORS = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final SMS4XTS xts;
+	private final int sectorSize;
+	private final boolean readOnly;
+
+	// null for the common pool
+	private final ForkJoinPool pool;
+
+	public SMS4XTSFile(File file, String mode, byte[] key) throws IOException,
+			InvalidKeyException {
+		this(file, mode, key, DEFAULT_SECTOR_SIZE, null);
+	}
+
+	/**
+	 * @param mode
+	 *            "r" or "rw" as for {@link RandomAccessFile}
+	 * @param key
+	 *            the 32 byte XTS key
+	 * @param sectorSize
+	 *            a multiple of 16 bytes
+	 * @param pool
+	 *            the pool for large reads and writes, or null for the common
+	 *            pool
+	 */
+	public SMS4XTSFile(File file, String mode, byte[] key, int sectorSize,
+			ForkJoinPool pool) throws IOException, InvalidKeyException {
+		if (sectorSize < SMS4Constants.SMS4_BLOCK_SIZE
+				|| sectorSize % SMS4Constants.SMS4_BLOCK_SIZE != 0) {
+			throw new IllegalArgumentException("Invalid sector size: "
+					+ sectorSize);
+		}
+		this.xts = new SMS4XTS(key);
+		this.sectorSize = sectorSize;
+		this.pool = pool;
+		this.file = new RandomAccessFile(file, mode);
+		this.channel = this.file.getChannel();
+		this.readOnly = "r".equals(mode);
+	}
+
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Read up to <code>len</code> bytes at <code>position</code>. Returns the
+	 * number of bytes read, or -1 if <code>position</code> is at or past the
+	 * end of the file.
+	 */
+	public int read(long position, byte[] b, int off, int len)
+			throws IOException {
+		checkRange(position, b, off, len);
+		long size = channel.size();
+		if (position >= size) {
+			return -1;
+		}
+		len = (int) Math.min(len, size - position);
+		if (len == 0) {
+			return 0;
+		}
+		long first = position / sectorSize;
+		long last = (position + len - 1) / sectorSize;
+		byte[] buf = new byte[(int) (last - first + 1) * sectorSize];
+		readFully(first * sectorSize, buf, buf.length);
+		crypt(true, first, buf);
+		System.arraycopy(buf, (int) (position - first * sectorSize), b, off,
+				len);
+		return len;
+	}
+
+	/**
+	 * Write <code>len</code> bytes at <code>position</code>.
+	 */
+	public void write(long position, byte[] b, int off, int len)
+			throws IOException {
+		checkRange(position, b, off, len);
+		if (readOnly) {
+			throw new IOException("File opened read-only");
+		}
+		if (len == 0) {
+			return;
+		}
+		long size = channel.size();
+		long first = position / sectorSize;
+		long last = (position + len - 1) / sectorSize;
+		byte[] buf = new byte[(int) (last - first + 1) * sectorSize];
+		int head = (int) (position - first * sectorSize);
+		int end = head + len;
+		if (first * sectorSize > size) {
+			zeroFill(size / sectorSize, first);
+		}
+
+		// partially covered sectors keep their other bytes
+		if (head != 0 && first * sectorSize < size) {
+			readSector(first, buf, 0);
+		}
+		if (end % sectorSize != 0 && last * sectorSize < size
+				&& (last != first || head == 0)) {
+			readSector(last, buf, buf.length - sectorSize);
+		}
+		System.arraycopy(b, off, buf, head, len);
+		crypt(false, first, buf);
+		writeFully(first * sectorSize, buf, buf.length);
+	}
+
+	public void force(boolean metaData) throws IOException {
+		channel.force(metaData);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private static void checkRange(long position, byte[] b, int off, int len) {
+		if (position < 0 || off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	// encrypted zero sectors from..to, exclusive, a bounded chunk at a time
+	private void zeroFill(long from, long to) throws IOException {
+		int chunk = (int) Math.min(to - from, Math.max(1, (1 << 20) / sectorSize));
+		byte[] zeros = new byte[chunk * sectorSize];
+		byte[] buf = new byte[zeros.length];
+		while (from < to) {
+			int n = (int) Math.min(chunk, to - from);
+			System.arraycopy(zeros, 0, buf, 0, n * sectorSize);
+			xts.encryptSectors(from, sectorSize, buf, 0, n * sectorSize, buf, 0);
+			writeFully(from * sectorSize, buf, n * sectorSize);
+			from += n;
+		}
+	}
+
+	private void writeFully(long pos, byte[] buf, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		while (bb.hasRemaining()) {
+			pos += channel.write(bb, pos);
+		}
+	}
+
+	private void readSector(long sector, byte[] buf, int off)
+			throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, off, sectorSize);
+		long pos = sector * sectorSize;
+		int n;
+		while (bb.hasRemaining() && (n = channel.read(bb, pos)) >= 0) {
+			pos += n;
+		}
+		xts.decryptSector(sector, buf, off, sectorSize, buf, off);
+	}
+
+	private void readFully(long pos, byte[] buf, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		int n;
+		while (bb.hasRemaining() && (n = channel.read(bb, pos)) >= 0) {
+			pos += n;
+		}
+	}
+
+	// in place over whole sectors, in parallel when there are enough
+	private void crypt(boolean decrypting, long firstSector, byte[] buf) {
+		int sectors = buf.length / sectorSize;
+		if (sectors <= PARALLEL_SECTORS) {
+			cryptRange(decrypting, firstSector, buf, 0, sectors);
+		} else {
+			ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+			p.invoke(new Task(decrypting, firstSector, buf, 0, sectors));
+		}
+	}
+
+	private void cryptRange(boolean decrypting, long firstSector, byte[] buf,
+			int from, int to) {
+		int off = from * sectorSize;
+		int len = (to - from) * sectorSize;
+		if (decrypting) {
+			xts.decryptSectors(firstSector + from, sectorSize, buf, off, len,
+					buf, off);
+		} else {
+			xts.encryptSectors(firstSector + from, sectorSize, buf, off, len,
+					buf, off);
+		}
+	}
+
+	private final class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean decrypting;
+		private final long firstSector;
+		private final byte[] buf;
+		// sector range of this task, relative to firstSector
+		private final int from;
+		private final int to;
+
+		Task(boolean decrypting, long firstSector, byte[] buf, int from, int to) {
+			this.decrypting = decrypting;
+			this.firstSector = firstSector;
+			this.buf = buf;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > PARALLEL_SECTORS) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(decrypting, firstSector, buf, from, mid),
+						new Task(decrypting, firstSector, buf, mid, to));
+				return;
+			}
+			cryptRange(decrypting, firstSector, buf, from, to);
+		}
+	}
+}
@@ -67,6 +67,42 @@ abstract class SymmetricCipher {
      */
     abstract void decryptBlock(byte[] cipher, int cipherOffset,
                           byte[] plain, int plainOffset);
+
+    /**
+     * Encrypt <code>nBlocks</code> consecutive blocks, each on its own as in
+     * ECB. Engines that can interleave independent blocks override this;
+     * the default encrypts one block after the other.
+     *
+     * @param in the input buffer with the data to be encrypted
+     * @param inOff the offset in <code>in</code>
+     * @param nBlocks the number of blocks
+     * @param out the buffer for the encryption result
+     * @param outOff the offset in <code>out</code>
+     */
+    void encryptBlocks(byte[] in, int inOff, int nBlocks,
+                       byte[] out, int outOff) {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < nBlocks; i++) {
+            encryptBlock(in, inOff, out, outOff);
+            inOff += blockSize;
+            outOff += blockSize;
+        }
+    }
+
+    /**
+     * Decrypt <code>nBlocks</code> consecutive blocks, each on its own.
+     *
+     * @see #encryptBlocks(byte[], int, int, byte[], int)
+     */
+    void decryptBlocks(byte[] in, int inOff, int nBlocks,
+                       byte[] out, int outOff) {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < nBlocks; i++) {
+            decryptBlock(in, inOff, out, outOff);
+            inOff += blockSize;
+            outOff += blockSize;
+        }
+    }
     
     /**
      * Return the key bytes of the specified key. Throw an InvalidKeyException
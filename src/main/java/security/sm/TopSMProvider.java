@@ -63,7 +63,7 @@ public class TopSMProvider extends Provider {
 		put(algAlias + cipher + sm2_oid, sm2Name);
 		put(cipher + sm2_oid, smImpPackage + className);
 		put(cipher + sm2Name, smImpPackage + className);
-		put(cipher + sm2Name + " SupportedModes", "NONE");
+		put(cipher + sm2Name + " SupportedModes", "NONE|C1C2C3|C1C3C2");
 		put(cipher + sm2Name + " SupportedPaddings", "NOPADDING");
 		put(cipher + sm2Name + " SupportedKeyClasses",
 				"security.sm.SM2PublicKey|security.sm.SM2PrivateKey");
@@ -82,6 +82,19 @@ public class TopSMProvider extends Provider {
 		put(algAlias + digest + sm3_oid, sm3Name);
 		put(digest + sm3_oid, smImpPackage + className);
 		put(digest + sm3Name, smImpPackage + className);
+		className = "SM3TreeDigest";
+		put(digest + "SM3-TREE", smImpPackage + className);
+		/* Mac */
+		className = "HmacSM3";
+		put(mac + "HmacSM3", smImpPackage + className);
+		put(mac + "HmacSM3 SupportedKeyFormats", "RAW");
+		put(algAlias + mac + "HMAC-SM3", "HmacSM3");
+		/* SecretKeyFactory */
+		className = "PBKDF2HmacSM3KeyFactory";
+		put(secretKeyFactory + "PBKDF2WithHmacSM3", smImpPackage + className);
+		/* KeyGenerator */
+		className = "SM3HKDF$Generator";
+		put(keyGen + "HKDF-SM3", smImpPackage + className);
 
 		// SMS4 symmetric key algorithm
 		final String sms4Name = "SMS4";
@@ -91,11 +104,33 @@ public class TopSMProvider extends Provider {
 		put(algAlias + keyGen + sms4_oid, sms4Name);
 		put(keyGen + sms4_oid, smImpPackage + className);
 		put(keyGen + sms4Name, smImpPackage + className);
+		/* AlgorithmParameters */
+		className = "SMS4Parameters";
+		put(algAlias + algParams + sms4_oid, sms4Name);
+		put(algParams + sms4_oid, smImpPackage + className);
+		put(algParams + sms4Name, smImpPackage + className);
 		/* Cipher */
 		className = "SMS4Cipher";
 		put(algAlias + cipher + sms4_oid, sms4Name);
 		put(cipher + sms4_oid, smImpPackage + className);
 		put(cipher + sms4Name, smImpPackage + className);
+		put(cipher + sms4Name + " SupportedModes",
+				"ECB|CBC|CTR|GCM|CFB|OFB|CFB8|CFB16|CFB24|CFB32|CFB40|CFB48|CFB56"
+						+ "|CFB64|CFB72|CFB80|CFB88|CFB96|CFB104|CFB112|CFB120"
+						+ "|CFB128|OFB8|OFB16|OFB24|OFB32|OFB40|OFB48|OFB56"
+						+ "|OFB64|OFB72|OFB80|OFB88|OFB96|OFB104|OFB112|OFB120"
+						+ "|OFB128");
+		put(cipher + sms4Name + " SupportedPaddings", "NOPADDING|PKCS5PADDING");
+		put(cipher + sms4Name + " SupportedKeyFormats", "RAW");
+		/* Mac */
+		className = "SMS4CMac";
+		put(mac + "SMS4-CMAC", smImpPackage + className);
+		put(mac + "SMS4-CMAC SupportedKeyFormats", "RAW");
+		put(algAlias + mac + "SMS4CMAC", "SMS4-CMAC");
+		className = "SMS4GMac";
+		put(mac + "SMS4-GMAC", smImpPackage + className);
+		put(mac + "SMS4-GMAC SupportedKeyFormats", "RAW");
+		put(algAlias + mac + "SMS4GMAC", "SMS4-GMAC");
 
 		// verifiedSelfIntegrity = JarVerifier.verify(TopSMProvider.class);
 	}
@@ -104,10 +139,12 @@ public class TopSMProvider extends Provider {
 	private static final String algParams = "AlgorithmParameters.";
 	private static final String keyFactory = "KeyFactory.";
 	private static final String keyPairGen = "KeyPairGenerator.";
-	private static final String keyGen = "KeyGenerator";
+	private static final String keyGen = "KeyGenerator.";
+	private static final String secretKeyFactory = "SecretKeyFactory.";
 	private static final String signature = "Signature.";
 	private static final String cipher = "Cipher.";
 	private static final String digest = "MessageDigest.";
+	private static final String mac = "Mac.";
 
 	private static final long serialVersionUID = -7445881625380917033L;
 
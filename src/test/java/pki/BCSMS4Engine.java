@@ -0,0 +1,45 @@
+package pki;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The provider's SMS4/ECB as a BouncyCastle block cipher, so BouncyCastle's
+ * modes and MACs can serve as references.
+ */
+class BCSMS4Engine implements BlockCipher {
+    private Cipher ecb;
+
+    public void init(boolean forEncryption, CipherParameters params) {
+        try {
+            ecb = Cipher.getInstance("SMS4/ECB/NoPadding", SMS4CipherTest.PROVIDER);
+            ecb.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(((KeyParameter) params).getKey(), "SMS4"));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public String getAlgorithmName() {
+        return "SMS4";
+    }
+
+    public int getBlockSize() {
+        return 16;
+    }
+
+    public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        try {
+            return ecb.doFinal(in, inOff, 16, out, outOff);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void reset() {
+    }
+}
@@ -0,0 +1,53 @@
+package pki;
+
+import security.sm.TopSMProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Provider;
+import java.security.SecureRandom;
+
+/**
+ * SMS4/GCM against the JDK's AES/GCM on the same machine.
+ *
+ * java pki.GCMBench [sizeInKB] [rounds]
+ */
+public class GCMBench {
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024) * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Provider provider = new TopSMProvider();
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        byte[] data = new byte[size];
+        byte[] out = new byte[size + 16];
+
+        Cipher sms4 = Cipher.getInstance("SMS4/GCM/NoPadding", provider);
+        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        // warm up
+        run(sms4, new SecretKeySpec(key, "SMS4"), data, out, random, 3);
+        run(aes, new SecretKeySpec(key, "AES"), data, out, random, 3);
+
+        double sms4Rate = run(sms4, new SecretKeySpec(key, "SMS4"), data, out, random, rounds);
+        double aesRate = run(aes, new SecretKeySpec(key, "AES"), data, out, random, rounds);
+        System.out.printf("SMS4/GCM encrypt: %.1f MB/s%n", sms4Rate);
+        System.out.printf("AES/GCM  encrypt: %.1f MB/s (%s)%n", aesRate, aes.getProvider().getName());
+    }
+
+    // best MB/s of the rounds, every round with a fresh iv
+    private static double run(Cipher cipher, SecretKeySpec key, byte[] data, byte[] out,
+                              SecureRandom random, int rounds) throws Exception {
+        long best = Long.MAX_VALUE;
+        byte[] iv = new byte[12];
+        for (int i = 0; i < rounds; i++) {
+            random.nextBytes(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            long start = System.nanoTime();
+            cipher.doFinal(data, 0, data.length, out, 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return data.length / 1e6 / (best / 1e9);
+    }
+}
@@ -0,0 +1,149 @@
+package pki;
+
+import security.sm.TopSMProvider;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * SMS4-CMAC and SMS4-GMAC against HMAC-SM3, per packet and in bulk, and
+ * PBKDF2WithHmacSM3 against a PBKDF2 that hashes both pads every iteration.
+ *
+ * java pki.MacBench [packetSize] [packets] [iterations]
+ */
+public class MacBench {
+    public static void main(String[] args) throws Exception {
+        int packetSize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int packets = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        Provider provider = new TopSMProvider();
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        byte[] packet = new byte[packetSize];
+        random.nextBytes(packet);
+        SecretKeySpec sms4Key = new SecretKeySpec(key, "SMS4");
+
+        final Mac cmac = Mac.getInstance("SMS4-CMAC", provider);
+        cmac.init(sms4Key);
+        final Mac gmac = Mac.getInstance("SMS4-GMAC", provider);
+        final Mac hmac = Mac.getInstance("HmacSM3", provider);
+        hmac.init(new SecretKeySpec(key, "HmacSM3"));
+
+        for (int warm = 0; warm < 3; warm++) {
+            cmacRun(cmac, sms4Key, packet, packets / 10);
+            gmacRun(gmac, sms4Key, packet, packets / 10);
+            hmacRun(hmac, packet, packets / 10);
+        }
+        report("SMS4-CMAC", packetSize, packets, cmacRun(cmac, sms4Key, packet, packets));
+        report("SMS4-GMAC", packetSize, packets, gmacRun(gmac, sms4Key, packet, packets));
+        report("HMAC-SM3 ", packetSize, packets, hmacRun(hmac, packet, packets));
+
+        char[] password = "correct horse battery staple".toCharArray();
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        SecretKeyFactory pbkdf2 = SecretKeyFactory.getInstance("PBKDF2WithHmacSM3", provider);
+        MessageDigest sm3 = MessageDigest.getInstance("SM3", provider);
+        byte[] passwordBytes = new String(password).getBytes("UTF-8");
+        for (int warm = 0; warm < 5; warm++) {
+            pbkdf2.generateSecret(new PBEKeySpec(password, salt, iterations / 10, 256));
+            pbkdf2Naive(sm3, passwordBytes, salt, iterations / 10);
+        }
+        long fast = Long.MAX_VALUE;
+        long naive = Long.MAX_VALUE;
+        byte[] dk = null;
+        byte[] expected = null;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            dk = pbkdf2.generateSecret(new PBEKeySpec(password, salt, iterations, 256)).getEncoded();
+            fast = Math.min(fast, System.nanoTime() - start);
+            start = System.nanoTime();
+            expected = pbkdf2Naive(sm3, passwordBytes, salt, iterations);
+            naive = Math.min(naive, System.nanoTime() - start);
+        }
+        if (!Arrays.equals(dk, expected)) {
+            throw new AssertionError("PBKDF2WithHmacSM3 mismatch");
+        }
+        System.out.printf("PBKDF2WithHmacSM3 %d iterations: %7.1f ms%n", iterations, fast / 1e6);
+        System.out.printf("PBKDF2, pads every iteration:  %7.1f ms%n", naive / 1e6);
+    }
+
+    private static void report(String name, int packetSize, int packets, long nanos) {
+        System.out.printf("%s %5d byte packets: %7.0f ns/packet, %6.1f MB/s%n", name,
+                packetSize, (double) nanos / packets, (double) packetSize * packets / 1e6 / (nanos / 1e9));
+    }
+
+    // re-initialized with the same key for every packet, as a packet loop would
+    private static long cmacRun(Mac mac, SecretKeySpec key, byte[] packet, int packets) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            mac.init(key);
+            mac.update(packet);
+            mac.doFinal();
+        }
+        return System.nanoTime() - start;
+    }
+
+    // a fresh iv for every packet: a 64 bit counter in a 96 bit iv
+    private static long gmacRun(Mac mac, SecretKeySpec key, byte[] packet, int packets) throws Exception {
+        byte[] iv = new byte[12];
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            for (int b = 0; b < 8; b++) {
+                iv[4 + b] = (byte) (i >>> (56 - 8 * b));
+            }
+            mac.init(key, new GCMParameterSpec(128, iv));
+            mac.update(packet);
+            mac.doFinal();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long hmacRun(Mac mac, byte[] packet, int packets) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            mac.update(packet);
+            mac.doFinal();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * One 32 byte block of PBKDF2 with the HMAC written out over SM3: the
+     * padded key is hashed again for every inner and outer hash, four
+     * compressions per iteration.
+     */
+    private static byte[] pbkdf2Naive(MessageDigest sm3, byte[] password, byte[] salt, int iterations) {
+        byte[] ipad = new byte[64];
+        byte[] opad = new byte[64];
+        for (int i = 0; i < 64; i++) {
+            byte k = i < password.length ? password[i] : 0;
+            ipad[i] = (byte) (k ^ 0x36);
+            opad[i] = (byte) (k ^ 0x5c);
+        }
+        sm3.update(ipad);
+        sm3.update(salt);
+        sm3.update(new byte[] { 0, 0, 0, 1 });
+        byte[] u = sm3.digest();
+        sm3.update(opad);
+        u = sm3.digest(u);
+        byte[] t = u.clone();
+        for (int c = 1; c < iterations; c++) {
+            sm3.update(ipad);
+            u = sm3.digest(u);
+            sm3.update(opad);
+            u = sm3.digest(u);
+            for (int j = 0; j < t.length; j++) {
+                t[j] ^= u[j];
+            }
+        }
+        return t;
+    }
+}
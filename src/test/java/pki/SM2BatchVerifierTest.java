@@ -0,0 +1,100 @@
+package pki;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.sm.SM2BatchVerifier;
+import security.sm.SM2UserID;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pki.SM2P256Test.N;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * {@link SM2BatchVerifier} against SM3withSM2 signatures, with and without a
+ * user id.
+ */
+public class SM2BatchVerifierTest {
+
+    private static final int BATCH = 12;
+
+    private static KeyPair[] keyPairs;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        SM2SignatureTest.addProvider();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("SM2", PROVIDER);
+        keyPairs = new KeyPair[3];
+        for (int i = 0; i < keyPairs.length; i++) {
+            keyPairs[i] = generator.generateKeyPair();
+        }
+    }
+
+    @Test
+    public void allValid() throws Exception {
+        SM2BatchVerifier v = fill(-1, null);
+        assertEquals(BATCH, v.size());
+        assertTrue(v.verify());
+        assertArrayEquals(new int[0], v.getInvalidIndices());
+        v.clear();
+        assertEquals(0, v.size());
+        assertTrue(v.verify());
+    }
+
+    @Test
+    public void reportsForgedIndex() throws Exception {
+        for (int forged = 0; forged < BATCH; forged += 5) {
+            for (String how : new String[] { "r", "s", "message" }) {
+                SM2BatchVerifier v = fill(forged, how);
+                assertFalse(how + forged, v.verify());
+                assertArrayEquals(how + forged, new int[] { forged }, v.getInvalidIndices());
+                boolean[] ok = v.verifyAll();
+                for (int i = 0; i < BATCH; i++) {
+                    assertEquals(how + forged + "/" + i, i != forged, ok[i]);
+                }
+            }
+        }
+    }
+
+    /*
+     * BATCH signatures over three keys, even entries with the default user
+     * id; the entry at forged gets a wrong r, s or message
+     */
+    private static SM2BatchVerifier fill(int forged, String how) throws Exception {
+        SM2BatchVerifier v = new SM2BatchVerifier();
+        for (int i = 0; i < BATCH; i++) {
+            KeyPair keyPair = keyPairs[i % keyPairs.length];
+            byte[] message = ("message " + i).getBytes();
+            boolean withID = (i & 1) == 0;
+            byte[] sig;
+            if (withID) {
+                sig = SM2SignatureTest.sign(keyPair, message);
+            } else {
+                Signature signature = Signature.getInstance("SM3withSM2", PROVIDER);
+                signature.initSign(keyPair.getPrivate());
+                signature.update(message);
+                sig = signature.sign();
+            }
+            if (i == forged) {
+                BigInteger[] rs = SM2SignatureTest.decode(sig);
+                if ("r".equals(how)) {
+                    sig = SM2SignatureTest.raw(rs[0].add(BigInteger.ONE).mod(N), rs[1]);
+                } else if ("s".equals(how)) {
+                    sig = SM2SignatureTest.raw(rs[0], rs[1].add(BigInteger.ONE).mod(N));
+                } else {
+                    message = ("forged " + i).getBytes();
+                }
+            }
+            v.add(message, sig, keyPair.getPublic(),
+                    withID ? new SM2UserID(SM2SignatureTest.USER_ID) : null);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,171 @@
+package pki;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.ec.ECUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECPoint;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pki.SM2P256Test.SM2;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * SM2 encryption in the DER encoding and the streaming C1C2C3 and C1C3C2
+ * layouts.
+ */
+public class SM2CipherTest {
+
+    static final String[] MODES = { "C1C2C3", "C1C3C2" };
+
+    static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SM2SignatureTest.addProvider();
+        keyPair = KeyPairGenerator.getInstance("SM2", PROVIDER).generateKeyPair();
+    }
+
+    static Cipher cipher(String mode, int opmode) throws Exception {
+        Cipher c = Cipher.getInstance("SM2/" + mode + "/NoPadding", PROVIDER);
+        c.init(opmode, opmode == Cipher.ENCRYPT_MODE ? keyPair.getPublic() : keyPair.getPrivate());
+        return c;
+    }
+
+    @Test
+    public void streamsThroughFixedOutputBuffer() throws Exception {
+        byte[] message = new byte[65536 + 100];
+        new Random(9).nextBytes(message);
+        for (String mode : MODES) {
+            Cipher enc = cipher(mode, Cipher.ENCRYPT_MODE);
+            byte[] ciphertext = stream(enc, message, 8192, 20000);
+            assertEquals(mode, message.length + 65 + 32, ciphertext.length);
+
+            Cipher dec = cipher(mode, Cipher.DECRYPT_MODE);
+            assertArrayEquals(mode, message, stream(dec, ciphertext, 8192, 20000));
+            assertArrayEquals(mode, message, dec.doFinal(ciphertext));
+        }
+    }
+
+    // update in chunks into one reused output array, doFinal into an array of getOutputSize
+    static byte[] stream(Cipher c, byte[] in, int chunk, int outSize) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] out = new byte[outSize];
+        for (int off = 0; off < in.length; off += chunk) {
+            int n = c.update(in, off, Math.min(chunk, in.length - off), out, 0);
+            result.write(out, 0, n);
+        }
+        byte[] last = new byte[c.getOutputSize(0)];
+        int n = c.doFinal(last, 0);
+        result.write(last, 0, n);
+        return result.toByteArray();
+    }
+
+    @Test
+    public void derShortOutputCanBeRetried() throws Exception {
+        byte[] message = "hello".getBytes();
+        Cipher enc = cipher("NONE", Cipher.ENCRYPT_MODE);
+        ByteBuffer in = ByteBuffer.wrap(message);
+        try {
+            enc.doFinal(in, ByteBuffer.allocate(message.length));
+            fail("no ShortBufferException");
+        } catch (ShortBufferException expected) {
+        }
+        assertEquals(message.length, in.remaining());
+        try {
+            enc.doFinal(message, 0, message.length, new byte[message.length], 0);
+            fail("no ShortBufferException");
+        } catch (ShortBufferException expected) {
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(enc.getOutputSize(message.length));
+        int n = enc.doFinal(in, out);
+        assertEquals(0, in.remaining());
+        assertEquals(n, out.position());
+        byte[] ciphertext = Arrays.copyOf(out.array(), n);
+        Cipher dec = cipher("NONE", Cipher.DECRYPT_MODE);
+        assertArrayEquals(message, dec.doFinal(ciphertext));
+
+        // every doFinal starts a new message
+        assertArrayEquals(message, dec.doFinal(enc.doFinal(message)));
+        assertArrayEquals(message, dec.doFinal(enc.doFinal(message)));
+    }
+
+    @Test
+    public void directBuffers() throws Exception {
+        // larger than one staging chunk, NONE is the DER encoding
+        byte[] message = new byte[100003];
+        new Random(17).nextBytes(message);
+        for (String mode : new String[] { "NONE", "C1C2C3", "C1C3C2" }) {
+            Cipher enc = cipher(mode, Cipher.ENCRYPT_MODE);
+            byte[] ciphertext = direct(enc, message);
+            Cipher dec = cipher(mode, Cipher.DECRYPT_MODE);
+            assertArrayEquals(mode, message, dec.doFinal(ciphertext));
+            assertArrayEquals(mode, message, direct(dec, ciphertext));
+        }
+    }
+
+    // one update of half the input and a doFinal of the rest, both direct
+    static byte[] direct(Cipher c, byte[] in) throws Exception {
+        ByteBuffer input = ByteBuffer.allocateDirect(in.length);
+        input.put(in).flip();
+        ByteBuffer output = ByteBuffer.allocateDirect(c.getOutputSize(in.length));
+        input.limit(in.length / 2);
+        c.update(input, output);
+        input.limit(in.length);
+        c.doFinal(input, output);
+        output.flip();
+        byte[] result = new byte[output.remaining()];
+        output.get(result);
+        return result;
+    }
+
+    @Test
+    public void rawLayoutMatchesStandard() throws Exception {
+        BigInteger d = ((ECPrivateKey) keyPair.getPrivate()).getS();
+        byte[] message = "encryption standard".getBytes();
+        boolean shortCoordinate = false;
+        for (int i = 0; i < 4000 && !(shortCoordinate && i >= 8); i++) {
+            String mode = MODES[i & 1];
+            byte[] ct = cipher(mode, Cipher.ENCRYPT_MODE).doFinal(message);
+            assertEquals(4, ct[0]);
+            ECPoint c1 = new ECPoint(new BigInteger(1, Arrays.copyOfRange(ct, 1, 33)),
+                    new BigInteger(1, Arrays.copyOfRange(ct, 33, 65)));
+            ECPoint p2 = ECUtil.multiply(SM2.getCurve(), c1, d);
+            shortCoordinate |= p2.getAffineX().bitLength() <= 248 || p2.getAffineY().bitLength() <= 248;
+
+            // x2 and y2 as 32 byte strings
+            byte[] x2 = SM2CoreTest.encode(p2.getAffineX());
+            byte[] y2 = SM2CoreTest.encode(p2.getAffineY());
+            byte[] c2 = SM2CoreTest.kdf(x2, y2, message.length);
+            for (int j = 0; j < c2.length; j++) {
+                c2[j] ^= message[j];
+            }
+            MessageDigest sm3 = MessageDigest.getInstance("SM3", PROVIDER);
+            sm3.update(x2);
+            sm3.update(message);
+            byte[] c3 = sm3.digest(y2);
+
+            int c2Off = "C1C2C3".equals(mode) ? 65 : 65 + 32;
+            int c3Off = "C1C2C3".equals(mode) ? 65 + message.length : 65;
+            assertArrayEquals(mode, c2, Arrays.copyOfRange(ct, c2Off, c2Off + c2.length));
+            assertArrayEquals(mode, c3, Arrays.copyOfRange(ct, c3Off, c3Off + 32));
+            assertArrayEquals(mode, message, cipher(mode, Cipher.DECRYPT_MODE).doFinal(ct));
+        }
+        assertTrue("no x2 or y2 with a leading zero byte found", shortCoordinate);
+    }
+}
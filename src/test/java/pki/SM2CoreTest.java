@@ -0,0 +1,116 @@
+package pki;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.ec.ECUtil;
+import security.sm.SM2PrivateKey;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.ECPoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static pki.SM2P256Test.SM2;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * The SM2 encryption KDF and C3 hash of SM2Core against a fresh SM3 per
+ * block over x2 and y2 as 32 byte strings.
+ */
+public class SM2CoreTest {
+
+    private static Constructor<?> decryptCore;
+    private static Method c2Data;
+    private static Method c3Hash;
+    private static Method resetKdf;
+    private static Method xorKeyStream;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Class<?> core = Class.forName("security.sm.SM2Core");
+        decryptCore = core.getDeclaredConstructor(ECPoint.class, SM2PrivateKey.class);
+        decryptCore.setAccessible(true);
+        c2Data = core.getDeclaredMethod("c2Data", byte[].class);
+        c2Data.setAccessible(true);
+        c3Hash = core.getDeclaredMethod("c3Hash", byte[].class);
+        c3Hash.setAccessible(true);
+        resetKdf = core.getDeclaredMethod("resetKdf");
+        resetKdf.setAccessible(true);
+        xorKeyStream = core.getDeclaredMethod("xorKeyStream", byte[].class, int.class, int.class, byte[].class,
+                int.class);
+        xorKeyStream.setAccessible(true);
+    }
+
+    @Test
+    public void kdfMatchesReference() throws Exception {
+        SecureRandom random = new SecureRandom();
+        boolean shortX = false;
+        for (int i = 0; i < 2000 && !(shortX && i >= 8); i++) {
+            BigInteger d = ECUtil.getRandomMultiple(SM2, random);
+            ECPoint c1 = ECUtil.getECPoint(SM2, ECUtil.getRandomMultiple(SM2, random));
+            ECPoint p2 = ECUtil.multiply(SM2.getCurve(), c1, d);
+            boolean leadingZero = p2.getAffineX().bitLength() <= 248 || p2.getAffineY().bitLength() <= 248;
+            if (i >= 8 && !leadingZero) {
+                // after a few random points only look for a short coordinate
+                continue;
+            }
+            shortX |= leadingZero;
+            Object core = decryptCore.newInstance(c1, new SM2PrivateKey(d, SM2));
+            byte[] x2 = encode(p2.getAffineX());
+            byte[] y2 = encode(p2.getAffineY());
+
+            for (int len : new int[] { 0, 1, 31, 32, 33, 63, 64, 65, 1000 }) {
+                byte[] data = new byte[len];
+                random.nextBytes(data);
+                byte[] expected = kdf(x2, y2, len);
+                for (int j = 0; j < len; j++) {
+                    expected[j] ^= data[j];
+                }
+                assertArrayEquals("c2 " + len, expected, (byte[]) c2Data.invoke(core, (Object) data));
+
+                // streamed in uneven pieces, in place
+                byte[] streamed = data.clone();
+                resetKdf.invoke(core);
+                for (int off = 0, n = 1; off < len; off += n, n = n * 2 + 1) {
+                    n = Math.min(n, len - off);
+                    xorKeyStream.invoke(core, streamed, off, n, streamed, off);
+                }
+                assertArrayEquals("stream " + len, expected, streamed);
+
+                MessageDigest sm3 = MessageDigest.getInstance("SM3", PROVIDER);
+                sm3.update(x2);
+                sm3.update(data);
+                sm3.update(y2);
+                assertArrayEquals("c3 " + len, sm3.digest(), (byte[]) c3Hash.invoke(core, (Object) data));
+            }
+        }
+        assertTrue("no point with a short coordinate found", shortX);
+    }
+
+    // KDF(x2 || y2, len): SM3(x2 || y2 || ct) for ct = 1, 2, ...
+    static byte[] kdf(byte[] x2, byte[] y2, int len) throws Exception {
+        byte[] out = new byte[len];
+        for (int ct = 1, off = 0; off < len; ct++, off += 32) {
+            MessageDigest sm3 = MessageDigest.getInstance("SM3", PROVIDER);
+            sm3.update(x2);
+            sm3.update(y2);
+            sm3.update(new byte[] { (byte) (ct >>> 24), (byte) (ct >>> 16), (byte) (ct >>> 8), (byte) ct });
+            byte[] block = sm3.digest();
+            System.arraycopy(block, 0, out, off, Math.min(32, len - off));
+        }
+        return out;
+    }
+
+    // a coordinate as a 32 byte big-endian string, GM/T 0003.1 4.2.5
+    static byte[] encode(BigInteger v) {
+        byte[] b = v.toByteArray();
+        byte[] out = new byte[32];
+        int n = Math.min(b.length, 32);
+        System.arraycopy(b, b.length - n, out, 32 - n, n);
+        return out;
+    }
+}
@@ -0,0 +1,93 @@
+package pki;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import security.ec.ECUtil;
+import security.sm.SM2KeyPairService;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pki.SM2P256Test.N;
+import static pki.SM2P256Test.SM2;
+
+/**
+ * Key pairs of {@link SM2KeyPairService} and its PKCS#8 file sink.
+ */
+public class SM2KeyPairServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void generatesDistinctValidPairs() throws Exception {
+        final int count = 500;
+        final AtomicReferenceArray<KeyPair> pairs = new AtomicReferenceArray<KeyPair>(count);
+        SM2KeyPairService service = new SM2KeyPairService(4);
+        try {
+            service.generate(count, new SM2KeyPairService.Sink() {
+                public void accept(int index, KeyPair keyPair) {
+                    assertNull("index " + index + " twice", pairs.getAndSet(index, keyPair));
+                }
+            });
+            assertEquals(count, service.getGeneratedCount());
+        } finally {
+            service.shutdown();
+        }
+
+        Set<BigInteger> seen = new HashSet<BigInteger>();
+        for (int i = 0; i < count; i++) {
+            KeyPair keyPair = pairs.get(i);
+            assertNotNull("index " + i, keyPair);
+            BigInteger d = ((ECPrivateKey) keyPair.getPrivate()).getS();
+            assertTrue(d.signum() > 0 && d.compareTo(N) < 0);
+            assertEquals(ECUtil.getECPoint(SM2, d), ((ECPublicKey) keyPair.getPublic()).getW());
+            assertTrue("duplicate key " + i, seen.add(d));
+        }
+    }
+
+    @Test
+    public void pkcs8FilesAreOwnerOnly() throws Exception {
+        File dir = new File(folder.getRoot(), "keys");
+        final SM2KeyPairService.Sink files = new SM2KeyPairService.PKCS8FileSink(dir);
+        final KeyPair[] pairs = new KeyPair[20];
+        SM2KeyPairService.Sink sink = new SM2KeyPairService.Sink() {
+            public void accept(int index, KeyPair keyPair) throws Exception {
+                pairs[index] = keyPair;
+                files.accept(index, keyPair);
+            }
+        };
+        SM2KeyPairService service = new SM2KeyPairService(2);
+        try {
+            // the second batch replaces the files of the first
+            service.generate(pairs.length, sink);
+            service.generate(pairs.length, sink);
+        } finally {
+            service.shutdown();
+        }
+
+        boolean posix = dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix");
+        for (int i = 0; i < pairs.length; i++) {
+            File f = new File(dir, i + ".pk8");
+            assertArrayEquals(pairs[i].getPrivate().getEncoded(), Files.readAllBytes(f.toPath()));
+            if (posix) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(f.toPath())));
+            }
+        }
+        assertEquals(pairs.length, dir.list().length);
+    }
+}
@@ -0,0 +1,94 @@
+package pki;
+
+import org.junit.After;
+import org.junit.Test;
+import security.ec.ECUtil;
+import security.ec.SM2KeyTableCache;
+
+import java.math.BigInteger;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+
+import static org.junit.Assert.assertEquals;
+import static pki.SM2P256Test.SM2;
+
+/**
+ * LRU eviction of {@link SM2KeyTableCache} at its default memory limit, and
+ * cached against uncached multiplication.
+ */
+public class SM2KeyTableCacheTest {
+
+    private static final long DEFAULT_LIMIT = 8L * 1024 * 1024;
+
+    // the limit is per entry of about 2 KB
+    private static final int CAPACITY = (int) (DEFAULT_LIMIT / 2048);
+
+    private static final EllipticCurve CURVE = SM2.getCurve();
+
+    @After
+    public void restore() {
+        SM2KeyTableCache.setMemoryLimit(DEFAULT_LIMIT);
+        SM2KeyTableCache.clear();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAtLimit() {
+        assertEquals(DEFAULT_LIMIT, SM2KeyTableCache.getMemoryLimit());
+        SM2KeyTableCache.clear();
+        BigInteger k = BigInteger.valueOf(3);
+        for (int i = 1; i <= CAPACITY; i++) {
+            ECUtil.multiplyCached(CURVE, point(i), k);
+        }
+        assertEquals(CAPACITY, SM2KeyTableCache.size());
+
+        // point 1 becomes the most recently used, point 2 the eldest
+        long hits = SM2KeyTableCache.getHitCount();
+        ECUtil.multiplyCached(CURVE, point(1), k);
+        assertEquals(hits + 1, SM2KeyTableCache.getHitCount());
+
+        long evictions = SM2KeyTableCache.getEvictionCount();
+        ECUtil.multiplyCached(CURVE, point(CAPACITY + 1), k);
+        assertEquals(CAPACITY, SM2KeyTableCache.size());
+        assertEquals(evictions + 1, SM2KeyTableCache.getEvictionCount());
+
+        long misses = SM2KeyTableCache.getMissCount();
+        hits = SM2KeyTableCache.getHitCount();
+        ECUtil.multiplyCached(CURVE, point(1), k);
+        ECUtil.multiplyCached(CURVE, point(CAPACITY + 1), k);
+        assertEquals(hits + 2, SM2KeyTableCache.getHitCount());
+        assertEquals(misses, SM2KeyTableCache.getMissCount());
+        ECUtil.multiplyCached(CURVE, point(2), k);
+        assertEquals(misses + 1, SM2KeyTableCache.getMissCount());
+
+        // lowering the limit drops the eldest entries at once
+        SM2KeyTableCache.setMemoryLimit(10 * 2048);
+        assertEquals(10, SM2KeyTableCache.size());
+        SM2KeyTableCache.setMemoryLimit(0);
+        assertEquals(0, SM2KeyTableCache.size());
+        ECUtil.multiplyCached(CURVE, point(1), k);
+        assertEquals(0, SM2KeyTableCache.size());
+    }
+
+    @Test
+    public void cachedMatchesUncached() {
+        BigInteger[] scalars = SM2P256Test.scalars();
+        for (long limit : new long[] { DEFAULT_LIMIT, 0 }) {
+            SM2KeyTableCache.setMemoryLimit(limit);
+            for (int i = 0; i < 4; i++) {
+                ECPoint p = ECUtil.getECPoint(SM2, scalars[i + 8]);
+                for (BigInteger k : scalars) {
+                    ECPoint expected = ECUtil.multiply(CURVE, p, k);
+                    // a miss, then a hit
+                    assertEquals(expected, ECUtil.multiplyCached(CURVE, p, k));
+                    assertEquals(expected, ECUtil.multiplyCached(CURVE, p, k));
+                    assertEquals(ECUtil.multiplyAndAdd(SM2, k, p, scalars[i]),
+                            ECUtil.multiplyAndAddCached(SM2, k, p, scalars[i]));
+                }
+            }
+        }
+    }
+
+    private static ECPoint point(int i) {
+        return ECUtil.getECPoint(SM2, BigInteger.valueOf(i));
+    }
+}
@@ -0,0 +1,184 @@
+package pki;
+
+import org.junit.Test;
+import security.ec.ECUtil;
+import security.ec.NamedCurve;
+
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The native SM2 field and point arithmetic behind {@link ECUtil} against
+ * BouncyCastle's generic prime curve arithmetic and BigInteger.
+ */
+public class SM2P256Test {
+
+    static final ECParameterSpec SM2 = NamedCurve.getECParameterSpec("SM2");
+
+    static final BigInteger P = ECUtil.getP(SM2);
+    static final BigInteger N = SM2.getOrder();
+
+    private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+
+    @Test
+    public void fieldReduction() throws Exception {
+        Class<?> field = Class.forName("security.ec.SM2P256Field");
+        Method reduce = method(field, "reduce", int[].class, int[].class);
+        Method multiply = method(field, "multiply", int[].class, int[].class, int[].class, int[].class);
+        Method add = method(field, "add", int[].class, int[].class, int[].class);
+        Method sub = method(field, "sub", int[].class, int[].class, int[].class);
+        Method invert = method(field, "invert", int[].class, int[].class, int[].class);
+
+        BigInteger[] edges = {
+                BigInteger.ZERO, BigInteger.ONE, P.subtract(BigInteger.ONE), P.subtract(BigInteger.valueOf(2)),
+                TWO_256.subtract(P), TWO_256.shiftRight(1), BigInteger.ONE.shiftLeft(224),
+                BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE) };
+        Random random = new Random(2);
+        BigInteger[] values = new BigInteger[edges.length + 20];
+        System.arraycopy(edges, 0, values, 0, edges.length);
+        for (int i = edges.length; i < values.length; i++) {
+            values[i] = new BigInteger(256, random).mod(P);
+        }
+
+        // 512 bit inputs of reduce: all ones, 2^256 - 1, p, p^2 - 1 and the largest product
+        BigInteger[] wide = {
+                BigInteger.ONE.shiftLeft(512).subtract(BigInteger.ONE), TWO_256.subtract(BigInteger.ONE), P,
+                P.multiply(P).subtract(BigInteger.ONE), P.subtract(BigInteger.ONE).pow(2), TWO_256,
+                TWO_256.multiply(P), BigInteger.ZERO };
+        for (BigInteger x : wide) {
+            int[] z = new int[8];
+            reduce.invoke(null, limbs(x, 16), z);
+            assertEquals(x.toString(16), x.mod(P), value(z));
+        }
+
+        int[] tt = new int[16];
+        for (BigInteger x : values) {
+            for (BigInteger y : values) {
+                int[] z = new int[8];
+                multiply.invoke(null, limbs(x, 8), limbs(y, 8), z, tt);
+                assertEquals(x.multiply(y).mod(P), value(z));
+                add.invoke(null, limbs(x, 8), limbs(y, 8), z);
+                assertEquals(x.add(y).mod(P), value(z));
+                sub.invoke(null, limbs(x, 8), limbs(y, 8), z);
+                assertEquals(x.subtract(y).mod(P), value(z));
+            }
+            if (x.signum() != 0) {
+                int[] z = new int[8];
+                invert.invoke(null, limbs(x, 8), z, tt);
+                assertEquals(x.modInverse(P), value(z));
+            }
+        }
+    }
+
+    @Test
+    public void addMatchesBouncyCastle() {
+        org.bouncycastle.math.ec.ECPoint g = ECUtil.getBC_ECGeneratorPoint(SM2);
+        Random random = new Random(22);
+        for (int i = 0; i < 20; i++) {
+            BigInteger a = new BigInteger(256, random).mod(N);
+            BigInteger b = new BigInteger(256, random).mod(N);
+            ECPoint p = ECUtil.revertFromBC_ECPoint(g.multiply(a));
+            ECPoint q = ECUtil.revertFromBC_ECPoint(g.multiply(b));
+            ECPoint negP = ECUtil.revertFromBC_ECPoint(g.multiply(a).negate());
+
+            assertEquals(ECUtil.revertFromBC_ECPoint(g.multiply(a.add(b))), ECUtil.add(SM2.getCurve(), p, q));
+            // P == Q doubles, P == -Q cancels
+            assertEquals(ECUtil.revertFromBC_ECPoint(g.multiply(a).twice()), ECUtil.add(SM2.getCurve(), p, p));
+            assertSame(ECPoint.POINT_INFINITY, ECUtil.add(SM2.getCurve(), p, negP));
+            assertEquals(p, ECUtil.add(SM2.getCurve(), p, ECPoint.POINT_INFINITY));
+            assertEquals(p, ECUtil.add(SM2.getCurve(), ECPoint.POINT_INFINITY, p));
+        }
+        assertSame(ECPoint.POINT_INFINITY,
+                ECUtil.add(SM2.getCurve(), ECPoint.POINT_INFINITY, ECPoint.POINT_INFINITY));
+    }
+
+    @Test
+    public void multiplyMatchesBouncyCastle() {
+        org.bouncycastle.math.ec.ECPoint g = ECUtil.getBC_ECGeneratorPoint(SM2);
+        ECPoint p = ECUtil.revertFromBC_ECPoint(g.multiply(new BigInteger("123456789abcdef", 16)));
+        org.bouncycastle.math.ec.ECPoint bcP = ECUtil.convertToBC_ECPoint(SM2.getCurve(), p);
+        for (BigInteger k : scalars()) {
+            assertEquals(k.toString(16), expected(bcP, k), ECUtil.multiply(SM2.getCurve(), p, k));
+            assertEquals(k.toString(16), expected(bcP, k), ECUtil.multiplyCached(SM2.getCurve(), p, k));
+        }
+        // 0 and n give infinity, in the table and the windowed path alike
+        for (BigInteger k : new BigInteger[] { BigInteger.ZERO, N }) {
+            assertSame(ECPoint.POINT_INFINITY, ECUtil.multiply(SM2.getCurve(), p, k));
+            assertSame(ECPoint.POINT_INFINITY, ECUtil.multiplyCached(SM2.getCurve(), p, k));
+            assertSame(ECPoint.POINT_INFINITY, ECUtil.multiplyAndAdd(SM2, k, ECPoint.POINT_INFINITY, k));
+        }
+        assertSame(ECPoint.POINT_INFINITY, ECUtil.multiply(SM2.getCurve(), ECPoint.POINT_INFINITY, N.subtract(BigInteger.ONE)));
+    }
+
+    @Test
+    public void generatorTableMatchesBouncyCastle() {
+        org.bouncycastle.math.ec.ECPoint g = ECUtil.getBC_ECGeneratorPoint(SM2);
+        for (BigInteger k : scalars()) {
+            assertEquals(k.toString(16), expected(g, k), ECUtil.getECPoint(SM2, k));
+        }
+        // every entry of the 6 bit windows: j * 2^(6i) for j = 1..63
+        for (int i = 0; i < 256; i += 6) {
+            org.bouncycastle.math.ec.ECPoint base = g.multiply(BigInteger.ONE.shiftLeft(i));
+            org.bouncycastle.math.ec.ECPoint cur = base;
+            for (int j = 1; j < 64; j++, cur = cur.add(base)) {
+                BigInteger k = BigInteger.valueOf(j).shiftLeft(i);
+                if (k.compareTo(N) < 0) {
+                    assertEquals(k.toString(16), ECUtil.revertFromBC_ECPoint(cur), ECUtil.getECPoint(SM2, k));
+                }
+            }
+        }
+    }
+
+    // edge and random multiples in [1, n - 1]
+    static BigInteger[] scalars() {
+        SecureRandom random = new SecureRandom();
+        BigInteger[] k = new BigInteger[24];
+        k[0] = BigInteger.ONE;
+        k[1] = BigInteger.valueOf(2);
+        k[2] = BigInteger.valueOf(3);
+        k[3] = N.subtract(BigInteger.ONE);
+        k[4] = N.subtract(BigInteger.valueOf(2));
+        k[5] = N.shiftRight(1);
+        k[6] = BigInteger.ONE.shiftLeft(255);
+        k[7] = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        for (int i = 8; i < k.length; i++) {
+            k[i] = ECUtil.getRandomMultiple(SM2, random);
+        }
+        return k;
+    }
+
+    static ECPoint expected(org.bouncycastle.math.ec.ECPoint p, BigInteger k) {
+        org.bouncycastle.math.ec.ECPoint r = p.multiply(k);
+        return r.isInfinity() ? ECPoint.POINT_INFINITY : ECUtil.revertFromBC_ECPoint(r);
+    }
+
+    private static Method method(Class<?> c, String name, Class<?>... types) throws Exception {
+        Method m = c.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        return m;
+    }
+
+    // little-endian 32 bit limbs
+    private static int[] limbs(BigInteger x, int n) {
+        int[] z = new int[n];
+        for (int i = 0; i < n; i++) {
+            z[i] = x.shiftRight(32 * i).intValue();
+        }
+        return z;
+    }
+
+    private static BigInteger value(int[] x) {
+        BigInteger v = BigInteger.ZERO;
+        for (int i = x.length - 1; i >= 0; i--) {
+            v = v.shiftLeft(32).or(BigInteger.valueOf(x[i] & 0xFFFFFFFFL));
+        }
+        return v;
+    }
+}
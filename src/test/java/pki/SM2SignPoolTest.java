@@ -0,0 +1,97 @@
+package pki;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.sm.SM2SignPool;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * Signatures made from {@link SM2SignPool} pairs, and the inline fallback
+ * once the pool is stopped.
+ */
+public class SM2SignPoolTest {
+
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        SM2SignatureTest.addProvider();
+        keyPair = KeyPairGenerator.getInstance("SM2", PROVIDER).generateKeyPair();
+    }
+
+    @After
+    public void stop() {
+        SM2SignPool.stop();
+    }
+
+    @Test
+    public void poolSignaturesVerify() throws Exception {
+        SM2SignPool.start(16, 2);
+        assertTrue(SM2SignPool.isRunning());
+        assertEquals(16, SM2SignPool.getCapacity());
+        awaitDepth(16);
+
+        long takes = SM2SignPool.getTakeCount();
+        long refills = SM2SignPool.getRefillCount();
+        for (int i = 0; i < 12; i++) {
+            byte[] message = ("pooled " + i).getBytes();
+            assertTrue(SM2SignatureTest.verify(keyPair, message, SM2SignatureTest.sign(keyPair, message)));
+        }
+        assertEquals(takes + 12, SM2SignPool.getTakeCount());
+        // at half the capacity the fillers are woken to top the pool up
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SM2SignPool.getRefillCount() == refills) {
+            assertTrue("pool not refilled", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void stoppedPoolFallsBackToGenerate() throws Exception {
+        SM2SignPool.start(8, 1);
+        awaitDepth(8);
+        SM2SignPool.stop();
+        assertFalse(SM2SignPool.isRunning());
+        assertEquals(0, SM2SignPool.getDepth());
+
+        long takes = SM2SignPool.getTakeCount();
+        long starvations = SM2SignPool.getStarvationCount();
+        for (int i = 0; i < 4; i++) {
+            byte[] message = ("inline " + i).getBytes();
+            assertTrue(SM2SignatureTest.verify(keyPair, message, SM2SignatureTest.sign(keyPair, message)));
+        }
+        assertEquals(takes, SM2SignPool.getTakeCount());
+        assertEquals(starvations, SM2SignPool.getStarvationCount());
+    }
+
+    @Test
+    public void stopDiscardsLateOffers() throws Exception {
+        // fillers caught between generate() and offer() must not leave pairs behind
+        for (int i = 0; i < 50; i++) {
+            SM2SignPool.start(4, 4);
+            Thread.sleep(1);
+            SM2SignPool.stop();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SM2SignPool.getDepth() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, SM2SignPool.getDepth());
+    }
+
+    private static void awaitDepth(int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SM2SignPool.getDepth() < depth) {
+            assertTrue("pool not filled", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package pki;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.ec.ECUtil;
+import security.sm.SM2GenParameterSpec;
+import security.sm.SM2UserID;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pki.SM2P256Test.N;
+import static pki.SM2P256Test.SM2;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * The joint s * G + t * P of signature verification and SM3withSM2 round
+ * trips.
+ */
+public class SM2SignatureTest {
+
+    static final byte[] USER_ID = "1234567812345678".getBytes();
+
+    // SM3withSM2 looks its digest up by name
+    @BeforeClass
+    public static void addProvider() {
+        Security.addProvider(PROVIDER);
+    }
+
+    @Test
+    public void jointMultiplyMatchesSeparate() {
+        EllipticCurve curve = SM2.getCurve();
+        ECPoint g = SM2.getGenerator();
+        BigInteger[] scalars = SM2P256Test.scalars();
+        BigInteger[] edges = { BigInteger.ZERO, BigInteger.ONE, N.subtract(BigInteger.ONE) };
+        for (int i = 0; i < 8; i++) {
+            ECPoint p = ECUtil.getECPoint(SM2, scalars[scalars.length - 1 - i]);
+            for (BigInteger s : scalars) {
+                BigInteger t = scalars[(s.hashCode() & 0x7FFFFFFF) % scalars.length];
+                check(curve, g, s, p, t);
+            }
+            for (BigInteger s : edges) {
+                for (BigInteger t : edges) {
+                    check(curve, g, s, p, t);
+                }
+            }
+        }
+        // s * G + t * G with s + t = n is infinity
+        BigInteger s = scalars[9];
+        BigInteger t = N.subtract(s);
+        assertEquals(ECPoint.POINT_INFINITY, ECUtil.multiplyAndAddCached(SM2, s, g, t));
+        assertEquals(ECPoint.POINT_INFINITY, ECUtil.multiplyAndAdd(SM2, s, g, t));
+        assertNull(ECUtil.multiplyAndAddCachedX(SM2, new BigInteger[] { s }, new ECPoint[] { g },
+                new BigInteger[] { t })[0]);
+    }
+
+    private static void check(EllipticCurve curve, ECPoint g, BigInteger s, ECPoint p, BigInteger t) {
+        ECPoint expected = ECUtil.add(curve, ECUtil.multiply(curve, g, s), ECUtil.multiply(curve, p, t));
+        String what = s.toString(16) + " " + t.toString(16);
+        assertEquals(what, expected, ECUtil.multiplyAndAddCached(SM2, s, p, t));
+        assertEquals(what, expected, ECUtil.multiplyAndAdd(SM2, s, p, t));
+        BigInteger x = ECUtil.multiplyAndAddCachedX(SM2, new BigInteger[] { s, t }, new ECPoint[] { p, p },
+                new BigInteger[] { t, s })[0];
+        assertEquals(what, expected == ECPoint.POINT_INFINITY ? null : expected.getAffineX(), x);
+    }
+
+    @Test
+    public void signAndVerify() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("SM2", PROVIDER);
+        KeyPair keyPair = generator.generateKeyPair();
+        KeyPair other = generator.generateKeyPair();
+        byte[] message = "message digest".getBytes();
+        for (int i = 0; i < 10; i++) {
+            byte[] sig = sign(keyPair, message);
+            assertTrue(verify(keyPair, message, sig));
+
+            BigInteger[] rs = decode(sig);
+            BigInteger r = rs[0], s = rs[1];
+            assertFalse(verify(keyPair, message, raw(r.add(BigInteger.ONE).mod(N), s)));
+            assertFalse(verify(keyPair, message, raw(r, s.add(BigInteger.ONE).mod(N))));
+            assertFalse(verify(keyPair, message, raw(s, r)));
+            assertFalse(verify(keyPair, message, raw(BigInteger.ZERO, s)));
+            assertFalse(verify(keyPair, message, raw(r, N)));
+            assertTrue(verify(keyPair, message, raw(r, s)));
+
+            byte[] corrupted = message.clone();
+            corrupted[i % corrupted.length] ^= 1;
+            assertFalse(verify(keyPair, corrupted, sig));
+            assertFalse(verify(new KeyPair(other.getPublic(), keyPair.getPrivate()), message, sig));
+        }
+    }
+
+    static byte[] sign(KeyPair keyPair, byte[] message) throws Exception {
+        Signature signature = Signature.getInstance("SM3withSM2", PROVIDER);
+        signature.initSign(keyPair.getPrivate());
+        signature.setParameter(new SM2GenParameterSpec(new SM2UserID(USER_ID), keyPair.getPublic()));
+        signature.update(message);
+        return signature.sign();
+    }
+
+    static boolean verify(KeyPair keyPair, byte[] message, byte[] sig) throws Exception {
+        Signature signature = Signature.getInstance("SM3withSM2", PROVIDER);
+        signature.initVerify(keyPair.getPublic());
+        signature.setParameter(new SM2GenParameterSpec(new SM2UserID(USER_ID), keyPair.getPublic()));
+        signature.update(message);
+        return signature.verify(sig);
+    }
+
+    // r and s of the two DER INTEGERs written by SM3withSM2, read unsigned
+    static BigInteger[] decode(byte[] der) {
+        int off = 0;
+        BigInteger[] rs = new BigInteger[2];
+        for (int i = 0; i < 2; i++) {
+            int len = der[off + 1];
+            byte[] v = new byte[len];
+            System.arraycopy(der, off + 2, v, 0, len);
+            rs[i] = new BigInteger(1, v);
+            off += 2 + len;
+        }
+        return rs;
+    }
+
+    // r || s, 32 bytes each
+    static byte[] raw(BigInteger r, BigInteger s) {
+        byte[] b = new byte[64];
+        put(r, b, 0);
+        put(s, b, 32);
+        return b;
+    }
+
+    private static void put(BigInteger x, byte[] b, int off) {
+        byte[] v = x.toByteArray();
+        int n = Math.min(v.length, 32);
+        System.arraycopy(v, v.length - n, b, off + 32 - n, n);
+    }
+}
@@ -0,0 +1,99 @@
+package pki;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.sm.SM2UserID;
+import security.sm.SM2ZCache;
+
+import java.lang.reflect.Method;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.ECPublicKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * Z values and SM3 states of {@link SM2ZCache} against a fresh computation.
+ */
+public class SM2ZCacheTest {
+
+    private static final int DEFAULT_SIZE = 1024;
+
+    private static KeyPair keyPair;
+    private static Method computeZ;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SM2SignatureTest.addProvider();
+        keyPair = KeyPairGenerator.getInstance("SM2", PROVIDER).generateKeyPair();
+        computeZ = Class.forName("security.sm.SM2GenParameterSpec").getDeclaredMethod("computeZ",
+                SM2UserID.class, ECPublicKey.class);
+        computeZ.setAccessible(true);
+    }
+
+    @After
+    public void restore() {
+        SM2ZCache.setMaxSize(DEFAULT_SIZE);
+        SM2ZCache.clear();
+    }
+
+    @Test
+    public void matchesFreshComputation() throws Exception {
+        ECPublicKey key = (ECPublicKey) keyPair.getPublic();
+        byte[] message = "message digest".getBytes();
+        for (String id : new String[] { "1234567812345678", "alice@example.co", "ALICE@EXAMPLE.CO" }) {
+            SM2UserID userID = new SM2UserID(id.getBytes());
+            byte[] z = (byte[]) computeZ.invoke(null, userID, key);
+            MessageDigest sm3 = MessageDigest.getInstance("SM3", PROVIDER);
+            sm3.update(z);
+            byte[] expected = sm3.digest(message);
+
+            // a miss, then a hit
+            for (int i = 0; i < 2; i++) {
+                assertArrayEquals(id, z, SM2ZCache.getZ(userID, key));
+                MessageDigest d = SM2ZCache.getDigest(userID, key);
+                assertArrayEquals(id, expected, d.digest(message));
+                assertEquals(32, SM2ZCache.getState(userID, key).getByteCount());
+            }
+            // the returned Z is a copy
+            SM2ZCache.getZ(userID, key)[0] ^= 1;
+            assertArrayEquals(id, z, SM2ZCache.getZ(userID, key));
+        }
+    }
+
+    @Test
+    public void cachedSignaturesVerifyFresh() throws Exception {
+        byte[] message = "cached".getBytes();
+        SM2SignatureTest.sign(keyPair, message);
+        // signed from the cached state, verified with Z computed again
+        byte[] sig = SM2SignatureTest.sign(keyPair, message);
+        SM2ZCache.setMaxSize(0);
+        assertTrue(SM2SignatureTest.verify(keyPair, message, sig));
+        SM2ZCache.setMaxSize(DEFAULT_SIZE);
+        assertTrue(SM2SignatureTest.verify(keyPair, message, sig));
+    }
+
+    @Test
+    public void zeroSizeDisablesStorage() throws Exception {
+        ECPublicKey key = (ECPublicKey) keyPair.getPublic();
+        SM2UserID userID = new SM2UserID("1234567812345678".getBytes());
+        SM2ZCache.getZ(userID, key);
+        assertTrue(SM2ZCache.size() > 0);
+
+        SM2ZCache.setMaxSize(0);
+        assertEquals(0, SM2ZCache.getMaxSize());
+        assertEquals(0, SM2ZCache.size());
+        long misses = SM2ZCache.getMissCount();
+        long hits = SM2ZCache.getHitCount();
+        SM2ZCache.getZ(userID, key);
+        SM2ZCache.getDigest(userID, key);
+        assertEquals(0, SM2ZCache.size());
+        assertEquals(misses + 2, SM2ZCache.getMissCount());
+        assertEquals(hits, SM2ZCache.getHitCount());
+    }
+}
@@ -0,0 +1,99 @@
+package pki;
+
+import security.sm.SM3MultiBuffer;
+import security.sm.TopSMProvider;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * SM3 throughput over one large message and over many short ones, the
+ * short ones also through {@link SM3MultiBuffer}.
+ *
+ * java pki.SM3Bench [sizeInKB] [rounds]
+ */
+public class SM3Bench {
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024) * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Provider provider = new TopSMProvider();
+        byte[] data = new byte[size];
+        new SecureRandom().nextBytes(data);
+        MessageDigest sm3 = MessageDigest.getInstance("SM3", provider);
+
+        // warm up
+        bulk(sm3, data, 3);
+        messages(sm3, data, 64, 3);
+
+        System.out.printf("SM3 %d MB message: %.1f MB/s%n", size >> 20, bulk(sm3, data, rounds));
+        System.out.printf("SM3 64 byte messages: %.1f MB/s%n", messages(sm3, data, 64, rounds));
+        System.out.printf("SM3 1 KB messages:    %.1f MB/s%n", messages(sm3, data, 1024, rounds));
+
+        SM3MultiBuffer mb = new SM3MultiBuffer();
+        for (int len : new int[] { 64, 256, 1024, 2048, 4096 }) {
+            byte[][] batch = new byte[Math.min(data.length / len, 1024)][];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = Arrays.copyOfRange(data, i * len, (i + 1) * len);
+            }
+            // the two lane compression needs a longer warm up to be compiled
+            multi(mb, batch, 100);
+            batches(sm3, batch, 100);
+            int batchRounds = Math.max(rounds, 100);
+            System.out.printf("%5d byte records: one by one %6.1f MB/s, multi-buffer %6.1f MB/s%n", len,
+                    batches(sm3, batch, batchRounds), multi(mb, batch, batchRounds));
+        }
+    }
+
+    // best MB/s of the rounds
+    private static double bulk(MessageDigest md, byte[] data, int rounds) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            md.update(data);
+            md.digest();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return data.length / 1e6 / (best / 1e9);
+    }
+
+    // data hashed as consecutive messages of len bytes, best MB/s of the rounds
+    private static double messages(MessageDigest md, byte[] data, int len, int rounds) {
+        long best = Long.MAX_VALUE;
+        int count = data.length / len;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            for (int off = 0; off < count * len; off += len) {
+                md.update(data, off, len);
+                md.digest();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) count * len / 1e6 / (best / 1e9);
+    }
+
+    // the batch one message at a time, best MB/s of the rounds
+    private static double batches(MessageDigest md, byte[][] batch, int rounds) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            for (byte[] m : batch) {
+                md.digest(m);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) batch.length * batch[0].length / 1e6 / (best / 1e9);
+    }
+
+    private static double multi(SM3MultiBuffer mb, byte[][] batch, int rounds) {
+        long best = Long.MAX_VALUE;
+        byte[] out = new byte[batch.length * SM3MultiBuffer.DIGEST_LENGTH];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            mb.digest(batch, out, 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) batch.length * batch[0].length / 1e6 / (best / 1e9);
+    }
+}
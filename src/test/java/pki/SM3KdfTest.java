@@ -0,0 +1,163 @@
+package pki;
+
+import org.junit.Test;
+import security.sm.SM3HKDF;
+import security.sm.SM3HKDFParameterSpec;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * HmacSM3, PBKDF2WithHmacSM3 and HKDF-SM3 against RFC 2104, RFC 8018 and
+ * RFC 5869 written out over the SM3 digest.
+ */
+public class SM3KdfTest {
+
+    @Test
+    public void hmacMatchesReference() throws Exception {
+        Random random = new Random(25);
+        Mac mac = Mac.getInstance("HmacSM3", PROVIDER);
+        assertEquals(32, Mac.getInstance("HMAC-SM3", PROVIDER).getMacLength());
+        for (int keyLen : new int[] { 1, 16, 32, 63, 64, 65, 200 }) {
+            byte[] k = new byte[keyLen];
+            random.nextBytes(k);
+            SecretKeySpec key = new SecretKeySpec(k, "HmacSM3");
+            mac.init(key);
+            for (int len : new int[] { 0, 1, 55, 56, 64, 65, 1000 }) {
+                byte[] m = new byte[len];
+                random.nextBytes(m);
+                byte[] expected = hmac(k, m);
+                String what = keyLen + "/" + len;
+                assertArrayEquals(what, expected, mac.doFinal(m));
+
+                mac.update(m, 0, len / 3);
+                Mac copy = (Mac) mac.clone();
+                mac.update(ByteBuffer.wrap(m, len / 3, len - len / 3));
+                assertArrayEquals(what + " split", expected, mac.doFinal());
+                copy.update(m, len / 3, len - len / 3);
+                assertArrayEquals(what + " clone", expected, copy.doFinal());
+
+                mac.update(m);
+                mac.init(key);
+                assertArrayEquals(what + " reinit", expected, mac.doFinal(m));
+            }
+        }
+    }
+
+    @Test
+    public void pbkdf2MatchesReference() throws Exception {
+        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSM3", PROVIDER);
+        Random random = new Random(8018);
+        for (int iterations : new int[] { 1, 2, 1000 }) {
+            for (int bits : new int[] { 8, 128, 256, 264, 800 }) {
+                String password = "passé" + iterations;
+                byte[] salt = new byte[16];
+                random.nextBytes(salt);
+                SecretKey key = f.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, bits));
+                assertEquals("PBKDF2WithHmacSM3", key.getAlgorithm());
+                assertArrayEquals(iterations + "/" + bits,
+                        pbkdf2(password.getBytes("UTF-8"), salt, iterations, bits / 8), key.getEncoded());
+            }
+        }
+        // a password longer than the block is hashed first
+        char[] longPassword = new char[100];
+        Arrays.fill(longPassword, 'a');
+        assertArrayEquals(pbkdf2(new String(longPassword).getBytes("UTF-8"), new byte[8], 5, 32),
+                f.generateSecret(new PBEKeySpec(longPassword, new byte[8], 5, 256)).getEncoded());
+    }
+
+    @Test(expected = InvalidKeySpecException.class)
+    public void pbkdf2RequiresWholeBytes() throws Exception {
+        SecretKeyFactory.getInstance("PBKDF2WithHmacSM3", PROVIDER)
+                .generateSecret(new PBEKeySpec("x".toCharArray(), new byte[8], 5, 12));
+    }
+
+    @Test
+    public void hkdfMatchesReference() throws Exception {
+        Random random = new Random(5869);
+        KeyGenerator g = KeyGenerator.getInstance("HKDF-SM3", PROVIDER);
+        for (int len : new int[] { 1, 16, 32, 33, 100, 255 * 32 }) {
+            byte[] ikm = new byte[22];
+            random.nextBytes(ikm);
+            byte[] salt = len % 2 == 0 ? new byte[13] : null;
+            if (salt != null) {
+                random.nextBytes(salt);
+            }
+            byte[] info = len > 50 ? "context".getBytes("US-ASCII") : null;
+            byte[] expected = hkdf(salt, ikm, info, len);
+            assertArrayEquals("derive " + len, expected, SM3HKDF.derive(salt, ikm, info, len));
+
+            g.init(new SM3HKDFParameterSpec(ikm, salt, info, len, "SMS4"));
+            SecretKey key = g.generateKey();
+            assertEquals("SMS4", key.getAlgorithm());
+            assertArrayEquals("generator " + len, expected, key.getEncoded());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hkdfLimitsLength() {
+        SM3HKDF.expand(new byte[32], null, 255 * 32 + 1);
+    }
+
+    static byte[] hmac(byte[] key, byte[]... parts) throws Exception {
+        MessageDigest sm3 = MessageDigest.getInstance("SM3", PROVIDER);
+        if (key.length > 64) {
+            key = sm3.digest(key);
+        }
+        byte[] ipad = new byte[64];
+        byte[] opad = new byte[64];
+        for (int i = 0; i < 64; i++) {
+            byte k = i < key.length ? key[i] : 0;
+            ipad[i] = (byte) (k ^ 0x36);
+            opad[i] = (byte) (k ^ 0x5c);
+        }
+        sm3.update(ipad);
+        for (byte[] p : parts) {
+            sm3.update(p);
+        }
+        byte[] inner = sm3.digest();
+        sm3.update(opad);
+        return sm3.digest(inner);
+    }
+
+    static byte[] pbkdf2(byte[] password, byte[] salt, int iterations, int dkLen) throws Exception {
+        byte[] dk = new byte[dkLen];
+        for (int i = 1, off = 0; off < dkLen; i++, off += 32) {
+            byte[] u = hmac(password, salt, new byte[] { (byte) (i >>> 24), (byte) (i >>> 16),
+                    (byte) (i >>> 8), (byte) i });
+            byte[] t = u.clone();
+            for (int c = 1; c < iterations; c++) {
+                u = hmac(password, u);
+                for (int j = 0; j < 32; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+            System.arraycopy(t, 0, dk, off, Math.min(32, dkLen - off));
+        }
+        return dk;
+    }
+
+    static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int len) throws Exception {
+        byte[] prk = hmac(salt == null ? new byte[32] : salt, ikm);
+        byte[] okm = new byte[len];
+        byte[] t = new byte[0];
+        for (int i = 1, off = 0; off < len; i++, off += 32) {
+            t = hmac(prk, t, info == null ? new byte[0] : info, new byte[] { (byte) i });
+            System.arraycopy(t, 0, okm, off, Math.min(32, len - off));
+        }
+        return okm;
+    }
+}
@@ -0,0 +1,215 @@
+package pki;
+
+import org.junit.Test;
+import security.sm.SM3MessageDigest;
+import security.sm.SM3MultiBuffer;
+import security.sm.SM3State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pki.SMS4CipherTest.PROVIDER;
+import static pki.SMS4CipherTest.hex;
+
+/**
+ * SM3 known answers from GB/T 32905-2016 appendix A, and the provider's SM3
+ * against the standard written out word by word.
+ */
+public class SM3Test {
+
+    @Test
+    public void knownAnswers() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SM3", PROVIDER);
+        byte[] abc = "abc".getBytes("US-ASCII");
+        byte[] expected = hex("66c7f0f462eeedd9d1f2d46bdc10e4e24167c4875cf2f7a2297da02b8f4ba8e0");
+        assertArrayEquals(expected, md.digest(abc));
+        assertArrayEquals(expected, reference(abc));
+        byte[] m = new byte[64];
+        for (int i = 0; i < 64; i++) {
+            m[i] = (byte) "abcd".charAt(i % 4);
+        }
+        expected = hex("debe9ff92275b8a138604889c18e5a4d6fdb70e5387e5765293dcba39c0c5732");
+        assertArrayEquals(expected, md.digest(m));
+        assertArrayEquals(expected, reference(m));
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        Random random = new Random(21);
+        MessageDigest md = MessageDigest.getInstance("SM3", PROVIDER);
+        for (int len : new int[] { 0, 1, 55, 56, 63, 64, 65, 119, 120, 128, 1000, 100000 }) {
+            byte[] m = new byte[len];
+            random.nextBytes(m);
+            byte[] expected = reference(m);
+            assertArrayEquals("sm3 " + len, expected, md.digest(m));
+
+            for (int off = 0, step = 1; off < len; off += step, step += 11) {
+                int n = Math.min(step, len - off);
+                if (n == 1) {
+                    md.update(m[off]);
+                } else {
+                    md.update(m, off, n);
+                }
+            }
+            MessageDigest copy = (MessageDigest) md.clone();
+            assertArrayEquals("sm3 split " + len, expected, md.digest());
+            assertArrayEquals("sm3 clone " + len, expected, copy.digest());
+        }
+    }
+
+    @Test
+    public void multiBufferMatchesReference() throws Exception {
+        Random random = new Random(22);
+        int[] lengths = { 0, 1, 55, 56, 64, 65, 200, 1000, 3, 4096, 64, 120 };
+        byte[][] messages = new byte[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            messages[i] = new byte[lengths[i]];
+            random.nextBytes(messages[i]);
+        }
+        byte[][] digests = new SM3MultiBuffer().digest(messages);
+        for (int i = 0; i < messages.length; i++) {
+            assertArrayEquals("message " + i, reference(messages[i]), digests[i]);
+        }
+    }
+
+    /**
+     * A state taken part way through a message, resumed directly, through
+     * its encoding and through serialization, gives the digest of the whole
+     * message.
+     */
+    @Test
+    public void midstateResumes() throws Exception {
+        Random random = new Random(24);
+        byte[] m = new byte[300];
+        random.nextBytes(m);
+        for (int split : new int[] { 0, 1, 63, 64, 65, 128, 200, 300 }) {
+            byte[] expected = reference(m);
+            SM3MessageDigest sm3 = new SM3MessageDigest();
+            sm3.update(m, 0, split);
+            SM3State state = sm3.getState();
+            assertEquals(split, state.getByteCount());
+
+            SM3MessageDigest resumed = new SM3MessageDigest(state);
+            resumed.update(m, split, m.length - split);
+            assertArrayEquals("resumed " + split, expected, resumed.digest());
+
+            MessageDigest md = state.newDigest();
+            md.update(m, split, m.length - split);
+            assertArrayEquals("newDigest " + split, expected, md.digest());
+
+            SM3State decoded = SM3State.fromEncoded(state.getEncoded());
+            resumed = new SM3MessageDigest();
+            resumed.update(m, 0, 7);
+            resumed.setState(decoded);
+            resumed.update(m, split, m.length - split);
+            assertArrayEquals("encoded " + split, expected, resumed.digest());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(state);
+            out.close();
+            SM3State read = (SM3State) new ObjectInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray())).readObject();
+            resumed = new SM3MessageDigest(read);
+            resumed.update(m, split, m.length - split);
+            assertArrayEquals("serialized " + split, expected, resumed.digest());
+
+            // the digest it was taken from is unaffected
+            sm3.update(m, split, m.length - split);
+            assertArrayEquals("original " + split, expected, sm3.digest());
+        }
+        assertArrayEquals(reference(new byte[0]), new SM3MessageDigest(SM3State.INITIAL).digest());
+    }
+
+    @Test
+    public void rejectsBadEncodings() throws Exception {
+        SM3MessageDigest sm3 = new SM3MessageDigest();
+        sm3.update(new byte[70], 0, 70);
+        byte[] encoded = sm3.getState().getEncoded();
+        byte[][] bad = { Arrays.copyOf(encoded, 40), Arrays.copyOf(encoded, encoded.length - 1),
+                Arrays.copyOf(encoded, encoded.length + 1), encoded.clone() };
+        bad[3][0] = 2;
+        for (byte[] b : bad) {
+            try {
+                SM3State.fromEncoded(b);
+                fail("accepted " + b.length + " bytes");
+            } catch (IllegalArgumentException expected) {
+                // not a state
+            }
+        }
+    }
+
+    /**
+     * SM3 as GB/T 32905 writes it: padding, expansion to W and W', and 64
+     * rounds per block without any unrolling.
+     */
+    static byte[] reference(byte[] m) {
+        long bits = (long) m.length * 8;
+        int padded = (m.length + 9 + 63) / 64 * 64;
+        byte[] p = Arrays.copyOf(m, padded);
+        p[m.length] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            p[padded - 1 - i] = (byte) (bits >>> (8 * i));
+        }
+        int[] v = { 0x7380166f, 0x4914b2b9, 0x172442d7, 0xda8a0600, 0xa96f30bc, 0x163138aa,
+                0xe38dee4d, 0xb0fb0e4e };
+        int[] w = new int[68];
+        int[] w1 = new int[64];
+        for (int off = 0; off < padded; off += 64) {
+            for (int j = 0; j < 16; j++) {
+                w[j] = (p[off + 4 * j] & 0xff) << 24 | (p[off + 4 * j + 1] & 0xff) << 16
+                        | (p[off + 4 * j + 2] & 0xff) << 8 | (p[off + 4 * j + 3] & 0xff);
+            }
+            for (int j = 16; j < 68; j++) {
+                w[j] = p1(w[j - 16] ^ w[j - 9] ^ Integer.rotateLeft(w[j - 3], 15))
+                        ^ Integer.rotateLeft(w[j - 13], 7) ^ w[j - 6];
+            }
+            for (int j = 0; j < 64; j++) {
+                w1[j] = w[j] ^ w[j + 4];
+            }
+            int a = v[0], b = v[1], c = v[2], d = v[3], e = v[4], f = v[5], g = v[6], h = v[7];
+            for (int j = 0; j < 64; j++) {
+                int t = j < 16 ? 0x79cc4519 : 0x7a879d8a;
+                int ss1 = Integer.rotateLeft(Integer.rotateLeft(a, 12) + e + Integer.rotateLeft(t, j % 32), 7);
+                int ss2 = ss1 ^ Integer.rotateLeft(a, 12);
+                int ff = j < 16 ? a ^ b ^ c : (a & b) | (a & c) | (b & c);
+                int gg = j < 16 ? e ^ f ^ g : (e & f) | (~e & g);
+                int tt1 = ff + d + ss2 + w1[j];
+                int tt2 = gg + h + ss1 + w[j];
+                d = c;
+                c = Integer.rotateLeft(b, 9);
+                b = a;
+                a = tt1;
+                h = g;
+                g = Integer.rotateLeft(f, 19);
+                f = e;
+                e = tt2 ^ Integer.rotateLeft(tt2, 9) ^ Integer.rotateLeft(tt2, 17);
+            }
+            v[0] ^= a;
+            v[1] ^= b;
+            v[2] ^= c;
+            v[3] ^= d;
+            v[4] ^= e;
+            v[5] ^= f;
+            v[6] ^= g;
+            v[7] ^= h;
+        }
+        byte[] out = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            out[i] = (byte) (v[i / 4] >>> (24 - 8 * (i % 4)));
+        }
+        return out;
+    }
+
+    private static int p1(int x) {
+        return x ^ Integer.rotateLeft(x, 15) ^ Integer.rotateLeft(x, 23);
+    }
+}
@@ -0,0 +1,107 @@
+package pki;
+
+import org.junit.Test;
+import security.sm.SM3Tree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * SM3Tree and the SM3-TREE digest against the tree built level by level from
+ * plain SM3.
+ */
+public class SM3TreeTest {
+
+    @Test
+    public void rootsMatchReference() throws Exception {
+        Random random = new Random(23);
+        for (int t = 0; t < 30; t++) {
+            int leafSize = 1 + random.nextInt(100);
+            byte[] data = new byte[random.nextInt(2000)];
+            random.nextBytes(data);
+            SM3Tree tree = SM3Tree.hash(data, 0, data.length, leafSize, null);
+            assertArrayEquals(leafSize + "/" + data.length, reference(data, leafSize), tree.getRoot());
+
+            File f = File.createTempFile("tree", ".bin");
+            f.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            SM3Tree fileTree = SM3Tree.hashFile(f, leafSize, null);
+            assertArrayEquals(tree.getRoot(), fileTree.getRoot());
+            assertEquals(0, fileTree.diff(tree).length);
+
+            if (data.length > 0) {
+                int pos = random.nextInt(data.length);
+                int leaf = pos / leafSize;
+                int from = leaf * leafSize;
+                int len = Math.min(leafSize, data.length - from);
+                data[pos] ^= 1;
+                assertFalse(tree.verifyLeaf(leaf, data, from, len));
+                tree.updateLeaf(leaf, data, from, len);
+                assertArrayEquals(reference(data, leafSize), tree.getRoot());
+                assertTrue(tree.verifyLeaf(leaf, data, from, len));
+                assertArrayEquals(new int[] { leaf }, fileTree.diff(tree));
+            }
+        }
+    }
+
+    @Test
+    public void digestUsesFixedLeafSize() throws Exception {
+        Random random = new Random(24);
+        byte[] data = new byte[(5 << 20) + 12345];
+        random.nextBytes(data);
+        MessageDigest md = MessageDigest.getInstance("SM3-TREE", PROVIDER);
+        for (int off = 0; off < data.length;) {
+            int n = Math.min(data.length - off, random.nextInt(700000));
+            md.update(data, off, n);
+            off += n;
+        }
+        byte[] expected = reference(data, 1 << 20);
+        assertArrayEquals(expected, md.digest());
+        assertArrayEquals(expected, SM3Tree.hash(data, 0, data.length).getRoot());
+        assertArrayEquals(reference(new byte[0], 1 << 20), md.digest());
+    }
+
+    // leaves SM3(0x00 || leaf), nodes SM3(0x01 || left || right), odd nodes promoted
+    static byte[] reference(byte[] data, int leafSize) throws Exception {
+        List<byte[]> level = new ArrayList<byte[]>();
+        if (data.length == 0) {
+            level.add(hash(0, new byte[0]));
+        }
+        for (int off = 0; off < data.length; off += leafSize) {
+            level.add(hash(0, Arrays.copyOfRange(data, off, Math.min(data.length, off + leafSize))));
+        }
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? hash(1, level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    private static byte[] hash(int prefix, byte[]... parts) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SM3", PROVIDER);
+        md.update((byte) prefix);
+        for (byte[] p : parts) {
+            md.update(p);
+        }
+        return md.digest();
+    }
+}
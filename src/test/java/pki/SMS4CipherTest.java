@@ -0,0 +1,207 @@
+package pki;
+
+import org.junit.Test;
+import security.sm.TopSMProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * SMS4 known answers from GB/T 32907-2016 appendix A, and every feedback
+ * mode against the same mode written out over single block ECB.
+ */
+public class SMS4CipherTest {
+    static final Provider PROVIDER = new TopSMProvider();
+
+    static final byte[] KEY = hex("0123456789abcdeffedcba9876543210");
+
+    @Test
+    public void ecbKnownAnswer() throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        SecretKeySpec key = new SecretKeySpec(KEY, "SMS4");
+        c.init(Cipher.ENCRYPT_MODE, key);
+        assertArrayEquals(hex("681edf34d206965e86b3e94f536e4246"), c.doFinal(KEY));
+        c.init(Cipher.DECRYPT_MODE, key);
+        assertArrayEquals(KEY, c.doFinal(hex("681edf34d206965e86b3e94f536e4246")));
+    }
+
+    @Test
+    public void ecbMillionIterations() throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "SMS4"));
+        byte[] block = KEY.clone();
+        for (int i = 0; i < 1000000; i++) {
+            c.doFinal(block, 0, 16, block, 0);
+        }
+        assertArrayEquals(hex("595298c7c6fd271f0402f804c33d3f66"), block);
+    }
+
+    static final String[] MODES = { "CBC", "CTR", "CFB", "CFB8", "OFB", "OFB8" };
+
+    static final int[] LENGTHS = { 0, 1, 15, 16, 17, 31, 32, 48, 100, 1000 };
+
+    @Test
+    public void modesMatchReference() throws Exception {
+        Random random = new Random(12);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKeySpec key = new SecretKeySpec(KEY, "SMS4");
+        for (String mode : MODES) {
+            Cipher c = Cipher.getInstance("SMS4/" + mode + "/NoPadding", PROVIDER);
+            for (int len : LENGTHS) {
+                if (mode.equals("CBC") && len % 16 != 0) {
+                    continue;
+                }
+                byte[] pt = new byte[len];
+                random.nextBytes(pt);
+                byte[] expected = reference(mode, iv, pt, true);
+                c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                assertArrayEquals(mode + " " + len, expected, c.doFinal(pt));
+                c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+                assertArrayEquals(mode + " " + len, pt, c.doFinal(expected));
+
+                // uneven updates must give the same stream
+                c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                byte[] out = new byte[len];
+                int n = 0;
+                for (int off = 0, step = 1; off < len; off += step, step += 7) {
+                    n += c.update(pt, off, Math.min(step, len - off), out, n);
+                }
+                n += c.doFinal(out, n);
+                assertArrayEquals(mode + " " + len + " split", expected, Arrays.copyOf(out, n));
+            }
+        }
+    }
+
+    @Test
+    public void cbcPkcs5RoundTrip() throws Exception {
+        Random random = new Random(5);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKeySpec key = new SecretKeySpec(KEY, "SMS4");
+        Cipher c = Cipher.getInstance("SMS4/CBC/PKCS5Padding", PROVIDER);
+        for (int len : LENGTHS) {
+            byte[] pt = new byte[len];
+            random.nextBytes(pt);
+            int pad = 16 - len % 16;
+            byte[] padded = Arrays.copyOf(pt, len + pad);
+            Arrays.fill(padded, len, padded.length, (byte) pad);
+            byte[] expected = reference("CBC", iv, padded, true);
+            c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            assertArrayEquals(expected, c.doFinal(pt));
+            c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            assertArrayEquals(pt, c.doFinal(expected));
+        }
+    }
+
+    /**
+     * In-place doFinal with the output shifted inside the input array, ahead
+     * of it or behind, with and without input left over from an update.
+     */
+    @Test
+    public void inPlaceShifted() throws Exception {
+        Random random = new Random(14);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKeySpec key = new SecretKeySpec(KEY, "SMS4");
+        String[] modes = { "ECB", "CBC", "CTR", "CFB", "CFB8", "OFB", "OFB8" };
+        int[] shifts = { -21, -16, -3, 0, 3, 16, 21 };
+        for (String mode : modes) {
+            boolean blocks = mode.equals("ECB") || mode.equals("CBC");
+            Cipher c = Cipher.getInstance("SMS4/" + mode + "/NoPadding", PROVIDER);
+            for (int len : new int[] { 16, 32, 48, 64, 80, 96, 160, 1024, 5, 37, 100 }) {
+                if (blocks && len % 16 != 0) {
+                    continue;
+                }
+                byte[] pt = new byte[len];
+                random.nextBytes(pt);
+                byte[] ct = reference(mode, iv, pt, true);
+                for (int shift : shifts) {
+                    for (int split : new int[] { 0, blocks ? 16 : 7 }) {
+                        if (split > len) {
+                            continue;
+                        }
+                        for (int mode2 = 0; mode2 < 2; mode2++) {
+                            boolean encrypt = mode2 == 0;
+                            byte[] in = encrypt ? pt : ct;
+                            byte[] buf = new byte[len + 64];
+                            System.arraycopy(in, 0, buf, 32, len);
+                            c.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key,
+                                    mode.equals("ECB") ? null : new IvParameterSpec(iv));
+                            // the head goes elsewhere, so the final call may
+                            // start with buffered input
+                            byte[] head = c.update(buf, 32, split);
+                            int h = head == null ? 0 : head.length;
+                            int n = c.doFinal(buf, 32 + split, len - split, buf, 32 + split + shift);
+                            byte[] got = new byte[h + n];
+                            System.arraycopy(head == null ? new byte[0] : head, 0, got, 0, h);
+                            System.arraycopy(buf, 32 + split + shift, got, h, n);
+                            assertArrayEquals(mode + " " + len + " shift " + shift + " split " + split
+                                    + (encrypt ? " enc" : " dec"), encrypt ? ct : pt, got);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The mode over one block ECB encryptions. NoPadding, so CBC takes whole
+     * blocks only.
+     */
+    static byte[] reference(String mode, byte[] iv, byte[] in, boolean encrypt) throws Exception {
+        Cipher ecb = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "SMS4"));
+        byte[] out = new byte[in.length];
+        if (mode.equals("ECB")) {
+            return ecb.doFinal(in);
+        }
+        byte[] reg = iv.clone();
+        if (mode.equals("CBC")) {
+            for (int off = 0; off < in.length; off += 16) {
+                for (int i = 0; i < 16; i++) {
+                    reg[i] ^= in[off + i];
+                }
+                reg = ecb.doFinal(reg);
+                System.arraycopy(reg, 0, out, off, 16);
+            }
+        } else if (mode.equals("CTR")) {
+            for (int off = 0; off < in.length; off += 16) {
+                byte[] ks = ecb.doFinal(reg);
+                for (int i = 0; i < 16 && off + i < in.length; i++) {
+                    out[off + i] = (byte) (in[off + i] ^ ks[i]);
+                }
+                for (int i = 15; i >= 0 && ++reg[i] == 0; i--) {
+                }
+            }
+        } else {
+            // CFB and OFB with an s byte segment
+            int s = mode.length() > 3 ? Integer.parseInt(mode.substring(3)) / 8 : 16;
+            boolean cfb = mode.startsWith("CFB");
+            for (int off = 0; off < in.length; off += s) {
+                byte[] ks = ecb.doFinal(reg);
+                int n = Math.min(s, in.length - off);
+                for (int i = 0; i < n; i++) {
+                    out[off + i] = (byte) (in[off + i] ^ ks[i]);
+                }
+                System.arraycopy(reg, s, reg, 0, 16 - s);
+                System.arraycopy(cfb ? (encrypt ? out : in) : ks, cfb ? off : 0, reg, 16 - s, n);
+            }
+        }
+        return out;
+    }
+
+    static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+}
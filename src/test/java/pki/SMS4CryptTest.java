@@ -0,0 +1,113 @@
+package pki;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.sm.SMS4Crypt;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static pki.SMS4CipherTest.KEY;
+
+/**
+ * The multi-block paths of SMS4Crypt, encryptBlocks and decryptBlocks over
+ * cryptBlocks and crypt4, against encryptBlock and decryptBlock one block at
+ * a time.
+ */
+public class SMS4CryptTest {
+
+    private static Method init;
+    private static Method encryptBlock;
+    private static Method decryptBlock;
+    private static Method encryptBlocks;
+    private static Method decryptBlocks;
+    private static Method crypt4;
+    private static Field rk;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Class<?> symmetric = Class.forName("security.sm.SymmetricCipher");
+        init = declared(symmetric, "init", boolean.class, String.class, byte[].class);
+        encryptBlock = declared(symmetric, "encryptBlock", byte[].class, int.class, byte[].class, int.class);
+        decryptBlock = declared(symmetric, "decryptBlock", byte[].class, int.class, byte[].class, int.class);
+        encryptBlocks = declared(symmetric, "encryptBlocks", byte[].class, int.class, int.class, byte[].class,
+                int.class);
+        decryptBlocks = declared(symmetric, "decryptBlocks", byte[].class, int.class, int.class, byte[].class,
+                int.class);
+        crypt4 = declared(SMS4Crypt.class, "crypt4", int[].class, byte[].class, int.class, byte[].class, int.class);
+        rk = SMS4Crypt.class.getDeclaredField("rk");
+        rk.setAccessible(true);
+    }
+
+    private static Method declared(Class<?> c, String name, Class<?>... types) throws Exception {
+        Method m = c.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        return m;
+    }
+
+    private static SMS4Crypt engine() throws Exception {
+        SMS4Crypt engine = new SMS4Crypt();
+        init.invoke(engine, false, "SMS4", KEY);
+        return engine;
+    }
+
+    @Test
+    public void blocksMatchSingleBlocks() throws Exception {
+        SMS4Crypt engine = engine();
+        Random random = new Random(18);
+        for (int n = 1; n <= 9; n++) {
+            int len = n * 16;
+            byte[] in = new byte[len + 5];
+            random.nextBytes(in);
+
+            byte[] encrypted = new byte[len];
+            byte[] decrypted = new byte[len];
+            for (int off = 0; off < len; off += 16) {
+                encryptBlock.invoke(engine, in, 5 + off, encrypted, off);
+                decryptBlock.invoke(engine, in, 5 + off, decrypted, off);
+            }
+
+            // unaligned offsets, separate buffers
+            byte[] out = new byte[len + 3];
+            encryptBlocks.invoke(engine, in, 5, n, out, 3);
+            assertArrayEquals("encrypt " + n, encrypted, Arrays.copyOfRange(out, 3, 3 + len));
+            decryptBlocks.invoke(engine, in, 5, n, out, 3);
+            assertArrayEquals("decrypt " + n, decrypted, Arrays.copyOfRange(out, 3, 3 + len));
+
+            // in place at the same offset
+            byte[] buf = in.clone();
+            encryptBlocks.invoke(engine, buf, 5, n, buf, 5);
+            assertArrayEquals("encrypt in place " + n, encrypted, Arrays.copyOfRange(buf, 5, 5 + len));
+            decryptBlocks.invoke(engine, buf, 5, n, buf, 5);
+            assertArrayEquals("round trip " + n, Arrays.copyOfRange(in, 5, 5 + len),
+                    Arrays.copyOfRange(buf, 5, 5 + len));
+        }
+    }
+
+    @Test
+    public void crypt4MatchesSingleBlocks() throws Exception {
+        SMS4Crypt engine = engine();
+        int[] roundKeys = (int[]) rk.get(engine);
+        byte[] in = new byte[64 + 7];
+        new Random(19).nextBytes(in);
+        // the known answer block first
+        System.arraycopy(KEY, 0, in, 7, 16);
+
+        byte[] expected = new byte[64];
+        for (int off = 0; off < 64; off += 16) {
+            encryptBlock.invoke(engine, in, 7 + off, expected, off);
+        }
+        assertArrayEquals(SMS4CipherTest.hex("681edf34d206965e86b3e94f536e4246"), Arrays.copyOf(expected, 16));
+
+        byte[] out = new byte[64 + 1];
+        crypt4.invoke(null, roundKeys, in, 7, out, 1);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 1, 65));
+
+        byte[] buf = in.clone();
+        crypt4.invoke(null, roundKeys, buf, 7, buf, 7);
+        assertArrayEquals(expected, Arrays.copyOfRange(buf, 7, 71));
+    }
+}
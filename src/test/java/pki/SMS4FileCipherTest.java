@@ -0,0 +1,93 @@
+package pki;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import security.sm.SMS4FileCipher;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static pki.SMS4CipherTest.KEY;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * Files through {@link SMS4FileCipher} against a single doFinal of the same
+ * cipher, and back.
+ */
+public class SMS4FileCipherTest {
+
+    private static final String[] TRANSFORMATIONS = { "SMS4/CBC/PKCS5Padding", "SMS4/CTR/NoPadding",
+            "SMS4/GCM/NoPadding", "SMS4/CFB8/NoPadding" };
+
+    private static final int[] LENGTHS = { 0, 1, 16, 1000, 100003 };
+
+    // 17 is not a whole number of blocks
+    private static final int[] CHUNK_SIZES = { 16, 17, 4096 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrips() throws Exception {
+        Random random = new Random(16);
+        SecretKeySpec key = new SecretKeySpec(KEY, "SMS4");
+        for (String transformation : TRANSFORMATIONS) {
+            for (int len : LENGTHS) {
+                byte[] data = new byte[len];
+                random.nextBytes(data);
+                File plain = folder.newFile(transformation.replace('/', '_') + len);
+                Files.write(plain.toPath(), data);
+
+                for (int chunkSize : CHUNK_SIZES) {
+                    String name = transformation + " " + len + "/" + chunkSize;
+                    // a new iv every time, GCM refuses to encrypt twice under one
+                    byte[] iv = new byte[16];
+                    random.nextBytes(iv);
+                    AlgorithmParameterSpec spec = transformation.contains("GCM") ? new GCMParameterSpec(128, iv)
+                            : new IvParameterSpec(iv);
+
+                    Cipher c = Cipher.getInstance(transformation, PROVIDER);
+                    c.init(Cipher.ENCRYPT_MODE, key, spec);
+                    byte[] expected = c.doFinal(data);
+
+                    c = Cipher.getInstance(transformation, PROVIDER);
+                    c.init(Cipher.ENCRYPT_MODE, key, spec);
+                    File encrypted = new File(folder.getRoot(), "enc");
+                    final long[] progress = new long[2];
+                    SMS4FileCipher fc = new SMS4FileCipher(c, chunkSize);
+                    fc.setProgressListener(new SMS4FileCipher.ProgressListener() {
+                        public void progress(long bytesDone, long bytesTotal) {
+                            progress[0] = bytesDone;
+                            progress[1] = bytesTotal;
+                        }
+                    });
+                    assertEquals(name, expected.length, fc.cryptFile(plain, encrypted));
+                    assertArrayEquals(name, expected, Files.readAllBytes(encrypted.toPath()));
+                    if (len > 0) {
+                        assertEquals(name, len, progress[0]);
+                        assertEquals(name, len, progress[1]);
+                    }
+
+                    c.init(Cipher.DECRYPT_MODE, key, spec);
+                    File decrypted = new File(folder.getRoot(), "dec");
+                    assertEquals(name, len, new SMS4FileCipher(c, chunkSize).cryptFile(encrypted, decrypted));
+                    assertArrayEquals(name, data, Files.readAllBytes(decrypted.toPath()));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunkShorterThanABlock() throws Exception {
+        new SMS4FileCipher(Cipher.getInstance("SMS4/CTR/NoPadding", PROVIDER), 15);
+    }
+}
@@ -0,0 +1,118 @@
+package pki;
+
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pki.SMS4CipherTest.PROVIDER;
+import static pki.SMS4CipherTest.hex;
+
+/**
+ * SMS4/GCM/NoPadding against the RFC 8998 SM4-GCM vector and BouncyCastle's
+ * GCM over the same block cipher.
+ */
+public class SMS4GCMTest {
+
+    @Test
+    public void rfc8998() throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/GCM/NoPadding", PROVIDER);
+        SecretKeySpec key = new SecretKeySpec(hex("0123456789abcdeffedcba9876543210"), "SMS4");
+        GCMParameterSpec spec = new GCMParameterSpec(128, hex("00001234567800000000abcd"));
+        byte[] aad = hex("feedfacedeadbeeffeedfacedeadbeefabaddad2");
+        byte[] pt = hex("aaaaaaaaaaaaaaaabbbbbbbbbbbbbbbbccccccccccccccccdddddddddddddddd"
+                + "eeeeeeeeeeeeeeeeffffffffffffffffeeeeeeeeeeeeeeeeaaaaaaaaaaaaaaaa");
+        byte[] ct = hex("17f399f08c67d5ee19d0dc9969c4bb7d5fd46fd3756489069157b282bb200735"
+                + "d82710ca5c22f0ccfa7cbf93d496ac15a56834cbcf98c397b4024a2691233b8d"
+                + "83de3541e4c2b58177e065a9bf7b62ec");
+        c.init(Cipher.ENCRYPT_MODE, key, spec);
+        c.updateAAD(aad);
+        assertArrayEquals(ct, c.doFinal(pt));
+        c.init(Cipher.DECRYPT_MODE, key, spec);
+        c.updateAAD(aad);
+        assertArrayEquals(pt, c.doFinal(ct));
+    }
+
+    @Test
+    public void matchesBouncyCastle() throws Exception {
+        Random random = new Random(14);
+        byte[] k = new byte[16];
+        random.nextBytes(k);
+        SecretKeySpec key = new SecretKeySpec(k, "SMS4");
+        Cipher c = Cipher.getInstance("SMS4/GCM/NoPadding", PROVIDER);
+        int count = 0;
+        for (int ivLen : new int[] { 12, 16, 1, 60 }) {
+            for (int tagBits : new int[] { 128, 96 }) {
+                for (int aadLen : new int[] { 0, 5, 16, 37 }) {
+                    for (int len : new int[] { 0, 1, 15, 16, 17, 64, 1000 }) {
+                        // consecutive encryptions must not repeat the iv
+                        byte[] iv = new byte[ivLen];
+                        random.nextBytes(iv);
+                        iv[0] = (byte) count++;
+                        byte[] aad = new byte[aadLen];
+                        random.nextBytes(aad);
+                        byte[] pt = new byte[len];
+                        random.nextBytes(pt);
+                        String what = ivLen + "/" + tagBits + "/" + aadLen + "/" + len;
+
+                        GCMBlockCipher ref = new GCMBlockCipher(new BCSMS4Engine());
+                        ref.init(true, new AEADParameters(new KeyParameter(k), tagBits, iv, aad));
+                        byte[] expected = new byte[ref.getOutputSize(len)];
+                        int n = ref.processBytes(pt, 0, len, expected, 0);
+                        ref.doFinal(expected, n);
+
+                        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(tagBits, iv));
+                        c.updateAAD(aad, 0, aadLen / 3);
+                        c.updateAAD(aad, aadLen / 3, aadLen - aadLen / 3);
+                        byte[] out = new byte[c.getOutputSize(len)];
+                        int o = 0;
+                        for (int off = 0, step = 1; off < len; off += step, step += 5) {
+                            o += c.update(pt, off, Math.min(step, len - off), out, o);
+                        }
+                        o += c.doFinal(out, o);
+                        assertEquals(what, expected.length, o);
+                        assertArrayEquals(what, expected, out);
+
+                        // decrypt in place, shifted forward
+                        byte[] buf = new byte[expected.length + 21];
+                        System.arraycopy(expected, 0, buf, 0, expected.length);
+                        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(tagBits, iv));
+                        c.updateAAD(aad);
+                        assertEquals(what, len, c.doFinal(buf, 0, expected.length, buf, 21));
+                        assertArrayEquals(what, pt, Arrays.copyOfRange(buf, 21, 21 + len));
+
+                        byte[] bad = expected.clone();
+                        bad[random.nextInt(bad.length)] ^= 1;
+                        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(tagBits, iv));
+                        c.updateAAD(aad);
+                        try {
+                            c.doFinal(bad);
+                            fail("tampered " + what);
+                        } catch (AEADBadTagException expectedFailure) {
+                            // nothing may be released
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = java.security.InvalidAlgorithmParameterException.class)
+    public void refusesIvReuseForEncryption() throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/GCM/NoPadding", PROVIDER);
+        SecretKeySpec key = new SecretKeySpec(new byte[16], "SMS4");
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, new byte[12]));
+        c.doFinal(new byte[3]);
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, new byte[12]));
+    }
+}
@@ -0,0 +1,164 @@
+package pki;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import security.sm.SMS4KeyCache;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * Round keys of {@link SMS4KeyCache} with the cache on and off, its counters,
+ * and the zeroing of evicted and cleared entries.
+ */
+public class SMS4KeyCacheTest {
+
+    private static Method getRoundKeys;
+    private static Field stripes;
+    private static Field keyBytes;
+    private static Field entryRk;
+    private static Field entryRkDec;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        getRoundKeys = SMS4KeyCache.class.getDeclaredMethod("getRoundKeys", byte[].class, int[].class, int[].class);
+        getRoundKeys.setAccessible(true);
+        stripes = SMS4KeyCache.class.getDeclaredField("stripes");
+        stripes.setAccessible(true);
+        keyBytes = Class.forName("security.sm.SMS4KeyCache$Key").getDeclaredField("key");
+        keyBytes.setAccessible(true);
+        Class<?> entry = Class.forName("security.sm.SMS4KeyCache$Entry");
+        entryRk = entry.getDeclaredField("rk");
+        entryRk.setAccessible(true);
+        entryRkDec = entry.getDeclaredField("rkDec");
+        entryRkDec.setAccessible(true);
+    }
+
+    // the cache is off by default
+    @After
+    public void restore() {
+        SMS4KeyCache.setMaxSize(0);
+        SMS4KeyCache.clear();
+    }
+
+    @Test
+    public void cachedRoundKeysMatchUncached() throws Exception {
+        Random random = new Random(20);
+        byte[] plain = new byte[64];
+        random.nextBytes(plain);
+        for (int i = 0; i < 50; i++) {
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+
+            SMS4KeyCache.setMaxSize(0);
+            long hits = SMS4KeyCache.getHitCount();
+            long misses = SMS4KeyCache.getMissCount();
+            int[][] expected = roundKeys(key);
+            byte[] expectedCipher = encrypt(key, plain);
+            assertEquals(hits, SMS4KeyCache.getHitCount());
+            assertEquals(misses + 2, SMS4KeyCache.getMissCount());
+            assertEquals(0, SMS4KeyCache.size());
+
+            SMS4KeyCache.setMaxSize(64);
+            assertArrayEquals(expected[0], roundKeys(key)[0]);
+            assertEquals(misses + 3, SMS4KeyCache.getMissCount());
+            // the cache keeps its own copy of the key
+            byte[] copy = key.clone();
+            int[][] cached = roundKeys(copy);
+            Arrays.fill(copy, (byte) 0);
+            assertArrayEquals(expected[0], cached[0]);
+            assertArrayEquals(expected[1], cached[1]);
+            assertArrayEquals(expectedCipher, encrypt(key, plain));
+            assertEquals(hits + 2, SMS4KeyCache.getHitCount());
+            assertEquals(misses + 3, SMS4KeyCache.getMissCount());
+        }
+        assertTrue(SMS4KeyCache.size() <= 64);
+    }
+
+    @Test
+    public void evictedAndClearedEntriesAreZeroed() throws Exception {
+        // one entry per stripe
+        SMS4KeyCache.setMaxSize(16);
+        assertEquals(16, SMS4KeyCache.getMaxSize());
+        Random random = new Random(21);
+        fill(random, 200);
+        List<Object> evicted = stored();
+        assertFalse(evicted.isEmpty());
+        assertTrue(SMS4KeyCache.size() <= 16);
+
+        // enough new keys to replace the entry of every stripe
+        fill(random, 200);
+        assertZero(evicted);
+        for (Object a : stored()) {
+            assertFalse(evicted.contains(a));
+        }
+
+        List<Object> cleared = stored();
+        SMS4KeyCache.clear();
+        assertEquals(0, SMS4KeyCache.size());
+        assertZero(cleared);
+
+        fill(random, 200);
+        List<Object> trimmed = stored();
+        SMS4KeyCache.setMaxSize(0);
+        assertEquals(0, SMS4KeyCache.size());
+        assertZero(trimmed);
+    }
+
+    private static void fill(Random random, int keys) throws Exception {
+        for (int i = 0; i < keys; i++) {
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+            roundKeys(key);
+        }
+    }
+
+    private static int[][] roundKeys(byte[] key) throws Exception {
+        int[][] rk = new int[2][32];
+        getRoundKeys.invoke(null, key, rk[0], rk[1]);
+        return rk;
+    }
+
+    private static byte[] encrypt(byte[] key, byte[] plain) throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "SMS4"));
+        return c.doFinal(plain);
+    }
+
+    // the key and round key arrays of every stored entry
+    private static List<Object> stored() throws Exception {
+        List<Object> arrays = new ArrayList<Object>();
+        for (Object stripe : (Object[]) stripes.get(null)) {
+            for (Map.Entry<?, ?> me : ((Map<?, ?>) stripe).entrySet()) {
+                arrays.add(keyBytes.get(me.getKey()));
+                arrays.add(entryRk.get(me.getValue()));
+                arrays.add(entryRkDec.get(me.getValue()));
+            }
+        }
+        return arrays;
+    }
+
+    private static void assertZero(List<Object> arrays) {
+        for (Object a : arrays) {
+            if (a instanceof byte[]) {
+                assertArrayEquals(new byte[((byte[]) a).length], (byte[]) a);
+            } else {
+                assertArrayEquals(new int[((int[]) a).length], (int[]) a);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package pki;
+
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * SMS4-CMAC against BouncyCastle's CMac and SMS4-GMAC against BouncyCastle's
+ * GCM tag over the message as additional data, both over the provider's
+ * SMS4.
+ */
+public class SMS4MacTest {
+
+    @Test
+    public void cmacMatchesBouncyCastle() throws Exception {
+        Random random = new Random(20);
+        Mac mac = Mac.getInstance("SMS4-CMAC", PROVIDER);
+        for (int len : new int[] { 0, 1, 15, 16, 17, 32, 33, 64, 200 }) {
+            byte[] k = new byte[16];
+            random.nextBytes(k);
+            byte[] m = new byte[len];
+            random.nextBytes(m);
+            CMac ref = new CMac(new BCSMS4Engine());
+            ref.init(new KeyParameter(k));
+            ref.update(m, 0, len);
+            byte[] expected = new byte[16];
+            ref.doFinal(expected, 0);
+
+            SecretKeySpec key = new SecretKeySpec(k, "SMS4");
+            mac.init(key);
+            for (int off = 0, step = 1; off < len; off += step, step += 3) {
+                mac.update(m, off, Math.min(step, len - off));
+            }
+            assertArrayEquals("cmac " + len, expected, mac.doFinal());
+
+            // a direct buffer, then the same key again
+            ByteBuffer direct = ByteBuffer.allocateDirect(len);
+            direct.put(m).flip();
+            mac.update(direct);
+            assertArrayEquals("cmac buffer " + len, expected, mac.doFinal());
+            mac.init(key);
+            assertArrayEquals("cmac reinit " + len, expected, mac.doFinal(m));
+        }
+    }
+
+    @Test
+    public void gmacMatchesGcmTag() throws Exception {
+        Random random = new Random(21);
+        Mac mac = Mac.getInstance("SMS4-GMAC", PROVIDER);
+        for (int len : new int[] { 0, 1, 16, 17, 100 }) {
+            for (int ivLen : new int[] { 12, 1, 40 }) {
+                for (int tagBits : new int[] { 96, 128 }) {
+                    byte[] k = new byte[16];
+                    random.nextBytes(k);
+                    byte[] iv = new byte[ivLen];
+                    random.nextBytes(iv);
+                    byte[] m = new byte[len];
+                    random.nextBytes(m);
+                    GCMBlockCipher ref = new GCMBlockCipher(new BCSMS4Engine());
+                    ref.init(true, new AEADParameters(new KeyParameter(k), tagBits, iv, m));
+                    byte[] expected = new byte[tagBits / 8];
+                    ref.doFinal(expected, 0);
+
+                    SecretKeySpec key = new SecretKeySpec(k, "SMS4");
+                    mac.init(key, new GCMParameterSpec(tagBits, iv));
+                    assertEquals(tagBits / 8, mac.getMacLength());
+                    for (int off = 0, step = 1; off < len; off += step, step += 3) {
+                        mac.update(m, off, Math.min(step, len - off));
+                    }
+                    String what = len + "/" + ivLen + "/" + tagBits;
+                    assertArrayEquals("gmac " + what, expected, mac.doFinal());
+
+                    Cipher gcm = Cipher.getInstance("SMS4/GCM/NoPadding", PROVIDER);
+                    gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(tagBits, iv));
+                    gcm.updateAAD(m);
+                    assertArrayEquals("gcm " + what, expected, gcm.doFinal());
+                }
+            }
+        }
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void gmacRequiresIv() throws Exception {
+        Mac.getInstance("SMS4-GMAC", PROVIDER).init(new SecretKeySpec(new byte[16], "SMS4"));
+    }
+}
@@ -0,0 +1,149 @@
+package pki;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import security.sm.SMS4ParallelCTR;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static pki.SMS4CipherTest.KEY;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * {@link SMS4ParallelCTR} and the parallel branch of SMS4/CTR against the
+ * serial counter mode.
+ */
+public class SMS4ParallelCTRTest {
+
+    private static final int DEFAULT_THRESHOLD = 1 << 20;
+
+    // the counter carries out of the low 64 bits after two blocks
+    private static final byte[] IV = SMS4CipherTest.hex("0001020304050607fffffffffffffffe");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restore() {
+        SMS4ParallelCTR.setThreshold(DEFAULT_THRESHOLD);
+    }
+
+    @Test
+    public void thresholdIsAtLeastOneBlock() throws Exception {
+        SMS4ParallelCTR.setThreshold(2);
+        assertEquals(16, SMS4ParallelCTR.getThreshold());
+        SMS4ParallelCTR.setThreshold(0);
+        assertEquals(16, SMS4ParallelCTR.getThreshold());
+
+        // one byte, then a short update that starts inside the keystream block
+        Cipher c = cipher();
+        byte[] out = new byte[4];
+        c.update(new byte[1], 0, 1, out, 0);
+        c.update(new byte[3], 0, 3, out, 1);
+        assertArrayEquals(serial(new byte[4]), out);
+    }
+
+    @Test
+    public void updatesMatchSerial() throws Exception {
+        int[] sizes = { 1, 3, 16, 17, 15, 100, 5000, 70000, 1, 33, 200000, 7 };
+        int total = 0;
+        for (int n : sizes) {
+            total += n;
+        }
+        byte[] in = new byte[total];
+        new Random(13).nextBytes(in);
+        byte[] expected = serial(in);
+
+        for (int threshold : new int[] { 16, 17, 100, 4096 }) {
+            SMS4ParallelCTR.setThreshold(threshold);
+            // unaligned offsets on both sides
+            Cipher c = cipher();
+            byte[] src = new byte[total + 3];
+            System.arraycopy(in, 0, src, 3, total);
+            byte[] dst = new byte[total + 5];
+            int off = 0;
+            for (int n : sizes) {
+                assertEquals(n, c.update(src, 3 + off, n, dst, 5 + off));
+                off += n;
+            }
+            assertArrayEquals("threshold " + threshold, expected, Arrays.copyOfRange(dst, 5, 5 + total));
+
+            // in place
+            c = cipher();
+            byte[] buf = src.clone();
+            off = 0;
+            for (int n : sizes) {
+                c.update(buf, 3 + off, n, buf, 3 + off);
+                off += n;
+            }
+            assertArrayEquals("in place " + threshold, expected, Arrays.copyOfRange(buf, 3, 3 + total));
+        }
+    }
+
+    @Test
+    public void blockOffsetsMatchSerial() throws Exception {
+        byte[] in = new byte[300000];
+        new Random(14).nextBytes(in);
+        byte[] expected = serial(in);
+        SMS4ParallelCTR ctr = new SMS4ParallelCTR(KEY);
+        for (int block : new int[] { 0, 1, 2, 3, 4095, 4096, 4097, 10000 }) {
+            int from = block * 16;
+            for (int len : new int[] { 0, 1, 15, 16, 17, 65536, 65537, in.length - from }) {
+                if (from + len > in.length) {
+                    continue;
+                }
+                byte[] out = new byte[len + 1];
+                ctr.crypt(IV, block, in, from, len, out, 1);
+                assertArrayEquals(block + "/" + len, Arrays.copyOfRange(expected, from, from + len),
+                        Arrays.copyOfRange(out, 1, len + 1));
+            }
+        }
+    }
+
+    @Test
+    public void cryptFileMatchesSerial() throws Exception {
+        SMS4ParallelCTR ctr = new SMS4ParallelCTR(KEY);
+        Random random = new Random(15);
+        // the file buffer is 16 MB
+        for (int len : new int[] { 0, 1, 1000, (16 << 20) + 100 }) {
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            File plain = folder.newFile(len + ".plain");
+            File encrypted = folder.newFile(len + ".enc");
+            File decrypted = folder.newFile(len + ".dec");
+            Files.write(plain.toPath(), data);
+
+            assertEquals(len, ctr.cryptFile(plain, encrypted, IV));
+            assertArrayEquals("encrypt " + len, serial(data), Files.readAllBytes(encrypted.toPath()));
+            assertEquals(len, ctr.cryptFile(encrypted, decrypted, IV));
+            assertArrayEquals("decrypt " + len, data, Files.readAllBytes(decrypted.toPath()));
+        }
+    }
+
+    private static Cipher cipher() throws Exception {
+        Cipher c = Cipher.getInstance("SMS4/CTR/NoPadding", PROVIDER);
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "SMS4"), new IvParameterSpec(IV));
+        return c;
+    }
+
+    // one serial doFinal, the threshold is restored afterwards
+    private static byte[] serial(byte[] in) throws Exception {
+        int threshold = SMS4ParallelCTR.getThreshold();
+        SMS4ParallelCTR.setThreshold(Integer.MAX_VALUE);
+        try {
+            return cipher().doFinal(in);
+        } finally {
+            SMS4ParallelCTR.setThreshold(threshold);
+        }
+    }
+}
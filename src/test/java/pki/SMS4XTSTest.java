@@ -0,0 +1,173 @@
+package pki;
+
+import org.junit.Test;
+import security.sm.SMS4XTS;
+import security.sm.SMS4XTSFile;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static pki.SMS4CipherTest.PROVIDER;
+
+/**
+ * SMS4-XTS against IEEE 1619 XTS written out over single block ECB, and the
+ * sector encrypted file against an in-memory copy.
+ */
+public class SMS4XTSTest {
+
+    @Test
+    public void sectorsMatchReference() throws Exception {
+        Random random = new Random(15);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        SMS4XTS xts = new SMS4XTS(key);
+        for (int len : new int[] { 16, 17, 31, 32, 47, 512, 4096, 4100 }) {
+            for (long sector : new long[] { 0, 1, 255, 256, 0x123456789abcdefL, -1L }) {
+                byte[] pt = new byte[len];
+                random.nextBytes(pt);
+                byte[] expected = reference(key, sector, pt);
+                byte[] ct = new byte[len];
+                xts.encryptSector(sector, pt, 0, len, ct, 0);
+                assertArrayEquals(len + "/" + sector, expected, ct);
+
+                byte[] buf = ct.clone();
+                xts.decryptSector(sector, buf, 0, len, buf, 0);
+                assertArrayEquals(len + "/" + sector, pt, buf);
+            }
+        }
+    }
+
+    @Test
+    public void consecutiveSectors() throws Exception {
+        Random random = new Random(16);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        SMS4XTS xts = new SMS4XTS(key);
+        byte[] pt = new byte[8 * 512];
+        random.nextBytes(pt);
+        byte[] ct = new byte[pt.length];
+        xts.encryptSectors(40, 512, pt, 0, pt.length, ct, 0);
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(reference(key, 40 + i, Arrays.copyOfRange(pt, i * 512, (i + 1) * 512)),
+                    Arrays.copyOfRange(ct, i * 512, (i + 1) * 512));
+        }
+        xts.decryptSectors(40, 512, ct, 0, ct.length, ct, 0);
+        assertArrayEquals(pt, ct);
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void rejectsEqualKeyHalves() throws Exception {
+        new SMS4XTS(new byte[32]);
+    }
+
+    @Test
+    public void fileMatchesMemory() throws Exception {
+        Random random = new Random(17);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        File f = File.createTempFile("xts", ".bin");
+        f.deleteOnExit();
+        byte[] model = new byte[40000];
+        int end = 0;
+        SMS4XTSFile file = new SMS4XTSFile(f, "rw", key, 512, null);
+        try {
+            for (int i = 0; i < 200; i++) {
+                int pos = random.nextInt(model.length - 3000);
+                byte[] b = new byte[1 + random.nextInt(2999)];
+                random.nextBytes(b);
+                file.write(pos, b, 0, b.length);
+                System.arraycopy(b, 0, model, pos, b.length);
+                end = Math.max(end, pos + b.length);
+
+                int rpos = random.nextInt(end);
+                int rlen = Math.min(random.nextInt(3000), end - rpos);
+                byte[] r = new byte[rlen];
+                assertEquals(rlen, file.read(rpos, r, 0, rlen));
+                assertArrayEquals(Arrays.copyOfRange(model, rpos, rpos + rlen), r);
+            }
+            assertEquals(0, file.size() % 512);
+        } finally {
+            file.close();
+        }
+
+        // every sector on disk is the XTS encryption of its plaintext
+        RandomAccessFile raw = new RandomAccessFile(f, "r");
+        try {
+            byte[] sector = new byte[512];
+            for (int s = 0; s < end / 512; s++) {
+                raw.readFully(sector);
+                assertArrayEquals(reference(key, s, Arrays.copyOfRange(model, s * 512, (s + 1) * 512)),
+                        sector);
+            }
+        } finally {
+            raw.close();
+        }
+    }
+
+    /**
+     * IEEE 1619 XTS encryption of one sector, with ciphertext stealing.
+     */
+    static byte[] reference(byte[] key, long sector, byte[] pt) throws Exception {
+        Cipher k1 = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        k1.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(key, 0, 16), "SMS4"));
+        Cipher k2 = Cipher.getInstance("SMS4/ECB/NoPadding", PROVIDER);
+        k2.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(key, 16, 32), "SMS4"));
+        byte[] t = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            t[i] = (byte) (sector >>> (8 * i));
+        }
+        t = k2.doFinal(t);
+
+        int full = pt.length / 16;
+        int rest = pt.length % 16;
+        byte[] ct = new byte[pt.length];
+        byte[] block = new byte[16];
+        for (int j = 0; j < full; j++) {
+            System.arraycopy(pt, 16 * j, block, 0, 16);
+            System.arraycopy(xex(k1, t, block), 0, ct, 16 * j, 16);
+            t = times(t);
+        }
+        if (rest != 0) {
+            // the last full block's ciphertext lends its tail to the partial one
+            byte[] cc = Arrays.copyOfRange(ct, 16 * (full - 1), 16 * full);
+            System.arraycopy(cc, 0, ct, 16 * full, rest);
+            System.arraycopy(pt, 16 * full, block, 0, rest);
+            System.arraycopy(cc, rest, block, rest, 16 - rest);
+            System.arraycopy(xex(k1, t, block), 0, ct, 16 * (full - 1), 16);
+        }
+        return ct;
+    }
+
+    private static byte[] xex(Cipher c, byte[] t, byte[] p) throws Exception {
+        byte[] x = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            x[i] = (byte) (p[i] ^ t[i]);
+        }
+        x = c.doFinal(x);
+        for (int i = 0; i < 16; i++) {
+            x[i] ^= t[i];
+        }
+        return x;
+    }
+
+    // multiply by alpha in GF(2^128), little-endian
+    private static byte[] times(byte[] t) {
+        byte[] r = new byte[16];
+        int carry = 0;
+        for (int i = 0; i < 16; i++) {
+            r[i] = (byte) ((t[i] << 1) | carry);
+            carry = (t[i] >>> 7) & 1;
+        }
+        if (carry != 0) {
+            r[0] ^= (byte) 0x87;
+        }
+        return r;
+    }
+}